@@ -16,7 +16,8 @@ package com.google.caja.ancillary.opt;
 
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.parser.AncestorChain;
-import com.google.caja.parser.MutableParseTreeNode;
+import com.google.caja.parser.ParseTreeEditor;
+import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.js.ArrayConstructor;
 import com.google.caja.parser.js.Block;
 import com.google.caja.parser.js.Declaration;
@@ -41,6 +42,8 @@ import com.google.caja.parser.js.scope.AbstractScope;
 import com.google.caja.parser.js.scope.ES5ScopeAnalyzer;
 import com.google.caja.parser.js.scope.ScopeListener;
 import com.google.caja.parser.js.scope.ScopeType;
+import com.google.caja.reporting.DevNullMessageQueue;
+import com.google.caja.reporting.MessageQueue;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -48,6 +51,7 @@ import com.google.common.collect.Sets;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Inlines uses of local variables at the top of a block which are immediately
@@ -71,18 +75,44 @@ import java.util.Set;
  * times or not at all.
  * And we don't muck with initializations in try blocks since reads could be
  * inside catch or finally which might get invoked when set fails.
+ * <p>
+ * The input is not modified.  The output shares all subtrees that were not
+ * changed with the input.
  *
  * @author mikesamuel@gmail.com
  */
 public class ConstLocalOptimization {
   public static Block optimize(Block program) {
-    Block clone = (Block) program.clone();
+    return (Block) optimizeAll(program);
+  }
+
+  /**
+   * Like {@link #optimize(Block)} but optimizes each top level function on
+   * exec.  Only variables local to a function are inlined, so no function's
+   * optimization depends on another's.
+   *
+   * @param exec null to optimize on the calling thread.
+   */
+  static Block optimize(Block program, ExecutorService exec) {
+    if (exec == null) { return optimize(program); }
+    return TopLevelFunctions.optimizeEach(
+        program,
+        new TopLevelFunctions.Pass() {
+          public FunctionConstructor optimize(
+              AncestorChain<FunctionConstructor> fn, MessageQueue mq) {
+            return (FunctionConstructor) optimizeAll(fn.node);
+          }
+        },
+        DevNullMessageQueue.singleton(), exec);
+  }
+
+  private static ParseTreeNode optimizeAll(ParseTreeNode root) {
     while (true) {
       Optimizer opt = new Optimizer();
-      opt.examine(AncestorChain.instance(clone));
+      opt.examine(AncestorChain.instance(root));
       opt.finish();
-      if (!opt.changed) { return program; }
-      program = clone;
+      if (opt.edits.isEmpty()) { return root; }
+      root = opt.edits.apply(root);
     }
   }
 }
@@ -90,7 +120,10 @@ public class ConstLocalOptimization {
 class Optimizer {
   final Set<Var> vars = Sets.newLinkedHashSet();
   final Map<AncestorChain<?>, Integer> positions = Maps.newHashMap();
-  boolean changed;
+  final ParseTreeEditor edits = new ParseTreeEditor();
+  /** The number of declarations not yet removed from multi-declarations. */
+  private final Map<ParseTreeNode, Integer> declsLeft
+      = Maps.newIdentityHashMap();
 
   void examine(AncestorChain<?> program) {
     ES5ScopeAnalyzer<OptScope> sa = new ES5ScopeAnalyzer<OptScope>(
@@ -209,6 +242,8 @@ class Optimizer {
                 : positions.get(write);
             AncestorChain<Declaration> d = write.parent.cast(Declaration.class);
             value = d.node.getInitializer();
+            // Reads in the initializer may already have been inlined.
+            if (value != null) { value = (Expression) edits.apply(value); }
 
             isConst = isConst(value);
             if (!isConst
@@ -262,23 +297,25 @@ class Optimizer {
         } else {
           repl = (Expression) value.clone();
         }
-        toReplace.parent.cast(MutableParseTreeNode.class)
-            .node.replaceChild(repl, toReplace.node);
+        edits.replace(toReplace, repl);
         ++nInlined;
-        changed = true;
       }
 
       if (nInlined == s.reads.size()) {
         for (AncestorChain<Identifier> decl : s.decls) {
           AncestorChain<?> toRemove = decl.parent;
           if (toRemove.node instanceof FormalParam) { continue; }
-          if (toRemove.parent.node instanceof MultiDeclaration
-              && toRemove.parent.node.children().size() == 1) {
-            toRemove = toRemove.parent;
+          if (toRemove.parent.node instanceof MultiDeclaration) {
+            ParseTreeNode md = toRemove.parent.node;
+            Integer left = declsLeft.get(md);
+            int nLeft = left != null ? left : md.children().size();
+            if (nLeft == 1) {
+              toRemove = toRemove.parent;
+            } else {
+              declsLeft.put(md, nLeft - 1);
+            }
           }
-          toRemove.parent.cast(MutableParseTreeNode.class)
-              .node.removeChild(toRemove.node);
-          changed = true;
+          edits.remove(toRemove);
         }
       }
     }
@@ -16,7 +16,7 @@ package com.google.caja.ancillary.opt;
 
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.parser.AncestorChain;
-import com.google.caja.parser.MutableParseTreeNode;
+import com.google.caja.parser.ParseTreeEditor;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.Visitor;
 import com.google.caja.parser.js.Block;
@@ -35,37 +35,39 @@ import com.google.caja.reporting.RenderContext;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Collects frequently used literals, e.g. long strings and the like, into
  * a constant pool at the top of each top level function.
+ * The input is not modified, and the output shares unchanged subtrees with it.
  *
  * @author mikesamuel@gmail.com
  */
 public class ConstantPooler {
   public static Block optimize(Block program) {
-    program = (Block) program.clone();
-    optimizeTopLevelFunctions(program);
-    return program;
+    ParseTreeEditor edits = new ParseTreeEditor();
+    optimizeTopLevelFunctions(AncestorChain.instance(program), edits);
+    return (Block) edits.apply(program);
   }
 
-  private static void optimizeTopLevelFunctions(ParseTreeNode node) {
-    if (node instanceof FunctionConstructor) {
-      optimizeWithin((FunctionConstructor) node);
+  private static void optimizeTopLevelFunctions(
+      AncestorChain<?> ac, ParseTreeEditor edits) {
+    if (ac.node instanceof FunctionConstructor) {
+      optimizeWithin(ac.cast(FunctionConstructor.class), edits);
     } else {
-      for (ParseTreeNode child : node.children()) {
-        optimizeTopLevelFunctions(child);
+      for (ParseTreeNode child : ac.node.children()) {
+        optimizeTopLevelFunctions(ac.child(child), edits);
       }
     }
   }
 
-  private static void optimizeWithin(FunctionConstructor fc) {
+  private static void optimizeWithin(
+      AncestorChain<FunctionConstructor> fc, ParseTreeEditor edits) {
     final Map<LitVal, LitVal> uses = Maps.newLinkedHashMap();
-    Block body = fc.getBody();
-    body.acceptPreOrder(new Visitor() {
+    AncestorChain<Block> body = fc.child(fc.node.getBody());
+    body.node.acceptPreOrder(new Visitor() {
       public boolean visit(AncestorChain<?> chain) {
         if (chain.node instanceof Literal
             && !(chain.node instanceof RegexpLiteral)) {
@@ -86,9 +88,9 @@ public class ConstantPooler {
         }
         return true;
       }
-    }, null);
+    }, fc);
     List<Declaration> decls = Lists.newArrayList();
-    FilePosition pos = FilePosition.startOf(body.getFilePosition());
+    FilePosition pos = FilePosition.startOf(body.node.getFilePosition());
     for (LitVal v : uses.values()) {
       // Size now = canonLen * nUses.
       // Size after = "var aa=".length + canonLen + ";".length + "aa" * nUses
@@ -105,34 +107,30 @@ public class ConstantPooler {
         for (AncestorChain<Literal> use : v.uses) {
           Reference ref = new Reference(
               new Identifier(use.node.getFilePosition(), name));
-          use.parent.cast(MutableParseTreeNode.class).node
-              .replaceChild(ref, use.node);
+          edits.replace(use, ref);
         }
       }
     }
     if (!decls.isEmpty()) {
-      Statement first = body.children().get(0);
-      MultiDeclaration md;
+      AncestorChain<Statement> firstAc = body.child(
+          body.node.children().get(0));
+      // Literals in the first statement may have been pooled.
+      Statement first = (Statement) edits.apply(firstAc.node);
       if (first instanceof MultiDeclaration) {
-        md = (MultiDeclaration) first;
+        decls.addAll(((MultiDeclaration) first).children());
+        edits.replace(
+            firstAc, new MultiDeclaration(first.getFilePosition(), decls));
       } else if (first instanceof Declaration) {
-        md = new MultiDeclaration(
-            FilePosition.span(pos, first.getFilePosition()),
-            Collections.singletonList((Declaration) first));
-        body.replaceChild(md, first);
+        decls.add((Declaration) first);
+        edits.replace(
+            firstAc,
+            new MultiDeclaration(
+                FilePosition.span(pos, first.getFilePosition()), decls));
       } else if (decls.size() == 1) {
-        body.insertBefore(decls.get(0), first);
-        return;
+        edits.insertBefore(firstAc, decls.get(0));
       } else {
-        md = new MultiDeclaration(pos, Collections.<Declaration>emptyList());
-        body.insertBefore(md, first);
+        edits.insertBefore(firstAc, new MultiDeclaration(pos, decls));
       }
-      MutableParseTreeNode.Mutation mut = md.createMutation();
-      Declaration firstDecl = md.children().get(0);
-      for (Declaration decl : decls) {
-        mut = mut.insertBefore(decl, firstDecl);
-      }
-      mut.execute();
     }
   }
 
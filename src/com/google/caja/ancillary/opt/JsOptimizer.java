@@ -28,6 +28,7 @@ import com.google.caja.parser.js.Parser;
 import com.google.caja.parser.js.Statement;
 import com.google.caja.parser.js.StringLiteral;
 import com.google.caja.parser.js.ValueProperty;
+import com.google.caja.parser.quasiliteral.Scope;
 import com.google.caja.render.Concatenator;
 import com.google.caja.render.JsMinimalPrinter;
 import com.google.caja.reporting.DevNullMessageQueue;
@@ -42,6 +43,8 @@ import com.google.common.collect.Lists;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Optimizes JavaScript code.
@@ -52,6 +55,7 @@ public class JsOptimizer {
   private final List<Statement> compUnits = Lists.newArrayList();
   private ParseTreeKB optimizer;
   private boolean rename;
+  private int threadCount = 1;
   private final MessageQueue mq;
 
   public JsOptimizer(MessageQueue mq) { this.mq = mq; }
@@ -106,26 +110,56 @@ public class JsOptimizer {
     return this;
   }
 
+  /**
+   * Sets the number of threads used to optimize the bodies of top level
+   * functions, which do not affect one another.  The output does not depend
+   * on the thread count.
+   *
+   * @param threadCount 1, the default, to optimize on the calling thread, or
+   *     0 to use one thread per available processor.
+   */
+  public JsOptimizer setThreadCount(int threadCount) {
+    if (threadCount < 0) { throw new IllegalArgumentException(); }
+    this.threadCount = threadCount;
+    return this;
+  }
+
   /**
    * Returns an optimized version of the concatenation of the programs
    * registered via {@link #addInput}.
    */
   public Statement optimize() {
+    int nThreads = threadCount != 0
+        ? threadCount : Runtime.getRuntime().availableProcessors();
+    ExecutorService exec = nThreads > 1
+        ? Executors.newFixedThreadPool(nThreads) : null;
+    try {
+      return optimize(exec);
+    } finally {
+      if (exec != null) { exec.shutdownNow(); }
+    }
+  }
+
+  private Statement optimize(ExecutorService exec) {
     Block block = new Block(FilePosition.UNKNOWN, compUnits);
     // Do first since this improves the performance of the ConstVarInliner.
     VarCollector.optimize(block);
+    // Passes rebuild only the parts of the tree they change, so later passes
+    // can reuse the scope analyses of function bodies that earlier ones left
+    // alone.
+    Scope.HarvestCache scopeCache = new Scope.HarvestCache();
     if (optimizer != null) {
-      block = optimizer.optimize(block, mq);
+      block = optimizer.optimize(block, mq, exec, scopeCache);
     }
     if (rename) {
       // We pool after the ConstLocalOptimizer invoked by optimizer has run.
       block = ConstantPooler.optimize(block);
       // Now we shorten any long names introduced by the constant pooler.
-      block = new LocalVarRenamer(mq).optimize(block);
+      block = new LocalVarRenamer(mq).optimize(block, exec, scopeCache);
     }
     // Finally we rearrange statements and convert conditionals to expressions
     // where it will make things shorter.
-    return (Statement) StatementSimplifier.optimize(block, mq);
+    return (Statement) StatementSimplifier.optimize(block, mq, exec);
   }
 
   public static void main(String... args) throws IOException {
@@ -139,6 +173,9 @@ public class JsOptimizer {
         String arg = args[i];
         if ("--norename".equals(arg)) {
           opt.setRename(false);
+        } else if (arg.startsWith("--threads=")) {
+          opt.setThreadCount(
+              Integer.parseInt(arg.substring(arg.indexOf('=') + 1)));
         } else if (arg.startsWith("--envjson=")) {
           String jsonfile = arg.substring(arg.indexOf('=') + 1);
           CharProducer json = CharProducer.Factory.fromFile(
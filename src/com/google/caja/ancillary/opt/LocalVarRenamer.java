@@ -15,7 +15,7 @@
 package com.google.caja.ancillary.opt;
 
 import com.google.caja.parser.AncestorChain;
-import com.google.caja.parser.MutableParseTreeNode;
+import com.google.caja.parser.ParseTreeEditor;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.js.Block;
 import com.google.caja.parser.js.CatchStmt;
@@ -32,11 +32,16 @@ import com.google.caja.parser.quasiliteral.Scope;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.util.Iterators;
 import com.google.caja.util.SafeIdentifierMaker;
-import com.google.caja.util.SyntheticAttributeKey;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Renames all local variables in scopes not visible to calls to {@code eval}
@@ -54,28 +59,42 @@ public final class LocalVarRenamer {
    */
   public LocalVarRenamer(MessageQueue mq) { this.mq = mq; }
 
-  private static final SyntheticAttributeKey<ScopeInfo> SCOPE
-      = new SyntheticAttributeKey<ScopeInfo>(ScopeInfo.class, "scope");
   public Block optimize(Block program) {
-    // Don't modify the input.
-    program = (Block) program.clone();
-    // Mark each node with a scope-wrapper that makes it easier to track
+    return optimize(program, null, null);
+  }
+
+  /**
+   * @param exec if not null, names are assigned within each top level scope
+   *     in parallel.
+   * @param scopeCache if not null, reuses the scope analyses of function
+   *     bodies that an earlier pass analyzed.
+   */
+  Block optimize(
+      Block program, ExecutorService exec, Scope.HarvestCache scopeCache) {
+    // Don't modify the input.  Scopes are tracked in a side table, and renamed
+    // identifiers are swapped in by rebuilding only their ancestors.
+    Map<ParseTreeNode, ScopeInfo> scopes = Maps.newIdentityHashMap();
+    // Map each node to a scope-wrapper that makes it easier to track
     // variable usage.
-    attachScopes(AncestorChain.instance(program), new ScopeInfo(program, mq));
+    AncestorChain<Block> root = AncestorChain.instance(program);
+    attachScopes(root, new ScopeInfo(program, scopeCache, mq), scopes);
     // Walk the tree assigning names efficiently.
-    assignNames(program.getAttributes().get(SCOPE).parent);
+    assignNames(scopes.get(program).parent, exec);
     // Modify the tree to use the assigned names.
-    rename(null, program);
-    return program;
+    ParseTreeEditor edits = new ParseTreeEditor();
+    rename(root, scopes, edits);
+    return (Block) edits.apply(program);
   }
 
-  private static boolean attachScopes(AncestorChain<?> ac, ScopeInfo scope) {
+  private static boolean attachScopes(
+      AncestorChain<?> ac, ScopeInfo scope,
+      Map<ParseTreeNode, ScopeInfo> scopes) {
     // We infect scopes root-wards if we see a problematic construct like
     // "eval" or "with" which would change behavior if variables in scope where
     // it is declared were renamed.
     boolean infected = false;
     ParseTreeNode n = ac.node;
-    n.getAttributes().set(SCOPE, scope);
+    scopes.put(n, scope);
     if (n instanceof FunctionConstructor) {
       FunctionConstructor fc = (FunctionConstructor) n;
       scope = new ScopeInfo(scope, Scope.fromFunctionConstructor(scope.s, fc));
@@ -84,7 +103,7 @@ public final class LocalVarRenamer {
       }
       // A ctor's name is apparent in its scope, unlike a fn declarations name
       // which is apparent in the containing scope.
-      n.getAttributes().set(SCOPE, scope);
+      scopes.put(n, scope);
     } else if (n instanceof CatchStmt) {
       CatchStmt cs = (CatchStmt) n;
       scope = new ScopeInfo(scope, Scope.fromCatchStmt(scope.s, cs));
@@ -92,10 +111,10 @@ public final class LocalVarRenamer {
       // Since the logic below does that, make sure that the exception
       // declaration is not hoisted.
       scope.decls.add(AncestorChain.instance(ac, cs.getException()));
-      cs.getException().getAttributes().set(SCOPE, scope);
+      scopes.put(cs.getException(), scope);
       // And recurse to the body manually so as to avoid recursing to the
       // exception declaration.
-      attachScopes(AncestorChain.instance(ac, cs.getBody()), scope);
+      attachScopes(AncestorChain.instance(ac, cs.getBody()), scope, scopes);
       return false;
     } else if (n instanceof Reference) {
       Reference r = (Reference) n;
@@ -119,11 +138,13 @@ public final class LocalVarRenamer {
     } else if (Operation.is(n, Operator.MEMBER_ACCESS)) {
       // Do not let the property name reference be treated as a reference to
       // a var or global.
-      attachScopes(AncestorChain.instance(ac, n.children().get(0)), scope);
+      attachScopes(
+          AncestorChain.instance(ac, n.children().get(0)), scope, scopes);
       return false;
     }
     for (ParseTreeNode child : n.children()) {
-      infected |= attachScopes(AncestorChain.instance(ac, child), scope);
+      infected |= attachScopes(
+          AncestorChain.instance(ac, child), scope, scopes);
     }
     if (infected) { scope.setDynamicUsePossible(); }
     return infected;
@@ -133,7 +154,7 @@ public final class LocalVarRenamer {
    * @param scope the set of uses of names defined in ancestor scopes in usage
    *    and its descendants.
    */
-  private static void assignNames(ScopeInfo scope) {
+  private static void assignNames(ScopeInfo scope, ExecutorService exec) {
     Set<Use> outerUses = Sets.newHashSet();
     addUsedOuters(scope, scope.depth, outerUses);
     // Compute the set of names used in this scope and children which cannot
@@ -188,8 +209,26 @@ public final class LocalVarRenamer {
       if (!inner.isDynamicUsePossible()) {
         allocateExceptionNames(inner, namer);
       }
+    }
 
-      assignNames(inner);
+    // Names within an inner scope depend only on the names of the scopes that
+    // contain it, which are all assigned by now, so siblings are independent.
+    if (exec != null && scope.s != null
+        && scope.s.getType() == ScopeType.PROGRAM) {
+      List<Callable<Void>> tasks = Lists.newArrayList();
+      for (final ScopeInfo inner : scope.inners) {
+        tasks.add(new Callable<Void>() {
+          public Void call() {
+            assignNames(inner, null);
+            return null;
+          }
+        });
+      }
+      TopLevelFunctions.runAll(tasks, exec);
+    } else {
+      for (ScopeInfo inner : scope.inners) {
+        assignNames(inner, exec);
+      }
     }
   }
 
@@ -258,26 +297,26 @@ public final class LocalVarRenamer {
     }
   }
 
-  private static void rename(ParseTreeNode parent, ParseTreeNode n) {
-    // Walk post order so that function constructors are renamed before any
-    // function declaration that contains them.
-
-    // All the mutation done by this optimizer is done here, and the only
-    // mutation done is to replace Identifier nodes.
+  private static void rename(
+      AncestorChain<?> ac, Map<ParseTreeNode, ScopeInfo> scopes,
+      ParseTreeEditor edits) {
+    // All the edits made by this optimizer are made here, and the only
+    // edit made is to replace Identifier nodes.
+    ParseTreeNode n = ac.node;
     for (ParseTreeNode child : n.children()) {
-      rename(n, child);
+      rename(ac.child(child), scopes, edits);
     }
     if (n instanceof Reference) {
-      if (!isMemberAccess(parent, (Reference) n)) {
-        renameOne((Reference) n);
+      if (!isMemberAccess(ac.getParentNode(), (Reference) n)) {
+        renameOne(ac, scopes, edits);
       }
     } else if (n instanceof FunctionConstructor) {
       FunctionConstructor fc = (FunctionConstructor) n;
       if (fc.getIdentifierName() != null) {
-        renameOne(fc);
+        renameOne(ac, scopes, edits);
       }
     } else if (n instanceof Declaration) {
-      renameOne((Declaration) n);
+      renameOne(ac, scopes, edits);
     }
   }
 
@@ -287,16 +326,20 @@ public final class LocalVarRenamer {
         && parent.children().get(1) == ref;
   }
 
-  private static void renameOne(MutableParseTreeNode n) {
+  private static void renameOne(
+      AncestorChain<?> ac, Map<ParseTreeNode, ScopeInfo> scopes,
+      ParseTreeEditor edits) {
+    ParseTreeNode n = ac.node;
     Identifier id = (Identifier) n.children().get(0);
     String origName = id.getName();
-    ScopeInfo u = n.getAttributes().get(SCOPE);
+    ScopeInfo u = scopes.get(n);
     Scope s = (n instanceof FunctionConstructor)
         ? u.s :  u.s.thatDefines(origName);
     if (s != null) {  // Will be null for undeclared globals.
       String newName = u.withScope(s).mapping.get(origName);
       if (!newName.equals(origName)) {
-        n.replaceChild(new Identifier(id.getFilePosition(), newName), id);
+        edits.replace(
+            ac.child(id), new Identifier(id.getFilePosition(), newName));
       }
     }
   }
@@ -48,6 +48,7 @@ import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * An optimizer which uses facts about the environment in which the program
@@ -87,12 +88,25 @@ public class ParseTreeKB {
    * @return js if no optimizations were performed.  Otherwise a partial clone.
    */
   public Block optimize(Block js, MessageQueue mq) {
+    return optimize(js, mq, null, new Scope.HarvestCache());
+  }
+
+  /**
+   * @param exec if not null, local variables are inlined in each top level
+   *     function in parallel.
+   * @param scopeCache shared by the scopes built on each iteration, since
+   *     most function bodies are unchanged by an iteration.
+   */
+  Block optimize(
+      Block js, MessageQueue mq, ExecutorService exec,
+      Scope.HarvestCache scopeCache) {
     finishInference();
     while (true) {
       Result out = new Result();
-      Scope s = Scope.fromProgram(js, mq);
+      Scope s = Scope.fromProgram(js, scopeCache, mq);
       optimize(s, js, false, false, false, false, out);
-      Block optimized = ConstLocalOptimization.optimize((Block) out.node);
+      Block optimized = ConstLocalOptimization.optimize(
+          (Block) out.node, exec);
       if (optimized == js) { return optimized; }
       js = optimized;
     }
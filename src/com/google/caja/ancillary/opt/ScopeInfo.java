@@ -61,9 +61,9 @@ final class ScopeInfo {
    */
   final List<ScopeInfo> inners = Lists.newArrayList();
 
-  ScopeInfo(Block program, MessageQueue mq) {
+  ScopeInfo(Block program, Scope.HarvestCache scopeCache, MessageQueue mq) {
     this(new ScopeInfo(),
-        Scope.fromProgram(program, mq));
+        Scope.fromProgram(program, scopeCache, mq));
     // The global scope is infected since top level declarations
     // are aliased by members of the local scope.
     this.dynamicUsePossible = true;
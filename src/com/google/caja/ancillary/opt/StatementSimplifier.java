@@ -15,6 +15,7 @@
 package com.google.caja.ancillary.opt;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.parser.AncestorChain;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.ParseTreeNodes;
 import com.google.caja.parser.js.Block;
@@ -47,6 +48,7 @@ import com.google.caja.parser.js.SwitchCase;
 import com.google.caja.parser.js.SwitchStmt;
 import com.google.caja.parser.js.ThrowStmt;
 import com.google.caja.parser.js.TryStmt;
+import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageQueue;
@@ -54,11 +56,14 @@ import com.google.caja.reporting.MessageType;
 import com.google.caja.util.SafeIdentifierMaker;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Removes unnecessary blocks from a program to allow for smaller rendered
@@ -76,7 +81,49 @@ public class StatementSimplifier {
     return new StatementSimplifier(mq).optimize(n, false);
   }
 
+  /**
+   * Like {@link #optimize(ParseTreeNode, MessageQueue)} but simplifies top
+   * level functions on exec.  Labels are not visible across function
+   * boundaries, so each function is simplified independently.
+   * Messages are reported in the same order as by the serial version.
+   *
+   * @param exec null to optimize on the calling thread.
+   */
+  static ParseTreeNode optimize(
+      Block program, MessageQueue mq, ExecutorService exec) {
+    if (exec == null) { return optimize(program, mq); }
+    StatementSimplifier ss = new StatementSimplifier(mq);
+    Block simplified = TopLevelFunctions.optimizeEach(
+        program,
+        new TopLevelFunctions.Pass() {
+          public FunctionConstructor optimize(
+              AncestorChain<FunctionConstructor> fn, MessageQueue mq) {
+            return (FunctionConstructor) StatementSimplifier.optimize(
+                fn.node, mq);
+          }
+        },
+        ss.pendingMessages, exec);
+    ss.done.addAll(ss.pendingMessages.keySet());
+    ParseTreeNode result = ss.optimize(simplified, false);
+    // Any function that the walk above did not reach still has its messages.
+    for (AncestorChain<FunctionConstructor> fn
+         : TopLevelFunctions.find(AncestorChain.instance(simplified))) {
+      ss.reportPendingMessages(fn.node);
+    }
+    return result;
+  }
+
   private final MessageQueue mq;
+  /** Subtrees that have already been simplified. */
+  private final Set<ParseTreeNode> done = Sets.newSetFromMap(
+      Maps.<ParseTreeNode, Boolean>newIdentityHashMap());
+  /**
+   * Messages about subtrees in done that were simplified separately, to be
+   * reported when the walk reaches them so that they interleave with messages
+   * about the surrounding code as they would in a single walk.
+   */
+  private final Map<ParseTreeNode, List<Message>> pendingMessages
+      = Maps.newIdentityHashMap();
   private final Map<String, StmtLabel> labels = Maps.newHashMap();
   private String blankLabel = "";
   private final SafeIdentifierMaker labelGenerator = new SafeIdentifierMaker();
@@ -84,6 +131,10 @@ public class StatementSimplifier {
   private StatementSimplifier(MessageQueue mq) { this.mq = mq; }
 
   private ParseTreeNode optimize(ParseTreeNode n, boolean needsBlock) {
+    if (done.contains(n)) {
+      reportPendingMessages(n);
+      return n;
+    }
     if (n instanceof LabeledStatement) {
       LabeledStatement ls = (LabeledStatement) n;
       String label = ls.getLabel();
@@ -155,6 +206,13 @@ public class StatementSimplifier {
     }
     return optimizeUnlabeled(n, needsBlock);
   }
+  private void reportPendingMessages(ParseTreeNode n) {
+    List<Message> messages = pendingMessages.remove(n);
+    if (messages != null) {
+      for (Message msg : messages) { mq.addMessage(msg); }
+    }
+  }
+
   private ParseTreeNode optimizeUnlabeled(ParseTreeNode n, boolean needsBlock) {
     if (n instanceof Block) {
       List<? extends Statement> children = ((Block) n).children();
@@ -272,6 +330,10 @@ public class StatementSimplifier {
   }
 
   private Expression optimizeEmbeddedExpressions(Expression e, boolean isFn) {
+    if (done.contains(e)) {
+      reportPendingMessages(e);
+      return e;
+    }
     List<? extends ParseTreeNode> children = e.children();
     int nChildren = children.size();
     List<ParseTreeNode> newChildren = null;
@@ -0,0 +1,152 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.ancillary.opt;
+
+import com.google.caja.SomethingWidgyHappenedError;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.ParseTreeEditor;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.FunctionConstructor;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a program at the boundaries of its outermost functions so that
+ * passes whose work within a function body does not depend on other function
+ * bodies can optimize those bodies in parallel.
+ */
+final class TopLevelFunctions {
+  private TopLevelFunctions() { /* uninstantiable */ }
+
+  /** Optimizes one function, returning it if unchanged. */
+  interface Pass {
+    /**
+     * @param mq private to this call so that messages can be reported in a
+     *     deterministic order.
+     */
+    FunctionConstructor optimize(
+        AncestorChain<FunctionConstructor> fn, MessageQueue mq);
+  }
+
+  /** The functions not contained in any other function in program order. */
+  static List<AncestorChain<FunctionConstructor>> find(AncestorChain<?> root) {
+    List<AncestorChain<FunctionConstructor>> fns = Lists.newArrayList();
+    find(root, fns);
+    return fns;
+  }
+
+  private static void find(
+      AncestorChain<?> ac, List<AncestorChain<FunctionConstructor>> out) {
+    if (ac.node instanceof FunctionConstructor) {
+      out.add(ac.cast(FunctionConstructor.class));
+    } else {
+      for (ParseTreeNode child : ac.node.children()) {
+        find(ac.child(child), out);
+      }
+    }
+  }
+
+  /**
+   * Applies pass to each top level function of program on exec and stitches
+   * the results back into program in program order, so the output does not
+   * depend on how tasks are scheduled.
+   *
+   * @param mq receives each function's messages in program order.
+   * @return program if no function changed.  Otherwise a partial clone.
+   */
+  static Block optimizeEach(
+      Block program, Pass pass, MessageQueue mq, ExecutorService exec) {
+    Map<ParseTreeNode, List<Message>> messages = Maps.newIdentityHashMap();
+    Block optimized = optimizeEach(program, pass, messages, exec);
+    for (AncestorChain<FunctionConstructor> fn
+         : find(AncestorChain.instance(optimized))) {
+      for (Message msg : messages.get(fn.node)) { mq.addMessage(msg); }
+    }
+    return optimized;
+  }
+
+  /**
+   * Like {@link #optimizeEach(Block, Pass, MessageQueue, ExecutorService)}
+   * but leaves it to the caller to interleave each function's messages with
+   * its own.
+   *
+   * @param messages receives, for each top level function in the output, the
+   *     messages reported while optimizing it.
+   */
+  static Block optimizeEach(
+      Block program, final Pass pass,
+      Map<ParseTreeNode, List<Message>> messages,
+      ExecutorService exec) {
+    List<AncestorChain<FunctionConstructor>> fns = find(
+        AncestorChain.instance(program));
+    List<MessageQueue> queues = Lists.newArrayList();
+    List<Callable<FunctionConstructor>> tasks = Lists.newArrayList();
+    for (final AncestorChain<FunctionConstructor> fn : fns) {
+      final MessageQueue taskMq = new SimpleMessageQueue();
+      queues.add(taskMq);
+      tasks.add(new Callable<FunctionConstructor>() {
+        public FunctionConstructor call() { return pass.optimize(fn, taskMq); }
+      });
+    }
+    List<FunctionConstructor> results = runAll(tasks, exec);
+    ParseTreeEditor edits = new ParseTreeEditor();
+    for (int i = 0, n = fns.size(); i < n; ++i) {
+      AncestorChain<FunctionConstructor> fn = fns.get(i);
+      if (results.get(i) != fn.node) { edits.replace(fn, results.get(i)); }
+      messages.put(results.get(i), queues.get(i).getMessages());
+    }
+    return (Block) edits.apply(program);
+  }
+
+  /** Runs tasks on exec and returns their results in order. */
+  static <T> List<T> runAll(
+      List<? extends Callable<T>> tasks, ExecutorService exec) {
+    List<Future<T>> futures = Lists.newArrayList();
+    for (Callable<T> task : tasks) { futures.add(exec.submit(task)); }
+    List<T> results = Lists.newArrayListWithCapacity(futures.size());
+    try {
+      for (Future<T> f : futures) {
+        try {
+          results.add(f.get());
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new SomethingWidgyHappenedError(cause);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new SomethingWidgyHappenedError(ex);
+        }
+      }
+    } finally {
+      for (Future<T> f : futures) { f.cancel(true); }
+    }
+    return results;
+  }
+}
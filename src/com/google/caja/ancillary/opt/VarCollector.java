@@ -36,45 +36,55 @@ import com.google.caja.parser.js.Operation;
 import com.google.caja.parser.js.Operator;
 import com.google.caja.parser.js.Reference;
 import com.google.caja.parser.js.Statement;
-import com.google.caja.util.Pair;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * Collects all the {@code var} declarations in a function body or program into
  * one var statement at the top and folds assignment statements into
  * initializers.
+ * <p>
+ * Each function body is walked once, and all the changes to a child list are
+ * made by a single {@link MutableParseTreeNode.Mutation} so that bodies with
+ * many declarations are not copied once per declaration.
  *
  * @author mikesamuel@gmail.com
  */
 public class VarCollector {
   public static void optimize(Block program) {
-    optimize(program, Collections.<Identifier>emptySet());
+    optimize(program, Collections.<String>emptyList());
   }
 
-  private static void optimize(Block body, Set<Identifier> alreadyDeclared) {
-    Set<Identifier> locals = newIdentSet();
+  private static void optimize(Block body, List<String> alreadyDeclared) {
+    Locals locals = new Locals();
     List<FunctionConstructor> inners = Lists.newArrayList();
     unvar(body, locals, inners);
-    Set<Identifier> needed = newIdentSet(locals);
-    needed.removeAll(alreadyDeclared);
+    BitSet needed = locals.all();
+    for (String name : alreadyDeclared) {
+      int id = locals.idOf(name);
+      if (id >= 0) { needed.clear(id); }
+    }
     if (!needed.isEmpty()) {
-      List<Operation> topAssignments = extractAssignments(
-          body, newIdentSet(locals));
+      List<Operation> topAssignments = Lists.newArrayList();
+      extractAssignments(body, locals, locals.all(), topAssignments);
       List<Declaration> decls = Lists.newArrayList();
       for (Operation topAssign : topAssignments) {
         Identifier id = ((Reference) topAssign.children().get(0))
             .getIdentifier();
         decls.add(new Declaration(
             topAssign.getFilePosition(), id, topAssign.children().get(1)));
-        needed.remove(id);
+        needed.clear(locals.idOf(id.getName()));
       }
-      for (Identifier name : needed) {
+      for (int id : locals.idsByName()) {
+        if (!needed.get(id)) { continue; }
+        Identifier name = locals.firstIdentifier(id);
         decls.add(new Declaration(name.getFilePosition(), name, null));
       }
       Statement decl;
@@ -93,19 +103,64 @@ public class VarCollector {
       body.insertBefore(decl, declFollower);
     }
     for (FunctionConstructor inner : inners) {
-      Set<Identifier> formals = newIdentSet();
+      List<String> formals = Lists.newArrayList();
       for (FormalParam p : inner.getParams()) {
-        formals.add(p.getIdentifier());
+        formals.add(p.getIdentifierName());
       }
       optimize(inner.getBody(), formals);
     }
   }
 
+  /**
+   * Interns the names of a function's locals to dense ids so that sets of
+   * locals can be bit sets.
+   */
+  private static final class Locals {
+    private final Map<String, Integer> ids = Maps.newHashMap();
+    /** The first identifier seen for each id, which is used to declare it. */
+    private final List<Identifier> identifiers = Lists.newArrayList();
+
+    void add(Identifier ident) {
+      String name = ident.getName();
+      if (!ids.containsKey(name)) {
+        ids.put(name, identifiers.size());
+        identifiers.add(ident);
+      }
+    }
+
+    /** -1 if name is not a local. */
+    int idOf(String name) {
+      Integer id = ids.get(name);
+      return id != null ? id : -1;
+    }
+
+    Identifier firstIdentifier(int id) { return identifiers.get(id); }
+
+    BitSet all() {
+      BitSet all = new BitSet(identifiers.size());
+      all.set(0, identifiers.size());
+      return all;
+    }
+
+    /** Ids in lexicographic order of name so that output is stable. */
+    Integer[] idsByName() {
+      Integer[] byName = new Integer[identifiers.size()];
+      for (int i = 0; i < byName.length; ++i) { byName[i] = i; }
+      Arrays.sort(byName, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return identifiers.get(a).getName().compareTo(
+              identifiers.get(b).getName());
+        }
+      });
+      return byName;
+    }
+  }
+
   private static void unvar(
-      Block node, final Set<Identifier> removedIdents,
-      final List<FunctionConstructor> inners) {
-    final List<Pair<AncestorChain<Statement>, Statement>> changes
-        = Lists.newArrayList();
+      Block node, final Locals locals, final List<FunctionConstructor> inners) {
+    // Changes are grouped by parent so that each child list is rewritten once.
+    final Map<ParseTreeNode, MutableParseTreeNode.Mutation> mutations
+        = Maps.newIdentityHashMap();
     node.acceptPreOrder(new Visitor() {
       public boolean visit(AncestorChain<?> chain) {
         ParseTreeNode node = chain.node;
@@ -114,7 +169,7 @@ public class VarCollector {
           if (chain.parent.node instanceof CatchStmt) { return true; }
           Declaration decl = (Declaration) node;
           Identifier id = decl.getIdentifier();
-          removedIdents.add(id);
+          locals.add(id);
           Expression init = decl.getInitializer();
           Statement replacement;
           if (init != null) {
@@ -124,12 +179,12 @@ public class VarCollector {
           } else {
             replacement = new Noop(decl.getFilePosition());
           }
-          changes.add(Pair.pair(chain.cast(Statement.class), replacement));
+          replace(chain, replacement);
           return true;
         } else if (node instanceof MultiDeclaration) {
           List<Expression> replacements = Lists.newArrayList();
           for (Declaration decl : ((MultiDeclaration) node).children()) {
-            removedIdents.add(decl.getIdentifier());
+            locals.add(decl.getIdentifier());
             if (decl.getInitializer() == null) { continue; }
             visit(chain.child(decl).child(decl.getInitializer()));
             Expression assign = toAssignment(decl);
@@ -155,7 +210,7 @@ public class VarCollector {
             }
             replacement = new ExpressionStmt(node.getFilePosition(), combo);
           }
-          changes.add(Pair.pair(chain.cast(Statement.class), replacement));
+          replace(chain, replacement);
           return false;
         } else if (node instanceof FunctionConstructor) {
           inners.add((FunctionConstructor) node);
@@ -163,10 +218,19 @@ public class VarCollector {
         }
         return true;
       }
+
+      private void replace(AncestorChain<?> chain, Statement replacement) {
+        MutableParseTreeNode parent = chain.parent.cast(
+            MutableParseTreeNode.class).node;
+        MutableParseTreeNode.Mutation mut = mutations.get(parent);
+        if (mut == null) {
+          mutations.put(parent, mut = parent.createMutation());
+        }
+        mut.replaceChild(replacement, chain.node);
+      }
     }, null);
-    for (Pair<AncestorChain<Statement>, Statement> change : changes) {
-      change.a.parent.cast(MutableParseTreeNode.class).node
-          .replaceChild(change.b, change.a.node);
+    for (MutableParseTreeNode.Mutation mut : mutations.values()) {
+      mut.execute();
     }
   }
 
@@ -176,22 +240,24 @@ public class VarCollector {
         new Reference(decl.getIdentifier()), decl.getInitializer());
   }
 
-  private static List<Operation> extractAssignments(
-      Block body, Set<Identifier> unassigned) {
-    List<Operation> extracted = Lists.newArrayList();
-    while (!body.children().isEmpty()) {
-      Statement first = body.children().get(0);
+  /**
+   * Removes leading assignments to unassigned locals from body, and adds them
+   * to extracted.
+   */
+  private static void extractAssignments(
+      Block body, Locals locals, BitSet unassigned, List<Operation> extracted) {
+    MutableParseTreeNode.Mutation mut = body.createMutation();
+    for (Statement first : body.children()) {
       if (first instanceof Noop) {
-        body.removeChild(first);
+        mut.removeChild(first);
         continue;
       }
       if (first instanceof Block) {
-        extracted.addAll(extractAssignments((Block) first, unassigned));
+        extractAssignments((Block) first, locals, unassigned, extracted);
         if (first.children().isEmpty()) {
-          body.removeChild(first);
-        } else {
-          break;
+          mut.removeChild(first);
         }
+        break;
       }
       if (!(first instanceof ExpressionStmt)) { break; }
       Expression e = ((ExpressionStmt) first).getExpression();
@@ -199,30 +265,16 @@ public class VarCollector {
       Operation op = (Operation) e;
       Expression lhs = op.children().get(0);
       if (!(lhs instanceof Reference)) { break; }
-      Reference r = (Reference) lhs;
-      if (!unassigned.contains(r.getIdentifier())) { break; }
+      int id = locals.idOf(((Reference) lhs).getIdentifierName());
+      if (id < 0 || !unassigned.get(id)) { break; }
       // Don't return two with the same name, because we don't want to have
       // multiple var declarations for the same name.
       //     var foo = 1, bar = 2, foo = 3;
       // might not be legal in ES5 strict mode.
-      unassigned.remove(r.getIdentifier());
+      unassigned.clear(id);
       extracted.add(op);
-      body.removeChild(first);
+      mut.removeChild(first);
     }
-    return extracted;
-  }
-
-  private static Set<Identifier> newIdentSet() {
-    return Sets.newTreeSet(new Comparator<Identifier>() {
-      public int compare(Identifier a, Identifier b) {
-        return a.getName().compareTo(b.getName());
-      }
-    });
-  }
-
-  private static Set<Identifier> newIdentSet(Set<Identifier> c) {
-    Set<Identifier> idents = newIdentSet();
-    idents.addAll(c);
-    return idents;
+    mut.execute();
   }
 }
@@ -596,44 +596,3 @@ class WhiteListSkeleton {
         + ", definitions=" + definitions + "]";
   }
 }
-
-class WhiteListImpl implements WhiteList {
-  private final InputSource src;
-  private final Set<String> allowed;
-  private final Map<String, TypeDefinition> defs;
-
-  WhiteListImpl(
-      InputSource src, Set<String> allowed, Map<String, TypeDefinition> defs) {
-    this.src = src;
-    this.allowed = Collections.unmodifiableSet(allowed);
-    this.defs = Collections.unmodifiableMap(defs);
-  }
-
-  public Set<String> allowedItems() { return allowed; }
-
-  public Map<String, TypeDefinition> typeDefinitions() { return defs; }
-
-  @Override
-  public String toString() {
-    return "[WhiteList " + src.getUri() + "]";
-  }
-}
-
-class TypeDefinitionImpl implements WhiteList.TypeDefinition {
-  private final Map<String, Object> props;
-
-  TypeDefinitionImpl(Map<String, Object> props) {
-    this.props = props;
-  }
-
-  public Object get(String key, Object defaultValue) {
-    Object value = props.get(key);
-    if (value != null || props.containsKey(key)) { return value; }
-    return defaultValue;
-  }
-
-  @Override
-  public String toString() {
-    return "[TypeDefinition: " + props + "]";
-  }
-}
@@ -0,0 +1,68 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.config;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.util.Charsets;
+import com.google.caja.util.Pair;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.util.Set;
+
+/**
+ * Resolves {@code resource:///} URIs to files in a source tree, so that
+ * whitelists loaded by a {@link com.google.caja.tools.BuildCommand} have the
+ * same classpath relative sources, and file positions in messages, as when
+ * they are loaded from the classpath.
+ * If no file matches, falls back to {@link ConfigUtil#RESOURCE_RESOLVER}.
+ */
+public final class SourceTreeResolver implements ImportResolver {
+  private final Set<File> files;
+
+  /**
+   * @param files a set of absolute paths.  A resource URI resolves to the
+   *   file whose path ends with the URI's path.
+   */
+  public SourceTreeResolver(Set<File> files) {
+    this.files = files;
+  }
+
+  public Pair<Reader, FilePosition> resolve(
+      URI uri, URI base, FilePosition refPos)
+      throws IOException {
+    URI abs = uri;
+    if (!abs.isAbsolute() && base != null && base.isAbsolute()) {
+      abs = base.resolve(abs);
+    }
+    if ("resource".equals(abs.getScheme()) && abs.getPath() != null) {
+      String path = abs.getPath();
+      for (File f : files) {
+        if (f.toURI().getPath().endsWith(path)) {
+          return Pair.pair(
+              (Reader) new InputStreamReader(new FileInputStream(f),
+                Charsets.UTF_8.name()),
+              FilePosition.startOfFile(new InputSource(abs)));
+        }
+      }
+    }
+    return ConfigUtil.RESOURCE_RESOLVER.resolve(uri, base, refPos);
+  }
+}
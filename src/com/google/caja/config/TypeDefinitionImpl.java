@@ -0,0 +1,40 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.config;
+
+import java.util.Map;
+
+/** A type definition backed by the JSON properties that define it. */
+class TypeDefinitionImpl implements WhiteList.TypeDefinition {
+  private final Map<String, Object> props;
+
+  TypeDefinitionImpl(Map<String, Object> props) {
+    this.props = props;
+  }
+
+  /** An immutable map of JSON property names to values. */
+  Map<String, Object> properties() { return props; }
+
+  public Object get(String key, Object defaultValue) {
+    Object value = props.get(key);
+    if (value != null || props.containsKey(key)) { return value; }
+    return defaultValue;
+  }
+
+  @Override
+  public String toString() {
+    return "[TypeDefinition: " + props + "]";
+  }
+}
@@ -0,0 +1,46 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.config;
+
+import com.google.caja.lexer.InputSource;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/** A whitelist produced by {@link ConfigUtil} or {@link WhiteListSnapshot}. */
+class WhiteListImpl implements WhiteList {
+  private final InputSource src;
+  private final Set<String> allowed;
+  private final Map<String, TypeDefinition> defs;
+
+  WhiteListImpl(
+      InputSource src, Set<String> allowed, Map<String, TypeDefinition> defs) {
+    this.src = src;
+    this.allowed = Collections.unmodifiableSet(allowed);
+    this.defs = Collections.unmodifiableMap(defs);
+  }
+
+  public Set<String> allowedItems() { return allowed; }
+
+  public Map<String, TypeDefinition> typeDefinitions() { return defs; }
+
+  InputSource source() { return src; }
+
+  @Override
+  public String toString() {
+    return "[WhiteList " + src.getUri() + "]";
+  }
+}
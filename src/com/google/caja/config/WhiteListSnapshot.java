@@ -0,0 +1,339 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.config;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.MessageTypeInt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact binary form of a fully resolved {@link WhiteList}, so that
+ * whitelists can be precompiled at build time and loaded without parsing
+ * JSON or resolving inherited whitelists.
+ * <p>
+ * Strings are written once and referred to by index thereafter since type
+ * definitions repeat the same property names and values many times.
+ * <p>
+ * Messages reported while loading a whitelist can be snapshotted too so that
+ * loading a snapshot reports the same messages as loading the JSON.
+ */
+public final class WhiteListSnapshot {
+  private static final int FORMAT_VERSION = 1;
+
+  private static final byte NULL = 0, TRUE = 1, FALSE = 2, LONG = 3,
+      DOUBLE = 4, STRING = 5, LIST = 6, MAP = 7, FILE_POSITION = 8,
+      UNKNOWN_POSITION = 9;
+
+  /**
+   * Writes whitelist to out.
+   * @param whitelist a whitelist produced by
+   *     {@link ConfigUtil#loadWhiteListFromJson} or {@link #read}.
+   */
+  public static void write(WhiteList whitelist, DataOutput out)
+      throws IOException {
+    if (!(whitelist instanceof WhiteListImpl)) {
+      throw new IllegalArgumentException(
+          "Cannot snapshot " + whitelist.getClass().getName());
+    }
+    Writer w = new Writer(out);
+    out.writeInt(FORMAT_VERSION);
+    w.writeString(((WhiteListImpl) whitelist).source().getUri().toString());
+    out.writeInt(whitelist.allowedItems().size());
+    for (String item : whitelist.allowedItems()) { w.writeString(item); }
+    Map<String, WhiteList.TypeDefinition> defs = whitelist.typeDefinitions();
+    out.writeInt(defs.size());
+    for (Map.Entry<String, WhiteList.TypeDefinition> e : defs.entrySet()) {
+      w.writeString(e.getKey());
+      w.writeValue(((TypeDefinitionImpl) e.getValue()).properties());
+    }
+  }
+
+  /**
+   * Reads a whitelist written by {@link #write}.
+   * @throws IOException if in is truncated or was written by an incompatible
+   *     version of this class.
+   */
+  public static WhiteList read(DataInput in) throws IOException {
+    int version = in.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unsupported whitelist snapshot " + version);
+    }
+    Reader r = new Reader(in);
+    InputSource src = new InputSource(readUri(r));
+    int nAllowed = readCount(in);
+    Set<String> allowed = new HashSet<String>(nAllowed * 2);
+    for (int i = 0; i < nAllowed; ++i) { allowed.add(r.readString()); }
+    int nDefs = readCount(in);
+    Map<String, WhiteList.TypeDefinition> defs
+        = new HashMap<String, WhiteList.TypeDefinition>(nDefs * 2);
+    for (int i = 0; i < nDefs; ++i) {
+      String key = r.readString();
+      Object props = r.readValue();
+      if (!(props instanceof Map<?, ?>)) {
+        throw new IOException("Malformed type definition " + key);
+      }
+      @SuppressWarnings("unchecked")
+      Map<String, Object> propMap = (Map<String, Object>) props;
+      defs.put(key, new TypeDefinitionImpl(propMap));
+    }
+    return new WhiteListImpl(src, allowed, defs);
+  }
+
+  /**
+   * Writes messages, e.g. those reported while loading a whitelist, so that
+   * {@link #readMessages} can replay them.  File positions are kept, and other
+   * message parts are kept as their formatted text.
+   * @throws IllegalArgumentException if a message's type is not an enum.
+   */
+  public static void writeMessages(List<Message> messages, DataOutput out)
+      throws IOException {
+    Writer w = new Writer(out);
+    MessageContext mc = new MessageContext();
+    out.writeInt(messages.size());
+    for (Message msg : messages) {
+      MessageTypeInt type = msg.getMessageType();
+      if (!(type instanceof Enum<?>)) {
+        throw new IllegalArgumentException(type.getClass().getName());
+      }
+      w.writeString(((Enum<?>) type).getDeclaringClass().getName());
+      w.writeString(type.name());
+      w.writeString(msg.getMessageLevel().name());
+      List<MessagePart> parts = msg.getMessageParts();
+      out.writeInt(parts.size());
+      for (MessagePart part : parts) {
+        if (part == FilePosition.UNKNOWN) {
+          out.writeByte(UNKNOWN_POSITION);
+        } else if (part instanceof FilePosition) {
+          FilePosition pos = (FilePosition) part;
+          out.writeByte(FILE_POSITION);
+          w.writeString(pos.source().getUri().toString());
+          out.writeInt(pos.startLineNo());
+          out.writeInt(pos.startCharInFile());
+          out.writeInt(pos.startCharInLine());
+          out.writeInt(pos.length());
+        } else {
+          StringBuilder sb = new StringBuilder();
+          part.format(mc, sb);
+          out.writeByte(STRING);
+          w.writeString(sb.toString());
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads messages written by {@link #writeMessages}.
+   * @throws IOException if in is truncated or refers to an unknown message
+   *     type.
+   */
+  public static List<Message> readMessages(DataInput in) throws IOException {
+    Reader r = new Reader(in);
+    int n = readCount(in);
+    List<Message> messages = new ArrayList<Message>();
+    for (int i = 0; i < n; ++i) {
+      MessageTypeInt type = messageType(r.readString(), r.readString());
+      MessageLevel level = enumValue(MessageLevel.class, r.readString());
+      int nParts = readCount(in);
+      if (nParts != type.getParamCount()) {
+        throw new IOException("Bad part count for " + type.name());
+      }
+      MessagePart[] parts = new MessagePart[nParts];
+      for (int j = 0; j < nParts; ++j) {
+        byte partType = in.readByte();
+        switch (partType) {
+          case UNKNOWN_POSITION:
+            parts[j] = FilePosition.UNKNOWN;
+            break;
+          case FILE_POSITION:
+            InputSource src = new InputSource(readUri(r));
+            parts[j] = FilePosition.instance(
+                src, in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            break;
+          case STRING:
+            parts[j] = MessagePart.Factory.valueOf(r.readString());
+            break;
+          default:
+            throw new IOException("Bad message part type " + partType);
+        }
+      }
+      messages.add(new Message(type, level, parts));
+    }
+    return messages;
+  }
+
+  private static MessageTypeInt messageType(String className, String name)
+      throws IOException {
+    Class<?> cl;
+    try {
+      cl = Class.forName(
+          className, false, WhiteListSnapshot.class.getClassLoader());
+    } catch (ClassNotFoundException ex) {
+      throw (IOException) new IOException("Bad message type " + className)
+          .initCause(ex);
+    }
+    if (!(cl.isEnum() && MessageTypeInt.class.isAssignableFrom(cl))) {
+      throw new IOException("Bad message type " + className);
+    }
+    for (Object constant : cl.getEnumConstants()) {
+      if (((Enum<?>) constant).name().equals(name)) {
+        return (MessageTypeInt) constant;
+      }
+    }
+    throw new IOException("Bad message type " + className + "." + name);
+  }
+
+  private static <E extends Enum<E>> E enumValue(Class<E> cl, String name)
+      throws IOException {
+    try {
+      return Enum.valueOf(cl, name);
+    } catch (IllegalArgumentException ex) {
+      throw (IOException) new IOException("Bad " + cl.getSimpleName())
+          .initCause(ex);
+    }
+  }
+
+  private static URI readUri(Reader r) throws IOException {
+    try {
+      return new URI(r.readString());
+    } catch (URISyntaxException ex) {
+      throw (IOException) new IOException("Bad source").initCause(ex);
+    }
+  }
+
+  private static int readCount(DataInput in) throws IOException {
+    int n = in.readInt();
+    if (n < 0) { throw new IOException("Bad count " + n); }
+    return n;
+  }
+
+  private static final class Writer {
+    final DataOutput out;
+    final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+    Writer(DataOutput out) { this.out = out; }
+
+    void writeString(String s) throws IOException {
+      Integer index = strings.get(s);
+      if (index != null) {
+        out.writeInt(index);
+      } else {
+        strings.put(s, strings.size());
+        out.writeInt(-1);
+        out.writeUTF(s);
+      }
+    }
+
+    void writeValue(Object value) throws IOException {
+      if (value == null) {
+        out.writeByte(NULL);
+      } else if (value instanceof Boolean) {
+        out.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+      } else if (value instanceof Long || value instanceof Integer) {
+        out.writeByte(LONG);
+        out.writeLong(((Number) value).longValue());
+      } else if (value instanceof Number) {
+        out.writeByte(DOUBLE);
+        out.writeDouble(((Number) value).doubleValue());
+      } else if (value instanceof String) {
+        out.writeByte(STRING);
+        writeString((String) value);
+      } else if (value instanceof List<?>) {
+        List<?> list = (List<?>) value;
+        out.writeByte(LIST);
+        out.writeInt(list.size());
+        for (Object el : list) { writeValue(el); }
+      } else if (value instanceof Map<?, ?>) {
+        Map<?, ?> map = (Map<?, ?>) value;
+        out.writeByte(MAP);
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+          writeString((String) e.getKey());
+          writeValue(e.getValue());
+        }
+      } else {
+        throw new IllegalArgumentException(value.getClass().getName());
+      }
+    }
+  }
+
+  private static final class Reader {
+    final DataInput in;
+    final List<String> strings = new ArrayList<String>();
+
+    Reader(DataInput in) { this.in = in; }
+
+    String readString() throws IOException {
+      int index = in.readInt();
+      if (index == -1) {
+        String s = in.readUTF();
+        strings.add(s);
+        return s;
+      }
+      if (index < 0 || index >= strings.size()) {
+        throw new IOException("Bad string index " + index);
+      }
+      return strings.get(index);
+    }
+
+    /** Produces values like {@link JSONWhiteListLoader#immutable}. */
+    Object readValue() throws IOException {
+      byte type = in.readByte();
+      switch (type) {
+        case NULL: return null;
+        case TRUE: return Boolean.TRUE;
+        case FALSE: return Boolean.FALSE;
+        case LONG: return Long.valueOf(in.readLong());
+        case DOUBLE: return Double.valueOf(in.readDouble());
+        case STRING: return readString();
+        case LIST: {
+          int n = readCount(in);
+          List<Object> list = new ArrayList<Object>(n);
+          for (int i = 0; i < n; ++i) { list.add(readValue()); }
+          return Collections.unmodifiableList(list);
+        }
+        case MAP: {
+          int n = readCount(in);
+          Map<String, Object> map = new HashMap<String, Object>(n * 2);
+          for (int i = 0; i < n; ++i) {
+            String key = readString();
+            map.put(key, readValue());
+          }
+          return Collections.unmodifiableMap(map);
+        }
+        default:
+          throw new IOException("Bad value type " + type);
+      }
+    }
+  }
+
+  private WhiteListSnapshot() { /* uninstantiable */ }
+}
@@ -0,0 +1,519 @@
+// Copyright (C) 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lang.css;
+
+import com.google.caja.SomethingWidgyHappenedError;
+import com.google.caja.parser.css.CssPropertySignature;
+import com.google.caja.util.Name;
+import com.google.caja.util.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a CSS property signature to a deterministic finite automaton over
+ * the tokens that "sanitizecss.js" leaves in a property value, so that the
+ * client can check the order of tokens in one pass without backtracking.
+ *
+ * <p>
+ * The alphabet of a property's automaton is
+ * <ol>
+ *   <li>the token classes below, like {@link #QUANTITY}, which the client can
+ *     tell apart without knowing the property,</li>
+ *   <li>then one symbol per literal, in the order the property's
+ *     {@code cssLitGroup} lists them,</li>
+ *   <li>then one symbol per function, in {@code cssFns} order.</li>
+ * </ol>
+ * The client classifies a token as a literal before trying the token
+ * classes, so builtins like {@code <length>} also accept literals that look
+ * like their tokens.
+ *
+ * <p>
+ * The automaton accepts a superset of the signature's language:
+ * {@code a || b} is treated as one or more of {@code a} and {@code b} in any
+ * order, and long bounded repetitions as unbounded.
+ *
+ * <h3>Packing</h3>
+ * The automaton is packed into a string of char codes offset by {@link #BIAS}
+ * so that small tables are mostly printable ASCII.
+ * The first {@code n} chars hold the index of each state's record, and state 0
+ * is the start state.
+ * A record is {@code (edgeCount << 1) | accepting} followed by
+ * {@code edgeCount} pairs of {@code (symbol, targetState)} sorted by symbol.
+ *
+ * @author mikesamuel@gmail.com
+ */
+final class CssPropertyDfa {
+  // Note: info is duplicated in sanitizecss.js
+
+  /** A number or dimension like {@code 0}, {@code -1.5em}, or {@code 50%}. */
+  static final int QUANTITY = 0;
+  /** A hash color like {@code #fff}. */
+  static final int HASH = 1;
+  /** A quoted string, including runs of unreserved words that were quoted. */
+  static final int STRING = 2;
+  /** A {@code url("...")}. */
+  static final int URL = 3;
+  /** An identifier that is not a literal of the property. */
+  static final int IDENT = 4;
+  /** A unicode range like {@code U+00-7f}. */
+  static final int UNICODE_RANGE = 5;
+  /** Number of token classes that precede literal symbols. */
+  static final int TOKEN_CLASS_COUNT = 6;
+
+  /** Added to each packed value so small values are printable. */
+  static final int BIAS = 0x20;
+  /** Signatures that need more states than this are not compiled. */
+  private static final int MAX_STATES = 1024;
+  /** Bounded repetitions of more than this are treated as unbounded. */
+  private static final int MAX_UNROLL = 8;
+
+  private static final Pattern NUMERIC_LITERAL = Pattern.compile(
+      "^-?\\.?[0-9]");
+  private static final Pattern IDENT_LITERAL = Pattern.compile(
+      "^-?[a-zA-Z_][\\w\\-]*$");
+
+  private final CssSchema schema;
+  private final Map<String, Integer> literalSymbols = Maps.newHashMap();
+  private final List<String> fnKeys;
+  /** Triples of (from, symbol, to) where symbol -1 is an epsilon edge. */
+  private final List<int[]> edges = Lists.newArrayList();
+  private int nfaStateCount;
+  /** Symbols and properties being expanded, to detect cycles. */
+  private final Set<String> expanding = Sets.newHashSet();
+
+  private CssPropertyDfa(
+      CssSchema schema, List<String> literals, List<String> fnKeys) {
+    this.schema = schema;
+    for (String literal : literals) {
+      literalSymbols.put(literal, TOKEN_CLASS_COUNT + literalSymbols.size());
+    }
+    this.fnKeys = fnKeys;
+  }
+
+  /**
+   * @param literals the property's literals in the order its
+   *     {@code cssLitGroup} lists them.
+   * @param fnKeys the schema keys of the property's {@code cssFns}.
+   * @return the packed automaton, or null if the signature is recursive or
+   *     too large to compile.
+   */
+  static String compile(
+      CssSchema schema, CssPropertySignature sig, List<String> literals,
+      List<String> fnKeys) {
+    CssPropertyDfa dfa = new CssPropertyDfa(schema, literals, fnKeys);
+    int[] fragment;
+    try {
+      fragment = dfa.build(sig);
+    } catch (TooComplexException ex) {
+      return null;
+    }
+    return dfa.determinize(fragment[0], fragment[1]);
+  }
+
+  /** Thrown to abandon signatures that do not fit in a small automaton. */
+  private static final class TooComplexException extends RuntimeException {
+    private static final long serialVersionUID = 3372463407520562283L;
+  }
+
+  private int newState() {
+    if (nfaStateCount == MAX_STATES * 4) { throw new TooComplexException(); }
+    return nfaStateCount++;
+  }
+
+  private void edge(int from, int symbol, int to) {
+    edges.add(new int[] { from, symbol, to });
+  }
+
+  /** Returns the start and end states of a Thompson NFA fragment for sig. */
+  private int[] build(CssPropertySignature sig) {
+    int start = newState();
+    int end;
+    if (isSingleToken(sig)) {
+      // Big sets of keywords like <color> need no states of their own.
+      end = newState();
+      buildSingleToken(sig, start, end);
+    } else if (sig instanceof CssPropertySignature.RepeatedSignature) {
+      CssPropertySignature.RepeatedSignature rep
+          = (CssPropertySignature.RepeatedSignature) sig;
+      CssPropertySignature body = rep.getRepeatedSignature();
+      int min = Math.min(rep.minCount, MAX_UNROLL);
+      int max = rep.maxCount > MAX_UNROLL ? Integer.MAX_VALUE : rep.maxCount;
+      end = start;
+      for (int i = 0; i < min; ++i) {
+        int[] f = build(body);
+        edge(end, -1, f[0]);
+        end = f[1];
+      }
+      if (max == Integer.MAX_VALUE) {
+        int loop = newState();
+        edge(end, -1, loop);
+        int[] f = build(body);
+        edge(loop, -1, f[0]);
+        edge(f[1], -1, loop);
+        end = loop;
+      } else if (max > min) {
+        int last = newState();
+        for (int i = min; i < max; ++i) {
+          edge(end, -1, last);
+          int[] f = build(body);
+          edge(end, -1, f[0]);
+          end = f[1];
+        }
+        edge(end, -1, last);
+        end = last;
+      }
+    } else if (sig instanceof CssPropertySignature.PropertyRefSignature) {
+      Name propertyName
+          = ((CssPropertySignature.PropertyRefSignature) sig).getPropertyName();
+      CssSchema.CssPropertyInfo p = schema.getCssProperty(propertyName);
+      if (p == null) {
+        throw new SomethingWidgyHappenedError(
+            "Unsatisfied reference " + propertyName);
+      }
+      end = expand("'" + propertyName.getCanonicalForm(), p.sig, start);
+    } else if (sig instanceof CssPropertySignature.SeriesSignature) {
+      end = start;
+      for (CssPropertySignature child : sig.children()) {
+        int[] f = build(child);
+        edge(end, -1, f[0]);
+        end = f[1];
+      }
+    } else if (sig instanceof CssPropertySignature.SymbolSignature) {
+      Name symbolName = ((CssPropertySignature.SymbolSignature) sig).getValue();
+      CssSchema.SymbolInfo s = schema.getSymbol(symbolName);
+      end = expand("<" + symbolName.getCanonicalForm(), s.sig, start);
+    } else if (sig instanceof CssPropertySignature.ExclusiveSetSignature) {
+      // a || b matches one or more of a and b in any order, but without
+      // repeats.  Tracking which have been seen can blow up the automaton, so
+      // we allow repeats.
+      end = newState();
+      for (CssPropertySignature child : sig.children()) {
+        int[] f = build(child);
+        edge(start, -1, f[0]);
+        edge(f[1], -1, end);
+      }
+      edge(end, -1, start);
+    } else if (sig instanceof CssPropertySignature.SetSignature) {
+      end = newState();
+      for (CssPropertySignature child : sig.children()) {
+        int[] f = build(child);
+        edge(start, -1, f[0]);
+        edge(f[1], -1, end);
+      }
+    } else {
+      throw new SomethingWidgyHappenedError(
+          sig + " : " + sig.getClass().getSimpleName());
+    }
+    return new int[] { start, end };
+  }
+
+  /**
+   * True if sig matches exactly one token, so can be compiled to edges
+   * between two states.
+   */
+  private boolean isSingleToken(CssPropertySignature sig) {
+    if (sig instanceof CssPropertySignature.LiteralSignature
+        || sig instanceof CssPropertySignature.CallSignature
+        || sig instanceof CssPropertySignature.ProgIdSignature) {
+      return true;
+    } else if (sig instanceof CssPropertySignature.SymbolSignature) {
+      Name symbolName = ((CssPropertySignature.SymbolSignature) sig).getValue();
+      CssSchema.SymbolInfo s = schema.getSymbol(symbolName);
+      if (s == null) { return true; }  // A builtin.
+      String key = "<" + symbolName.getCanonicalForm();
+      // Leave cycles for build to reject.
+      if (!expanding.add(key)) { return false; }
+      boolean single = isSingleToken(s.sig);
+      expanding.remove(key);
+      return single;
+    } else if (sig instanceof CssPropertySignature.SetSignature
+               && !(sig instanceof
+                    CssPropertySignature.ExclusiveSetSignature)) {
+      for (CssPropertySignature child : sig.children()) {
+        if (!isSingleToken(child)) { return false; }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private void buildSingleToken(CssPropertySignature sig, int start, int end) {
+    if (sig instanceof CssPropertySignature.LiteralSignature) {
+      String lit = CssPropertyPatterns.withoutVendorPrefix(
+          ((CssPropertySignature.LiteralSignature) sig).getValue());
+      Integer symbol = literalSymbols.get(lit);
+      if (symbol == null) {
+        throw new SomethingWidgyHappenedError("Unindexed literal " + lit);
+      }
+      edge(start, symbol, end);
+    } else if (sig instanceof CssPropertySignature.CallSignature) {
+      int symbol = fnSymbol((CssPropertySignature.CallSignature) sig);
+      // Functions without a key are not allowed, so match nothing.
+      if (symbol >= 0) { edge(start, symbol, end); }
+    } else if (sig instanceof CssPropertySignature.ProgIdSignature) {
+      // Not allowed on the client, so match nothing.
+    } else if (sig instanceof CssPropertySignature.SymbolSignature) {
+      Name symbolName = ((CssPropertySignature.SymbolSignature) sig).getValue();
+      CssSchema.SymbolInfo s = schema.getSymbol(symbolName);
+      if (s != null) {
+        buildSingleToken(s.sig, start, end);
+      } else {
+        buildBuiltin(symbolName, start, end);
+      }
+    } else {
+      for (CssPropertySignature child : sig.children()) {
+        buildSingleToken(child, start, end);
+      }
+    }
+  }
+
+  private int expand(String key, CssPropertySignature sig, int start) {
+    if (!expanding.add(key)) { throw new TooComplexException(); }
+    int[] f = build(sig);
+    expanding.remove(key);
+    edge(start, -1, f[0]);
+    return f[1];
+  }
+
+  private void buildBuiltin(Name name, int start, int end) {
+    String key = name.getCanonicalForm();
+    int colon = key.lastIndexOf(':');
+    String baseKey = colon >= 0 ? key.substring(0, colon) : key;
+    CssPropBit b = CssPropertyPatterns.BUILTIN_PROP_BITS.get(baseKey);
+    if (b == null) {
+      throw new SomethingWidgyHappenedError("unknown CSS symbol " + name);
+    }
+    switch (b) {
+      case QUANTITY: case NEGATIVE_QUANTITY:
+        edge(start, QUANTITY, end);
+        edgesForLiterals(NUMERIC_LITERAL, start, end);
+        break;
+      case HASH_VALUE:
+        edge(start, HASH, end);
+        break;
+      case QSTRING:
+        edge(start, STRING, end);
+        break;
+      case UNRESERVED_WORD:
+        // The client quotes unrecognized words, but leaves literals alone.
+        edge(start, STRING, end);
+        edgesForLiterals(IDENT_LITERAL, start, end);
+        break;
+      case GLOBAL_NAME: case PROPERTY_NAME:
+        edge(start, IDENT, end);
+        edgesForLiterals(IDENT_LITERAL, start, end);
+        break;
+      case URL:
+        edge(start, URL, end);
+        break;
+      case UNICODE_RANGE:
+        edge(start, UNICODE_RANGE, end);
+        break;
+    }
+  }
+
+  private void edgesForLiterals(Pattern p, int start, int end) {
+    for (Map.Entry<String, Integer> e : literalSymbols.entrySet()) {
+      if (p.matcher(e.getKey()).find()) { edge(start, e.getValue(), end); }
+    }
+  }
+
+  /**
+   * The symbol for the first of {@code cssFns} whose key starts with the
+   * call's name, since that is the one that "sanitizecss.js" applies.
+   */
+  private int fnSymbol(CssPropertySignature.CallSignature fn) {
+    String name = fn.getName();
+    if (name != null) {
+      String prefix = Strings.lower(name) + "(";
+      for (int i = 0, n = fnKeys.size(); i < n; ++i) {
+        if (fnKeys.get(i).startsWith(prefix)) {
+          return TOKEN_CLASS_COUNT + literalSymbols.size() + i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /** Subset construction followed by minimization and packing. */
+  private String determinize(int nfaStart, int nfaEnd) {
+    List<List<int[]>> out = Lists.newArrayList();
+    List<List<Integer>> epsilons = Lists.newArrayList();
+    for (int i = 0; i < nfaStateCount; ++i) {
+      out.add(Lists.<int[]>newArrayList());
+      epsilons.add(Lists.<Integer>newArrayList());
+    }
+    for (int[] e : edges) {
+      if (e[1] < 0) {
+        epsilons.get(e[0]).add(e[2]);
+      } else {
+        out.get(e[0]).add(e);
+      }
+    }
+    BitSet[] closures = new BitSet[nfaStateCount];
+    for (int i = 0; i < nfaStateCount; ++i) {
+      closures[i] = closure(i, epsilons);
+    }
+
+    Map<BitSet, Integer> ids = Maps.newHashMap();
+    List<BitSet> sets = Lists.newArrayList();
+    List<SortedMap<Integer, Integer>> transitions = Lists.newArrayList();
+    BitSet startSet = closures[nfaStart];
+    ids.put(startSet, 0);
+    sets.add(startSet);
+    for (int i = 0; i < sets.size(); ++i) {
+      SortedMap<Integer, BitSet> moves = Maps.newTreeMap();
+      BitSet set = sets.get(i);
+      for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+        for (int[] e : out.get(s)) {
+          BitSet targets = moves.get(e[1]);
+          if (targets == null) { moves.put(e[1], targets = new BitSet()); }
+          targets.or(closures[e[2]]);
+        }
+      }
+      SortedMap<Integer, Integer> t = Maps.newTreeMap();
+      for (Map.Entry<Integer, BitSet> move : moves.entrySet()) {
+        BitSet target = move.getValue();
+        Integer id = ids.get(target);
+        if (id == null) {
+          if (sets.size() == MAX_STATES) { return null; }
+          ids.put(target, id = sets.size());
+          sets.add(target);
+        }
+        t.put(move.getKey(), id);
+      }
+      transitions.add(t);
+    }
+    int n = sets.size();
+    boolean[] accepting = new boolean[n];
+    for (int i = 0; i < n; ++i) { accepting[i] = sets.get(i).get(nfaEnd); }
+    return pack(minimize(accepting, transitions), accepting, transitions);
+  }
+
+  /** The states reachable from state via epsilon edges. */
+  private static BitSet closure(int state, List<List<Integer>> epsilons) {
+    BitSet set = new BitSet();
+    set.set(state);
+    List<Integer> pending = Lists.newArrayList(state);
+    while (!pending.isEmpty()) {
+      int s = pending.remove(pending.size() - 1);
+      for (int t : epsilons.get(s)) {
+        if (!set.get(t)) {
+          set.set(t);
+          pending.add(t);
+        }
+      }
+    }
+    return set;
+  }
+
+  /**
+   * Moore's algorithm: refines the accepting/non-accepting split until
+   * states in the same class agree on where each symbol goes.
+   * @return the equivalence class of each state.
+   */
+  private static int[] minimize(
+      boolean[] accepting, List<SortedMap<Integer, Integer>> transitions) {
+    int n = accepting.length;
+    int[] classes = new int[n];
+    for (int i = 0; i < n; ++i) { classes[i] = accepting[i] ? 1 : 0; }
+    int classCount = -1;
+    while (true) {
+      Map<List<Integer>, Integer> signatures = Maps.newHashMap();
+      int[] refined = new int[n];
+      for (int i = 0; i < n; ++i) {
+        List<Integer> signature = Lists.newArrayList();
+        signature.add(classes[i]);
+        for (Map.Entry<Integer, Integer> t : transitions.get(i).entrySet()) {
+          signature.add(t.getKey());
+          signature.add(classes[t.getValue()]);
+        }
+        Integer c = signatures.get(signature);
+        if (c == null) { signatures.put(signature, c = signatures.size()); }
+        refined[i] = c;
+      }
+      classes = refined;
+      if (signatures.size() == classCount) { return classes; }
+      classCount = signatures.size();
+    }
+  }
+
+  private static String pack(
+      int[] classes, boolean[] accepting,
+      List<SortedMap<Integer, Integer>> transitions) {
+    // Number classes in breadth-first order from the start state so that the
+    // start state is 0.
+    int n = accepting.length;
+    int[] order = new int[n];
+    int[] representative = new int[n];
+    Arrays.fill(order, -1);
+    int count = 0;
+    order[classes[0]] = count++;
+    representative[0] = 0;
+    for (int k = 0; k < count; ++k) {
+      int rep = representative[k];
+      for (int target : transitions.get(rep).values()) {
+        int c = classes[target];
+        if (order[c] < 0) {
+          representative[count] = target;
+          order[c] = count++;
+        }
+      }
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.setLength(count);
+    for (int k = 0; k < count; ++k) {
+      int rep = representative[k];
+      SortedMap<Integer, Integer> t = transitions.get(rep);
+      if (!appendBiased(sb.length(), k, sb)) { return null; }
+      if (!appendBiased((t.size() << 1) | (accepting[rep] ? 1 : 0), -1, sb)) {
+        return null;
+      }
+      for (Map.Entry<Integer, Integer> e : t.entrySet()) {
+        if (!appendBiased(e.getKey(), -1, sb)
+            || !appendBiased(order[classes[e.getValue()]], -1, sb)) {
+          return null;
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Appends value, or writes it at index if index is non-negative.
+   * @return false if the value does not fit in a UTF-16 code unit that is
+   *     not a surrogate.
+   */
+  private static boolean appendBiased(int value, int index, StringBuilder sb) {
+    int biased = value + BIAS;
+    if (biased >= Character.MIN_SURROGATE) { return false; }
+    if (index >= 0) {
+      sb.setCharAt(index, (char) biased);
+    } else {
+      sb.append((char) biased);
+    }
+    return true;
+  }
+}
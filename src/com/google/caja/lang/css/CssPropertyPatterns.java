@@ -41,7 +41,6 @@ import com.google.caja.reporting.EchoingMessageQueue;
 import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.RenderContext;
-import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.tools.BuildCommand;
 import com.google.caja.util.Bag;
 import com.google.caja.util.Charsets;
@@ -91,7 +90,10 @@ import javax.annotation.Nullable;
  *       // numeric values like font-weight:300
  *       cssLitGroup: [CSS_LIT_GROUP[1],CSS_LIT_GROUP[3],CSS_LIT_GROUP[16]],
  *       // Schema keys for functions that are allowed (non-transitively).
- *       cssFns: []
+ *       cssFns: [],
+ *       // Only when generated with DFAs: a packed automaton that checks the
+ *       // order of tokens.  See CssPropertyDfa.
+ *       cssDfa: "..."
  *     },
  *     ...
  *     // Functions are top-level constructs that have their own filters which
@@ -314,7 +316,7 @@ public class CssPropertyPatterns {
     }
   }
 
-  private static final Map<String, CssPropBit> BUILTIN_PROP_BITS
+  static final Map<String, CssPropBit> BUILTIN_PROP_BITS
       = new ImmutableMap.Builder<String, CssPropBit>()
         .put("angle", CssPropBit.QUANTITY)
         .put("frequency", CssPropBit.QUANTITY)
@@ -337,6 +339,17 @@ public class CssPropertyPatterns {
 
   public static void generatePatterns(CssSchema schema, Appendable out)
       throws IOException {
+    generatePatterns(schema, out, false);
+  }
+
+  /**
+   * @param withDfas true to add to each property's data map a
+   *     {@code cssDfa} key whose value is a {@link CssPropertyDfa} that
+   *     "sanitizecss.js" uses to check the order of tokens in a value.
+   */
+  public static void generatePatterns(
+      CssSchema schema, Appendable out, boolean withDfas)
+      throws IOException {
     FilePosition unk = FilePosition.UNKNOWN;
     CssPropertyPatterns pp = new CssPropertyPatterns(schema);
     List<CssSchema.CssPropertyInfo> props
@@ -435,6 +448,7 @@ public class CssPropertyPatterns {
     StringLiteral propbitsObjKey = new StringLiteral(unk, "cssPropBits");
     StringLiteral litgroupObjKey = new StringLiteral(unk, "cssLitGroup");
     StringLiteral fnsObjKey = new StringLiteral(unk, "cssFns");
+    StringLiteral dfaObjKey = new StringLiteral(unk, "cssDfa");
 
     // Keep track of the JS we generate so we can reuse data-objects for
     // CSS properties whose filtering schemes are functionally equivalent.
@@ -466,14 +480,32 @@ public class CssPropertyPatterns {
             litgroupObjKey, new ArrayConstructor(unk, litGroups)));
       }
 
+      List<String> fnKeys = Lists.newArrayList();
       List<Expression> fnKeyStrs = Lists.newArrayList();
       for (CssPropertySignature.CallSignature fn : data.fns) {
         String fnKey = fnSigToData.get(fn).key;
+        fnKeys.add(fnKey);
         fnKeyStrs.add(StringLiteral.valueOf(unk, fnKey));
       }
       ArrayConstructor fnKeyArray = new ArrayConstructor(unk, fnKeyStrs);
       dataObj.appendChild(new ValueProperty(fnsObjKey, fnKeyArray));
 
+      if (withDfas) {
+        // Literal symbols are numbered in the order the client sees them when
+        // it walks cssLitGroup.
+        List<String> literals = Lists.newArrayList();
+        for (int groupIndex : litPartition.unions[propIndex]) {
+          for (int litIndex : litPartition.partition[groupIndex]) {
+            literals.add(litPartition.universe[litIndex]);
+          }
+        }
+        String dfa = CssPropertyDfa.compile(schema, data.sig, literals, fnKeys);
+        if (dfa != null) {
+          dataObj.appendChild(new ValueProperty(
+              dfaObjKey, StringLiteral.valueOf(unk, dfa)));
+        }
+      }
+
       String dataJs;
       {
         StringBuilder js = new StringBuilder();
@@ -533,6 +565,12 @@ public class CssPropertyPatterns {
   }
 
   public static class Builder implements BuildCommand {
+    /**
+     * If {@code Boolean.TRUE} in the options map, the output includes
+     * automata that check the order of tokens in property values.
+     */
+    public static final String DFAS = "cssDfa";
+
     public boolean build(List<File> inputs, List<File> deps,
                          Map<String, Object> options, File output)
         throws IOException {
@@ -611,7 +649,7 @@ public class CssPropertyPatterns {
           out.write(String.valueOf(b.jsValue));
           out.write(";\n");
         }
-        generatePatterns(schema, out);
+        generatePatterns(schema, out, Boolean.TRUE.equals(options.get(DFAS)));
         out.write("if (typeof window !== 'undefined') {\n");
         out.write("  window['cssSchema'] = cssSchema;\n");
         out.write("}\n");
@@ -638,9 +676,9 @@ public class CssPropertyPatterns {
   }
 
   public static void main(String[] args) throws IOException {
-    CssSchema schema = CssSchema.getDefaultCss21Schema(
-        new SimpleMessageQueue());
-    generatePatterns(schema, System.out);
+    CssSchema schema = CssSchema.getDefaultCss21Schema();
+    generatePatterns(
+        schema, System.out, Arrays.asList(args).contains("--dfa"));
   }
 
   /**
@@ -16,20 +16,36 @@ package com.google.caja.lang.css;
 
 import com.google.caja.SomethingWidgyHappenedError;
 import com.google.caja.config.ConfigUtil;
+import com.google.caja.config.ImportResolver;
+import com.google.caja.config.SourceTreeResolver;
 import com.google.caja.config.WhiteList;
+import com.google.caja.config.WhiteListSnapshot;
 import com.google.caja.lexer.ParseException;
 import com.google.caja.parser.AncestorChain;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.Visitor;
 import com.google.caja.parser.css.CssPropertySignature;
+import com.google.caja.reporting.EchoingMessageQueue;
 import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.tools.BuildCommand;
 import com.google.caja.util.Criterion;
 import com.google.caja.util.Name;
-import com.google.caja.util.Pair;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -63,30 +79,76 @@ public final class CssSchema {
   private final Set<Name> functionsAllowed;
   private final Set<Name> propertiesAllowed;
 
-  private static Pair<CssSchema, List<Message>> defaultSchema;
-  public static CssSchema getDefaultCss21Schema(MessageQueue mq) {
-    if (defaultSchema == null) {
+  /**
+   * A precompiled form of the default schema written by
+   * {@link SnapshotBuilder} at build time.
+   */
+  private static final String DEFAULT_SNAPSHOT = "css3-schema.bin";
+  private static final String SNAPSHOT_HEADER = "caja-css-schema/2";
+
+  /**
+   * The default schema, loaded when first requested.  Class initialization
+   * guarantees that it is loaded once and safely published to all threads,
+   * so readers need not synchronize.
+   */
+  private static final class DefaultSchemaHolder {
+    /** Null if the default schema could not be loaded. */
+    static final CssSchema SCHEMA;
+    /** Messages from loading the default schema. */
+    static final List<Message> MESSAGES;
+    /** Why the default schema could not be loaded, or null. */
+    static final Exception FAILURE;
+
+    static {
       SimpleMessageQueue cacheMq = new SimpleMessageQueue();
-      WhiteList propDefs, fnDefs;
-      try {
-        propDefs = ConfigUtil.loadWhiteListFromJson(
-            defaultPropWhitelistURL, ConfigUtil.RESOURCE_RESOLVER, cacheMq);
-        fnDefs = ConfigUtil.loadWhiteListFromJson(
-            defaultFnWhitelistURL, ConfigUtil.RESOURCE_RESOLVER, cacheMq);
-      // If the default schema is borked, there's not much we can do.
-      } catch (IOException ex) {
-        mq.getMessages().addAll(cacheMq.getMessages());
-        throw new SomethingWidgyHappenedError("Default schema is borked", ex);
-      } catch (ParseException ex) {
-        ex.toMessageQueue(cacheMq);
-        mq.getMessages().addAll(cacheMq.getMessages());
-        throw new SomethingWidgyHappenedError("Default schema is borked", ex);
+      CssSchema schema = loadSnapshot(
+          CssSchema.class.getResourceAsStream(DEFAULT_SNAPSHOT), cacheMq);
+      Exception failure = null;
+      if (schema == null) {
+        try {
+          schema = new CssSchema(
+              ConfigUtil.loadWhiteListFromJson(
+                  defaultPropWhitelistURL, ConfigUtil.RESOURCE_RESOLVER,
+                  cacheMq),
+              ConfigUtil.loadWhiteListFromJson(
+                  defaultFnWhitelistURL, ConfigUtil.RESOURCE_RESOLVER,
+                  cacheMq));
+        } catch (IOException ex) {
+          failure = ex;
+        } catch (ParseException ex) {
+          ex.toMessageQueue(cacheMq);
+          failure = ex;
+        }
       }
-      defaultSchema = Pair.pair(
-          new CssSchema(propDefs, fnDefs), cacheMq.getMessages());
+      SCHEMA = schema;
+      MESSAGES = Collections.unmodifiableList(
+          new ArrayList<Message>(cacheMq.getMessages()));
+      FAILURE = failure;
+    }
+  }
+
+  /**
+   * The default schema.
+   * @param mq receives any messages from loading the default schema on every
+   *     call.
+   */
+  public static CssSchema getDefaultCss21Schema(MessageQueue mq) {
+    mq.getMessages().addAll(DefaultSchemaHolder.MESSAGES);
+    return getDefaultCss21Schema();
+  }
+
+  /**
+   * The default schema.  Unlike {@link #getDefaultCss21Schema(MessageQueue)},
+   * this does not copy load messages, so is suitable for calling per request.
+   */
+  public static CssSchema getDefaultCss21Schema() {
+    CssSchema schema = DefaultSchemaHolder.SCHEMA;
+    if (schema == null) {
+      // If the default schema is borked, there's not much we can do.
+      throw new SomethingWidgyHappenedError(
+          "Default schema is borked", DefaultSchemaHolder.FAILURE);
     }
-    mq.getMessages().addAll(defaultSchema.b);
-    return defaultSchema.a;
+    return schema;
   }
 
   /**
@@ -243,6 +305,7 @@ public final class CssSchema {
   private void defineProperty(
       Name name,
       String sig,
+      Map<String, CssPropertySignature> parsed,
       String defaultValue,
       Criterion<String> appliesTo,
       boolean inherited,
@@ -255,23 +318,35 @@ public final class CssSchema {
       throw new IllegalArgumentException("Bad property name: " + name);
     }
 
-    CssPropertySignature csssig = parseSignature(name, sig);
+    CssPropertySignature csssig = parseSignature(name, sig, parsed);
     properties.put(name, new CssPropertyInfo(
         name, csssig, mediaGroups, inherited, appliesTo, defaultValue));
   }
 
-  private void defineSymbol(Name name, String sig) {
+  private void defineSymbol(
+      Name name, String sig, Map<String, CssPropertySignature> parsed) {
     if (sig == null) {
       throw new NullPointerException("Null signature for symbol " + name);
     }
     if (!CSS_IDENTIFIER.matcher(name.getCanonicalForm()).matches()) {
       throw new IllegalArgumentException("Bad symbol name: " + name);
     }
-    CssPropertySignature csssig = parseSignature(name, sig);
+    CssPropertySignature csssig = parseSignature(name, sig, parsed);
     symbols.put(name, new SymbolInfo(name, csssig));
   }
 
   public CssSchema(WhiteList symbolsAndProperties, WhiteList functions) {
+    this(symbolsAndProperties, functions,
+         new HashMap<String, CssPropertySignature>());
+  }
+
+  /**
+   * @param parsed maps signature text to parsed signatures.  Signatures not
+   *     in parsed are parsed and added to it.
+   */
+  private CssSchema(
+      WhiteList symbolsAndProperties, WhiteList functions,
+      Map<String, CssPropertySignature> parsed) {
     for (WhiteList.TypeDefinition def
            : symbolsAndProperties.typeDefinitions().values()) {
       String key = (String) def.get("key", null);
@@ -283,7 +358,7 @@ public final class CssSchema {
       if (key.startsWith("<") && key.endsWith(">")) {
         defineSymbol(
             Name.css(key.substring(1, key.length() - 1)),
-            (String) def.get("signature", null));
+            (String) def.get("signature", null), parsed);
       } else {
         Criterion<String> appliesTo = criterionFromConfig(
             def.get("appliesTo", "*"), ALL_ELEMENTS);
@@ -292,6 +367,7 @@ public final class CssSchema {
         defineProperty(
             Name.css(key),
             (String) def.get("signature", null),
+            parsed,
             (String) def.get("default", null),
             appliesTo,
             Boolean.TRUE.equals(def.get("inherited", null)),
@@ -352,12 +428,150 @@ public final class CssSchema {
    * Parses a CssSignature according to the grammar described in
    * http://www.w3.org/TR/CSS21/about.html#property-defs
    */
-  private static CssPropertySignature parseSignature(Name name, String sig) {
+  private static CssPropertySignature parseSignature(
+      Name name, String sig, Map<String, CssPropertySignature> parsed) {
+    CssPropertySignature csssig = parsed.get(sig);
+    if (csssig == null) {
+      try {
+        csssig = CssPropertySignature.Parser.parseSignature(sig);
+      } catch (RuntimeException ex) {
+        throw new SomethingWidgyHappenedError(
+            "Error parsing symbol " + name + " with signature " + sig, ex);
+      }
+      parsed.put(sig, csssig);
+    }
+    return csssig;
+  }
+
+  /**
+   * Writes a schema built from the given whitelists in a form that
+   * {@link #readSnapshot} can load without parsing JSON or signatures.
+   * @param loadMessages messages reported while loading the whitelists, to be
+   *     reported again to readers.
+   */
+  public static void writeSnapshot(
+      WhiteList symbolsAndProperties, WhiteList functions,
+      List<Message> loadMessages, DataOutput out)
+      throws IOException {
+    Map<String, CssPropertySignature> parsed
+        = new HashMap<String, CssPropertySignature>();
+    // Parse every signature so that readers never need to.
+    new CssSchema(symbolsAndProperties, functions, parsed);
+    out.writeUTF(SNAPSHOT_HEADER);
+    WhiteListSnapshot.write(symbolsAndProperties, out);
+    WhiteListSnapshot.write(functions, out);
+    WhiteListSnapshot.writeMessages(loadMessages, out);
+    out.writeInt(parsed.size());
+    for (Map.Entry<String, CssPropertySignature> e : parsed.entrySet()) {
+      out.writeUTF(e.getKey());
+      e.getValue().writeTo(out);
+    }
+  }
+
+  /**
+   * Reads a schema written by {@link #writeSnapshot}.
+   * @param mq receives the messages from loading the snapshotted whitelists
+   *     if the whole snapshot was read.
+   * @throws IOException if in is malformed or was written by an incompatible
+   *     version.
+   */
+  public static CssSchema readSnapshot(DataInput in, MessageQueue mq)
+      throws IOException {
+    if (!SNAPSHOT_HEADER.equals(in.readUTF())) {
+      throw new IOException("Not a CSS schema snapshot");
+    }
+    WhiteList symbolsAndProperties = WhiteListSnapshot.read(in);
+    WhiteList functions = WhiteListSnapshot.read(in);
+    List<Message> loadMessages = WhiteListSnapshot.readMessages(in);
+    int n = in.readInt();
+    Map<String, CssPropertySignature> parsed
+        = new HashMap<String, CssPropertySignature>(n * 2);
+    for (int i = 0; i < n; ++i) {
+      String sig = in.readUTF();
+      parsed.put(sig, CssPropertySignature.readFrom(in));
+    }
+    CssSchema schema = new CssSchema(symbolsAndProperties, functions, parsed);
+    mq.getMessages().addAll(loadMessages);
+    return schema;
+  }
+
+  /**
+   * Loads a snapshot, closing in.
+   * @param in null if there is no snapshot.
+   * @return null if there is no usable snapshot so the caller should fall back
+   *     to the JSON whitelists.
+   */
+  /* visible for testing */ static CssSchema loadSnapshot(
+      InputStream in, MessageQueue mq) {
+    if (in == null) { return null; }
     try {
-      return CssPropertySignature.Parser.parseSignature(sig);
+      try {
+        return readSnapshot(
+            new DataInputStream(new BufferedInputStream(in)), mq);
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      return null;
     } catch (RuntimeException ex) {
-      throw new SomethingWidgyHappenedError(
-          "Error parsing symbol " + name + " with signature " + sig, ex);
+      // A snapshot from another version of the schema classes may be
+      // inconsistent in ways that the format checks above do not catch.
+      return null;
+    }
+  }
+
+  /**
+   * Precompiles the CSS whitelists into a snapshot that
+   * {@link #getDefaultCss21Schema} loads in preference to the JSON.
+   */
+  public static class SnapshotBuilder implements BuildCommand {
+    public boolean build(List<File> inputs, List<File> deps,
+                         Map<String, Object> options, File output)
+        throws IOException {
+      if (inputs.size() != 2) {
+        throw new IOException(
+            "Expected symbols + properties and functions whitelists");
+      }
+      if (!isInput(defaultPropWhitelistURL, inputs.get(0))
+          || !isInput(defaultFnWhitelistURL, inputs.get(1))) {
+        throw new IOException(
+            "Expected " + defaultPropWhitelistURL + " and "
+            + defaultFnWhitelistURL);
+      }
+      Set<File> inputsAndDeps = new HashSet<File>();
+      for (File f : inputs) { inputsAndDeps.add(f.getAbsoluteFile()); }
+      for (File f : deps) { inputsAndDeps.add(f.getAbsoluteFile()); }
+      ImportResolver resolver = new SourceTreeResolver(inputsAndDeps);
+
+      MessageContext mc = new MessageContext();
+      MessageQueue mq = new EchoingMessageQueue(
+          new PrintWriter(new OutputStreamWriter(System.err), true), mc, false);
+      WhiteList symbolsAndProperties, functions;
+      try {
+        // Load via the same URIs as at runtime, so that the snapshot does
+        // not depend on where it was built.
+        symbolsAndProperties = ConfigUtil.loadWhiteListFromJson(
+            defaultPropWhitelistURL, resolver, mq);
+        functions = ConfigUtil.loadWhiteListFromJson(
+            defaultFnWhitelistURL, resolver, mq);
+      } catch (ParseException ex) {
+        ex.toMessageQueue(mq);
+        throw (IOException) new IOException("Failed to parse schema")
+            .initCause(ex);
+      }
+
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(output)));
+      try {
+        writeSnapshot(symbolsAndProperties, functions, mq.getMessages(), out);
+      } finally {
+        out.close();
+      }
+      return true;
+    }
+
+    private static boolean isInput(URI resource, File f) {
+      return resource.getPath().endsWith("/" + f.getName());
     }
   }
 
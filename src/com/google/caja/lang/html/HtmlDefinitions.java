@@ -21,6 +21,7 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumMap;
 import java.util.EnumSet;
@@ -44,6 +45,7 @@ import com.google.caja.parser.html.AttribKey;
 import com.google.caja.parser.html.ElKey;
 import com.google.caja.parser.js.Block;
 import com.google.caja.parser.js.Expression;
+import com.google.caja.parser.js.ExpressionStmt;
 import com.google.caja.parser.js.Identifier;
 import com.google.caja.parser.js.IntegerLiteral;
 import com.google.caja.parser.js.Reference;
@@ -57,7 +59,6 @@ import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.PropertyNameQuotingMode;
 import com.google.caja.reporting.RenderContext;
-import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.tools.BuildCommand;
 import com.google.caja.util.Charsets;
 import com.google.caja.util.Function;
@@ -157,6 +158,19 @@ public final class HtmlDefinitions {
   }
 
   public static Block generateJavascriptDefinitions(HtmlSchema schema) {
+    return generateJavascriptDefinitions(schema, false);
+  }
+
+  /**
+   * @param packed true to emit the per-element and per-attribute tables as
+   *     compact strings that are decoded into lookup maps the first time each
+   *     table is read, instead of as object literals that every frame must
+   *     parse and allocate at startup.
+   *     The small enum tables like {@code html4.atype} are emitted as object
+   *     literals either way.
+   */
+  public static Block generateJavascriptDefinitions(
+      HtmlSchema schema, boolean packed) {
     final FilePosition unk = FilePosition.UNKNOWN;
     Map<AttribKey, HTML.Attribute.Type> atypes = attributeTypes(schema);
     Map<ElKey, EnumSet<EFlag>> eflags = elementFlags(schema);
@@ -182,24 +196,35 @@ public final class HtmlDefinitions {
         })
     );
 
+    // Maps table names to packed tables when packed.
+    Map<String, Expression> packedTables = Maps.newLinkedHashMap();
+
     {
       List<StringLiteral> keys = new ArrayList<StringLiteral>();
       List<IntegerLiteral> values = new ArrayList<IntegerLiteral>();
+      Map<String, String> packedValues = Maps.newLinkedHashMap();
       for (Map.Entry<AttribKey, HTML.Attribute.Type> e : atypes.entrySet()) {
         AttribKey key = e.getKey();
         if (ElKey.HTML_WILDCARD.equals(key.el)
             || schema.isElementAllowed(key.el)
             // Whitelisted to allow dynamic script loading via proxy
             || SCRIPT_SRC.equals(key)) {
+          int value = A_TYPE_MAP.get(e.getValue());
           keys.add(StringLiteral.valueOf(unk, key.toString()));
-          values.add(new IntegerLiteral(unk, A_TYPE_MAP.get(e.getValue())));
+          values.add(new IntegerLiteral(unk, value));
+          packedValues.put(key.toString(), packInt(value));
         }
       }
-      definitions.appendChild(export("ATTRIBS",
-          (Expression) QuasiBuilder.substV(
-              "({ @k*: @v* })",
-              "k", new ParseTreeNodeContainer(keys),
-              "v", new ParseTreeNodeContainer(values))));
+      if (packed) {
+        packedTables.put("ATTRIBS", packedTable(
+            "ATTRIBS", packedValues, "decodeInt"));
+      } else {
+        definitions.appendChild(export("ATTRIBS",
+            (Expression) QuasiBuilder.substV(
+                "({ @k*: @v* })",
+                "k", new ParseTreeNodeContainer(keys),
+                "v", new ParseTreeNodeContainer(values))));
+      }
     }
 
     definitions.appendChild(mapFromEnum(
@@ -217,27 +242,48 @@ public final class HtmlDefinitions {
         })
     );
 
-    definitions.appendChild(mapFromMap(
-        eflags,
-        "ELEMENTS",
-        new Function<EnumSet<EFlag>, Expression>() {
-          public Expression apply(EnumSet<EFlag> flags) {
-            int value = 0;
-            for (EFlag f : flags) { value |= f.bitMask; }
-            return new IntegerLiteral(unk, value);
-          }
-        })
-    );
-
-    definitions.appendChild(mapFromMap(
-        einterfaces,
-        "ELEMENT_DOM_INTERFACES",
-        new Function<String, Expression>() {
-          public Expression apply(String domInterface) {
-            return new StringLiteral(unk, domInterface);
-          }
-        })
-    );
+    if (packed) {
+      Map<String, String> packedFlags = Maps.newLinkedHashMap();
+      for (Map.Entry<ElKey, EnumSet<EFlag>> e : eflags.entrySet()) {
+        packedFlags.put(e.getKey().toString(), packInt(flagBits(e.getValue())));
+      }
+      packedTables.put("ELEMENTS", packedTable(
+          "ELEMENTS", packedFlags, "decodeInt"));
+      Map<String, String> packedInterfaces = Maps.newLinkedHashMap();
+      for (Map.Entry<ElKey, String> e : einterfaces.entrySet()) {
+        String domInterface = e.getValue();
+        if (!(domInterface.startsWith(DOM_INTERFACE_PREFIX)
+              && domInterface.endsWith(DOM_INTERFACE_SUFFIX))) {
+          throw new SomethingWidgyHappenedError(
+              "Cannot pack DOM interface " + domInterface);
+        }
+        packedInterfaces.put(e.getKey().toString(), domInterface.substring(
+            DOM_INTERFACE_PREFIX.length(),
+            domInterface.length() - DOM_INTERFACE_SUFFIX.length()));
+      }
+      packedTables.put("ELEMENT_DOM_INTERFACES", packedTable(
+          "ELEMENT_DOM_INTERFACES", packedInterfaces, "decodeDomInterface"));
+    } else {
+      definitions.appendChild(mapFromMap(
+          eflags,
+          "ELEMENTS",
+          new Function<EnumSet<EFlag>, Expression>() {
+            public Expression apply(EnumSet<EFlag> flags) {
+              return new IntegerLiteral(unk, flagBits(flags));
+            }
+          })
+      );
+
+      definitions.appendChild(mapFromMap(
+          einterfaces,
+          "ELEMENT_DOM_INTERFACES",
+          new Function<String, Expression>() {
+            public Expression apply(String domInterface) {
+              return new StringLiteral(unk, domInterface);
+            }
+          })
+      );
+    }
 
     definitions.appendChild(mapFromEnum(
         EnumSet.allOf(UriEffect.class),
@@ -254,20 +300,30 @@ public final class HtmlDefinitions {
         })
     );
 
-    definitions.appendChild(mapFromEnum(
-        uriEffects.entrySet(),
-        "URIEFFECTS",
-        new Function<Entry<AttribKey, UriEffect>, String>() {
-          public String apply(Entry<AttribKey, UriEffect> f) {
-            return f.getKey().toString();
-          }
-        },
-        new Function<Entry<AttribKey, UriEffect>, Integer>() {
-          public Integer apply(Entry<AttribKey, UriEffect> f) {
-            return A_UEFFECT_MAP.get(f.getValue());
-          }
-        })
-    );
+    if (packed) {
+      Map<String, String> packedEffects = Maps.newLinkedHashMap();
+      for (Map.Entry<AttribKey, UriEffect> e : uriEffects.entrySet()) {
+        packedEffects.put(
+            e.getKey().toString(), packInt(A_UEFFECT_MAP.get(e.getValue())));
+      }
+      packedTables.put("URIEFFECTS", packedTable(
+          "URIEFFECTS", packedEffects, "decodeInt"));
+    } else {
+      definitions.appendChild(mapFromEnum(
+          uriEffects.entrySet(),
+          "URIEFFECTS",
+          new Function<Entry<AttribKey, UriEffect>, String>() {
+            public String apply(Entry<AttribKey, UriEffect> f) {
+              return f.getKey().toString();
+            }
+          },
+          new Function<Entry<AttribKey, UriEffect>, Integer>() {
+            public Integer apply(Entry<AttribKey, UriEffect> f) {
+              return A_UEFFECT_MAP.get(f.getValue());
+            }
+          })
+      );
+    }
 
     definitions.appendChild(mapFromEnum(
         EnumSet.allOf(LoaderType.class),
@@ -284,24 +340,172 @@ public final class HtmlDefinitions {
         })
     );
 
-    definitions.appendChild(mapFromEnum(
-        ltypes.entrySet(),
-        "LOADERTYPES",
-        new Function<Entry<AttribKey, LoaderType>, String>() {
-          public String apply(Entry<AttribKey, LoaderType> f) {
-            return f.getKey().toString();
-          }
-        },
-        new Function<Entry<AttribKey, LoaderType>, Integer>() {
-          public Integer apply(Entry<AttribKey, LoaderType> f) {
-            return L_TYPE_MAP.get(f.getValue());
-          }
-        })
-    );
+    if (packed) {
+      Map<String, String> packedLoaders = Maps.newLinkedHashMap();
+      for (Map.Entry<AttribKey, LoaderType> e : ltypes.entrySet()) {
+        packedLoaders.put(
+            e.getKey().toString(), packInt(L_TYPE_MAP.get(e.getValue())));
+      }
+      packedTables.put("LOADERTYPES", packedTable(
+          "LOADERTYPES", packedLoaders, "decodeInt"));
+    } else {
+      definitions.appendChild(mapFromEnum(
+          ltypes.entrySet(),
+          "LOADERTYPES",
+          new Function<Entry<AttribKey, LoaderType>, String>() {
+            public String apply(Entry<AttribKey, LoaderType> f) {
+              return f.getKey().toString();
+            }
+          },
+          new Function<Entry<AttribKey, LoaderType>, Integer>() {
+            public Integer apply(Entry<AttribKey, LoaderType> f) {
+              return L_TYPE_MAP.get(f.getValue());
+            }
+          })
+      );
+    }
+
+    if (packed) {
+      definitions.appendChild(lazyTables(packedTables));
+    }
 
     return definitions;
   }
 
+  private static int flagBits(EnumSet<EFlag> flags) {
+    int value = 0;
+    for (EFlag f : flags) { value |= f.bitMask; }
+    return value;
+  }
+
+  private static final String DOM_INTERFACE_PREFIX = "HTML";
+  private static final String DOM_INTERFACE_SUFFIX = "Element";
+
+  /** Zero, the most common value in every table, packs to nothing. */
+  private static String packInt(int value) {
+    return value == 0 ? "" : Integer.toString(value, 36);
+  }
+
+  /**
+   * Packs a table into a string of groups separated by {@code ';'}.
+   * Each group is a comma separated list whose first element is a key
+   * prefix like {@code "a::"} shared by the rest, which are a key suffix
+   * followed by {@code '='} and the value, or just the key suffix when the
+   * value is empty.
+   * <p>
+   * Note: the format is duplicated in the decoder in {@link #LAZY_TABLES}.
+   *
+   * @return a {@code [name, packed, decoder]} triple for
+   *     {@link #lazyTables} where decoder names a function in
+   *     {@link #LAZY_TABLES} that decodes values.
+   */
+  private static Expression packedTable(
+      String name, Map<String, String> table, String decoder) {
+    FilePosition unk = FilePosition.UNKNOWN;
+    StringBuilder sb = new StringBuilder();
+    String prefix = null;
+    for (Map.Entry<String, String> e : table.entrySet()) {
+      String key = e.getKey();
+      String value = e.getValue();
+      int sep = key.indexOf("::");
+      String keyPrefix = sep < 0 ? "" : key.substring(0, sep + 2);
+      String keySuffix = key.substring(keyPrefix.length());
+      if (!keyPrefix.equals(prefix)) {
+        if (prefix != null) { sb.append(';'); }
+        prefix = keyPrefix;
+        checkPackable(prefix);
+        sb.append(prefix);
+      }
+      checkPackable(keySuffix);
+      checkPackable(value);
+      sb.append(',').append(keySuffix);
+      if (value.length() != 0) { sb.append('=').append(value); }
+    }
+    return (Expression) QuasiBuilder.substV(
+        "[@name, @packed, @decoder]",
+        "name", StringLiteral.valueOf(unk, name),
+        "packed", StringLiteral.valueOf(unk, sb),
+        "decoder", new Reference(new Identifier(unk, decoder)));
+  }
+
+  private static void checkPackable(String s) {
+    for (int i = 0, n = s.length(); i < n; ++i) {
+      char ch = s.charAt(i);
+      if (ch == ';' || ch == ',' || ch == '=') {
+        throw new SomethingWidgyHappenedError("Cannot pack " + s);
+      }
+    }
+  }
+
+  /**
+   * Decodes tables packed by {@link #packedTable} the first time each is
+   * read.  The keys of {@code @tables} are unquoted so that Closure Compiler
+   * renames them along with the {@code html4} properties they define, and
+   * each table is also exported under its unrenamed name.
+   * Where ES5 accessors are not available on plain objects, as on IE8, the
+   * tables are decoded eagerly instead.
+   */
+  private static final String LAZY_TABLES = (
+      ""
+      + "(function () {"
+      + "  function unpack(packed, decode) {"
+      + "    var table = {};"
+      + "    var groups = packed.split(';');"
+      + "    for (var i = 0, n = groups.length; i < n; ++i) {"
+      + "      var entries = groups[i].split(',');"
+      + "      for (var j = 1, m = entries.length; j < m; ++j) {"
+      + "        var entry = entries[j].split('=');"
+      + "        table[entries[0] + entry[0]] = decode(entry[1] || '');"
+      + "      }"
+      + "    }"
+      + "    return table;"
+      + "  }"
+      + "  function decodeInt(s) { return s ? parseInt(s, 36) : 0; }"
+      + "  function decodeDomInterface(s) {"
+      + "    return '" + DOM_INTERFACE_PREFIX + "' + s + '"
+      +        DOM_INTERFACE_SUFFIX + "';"
+      + "  }"
+      + "  function lazyTable(key, name, packed, decode) {"
+      + "    var table = null;"
+      + "    function get() {"
+      + "      return table || (table = unpack(packed, decode));"
+      + "    }"
+      + "    var descriptor = {"
+      + "      get: get, enumerable: true, configurable: true"
+      + "    };"
+      + "    try {"
+      + "      Object.defineProperty(html4, key, descriptor);"
+      + "      if (name !== key) {"
+      + "        Object.defineProperty(html4, name, descriptor);"
+      + "      }"
+      + "    } catch (e) {"
+      + "      html4[key] = html4[name] = get();"
+      + "    }"
+      + "  }"
+      + "  var tables = @tables;"
+      + "  for (var k in tables) {"
+      + "    if (Object.prototype.hasOwnProperty.call(tables, k)) {"
+      + "      lazyTable(k, tables[k][0], tables[k][1], tables[k][2]);"
+      + "    }"
+      + "  }"
+      + "})();");
+
+  private static Statement lazyTables(Map<String, Expression> packedTables) {
+    FilePosition unk = FilePosition.UNKNOWN;
+    List<StringLiteral> keys = Lists.newArrayList();
+    List<Expression> values = Lists.newArrayList();
+    for (Map.Entry<String, Expression> e : packedTables.entrySet()) {
+      keys.add(new StringLiteral(unk, e.getKey()));
+      values.add(e.getValue());
+    }
+    return new ExpressionStmt((Expression) QuasiBuilder.substV(
+        LAZY_TABLES,
+        "tables", QuasiBuilder.substV(
+            "({ @k*: @v* })",
+            "k", new ParseTreeNodeContainer(keys),
+            "v", new ParseTreeNodeContainer(values))));
+  }
+
   /** Maps attribute types to integers for use in the JavaScript output. */
   private static final Map<HTML.Attribute.Type, Integer> A_TYPE_MAP
       = new EnumMap<HTML.Attribute.Type, Integer>(HTML.Attribute.Type.class);
@@ -475,7 +679,8 @@ public final class HtmlDefinitions {
     return data;
   }
 
-  private static void generateSourceText(HtmlSchema schema, Writer out)
+  static void generateSourceText(
+      HtmlSchema schema, Writer out, boolean packed)
       throws IOException {
     String currentDate = "" + new Date();
     if (currentDate.indexOf("\n") >= 0) {
@@ -486,7 +691,7 @@ public final class HtmlDefinitions {
     out.write("// Autogenerated at " + currentDate + "\n");
     out.write("// @overrides window\n");
     out.write("// @provides html4\n");
-    Block node = generateJavascriptDefinitions(schema);
+    Block node = generateJavascriptDefinitions(schema, packed);
     RenderContext rc = new RenderContext(node.makeRenderer(out, null))
         .withPropertyNameQuotingMode(
             PropertyNameQuotingMode.PRESERVE_QUOTES);
@@ -515,6 +720,12 @@ public final class HtmlDefinitions {
   }
 
   public static class Builder implements BuildCommand {
+    /**
+     * If {@code Boolean.TRUE} in the options map, the element and attribute
+     * tables are packed and decoded lazily.
+     */
+    public static final String PACKED = "packed";
+
     public boolean build(List<File> inputs, List<File> deps, Map<String, Object> options,
         File output) throws IOException {
       File elementsFile = null;
@@ -570,7 +781,8 @@ public final class HtmlDefinitions {
       Writer out = new OutputStreamWriter(
           new FileOutputStream(output), Charsets.UTF_8.name());
       try {
-        generateSourceText(schema, out);
+        generateSourceText(
+            schema, out, Boolean.TRUE.equals(options.get(PACKED)));
       } finally {
         out.close();
       }
@@ -579,10 +791,11 @@ public final class HtmlDefinitions {
   }
 
   public static void main(String[] args) throws IOException {
-    HtmlSchema schema = HtmlSchema.getDefault(new SimpleMessageQueue());
+    HtmlSchema schema = HtmlSchema.getDefault();
     Writer out = new OutputStreamWriter(System.out);
     try {
-      generateSourceText(schema, out);
+      generateSourceText(
+          schema, out, Arrays.asList(args).contains("--packed"));
     } finally {
       out.close();
     }
@@ -16,25 +16,42 @@ package com.google.caja.lang.html;
 
 import com.google.caja.SomethingWidgyHappenedError;
 import com.google.caja.config.ConfigUtil;
+import com.google.caja.config.ImportResolver;
+import com.google.caja.config.SourceTreeResolver;
 import com.google.caja.config.WhiteList;
+import com.google.caja.config.WhiteListSnapshot;
 import com.google.caja.lexer.ParseException;
 import com.google.caja.parser.html.AttribKey;
 import com.google.caja.parser.html.ElKey;
 import com.google.caja.parser.html.Namespaces;
 import com.google.caja.plugin.LoaderType;
 import com.google.caja.plugin.UriEffect;
+import com.google.caja.reporting.EchoingMessageQueue;
 import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.tools.BuildCommand;
 import com.google.caja.util.Multimap;
 import com.google.caja.util.Multimaps;
-import com.google.caja.util.Pair;
+import com.google.caja.util.NameTable;
 import com.google.caja.util.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.net.URI;
 import java.util.Arrays;
 import java.util.Collection;
@@ -67,35 +84,200 @@ public final class HtmlSchema {
   private final Set<AttribKey> allowedAttributes;
   private final Map<AttribKey, HTML.Attribute> attributeDetails;
   private final List<HTML.Attribute> attributesForUnknownHTMLElement;
+  /**
+   * For each HTML element with attributes specific to it, the attributes that
+   * {@link #lookupAttribute} finds on that element by local name.
+   */
+  private final Map<ElKey, NameTable<HTML.Attribute>> htmlAttributesByElement;
+  /** The attributes found on HTML elements without specific attributes. */
+  private final NameTable<HTML.Attribute> htmlAttributesOnAnyElement;
+
+  /**
+   * A precompiled form of the default whitelists written by
+   * {@link SnapshotBuilder} at build time.
+   */
+  private static final String DEFAULT_SNAPSHOT = "htmlall-schema.bin";
+  private static final String SNAPSHOT_HEADER = "caja-html-schema/2";
+
+  /**
+   * The default schema, loaded when first requested.  Class initialization
+   * guarantees that it is loaded once and safely published to all threads,
+   * so readers need not synchronize.
+   */
+  private static final class DefaultSchemaHolder {
+    /** Null if the default schema could not be loaded. */
+    static final HtmlSchema SCHEMA;
+    /** Messages from loading the default schema. */
+    static final List<Message> MESSAGES;
+    /** Why the default schema could not be loaded, or null. */
+    static final Exception FAILURE;
+
+    static {
+      SimpleMessageQueue cacheMq = new SimpleMessageQueue();
+      HtmlSchema schema = loadSnapshot(
+          HtmlSchema.class.getResourceAsStream(DEFAULT_SNAPSHOT), cacheMq);
+      Exception failure = null;
+      if (schema == null) {
+        try {
+          schema = new HtmlSchema(
+              ConfigUtil.loadWhiteListFromJson(defaultElementWhitelistURL,
+                  ConfigUtil.RESOURCE_RESOLVER, cacheMq),
+              ConfigUtil.loadWhiteListFromJson(defaultAttributeWhitelistURL,
+                  ConfigUtil.RESOURCE_RESOLVER, cacheMq));
+        } catch (IOException ex) {
+          failure = ex;
+        } catch (ParseException ex) {
+          cacheMq.getMessages().add(ex.getCajaMessage());
+          failure = ex;
+        }
+      }
+      SCHEMA = schema;
+      MESSAGES = Collections.unmodifiableList(
+          Lists.newArrayList(cacheMq.getMessages()));
+      FAILURE = failure;
+    }
+  }
 
-  private static Pair<HtmlSchema, List<Message>> defaultSchema;
   /**
    * The default HTML4 whitelist.  See the JSON files in this directory for
    * the actual definitions.
+   * @param mq receives any messages from loading the default schema on every
+   *     call.
    */
   public static HtmlSchema getDefault(MessageQueue mq) {
-    if (defaultSchema == null) {
-      SimpleMessageQueue cacheMq = new SimpleMessageQueue();
-      try {
-        defaultSchema = Pair.pair(
-            new HtmlSchema(
-                ConfigUtil.loadWhiteListFromJson(defaultElementWhitelistURL,
-                    ConfigUtil.RESOURCE_RESOLVER, cacheMq),
-                ConfigUtil.loadWhiteListFromJson(defaultAttributeWhitelistURL,
-                    ConfigUtil.RESOURCE_RESOLVER, cacheMq)),
-            cacheMq.getMessages());
+    mq.getMessages().addAll(DefaultSchemaHolder.MESSAGES);
+    return getDefault();
+  }
+
+  /**
+   * The default HTML4 whitelist.  Unlike {@link #getDefault(MessageQueue)},
+   * this does not copy load messages, so is suitable for calling per request.
+   */
+  public static HtmlSchema getDefault() {
+    HtmlSchema schema = DefaultSchemaHolder.SCHEMA;
+    if (schema == null) {
       // If the default schema is borked, there's not much we can do.
-      } catch (IOException ex) {
-        mq.getMessages().addAll(cacheMq.getMessages());
-        throw new SomethingWidgyHappenedError("Default schema is borked", ex);
+      throw new SomethingWidgyHappenedError(
+          "Default schema is borked", DefaultSchemaHolder.FAILURE);
+    }
+    return schema;
+  }
+
+  /**
+   * Writes the given whitelists in a form that {@link #readSnapshot} can load
+   * without parsing JSON or resolving included whitelists.
+   * @param loadMessages messages reported while loading the whitelists, to be
+   *     reported again to readers.
+   */
+  public static void writeSnapshot(
+      WhiteList tagList, WhiteList attribList, List<Message> loadMessages,
+      DataOutput out)
+      throws IOException {
+    out.writeUTF(SNAPSHOT_HEADER);
+    WhiteListSnapshot.write(tagList, out);
+    WhiteListSnapshot.write(attribList, out);
+    WhiteListSnapshot.writeMessages(loadMessages, out);
+  }
+
+  /**
+   * Reads a schema written by {@link #writeSnapshot}.
+   * @param mq receives the messages from loading the snapshotted whitelists
+   *     if the whole snapshot was read.
+   * @throws IOException if in is malformed or was written by an incompatible
+   *     version.
+   */
+  public static HtmlSchema readSnapshot(DataInput in, MessageQueue mq)
+      throws IOException {
+    if (!SNAPSHOT_HEADER.equals(in.readUTF())) {
+      throw new IOException("Not an HTML schema snapshot");
+    }
+    WhiteList tagList = WhiteListSnapshot.read(in);
+    WhiteList attribList = WhiteListSnapshot.read(in);
+    List<Message> loadMessages = WhiteListSnapshot.readMessages(in);
+    HtmlSchema schema = new HtmlSchema(tagList, attribList);
+    mq.getMessages().addAll(loadMessages);
+    return schema;
+  }
+
+  /**
+   * Loads a snapshot, closing in.
+   * @param in null if there is no snapshot.
+   * @return null if there is no usable snapshot so the caller should fall back
+   *     to the JSON whitelists.
+   */
+  /* visible for testing */ static HtmlSchema loadSnapshot(
+      InputStream in, MessageQueue mq) {
+    if (in == null) { return null; }
+    try {
+      try {
+        return readSnapshot(
+            new DataInputStream(new BufferedInputStream(in)), mq);
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      return null;
+    } catch (RuntimeException ex) {
+      // A snapshot from another version of the schema classes may be
+      // inconsistent in ways that the format checks above do not catch.
+      return null;
+    }
+  }
+
+  /**
+   * Precompiles the element and attribute whitelists into a snapshot that
+   * {@link #getDefault} loads in preference to the JSON.
+   */
+  public static class SnapshotBuilder implements BuildCommand {
+    public boolean build(List<File> inputs, List<File> deps,
+                         Map<String, Object> options, File output)
+        throws IOException {
+      if (inputs.size() != 2) {
+        throw new IOException("Expected element and attribute whitelists");
+      }
+      if (!isInput(defaultElementWhitelistURL, inputs.get(0))
+          || !isInput(defaultAttributeWhitelistURL, inputs.get(1))) {
+        throw new IOException(
+            "Expected " + defaultElementWhitelistURL + " and "
+            + defaultAttributeWhitelistURL);
+      }
+      Set<File> inputsAndDeps = Sets.newHashSet();
+      for (File f : inputs) { inputsAndDeps.add(f.getAbsoluteFile()); }
+      for (File f : deps) { inputsAndDeps.add(f.getAbsoluteFile()); }
+      ImportResolver resolver = new SourceTreeResolver(inputsAndDeps);
+
+      MessageContext mc = new MessageContext();
+      MessageQueue mq = new EchoingMessageQueue(
+          new PrintWriter(new OutputStreamWriter(System.err), true), mc, false);
+      WhiteList tagList, attribList;
+      try {
+        // Load via the same URIs as at runtime, so that the snapshot does
+        // not depend on where it was built.
+        tagList = ConfigUtil.loadWhiteListFromJson(
+            defaultElementWhitelistURL, resolver, mq);
+        attribList = ConfigUtil.loadWhiteListFromJson(
+            defaultAttributeWhitelistURL, resolver, mq);
       } catch (ParseException ex) {
-        cacheMq.getMessages().add(ex.getCajaMessage());
-        mq.getMessages().addAll(cacheMq.getMessages());
-        throw new SomethingWidgyHappenedError("Default schema is borked", ex);
+        ex.toMessageQueue(mq);
+        throw (IOException) new IOException("Failed to parse schema")
+            .initCause(ex);
       }
+      // Fail the build instead of shipping a snapshot that cannot be loaded.
+      new HtmlSchema(tagList, attribList);
+
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(output)));
+      try {
+        writeSnapshot(tagList, attribList, mq.getMessages(), out);
+      } finally {
+        out.close();
+      }
+      return true;
+    }
+
+    private static boolean isInput(URI resource, File f) {
+      return resource.getPath().endsWith("/" + f.getName());
     }
-    mq.getMessages().addAll(defaultSchema.b);
-    return defaultSchema.a;
   }
 
   /**
@@ -224,6 +406,44 @@ public final class HtmlSchema {
           key, new HTML.Element(key, attrs, empty, optionalEnd, containsText,
               domInterface));
     }
+
+    Map<ElKey, Map<String, HTML.Attribute>> htmlAttributes = Maps.newHashMap();
+    for (HTML.Attribute a : attributeDetails.values()) {
+      AttribKey k = a.getKey();
+      if (k.ns.uri != Namespaces.HTML_NAMESPACE_URI || !k.el.isHtml()) {
+        continue;
+      }
+      Map<String, HTML.Attribute> onEl = htmlAttributes.get(k.el);
+      if (onEl == null) {
+        htmlAttributes.put(k.el, onEl = Maps.newHashMap());
+      }
+      onEl.put(k.localName, a);
+    }
+    Map<String, HTML.Attribute> onAnyElement = htmlAttributes.get(
+        ElKey.HTML_WILDCARD);
+    if (onAnyElement == null) { onAnyElement = Collections.emptyMap(); }
+    this.htmlAttributesOnAnyElement = new NameTable<HTML.Attribute>(
+        onAnyElement);
+    // lookupAttribute looks on the virtualized element first, so the elements
+    // that have specific attributes are those with specific attributes of
+    // their own, and those whose virtualized form has specific attributes.
+    Set<ElKey> specific = Sets.newHashSet();
+    for (ElKey el : htmlAttributes.keySet()) {
+      specific.add(el);
+      if (el.localName.startsWith(VIRTUALIZATION_PREFIX)) {
+        specific.add(ElKey.forElement(
+            el.ns, el.localName.substring(VIRTUALIZATION_PREFIX.length())));
+      }
+    }
+    this.htmlAttributesByElement = Maps.newHashMap();
+    for (ElKey el : specific) {
+      ElKey real = virtualToRealElementName(el);
+      Map<String, HTML.Attribute> onEl = htmlAttributes.get(real);
+      if (onEl == null) { continue; }
+      Map<String, HTML.Attribute> merged = Maps.newHashMap(onAnyElement);
+      merged.putAll(onEl);
+      htmlAttributesByElement.put(el, new NameTable<HTML.Attribute>(merged));
+    }
   }
 
   public Set<AttribKey> getAttributeNames() {
@@ -284,6 +504,9 @@ public final class HtmlSchema {
   }
 
   public HTML.Attribute lookupAttribute(AttribKey k) {
+    if (k.ns.uri == Namespaces.HTML_NAMESPACE_URI && k.el.isHtml()) {
+      return htmlAttributeTable(k.el).get(k.localName);
+    }
     if (isElementVirtualized(k.el)) {
       k = k.onElement(virtualToRealElementName(k.el));
     }
@@ -294,6 +517,11 @@ public final class HtmlSchema {
     return attr;
   }
 
+  private NameTable<HTML.Attribute> htmlAttributeTable(ElKey htmlEl) {
+    NameTable<HTML.Attribute> attrs = htmlAttributesByElement.get(htmlEl);
+    return attrs != null ? attrs : htmlAttributesOnAnyElement;
+  }
+
   private static AttribKey attribKey(String key) {
     int separator = key.indexOf("::");
     if (separator == -1) {
@@ -20,9 +20,7 @@ import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessageType;
 import com.google.caja.util.Strings;
-import com.google.common.collect.Lists;
 
-import java.util.LinkedList;
 import java.util.NoSuchElementException;
 
 /**
@@ -36,12 +34,25 @@ import java.util.NoSuchElementException;
  * <code>@{I}{M}{P}{O}{R}{T}    {return IMPORT_SYM;}</code> and
  * <code>{num}ms                TIME</code> now reads
  * <code>{num}{M}{S}            {return TIME;}</code>.
+ * <p>
+ * Tokens are held as offsets into the {@link CharProducer}'s buffer until they
+ * are returned from {@link #next} so that tokens joined by the lexer are only
+ * created once.
  *
  * @author mikesamuel@gmail.com
  */
 public final class CssLexer implements TokenStream<CssTokenType> {
+  private final CharProducer cp;
   private final CssSplitter splitter;
-  private final LinkedList<Token<CssTokenType>> pending = Lists.newLinkedList();
+  /**
+   * A ring buffer of tokens that have been split but not returned.
+   * The i-th pending token is at index (head + i) & (types.length - 1).
+   */
+  private int[] starts = new int[8], ends = new int[8];
+  private CssTokenType[] types = new CssTokenType[8];
+  /** True for pending tokens whose position is unknown. */
+  private boolean[] unknownPos = new boolean[8];
+  private int head, count;
 
   // TODO(mikesamuel): all clients should pass in a proper queue
   public CssLexer(CharProducer cp) {
@@ -55,17 +66,26 @@ public final class CssLexer implements TokenStream<CssTokenType> {
   public CssLexer(
       CharProducer cp, MessageQueue mq, boolean allowSubstitutions) {
     assert null != cp;
+    this.cp = cp;
     this.splitter = new CssSplitter(cp, mq, allowSubstitutions);
   }
 
   public boolean hasNext() throws ParseException {
-    return !pending.isEmpty() || splitter.hasNext();
+    return count != 0 || splitter.hasNext();
   }
 
   public Token<CssTokenType> next() throws ParseException {
     produce();
-    if (null == pending) { throw new NoSuchElementException(); }
-    return pending.removeFirst();
+    if (count == 0) { throw new NoSuchElementException(); }
+    int start = starts[head], end = ends[head];
+    FilePosition pos = unknownPos[head]
+        ? FilePosition.UNKNOWN : cp.filePositionForOffsets(start, end);
+    Token<CssTokenType> t = Token.instance(
+        cp.toString(start, end), types[head], pos);
+    types[head] = null;
+    head = (head + 1) & (types.length - 1);
+    --count;
+    return t;
   }
 
   /**
@@ -139,35 +159,37 @@ public final class CssLexer implements TokenStream<CssTokenType> {
    * token on pending on pending.
    */
   private void produce() throws ParseException {
-    if (!pending.isEmpty()) { return; }
+    if (count != 0) { return; }
     if (!splitter.hasNext()) { return; }
 
-    Token<CssTokenType> t = splitter.next();
-    pending.add(t);
-    if (t.type == CssTokenType.PUNCTUATION && splitter.hasNext()) {
-      if ("!".equals(t.text)) {  // Join !important
+    CssTokenType type = splitter.next();
+    int start = splitter.getTokenStart();
+    addPending(type);
+    if (type == CssTokenType.PUNCTUATION && splitter.hasNext()
+        && splitter.getTokenEnd() - start == 1) {
+      char ch = cp.getBuffer()[start];
+      if (ch == '!') {  // Join !important
         // IMPORTANT_SYM        "!"({w}|{comment})*{I}{M}{P}{O}{R}{T}{A}{N}{T}
-        Token<CssTokenType> t2 = splitter.next();
-        while (t2 != null && (t2.type == CssTokenType.SPACE
-                              || t2.type == CssTokenType.COMMENT)) {
-          pending.add(t2);
+        CssTokenType t2 = splitter.next();
+        while (t2 != null && (t2 == CssTokenType.SPACE
+                              || t2 == CssTokenType.COMMENT)) {
+          addPending(t2);
           t2 = splitter.hasNext() ? splitter.next() : null;
         }
         // The !important is significant regardless of case and whether or not a
         // letter is hex escaped.
         if (null != t2) {
-          pending.add(t2);
-          if (t2.type == CssTokenType.IDENT
-              && Strings.eqIgnoreCase(
-                  "important", decodeCssIdentifier(t2.text))) {
+          addPending(t2);
+          if (t2 == CssTokenType.IDENT
+              && isImportant(splitter.getTokenStart(), splitter.getTokenEnd())) {
             reduce(CssTokenType.DIRECTIVE);
           }
         }
-      } else if ("-".equals(t.text)) {  // Join '-'{nmstart}{nmchar}*
-        Token<CssTokenType> t2 = splitter.next();
+      } else if (ch == '-') {  // Join '-'{nmstart}{nmchar}*
+        CssTokenType t2 = splitter.next();
         if (null != t2) {
-          pending.add(t2);
-          if (t2.type == CssTokenType.IDENT) {
+          addPending(t2);
+          if (t2 == CssTokenType.IDENT) {
             reduce(CssTokenType.IDENT);
           }
         }
@@ -175,6 +197,56 @@ public final class CssLexer implements TokenStream<CssTokenType> {
     }
   }
 
+  /** Adds the token last returned by the splitter to the pending tokens. */
+  private void addPending(CssTokenType type) {
+    if (count == types.length) {
+      int n = types.length;
+      int[] newStarts = new int[n * 2], newEnds = new int[n * 2];
+      CssTokenType[] newTypes = new CssTokenType[n * 2];
+      boolean[] newUnknownPos = new boolean[n * 2];
+      for (int i = 0; i < count; ++i) {
+        int k = (head + i) & (n - 1);
+        newStarts[i] = starts[k];
+        newEnds[i] = ends[k];
+        newTypes[i] = types[k];
+        newUnknownPos[i] = unknownPos[k];
+      }
+      starts = newStarts;
+      ends = newEnds;
+      types = newTypes;
+      unknownPos = newUnknownPos;
+      head = 0;
+    }
+    int k = (head + count) & (types.length - 1);
+    starts[k] = splitter.getTokenStart();
+    ends[k] = splitter.getTokenEnd();
+    types[k] = type;
+    unknownPos[k] = false;
+    ++count;
+  }
+
+  /**
+   * True if buf[start:end] is "important" ignoring case once escapes are
+   * decoded.
+   */
+  private boolean isImportant(int start, int end) {
+    char[] buf = cp.getBuffer();
+    for (int i = start; i < end; ++i) {
+      if (buf[i] == '\\') {
+        return Strings.eqIgnoreCase(
+            "important", decodeCssIdentifier(cp.toString(start, end)));
+      }
+    }
+    // No non-ASCII character lower-cases to a letter in "important".
+    if (end - start != 9) { return false; }
+    for (int i = 0; i < 9; ++i) {
+      char ch = buf[start + i];
+      if ('A' <= ch && ch <= 'Z') { ch |= 32; }
+      if (ch != "important".charAt(i)) { return false; }
+    }
+    return true;
+  }
+
   /**
    * Reduces the pending tokens to a single token with the given type.
    * For example, if the pending list contains an identifier followed by an
@@ -186,14 +258,18 @@ public final class CssLexer implements TokenStream<CssTokenType> {
    * Modifies the pending list in place.
    */
   private void reduce(CssTokenType type) {
-    StringBuilder sb = new StringBuilder();
-    for (Token<CssTokenType> t : pending) {
-      sb.append(t.text);
+    int first = head, last = (head + count - 1) & (types.length - 1);
+    int start = starts[first];
+    // Consistent with FilePosition.span of the first and last tokens.
+    boolean unknown = !cp.getSourceBreaks(start).source().equalsAndNotUnknown(
+        cp.getSourceBreaks(starts[last]).source());
+    for (int i = 1; i < count; ++i) {
+      types[(head + i) & (types.length - 1)] = null;
     }
-    FilePosition fp
-        = FilePosition.span(pending.getFirst().pos, pending.getLast().pos);
-    pending.clear();
-    pending.add(Token.instance(sb.toString(), type, fp));
+    ends[first] = ends[last];
+    types[first] = type;
+    unknownPos[first] = unknown;
+    count = 1;
   }
 
   /**
@@ -218,11 +294,18 @@ public final class CssLexer implements TokenStream<CssTokenType> {
   }
 }
 
-final class CssSplitter implements TokenStream<CssTokenType> {
+/**
+ * Splits CSS into tokens which are reported as ranges of the producer's buffer.
+ */
+final class CssSplitter {
   private final CharProducer cp;
   private final MessageQueue mq;
   private boolean allowSubstitutions;
-  private Token<CssTokenType> pending;
+  /** The type of the token produced but not yet returned by next, if any. */
+  private CssTokenType pending;
+  private int pendingStart, pendingEnd;
+  /** The range of the token last returned by next. */
+  private int tokenStart, tokenEnd;
 
   /**
    * @param allowSubstitutions true iff ${...} style substitutions should be
@@ -236,19 +319,32 @@ final class CssSplitter implements TokenStream<CssTokenType> {
     this.allowSubstitutions = allowSubstitutions;
   }
 
-  public boolean hasNext() throws ParseException {
+  boolean hasNext() throws ParseException {
     produce();
     return null != pending;
   }
 
-  public Token<CssTokenType> next() throws ParseException {
+  /**
+   * Consumes the next token.
+   * @return the type of the token which spans
+   *     {@link #getTokenStart}-{@link #getTokenEnd}.
+   */
+  CssTokenType next() throws ParseException {
     produce();
     if (null == pending) { throw new NoSuchElementException(); }
-    Token<CssTokenType> result = pending;
+    CssTokenType result = pending;
+    tokenStart = pendingStart;
+    tokenEnd = pendingEnd;
     pending = null;
     return result;
   }
 
+  /** The start of the token last returned by {@link #next}. */
+  int getTokenStart() { return tokenStart; }
+
+  /** The end of the token last returned by {@link #next}. */
+  int getTokenEnd() { return tokenEnd; }
+
   boolean areSubstitutionsAllowed() { return allowSubstitutions; }
 
   public void allowSubstitutions(boolean allow) {
@@ -527,8 +623,9 @@ final class CssSplitter implements TokenStream<CssTokenType> {
       type = CssTokenType.PUNCTUATION;
     }
     assert end > start;
-    pending = Token.instance(cp.toString(start, end), type,
-                             cp.filePositionForOffsets(start, end));
+    pending = type;
+    pendingStart = start;
+    pendingEnd = end;
     cp.consumeTo(end);
   }
 
@@ -685,21 +782,44 @@ final class CssSplitter implements TokenStream<CssTokenType> {
     // We later join '-' to the front of an identifier, so don't start here.
     int end = parseNmStart(cp, start);
     if (end < 0) { return -1; }
-    for (int nmCharEnd; (nmCharEnd = parseNmChar(cp, end)) >= 0;) {
-      end = nmCharEnd;
-    }
-    return end;
- }
+    return parseNmChars(cp, end);
+  }
 
   private static int parseName(CharProducer cp, int start)
       throws ParseException {
     // name      {nmchar}+
     int end = parseNmChar(cp, start);
     if (end < 0) { return -1; }
-    for (int nmCharEnd; (nmCharEnd = parseNmChar(cp, end)) >= 0;) {
+    return parseNmChars(cp, end);
+  }
+
+  /** The end of the run of zero or more {@code nmchar}s starting at start. */
+  private static int parseNmChars(CharProducer cp, int start)
+      throws ParseException {
+    char[] buf = cp.getBuffer();
+    int limit = cp.getLimit();
+    int end = start;
+    while (true) {
+      // Skip over the common unescaped ASCII characters without the checks in
+      // parseNmChar.
+      char ch;
+      while (end < limit && (ch = buf[end]) < 0x80 && IS_ASCII_NMCHAR[ch]) {
+        ++end;
+      }
+      int nmCharEnd = parseNmChar(cp, end);
+      if (nmCharEnd < 0) { return end; }
       end = nmCharEnd;
     }
-    return end;
+  }
+
+  /** nmchar without escapes or nonascii, indexed by ASCII code unit. */
+  private static final boolean[] IS_ASCII_NMCHAR = new boolean[0x80];
+  static {
+    for (char ch = 'a'; ch <= 'z'; ++ch) {
+      IS_ASCII_NMCHAR[ch] = IS_ASCII_NMCHAR[ch & ~0x20] = true;
+    }
+    for (char ch = '0'; ch <= '9'; ++ch) { IS_ASCII_NMCHAR[ch] = true; }
+    IS_ASCII_NMCHAR['_'] = IS_ASCII_NMCHAR['-'] = true;
   }
 
   private static int parseNmStart(CharProducer cp, int start)
@@ -62,7 +62,8 @@ public final class FilePosition implements MessagePart, Serializable {
     this.length = length;
   }
 
-  SourceBreaks getBreaks() { return breaks; }
+  /** The line breaks of the file that contains this position. */
+  public SourceBreaks getBreaks() { return breaks; }
 
   public InputSource source() { return breaks.source(); }
   /**
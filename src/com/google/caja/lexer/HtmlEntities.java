@@ -25,9 +25,43 @@ import com.google.caja.util.Strings;
  */
 public class HtmlEntities {
 
-  /** A trie that maps entity names to codepoints. */
+  /**
+   * A trie that maps entity names to codepoints.  Values may also have the
+   * {@link #SEMICOLON_OPTIONAL} bit set, so mask them with
+   * {@link #CODEPOINT_MASK}.
+   */
   public static final PunctuationTrie<Integer> ENTITY_TRIE;
 
+  /**
+   * Set in the {@link #ENTITY_TRIE} value of named entities that browsers
+   * recognize even when not followed by a semicolon, as in
+   * {@code &nbsp&copy}.  ASCII upper-case forms of lower-case names, like
+   * {@code &NBSP}, are also recognized.
+   */
+  public static final int SEMICOLON_OPTIONAL = 1 << 24;
+  /** Masks out flags like {@link #SEMICOLON_OPTIONAL}. */
+  public static final int CODEPOINT_MASK = SEMICOLON_OPTIONAL - 1;
+
+  /**
+   * The named entities that do not need to be followed by a semicolon.
+   * This was derived empirically by testing webkit based browsers.
+   */
+  private static final String[] SEMICOLON_OPTIONAL_NAMES = {
+    "Aacute", "Acirc", "Agrave", "Aring", "Atilde", "Auml", "Ccedil",
+    "Eacute", "Ecirc", "Egrave", "Euml", "Iacute", "Icirc", "Igrave", "Iuml",
+    "Ntilde", "Oacute", "Ocirc", "Ograve", "Oslash", "Otilde", "Ouml",
+    "Uacute", "Ucirc", "Ugrave", "Uuml", "Yacute",
+    "aacute", "acirc", "acute", "aelig", "agrave", "amp", "aring", "atilde",
+    "auml", "brvbar", "ccedil", "cedil", "cent", "copy", "curren", "deg",
+    "divide", "eacute", "ecirc", "egrave", "eth", "euml", "frac12", "frac14",
+    "frac34", "gt", "iacute", "icirc", "iexcl", "igrave", "iquest", "iuml",
+    "laquo", "lt", "macr", "micro", "middot", "nbsp", "not", "ntilde",
+    "oacute", "ocirc", "ograve", "ordf", "ordm", "oslash", "otilde", "ouml",
+    "para", "plusmn", "pound", "quot", "raquo", "reg", "sect", "shy", "sup1",
+    "sup2", "sup3", "szlig", "thorn", "times", "uacute", "ucirc", "ugrave",
+    "uml", "uuml", "yacute", "yen", "yuml",
+  };
+
   /**
    * Decodes any HTML entity at the given location.  This handles both named and
    * numeric entities.
@@ -135,7 +169,7 @@ public class HtmlEntities {
         }
       }
       if (t != null && t.isTerminal()) {
-        codepoint = t.getValue().intValue();
+        codepoint = t.getValue().intValue() & CODEPOINT_MASK;
       }
     }
     if (codepoint < 0) {
@@ -455,6 +489,10 @@ public class HtmlEntities {
     entities.put("rsaquo", Integer.valueOf('\u203a'));
     entities.put("euro", Integer.valueOf('\u20ac'));
 
+    for (String name : SEMICOLON_OPTIONAL_NAMES) {
+      entities.put(name, entities.get(name) | SEMICOLON_OPTIONAL);
+    }
+
     ENTITY_TRIE = new PunctuationTrie<Integer>(entities);
   }
 }
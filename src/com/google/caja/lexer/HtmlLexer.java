@@ -19,19 +19,36 @@ import com.google.caja.util.Strings;
 
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Set;
 
 /**
  * A flexible lexer for html, gxp, and related document types.
  *
+ * <p>The splitter breaks the input into raw tokens which are described by
+ * offsets into the {@link CharProducer}'s buffer, and this class classifies
+ * and merges those ranges so that each {@link Token} is created exactly once.
+ *
  * @author mikesamuel@gmail.com
  */
 public final class HtmlLexer extends AbstractTokenStream<HtmlTokenType> {
+  private final CharProducer p;
   private final HtmlInputSplitter splitter;
   private State state = State.OUTSIDE_TAG;
 
+  /**
+   * A ring buffer of raw tokens read from the splitter but not yet consumed.
+   * The raw token at lookahead index i is at ring index (head + i) & mask.
+   */
+  private int[] starts = new int[8], ends = new int[8];
+  private HtmlTokenType[] types = new HtmlTokenType[8];
+  private int head, count;
+
+  // The raw token most recently returned by readToken.
+  private int tokStart, tokEnd;
+  private HtmlTokenType tokType;
+
   public HtmlLexer(CharProducer p) {
+    this.p = p;
     this.splitter = new HtmlInputSplitter(p);
   }
 
@@ -68,174 +85,276 @@ public final class HtmlLexer extends AbstractTokenStream<HtmlTokenType> {
    */
   @Override
   protected Token<HtmlTokenType> produce() throws ParseException {
-    Token<HtmlTokenType> token = readToken();
-    if (token == null) { return null; }
-
-    switch (token.type) {
-
-      // Keep track of whether we're inside a tag or not.
-      case TAGBEGIN:
-        state = State.IN_TAG;
-        break;
-      case TAGEND:
-        if (state == State.SAW_EQ && HtmlTokenType.TAGEND == token.type
-            && !getTreatedAsXml()) {
-          // Distinguish <input type=checkbox checked=> from
-          // <input type=checkbox checked>
-          pushbackToken(token);
+    while (readToken()) {
+      int start = tokStart;
+      HtmlTokenType type = tokType;
+
+      switch (type) {
+
+        // Keep track of whether we're inside a tag or not.
+        case TAGBEGIN:
           state = State.IN_TAG;
-          return Token.instance("", HtmlTokenType.ATTRVALUE,
-                                FilePosition.startOf(token.pos));
-        }
+          break;
+        case TAGEND:
+          if (state == State.SAW_EQ && !getTreatedAsXml()) {
+            // Distinguish <input type=checkbox checked=> from
+            // <input type=checkbox checked>
+            pushbackToken();
+            state = State.IN_TAG;
+            return Token.instance("", HtmlTokenType.ATTRVALUE,
+                                  p.filePositionForOffsets(start, start));
+          }
 
-        state = State.OUTSIDE_TAG;
-        break;
-
-      // Drop ignorable tokens by zeroing out the one received and recursing
-      case IGNORABLE:
-        return produce();
-
-      // collapse adjacent text nodes if we're outside a tag, or otherwise,
-      // Recognize attribute names and values.
-      default:
-        switch (state) {
-          case OUTSIDE_TAG:
-            if (HtmlTokenType.TEXT == token.type
-                || HtmlTokenType.UNESCAPED == token.type) {
-              token = collapseSubsequent(token);
-            }
-            break;
-          case IN_TAG:
-            if (HtmlTokenType.TEXT == token.type && !"=".equals(token.text)) {
-              // Reclassify as attribute name
-              token = HtmlInputSplitter.reclassify(
-                  token, HtmlTokenType.ATTRNAME);
-              state = State.SAW_NAME;
-            }
-            break;
-          case SAW_NAME:
-            if (HtmlTokenType.TEXT == token.type) {
-              if ("=".equals(token.text)) {
-                state = State.SAW_EQ;
-                // Skip the '=' token
-                return produce();
-              } else {
+          state = State.OUTSIDE_TAG;
+          break;
+
+        // Drop ignorable tokens.
+        case IGNORABLE:
+          continue;
+
+        // collapse adjacent text nodes if we're outside a tag, or otherwise,
+        // Recognize attribute names and values.
+        default:
+          switch (state) {
+            case OUTSIDE_TAG:
+              if (HtmlTokenType.TEXT == type
+                  || HtmlTokenType.UNESCAPED == type) {
+                return collapseSubsequent(start, type);
+              }
+              break;
+            case IN_TAG:
+              if (HtmlTokenType.TEXT == type && !isEq(start, tokEnd)) {
                 // Reclassify as attribute name
-                token = HtmlInputSplitter.reclassify(
-                    token, HtmlTokenType.ATTRNAME);
+                type = HtmlTokenType.ATTRNAME;
+                state = State.SAW_NAME;
               }
-            } else {
-              state = State.IN_TAG;
-            }
-            break;
-          case SAW_EQ:
-            if (HtmlTokenType.TEXT == token.type
-                || HtmlTokenType.QSTRING == token.type) {
-              if (HtmlTokenType.TEXT == token.type) {
-                // Collapse adjacent text nodes to properly handle
-                //   <a onclick=this.clicked=true>
-                //   <a title=foo bar>
-                token = collapseAttributeName(token);
+              break;
+            case SAW_NAME:
+              if (HtmlTokenType.TEXT == type) {
+                if (isEq(start, tokEnd)) {
+                  state = State.SAW_EQ;
+                  // Skip the '=' token
+                  continue;
+                } else {
+                  // Reclassify as attribute name
+                  type = HtmlTokenType.ATTRNAME;
+                }
+              } else {
+                state = State.IN_TAG;
               }
-              // Reclassify as value
-              token = HtmlInputSplitter.reclassify(
-                  token, HtmlTokenType.ATTRVALUE);
-              state = State.IN_TAG;
-            }
-            break;
-        }
-        break;
-    }
+              break;
+            case SAW_EQ:
+              if (HtmlTokenType.TEXT == type
+                  || HtmlTokenType.QSTRING == type) {
+                state = State.IN_TAG;
+                if (HtmlTokenType.TEXT == type) {
+                  // Collapse adjacent text nodes to properly handle
+                  //   <a onclick=this.clicked=true>
+                  //   <a title=foo bar>
+                  return collapseAttributeValue(start);
+                }
+                // Reclassify as value
+                type = HtmlTokenType.ATTRVALUE;
+              }
+              break;
+          }
+          break;
+      }
 
-    return token;
+      return Token.instance(
+          p.toString(start, tokEnd), type,
+          p.filePositionForOffsets(start, tokEnd));
+    }
+    return null;
   }
 
   /**
-   * Collapses all the following tokens of the same type into this.token.
+   * Collapses all the following tokens of the given type into the one just
+   * read.
    */
-  private Token<HtmlTokenType> collapseSubsequent(Token<HtmlTokenType> token)
+  private Token<HtmlTokenType> collapseSubsequent(
+      int start, HtmlTokenType type)
       throws ParseException {
-    Token<HtmlTokenType> collapsed = token;
-    for (Token<HtmlTokenType> next;
-         (next= peekToken(0)) != null && next.type == token.type;
-         readToken()) {
-      collapsed = join(collapsed, next);
+    boolean knownSource = true;
+    while (peekToken(0) && types[head] == type) {
+      readToken();
+      if (knownSource) { knownSource = sameSource(start, tokStart); }
     }
-    return collapsed;
+    return Token.instance(
+        p.toString(start, tokEnd), type, span(start, tokEnd, knownSource));
   }
 
-  private Token<HtmlTokenType> collapseAttributeName(Token<HtmlTokenType> token)
+  /**
+   * Builds an attribute value from the text token just read, and any following
+   * text and space that is not part of another attribute.
+   */
+  private Token<HtmlTokenType> collapseAttributeValue(int start)
       throws ParseException {
-    if (getTreatedAsXml()) { return token; }
-    // We want to collapse tokens into the value that are not parts of an
-    // attribute value.  We should include any space or text adjacent to the
-    // value, but should stop at any of the following constructions:
-    //   space end-of-file              e.g. name=foo_
-    //   space valueless-attrib-name    e.g. name=foo checked
-    //   space tag-end                  e.g. name=foo />
-    //   space text space? '='          e.g. name=foo bar=
+    int end = tokEnd;
     int nToMerge = 0;
-    for (Token<HtmlTokenType> t; (t = peekToken(nToMerge)) != null;) {
-      if (t.type == HtmlTokenType.IGNORABLE) {
-        Token<HtmlTokenType> text = peekToken(nToMerge + 1);
-        if (text == null) { break; }
-        if (text.type != HtmlTokenType.TEXT) { break; }
-        if (isValuelessAttribute(text.text)) { break; }
-        Token<HtmlTokenType> eq = peekToken(nToMerge + 2);
-        if (eq != null && eq.type == HtmlTokenType.IGNORABLE) {
-          eq = peekToken(nToMerge + 3);
+    if (!getTreatedAsXml()) {
+      // We want to collapse tokens into the value that are not parts of an
+      // attribute value.  We should include any space or text adjacent to the
+      // value, but should stop at any of the following constructions:
+      //   space end-of-file              e.g. name=foo_
+      //   space valueless-attrib-name    e.g. name=foo checked
+      //   space tag-end                  e.g. name=foo />
+      //   space text space? '='          e.g. name=foo bar=
+      while (peekToken(nToMerge)) {
+        HtmlTokenType t = types[ring(nToMerge)];
+        if (t == HtmlTokenType.IGNORABLE) {
+          if (!peekToken(nToMerge + 1)) { break; }
+          int text = ring(nToMerge + 1);
+          if (types[text] != HtmlTokenType.TEXT) { break; }
+          if (isValuelessAttribute(starts[text], ends[text])) { break; }
+          int eqIdx = nToMerge + 2;
+          if (peekToken(eqIdx)
+              && types[ring(eqIdx)] == HtmlTokenType.IGNORABLE) {
+            ++eqIdx;
+          }
+          if (!peekToken(eqIdx)) { break; }
+          int eq = ring(eqIdx);
+          if (isEq(starts[eq], ends[eq])) { break; }
+        } else if (t != HtmlTokenType.TEXT) {
+          break;
         }
-        if (eq == null || "=".equals(eq.text)) { break; }
-      } else if (t.type != HtmlTokenType.TEXT) {
-        break;
+        ++nToMerge;
       }
-      ++nToMerge;
     }
-    if (nToMerge == 0) { return token; }
-    StringBuilder sb = new StringBuilder(token.text);
-    Token<HtmlTokenType> t;
+    if (nToMerge == 0) {
+      return Token.instance(
+          p.toString(start, end), HtmlTokenType.ATTRVALUE,
+          p.filePositionForOffsets(start, end));
+    }
+    boolean knownSource = true;
     do {
-      t = readToken();
-      sb.append(t.text);
+      readToken();
+      if (knownSource) { knownSource = sameSource(start, tokStart); }
     } while (--nToMerge > 0);
     return Token.instance(
-        sb.toString(), HtmlTokenType.TEXT, FilePosition.span(token.pos, t.pos));
+        p.toString(start, tokEnd), HtmlTokenType.ATTRVALUE,
+        span(start, tokEnd, knownSource));
   }
 
-  private static Token<HtmlTokenType> join(
-      Token<HtmlTokenType> a, Token<HtmlTokenType> b) {
-    return Token.instance(
-        a.text + b.text, a.type, FilePosition.span(a.pos, b.pos));
+  /**
+   * The position of a token merged from raw tokens spanning start to end,
+   * consistent with {@link FilePosition#span} which gives up when the parts
+   * come from different or unknown sources.
+   */
+  private FilePosition span(int start, int end, boolean knownSource) {
+    return knownSource
+        ? p.filePositionForOffsets(start, end) : FilePosition.UNKNOWN;
   }
 
-  private final LinkedList<Token<HtmlTokenType>> lookahead
-      = new LinkedList<Token<HtmlTokenType>>();
-  private Token<HtmlTokenType> readToken() throws ParseException {
-    if (!lookahead.isEmpty()) {
-      return lookahead.remove();
-    } else if (splitter.hasNext()) {
-      return splitter.next();
-    } else {
-      return null;
+  /**
+   * True if the raw token starting at other comes from the same, known, source
+   * as the one starting at start.
+   */
+  private boolean sameSource(int start, int other) {
+    return p.getSourceBreaks(start).source().equalsAndNotUnknown(
+        p.getSourceBreaks(other).source());
+  }
+
+  private boolean isEq(int start, int end) {
+    return end - start == 1 && p.getBuffer()[start] == '=';
+  }
+
+  /** The index in the ring buffer of the i-th token of lookahead. */
+  private int ring(int i) {
+    return (head + i) & (types.length - 1);
+  }
+
+  /**
+   * Reads the next raw token into tokStart, tokEnd, and tokType.
+   * @return false if there are no more tokens.
+   */
+  private boolean readToken() throws ParseException {
+    if (count != 0) {
+      tokStart = starts[head];
+      tokEnd = ends[head];
+      tokType = types[head];
+      head = (head + 1) & (types.length - 1);
+      --count;
+      return true;
     }
+    HtmlTokenType type = splitter.next();
+    if (type == null) { return false; }
+    tokStart = splitter.getTokenStart();
+    tokEnd = splitter.getTokenEnd();
+    tokType = type;
+    return true;
   }
 
-  private Token<HtmlTokenType> peekToken(int i) throws ParseException {
-    while (lookahead.size() <= i && splitter.hasNext()) {
-      lookahead.add(splitter.next());
+  /**
+   * Makes sure that the i-th token of lookahead is in the ring buffer.
+   * @return false if there are not that many tokens left.
+   */
+  private boolean peekToken(int i) throws ParseException {
+    while (count <= i) {
+      HtmlTokenType type = splitter.next();
+      if (type == null) { return false; }
+      if (count == types.length) { grow(); }
+      int k = ring(count);
+      starts[k] = splitter.getTokenStart();
+      ends[k] = splitter.getTokenEnd();
+      types[k] = type;
+      ++count;
     }
-    return lookahead.size() > i ? lookahead.get(i) : null;
+    return true;
   }
 
-  private void pushbackToken(Token<HtmlTokenType> token) {
-    lookahead.addFirst(token);
+  /** Returns the token last read to the front of the lookahead. */
+  private void pushbackToken() {
+    if (count == types.length) { grow(); }
+    head = (head - 1) & (types.length - 1);
+    starts[head] = tokStart;
+    ends[head] = tokEnd;
+    types[head] = tokType;
+    ++count;
   }
 
-  /** Can the attribute appear in HTML without a value. */
-  private static boolean isValuelessAttribute(String attribName) {
-    boolean valueless = VALUELESS_ATTRIB_NAMES.contains(
-        Strings.lower(attribName));
-    return valueless;
+  private void grow() {
+    int n = types.length;
+    int[] newStarts = new int[n * 2], newEnds = new int[n * 2];
+    HtmlTokenType[] newTypes = new HtmlTokenType[n * 2];
+    for (int i = 0; i < count; ++i) {
+      int k = ring(i);
+      newStarts[i] = starts[k];
+      newEnds[i] = ends[k];
+      newTypes[i] = types[k];
+    }
+    starts = newStarts;
+    ends = newEnds;
+    types = newTypes;
+    head = 0;
+  }
+
+  /** Can the attribute in buffer[start:end] appear in HTML without a value. */
+  private boolean isValuelessAttribute(int start, int end) {
+    char[] buf = p.getBuffer();
+    int n = end - start;
+    if (n < VALUELESS_MIN_LENGTH || n > VALUELESS_MAX_LENGTH) {
+      // Lower-casing never shortens a string, and only U+0130 lengthens one
+      // but to a string containing a combining character.
+      return false;
+    }
+    for (int i = start; i < end; ++i) {
+      if (buf[i] >= 0x80) {
+        return VALUELESS_ATTRIB_NAMES.contains(
+            Strings.lower(p.toString(start, end)));
+      }
+    }
+    names:
+    for (String name : VALUELESS_ATTRIB_NAMES) {
+      if (name.length() != n) { continue; }
+      for (int i = 0; i < n; ++i) {
+        char ch = buf[start + i];
+        if ('A' <= ch && ch <= 'Z') { ch |= 32; }
+        if (ch != name.charAt(i)) { continue names; }
+      }
+      return true;
+    }
+    return false;
   }
 
   // From http://issues.apache.org/jira/browse/XALANC-519
@@ -243,14 +362,18 @@ public final class HtmlLexer extends AbstractTokenStream<HtmlTokenType> {
       Arrays.asList("checked", "compact", "declare", "defer", "disabled",
                     "ismap", "multiple", "nohref", "noresize", "noshade",
                     "nowrap", "readonly", "selected"));
+  private static final int VALUELESS_MIN_LENGTH = 5, VALUELESS_MAX_LENGTH = 8;
 }
 
 /**
- * A token stream that breaks a character stream into <tt>
+ * Breaks a character stream into <tt>
  * HtmlTokenType.{TEXT,TAGBEGIN,TAGEND,DIRECTIVE,COMMENT,CDATA,DIRECTIVE}</tt>
  * tokens.  The matching of attribute names and values is done in a later step.
+ * Tokens are reported as ranges of the producer's buffer so that the later step
+ * need only create a {@link Token} once it knows the token's final type and
+ * extent.
  */
-final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
+final class HtmlInputSplitter {
   /** Should the input be considered xml?  are escape exempt blocks allowed? */
   private boolean asXml = false;
 
@@ -274,6 +397,9 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
 
   private HtmlTextEscapingMode textEscapingMode;
 
+  /** The range of the producer's buffer of the token last returned by next. */
+  private int tokenStart, tokenEnd;
+
   public HtmlInputSplitter(CharProducer p) {
     this.p = p;
   }
@@ -292,31 +418,37 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
     this.asXml = asXml;
   }
 
+  /** The start of the token last returned by {@link #next}. */
+  int getTokenStart() { return tokenStart; }
+
+  /** The end of the token last returned by {@link #next}. */
+  int getTokenEnd() { return tokenEnd; }
+
   /**
-   * Make sure that there is a token ready to yield in this.token.
+   * Consumes the next token.
+   * @return the type of the token which spans
+   *     {@link #getTokenStart}-{@link #getTokenEnd}, or null at end of input.
    */
-  @Override
-  protected Token<HtmlTokenType> produce() {
-    Token<HtmlTokenType> token = parseToken();
-    if (null == token) { return null; }
+  HtmlTokenType next() {
+    HtmlTokenType type = parseToken();
+    if (null == type) { return null; }
 
     // Handle escape-exempt blocks.
     // The parse() method is only dimly aware of escape-excempt blocks, so
     // here we detect the beginning and ends of escape exempt blocks, and
     // reclassify as UNESCAPED, any tokens that appear in the middle.
     if (inEscapeExemptBlock) {
-      if (token.type != HtmlTokenType.SERVERCODE) {
+      if (type != HtmlTokenType.SERVERCODE) {
         // classify RCDATA as text since it can contain entities
-        token = reclassify(
-            token, (this.textEscapingMode == HtmlTextEscapingMode.RCDATA
-                    ? HtmlTokenType.TEXT
-                    : HtmlTokenType.UNESCAPED));
+        type = this.textEscapingMode == HtmlTextEscapingMode.RCDATA
+            ? HtmlTokenType.TEXT
+            : HtmlTokenType.UNESCAPED;
       }
     } else if (!asXml) {
-      switch (token.type) {
+      switch (type) {
         case TAGBEGIN:
           {
-            String canonTagName = name(token.text.substring(1));
+            String canonTagName = name(tokenStart + 1, tokenEnd);
             if (HtmlTextEscapingMode.isTagFollowedByLiteralContent(
                     canonTagName)) {
               this.escapeExemptTagName = canonTagName;
@@ -332,7 +464,7 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
           break;
       }
     }
-    return token;
+    return type;
   }
 
   /**
@@ -393,7 +525,8 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
     ;
   }
 
-  private String lastNonIgnorable = null;
+  /** True if the last token that was not IGNORABLE was "=". */
+  private boolean lastNonIgnorableIsEq = false;
 
   /**
    * Breaks the character stream into tokens.
@@ -405,7 +538,7 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
    *
    * <p>Later passes are responsible for throwing away useless tokens.
    */
-  private Token<HtmlTokenType> parseToken() {
+  private HtmlTokenType parseToken() {
     // TODO(mikesamuel): rewrite with a transition table or just use ANTLR
     int start = p.getOffset();
     int limit = p.getLimit();
@@ -432,7 +565,7 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
       } else if ('=' == ch) {
         type = HtmlTokenType.TEXT;
       } else if ('"' == ch || '\'' == ch) {
-        if ("=".equals(lastNonIgnorable)) {
+        if (lastNonIgnorableIsEq) {
           type = HtmlTokenType.QSTRING;
           int delim = ch;
           for (; end < limit; ++end) {
@@ -449,7 +582,7 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
         for (; end < limit; ++end) {
           ch = buffer[end];
           // End a text chunk before />
-          if (!"=".equals(lastNonIgnorable) && '/' == ch && end + 1 < limit
+          if (!lastNonIgnorableIsEq && '/' == ch && end + 1 < limit
               && '>' == buffer[end + 1]) {
             break;
           } else if ('>' == ch || '=' == ch
@@ -781,9 +914,12 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
     }
 
     p.consumeTo(end);
-    String text = p.toString(start, end);
-    if (type != HtmlTokenType.IGNORABLE) { lastNonIgnorable = text; }
-    return Token.instance(text, type, p.filePositionForOffsets(start, end));
+    if (type != HtmlTokenType.IGNORABLE) {
+      lastNonIgnorableIsEq = end - start == 1 && buffer[start] == '=';
+    }
+    tokenStart = start;
+    tokenEnd = end;
+    return type;
   }
 
   protected String name(String tagName) {
@@ -793,15 +929,12 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
 
   private static boolean lookahead(
       char [] buffer, int end, int limit, String textToMatch) {
-    String currentStr = "";
-    int i = end;
-    int j = i + textToMatch.length();
-    if (j <= limit) {
-      for (; i < j; ++i) {
-        currentStr += buffer[i];
-      }
+    int n = textToMatch.length();
+    if (end + n > limit) { return false; }
+    for (int i = 0; i < n; ++i) {
+      if (buffer[end + i] != textToMatch.charAt(i)) { return false; }
     }
-    return currentStr.equals(textToMatch);
+    return true;
   }
 
   private String name(int start, int end) {
@@ -834,9 +967,4 @@ final class HtmlInputSplitter extends AbstractTokenStream<HtmlTokenType> {
           || (ch >= 0xffa0 && ch <= 0xffdc);
     }
   }
-
-  static <T extends TokenType>
-  Token<T> reclassify(Token<T> token, T type) {
-    return Token.instance(token.text, type, token.pos);
-  }
 }
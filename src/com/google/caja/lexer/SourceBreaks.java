@@ -46,18 +46,45 @@ public final class SourceBreaks implements Serializable {
 
   public InputSource source() { return src; }
 
+  /** The line number on which character zero falls. */
+  public int getLineNumberZero() { return lineNumberZero; }
+
+  /** The number of times {@link #lineStartsAt} has been called. */
+  public int getLineBreakCount() { return nLines; }
+
+  /**
+   * The argument to the i-th call to {@link #lineStartsAt}, so that a copy
+   * can be reconstructed without rescanning the source.
+   */
+  public int getLineStart(int i) {
+    if (i < 0 || i >= nLines) { throw new IndexOutOfBoundsException(); }
+    return lineNums[i];
+  }
+
   int charInLineAt(int charInFile) {
     int lineno = lineAt(charInFile) - lineNumberZero;
     if (lineno == 0) { return charInFile; }
     return charInFile - lineNums[lineno - 1] + 1;
   }
 
-  private int cachedCharInFile = -1, cachedAnswer = -1;
+  /**
+   * The result of the last {@link #lineAt} call.  Kept in one object with final
+   * fields so that threads sharing an immutable tree never see a char index
+   * paired with another thread's answer.
+   */
+  private static final class LineCache {
+    final int charInFile, answer;
+    LineCache(int charInFile, int answer) {
+      this.charInFile = charInFile;
+      this.answer = answer;
+    }
+  }
+  private transient LineCache cache;
   int lineAt(int charInFile) {
-    if (cachedCharInFile == charInFile) {
-      return cachedAnswer + lineNumberZero;
+    LineCache c = cache;
+    if (c != null && c.charInFile == charInFile) {
+      return c.answer + lineNumberZero;
     }
-    cachedCharInFile = charInFile;
 
     int lineNum = boundedBinarySearch(lineNums, charInFile, nLines);
     if (lineNum < 0) {
@@ -66,7 +93,8 @@ public final class SourceBreaks implements Serializable {
       ++lineNum;
     }
 
-    return (cachedAnswer = lineNum) + lineNumberZero;
+    cache = new LineCache(charInFile, lineNum);
+    return lineNum + lineNumberZero;
   }
 
   public FilePosition toFilePosition(int charInFile) {
@@ -98,7 +126,7 @@ public final class SourceBreaks implements Serializable {
       lineNums = newLineNums;
     }
     lineNums[nLines++] = charInFile;
-    cachedCharInFile = -1;
+    cache = null;
   }
 
   public void makeImmutable() {
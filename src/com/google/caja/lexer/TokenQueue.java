@@ -35,6 +35,7 @@ public class TokenQueue<T extends TokenType> {
   /** Null or the range of file that is being parsed. */
   private FilePosition inputRange;
   private final Criterion<Token<T>> tokenFilter;
+  private Criterion<Token<T>> retainedFilteredTokens;
 
   private TokenList<T> current, prev;
 
@@ -45,6 +46,7 @@ public class TokenQueue<T extends TokenType> {
     this.tstream = tokenStream;
     this.file = file;
     this.tokenFilter = tokenFilter;
+    this.retainedFilteredTokens = Criterion.Factory.<Token<T>>optimist();
   }
 
   public TokenQueue(TokenStream<T> tokenStream, InputSource file) {
@@ -58,6 +60,18 @@ public class TokenQueue<T extends TokenType> {
   public void setInputRange(FilePosition range) { this.inputRange = range; }
   public Criterion<Token<T>> getTokenFilter() { return this.tokenFilter; }
 
+  /**
+   * Accepts the tokens rejected by the token filter that are kept so that
+   * {@link #filteredTokens} can return them.  Other filtered tokens are
+   * dropped as soon as they are lexed.  By default, all are kept.
+   */
+  public Criterion<Token<T>> getRetainedFilteredTokens() {
+    return this.retainedFilteredTokens;
+  }
+  public void setRetainedFilteredTokens(Criterion<Token<T>> retained) {
+    this.retainedFilteredTokens = retained;
+  }
+
   /** True iff there are no more tokens on the queue. */
   public boolean isEmpty() throws ParseException {
     fetch(false);
@@ -90,8 +104,10 @@ public class TokenQueue<T extends TokenType> {
       while (tstream.hasNext()) {
         t = tstream.next();
         if (tokenFilter.accept(t)) { break; }
-        if (null == filtered) { filtered = new ArrayList<Token<T>>(); }
-        filtered.add(t);
+        if (retainedFilteredTokens.accept(t)) {
+          if (null == filtered) { filtered = new ArrayList<Token<T>>(); }
+          filtered.add(t);
+        }
         t = null;
       }
     }
@@ -16,65 +16,105 @@ package com.google.caja.lexer.escaping;
 
 import com.google.caja.util.SparseBitSet;
 import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
- * A short lived object that encapsulates all the information needed to
- * escape a string onto an output buffer.
+ * Escapes strings onto an output buffer according to one escaping scheme.
+ * <p>
+ * The scheme is compiled into lookup tables when the escaper is created, so
+ * escaping a character takes an array lookup, and runs of characters that
+ * need no escaping are skipped in a tight loop and written as one range.
+ * Escapers are immutable and may be shared across threads.
  *
  * @author mikesamuel@gmail.com (Mike Samuel)
  */
 final class Escaper {
-  private final CharSequence chars;
-  private final EscapeMap precomputedEscapes;
+  /** Actions for ASCII characters. */
+  private static final byte SAFE = 0, REPLACE = 1, ENCODE = 2;
+
+  /** The action to take for each ASCII character. */
+  private final byte[] asciiActions = new byte[0x80];
+  /** The replacement for each ASCII character whose action is REPLACE. */
+  private final String[] asciiEscapes = new String[0x80];
+  /**
+   * A bitmap of the non-ASCII BMP characters that must be encoded or that are
+   * surrogates and so must be decoded to find out.  Shared between escapers
+   * with the same otherEscapes.
+   */
+  private final long[] nonAsciiAttention;
   private final SparseBitSet otherEscapes;
   private final Encoder encoder;
-  private final Appendable out;
-  private final int minNonPrecomputed;
+
+  /** Tables by the SparseBitSet they were computed from. */
+  private static final Map<SparseBitSet, long[]> NON_ASCII_TABLES
+      = new IdentityHashMap<SparseBitSet, long[]>();
 
   /**
    * @param precomputedEscapes maps ASCII characters to escape to the escapes.
    *   Must not overlap with otherEscapes.  Escaped codepoints in precomputed
    *   greater than otherEscapes.minSetBit() will be ignored.
+   * @param otherEscapes codepoints to escape using encoder.
    */
-  Escaper(CharSequence chars, EscapeMap precomputedEscapes,
-          SparseBitSet otherEscapes, Encoder encoder, Appendable out) {
-    this.chars = chars;
-    this.precomputedEscapes = precomputedEscapes;
+  Escaper(EscapeMap precomputedEscapes, SparseBitSet otherEscapes,
+          Encoder encoder) {
     this.otherEscapes = otherEscapes;
-    this.minNonPrecomputed
-        = otherEscapes.isEmpty() ? 127 : otherEscapes.minSetBit();
     this.encoder = encoder;
-    this.out = out;
+    int minNonPrecomputed
+        = otherEscapes.isEmpty() ? 127 : otherEscapes.minSetBit();
+    for (int ch = 0; ch < 0x80; ++ch) {
+      if (ch < minNonPrecomputed) {
+        String esc = precomputedEscapes.getEscape(ch);
+        if (esc != null) {
+          asciiActions[ch] = REPLACE;
+          asciiEscapes[ch] = esc;
+        }
+      } else if (otherEscapes.contains(ch)) {
+        asciiActions[ch] = ENCODE;
+      }
+    }
+    this.nonAsciiAttention = nonAsciiTable(otherEscapes);
+  }
+
+  private static long[] nonAsciiTable(SparseBitSet otherEscapes) {
+    synchronized (NON_ASCII_TABLES) {
+      long[] table = NON_ASCII_TABLES.get(otherEscapes);
+      if (table == null) {
+        table = new long[0x10000 >> 6];
+        for (int ch = 0x80; ch < 0x10000; ++ch) {
+          if ((ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE)
+              || otherEscapes.contains(ch)) {
+            table[ch >> 6] |= 1L << ch;
+          }
+        }
+        NON_ASCII_TABLES.put(otherEscapes, table);
+      }
+      return table;
+    }
+  }
+
+  /** True if ch can be copied to the output without further checks. */
+  private boolean isSafe(char ch) {
+    return ch < 0x80
+        ? asciiActions[ch] == SAFE
+        : (nonAsciiAttention[ch >> 6] & (1L << ch)) == 0;
   }
 
   /**
    * Treats chars as plain text, and appends to out the escaped version.
    */
-  void escape() throws IOException {
+  void escape(CharSequence chars, Appendable out) throws IOException {
     int end = chars.length();
-    if (end == 0) { return; }
-
     int pos = 0;  // The index into chars past the last char written to out.
-
-    if (otherEscapes.isEmpty()) {
-      for (int i = 0; i < end; ++i) {
-        if (escapeOneChar(pos, i, chars.charAt(i))) {
-          pos = i + 1;
-        }
-      }
-    } else {
-      int codepoint = Character.codePointAt(chars, 0);
-      for (int i = 0; i < end;) {
-        int charCount = Character.charCount(codepoint);
-        int i2 = i + charCount;
-        int nextCodepoint = i2 < end ? Character.codePointAt(chars, i2) : -1;
-
-        if (escapeOneCodepoint(pos, i, codepoint, nextCodepoint)) {
-          pos = i2;
-        }
-
-        i = i2;
-        codepoint = nextCodepoint;
+    int i = 0;
+    while (true) {
+      while (i < end && isSafe(chars.charAt(i))) { ++i; }
+      if (i == end) { break; }
+      int next = escapeAt(chars, pos, i, i, out);
+      if (next > 0) {
+        pos = i = next;
+      } else {
+        i = -next;  // A surrogate pair that needs no escaping.
       }
     }
     out.append(chars, pos, end);
@@ -85,83 +125,76 @@ final class Escaper {
    * tries to ensure that characters that might or need not be escaped for
    * correctness are consistently escaped.
    */
-  void normalize() throws IOException {
+  void normalize(CharSequence chars, Appendable out) throws IOException {
     int end = chars.length();
-    if (end == 0) { return; }
-
     int pos = 0;  // The index into chars past the last char written to out.
-
-    int codepoint = Character.codePointAt(chars, 0);
-    boolean escaped = false;  // Is the character we're considering escaped?
-    for (int i = 0; i < end;) {
-      int charCount = Character.charCount(codepoint);
-      int i2 = i + charCount;
-      int nextCodepoint = i2 < end ? Character.codePointAt(chars, i2) : -1;
-
-      if (escaped) {
-        escaped = false;
-        // end pos is (i - 1) so we don't include the backslash twice.
-        if (escapeOneCodepoint(pos, i - 1, codepoint, nextCodepoint)) {
-          pos = i2;
-        }
-      } else if (codepoint == '\\') {
-        escaped = true;
-      } else if (escapeOneCodepoint(pos, i, codepoint, nextCodepoint)) {
-        pos = i2;
+    int i = 0;
+    while (true) {
+      char ch = 0;
+      while (i < end && (ch = chars.charAt(i)) != '\\' && isSafe(ch)) { ++i; }
+      if (i == end) { break; }
+      int next;
+      if (ch == '\\') {
+        if (i + 1 == end) { break; }
+        // Escape the escaped character in place of the backslash so we don't
+        // include the backslash twice.
+        next = escapeAt(chars, pos, i, i + 1, out);
+      } else {
+        next = escapeAt(chars, pos, i, i, out);
+      }
+      if (next > 0) {
+        pos = i = next;
+      } else {
+        i = -next;
       }
-
-      i = i2;
-      codepoint = nextCodepoint;
     }
     out.append(chars, pos, end);
   }
 
   /**
-   * Escapes a single ASCII code onto the output buffer.
-   * @param pos the position past the last character in chars that has been
-   *   written to out.
-   * @param limit the position past the last character in chars that should
-   *   be written preceding ch.
-   * @param ch in the range [0, 0x7f]
-   * @return true iff characters between pos and limit and ch itself
-   *   were written to out.  false iff out was not changed by this call.
-   */
-  private boolean escapeOneChar(int pos, int limit, char ch)
-      throws IOException {
-    String esc = precomputedEscapes.getEscape(ch);
-    if (esc != null) {
-      out.append(chars, pos, limit).append(esc);
-      return true;
-    }
-    return false;
-  }
-
-  /**
-   * Escapes a single unicode codepoint onto the output buffer iff it is
-   * contained by either the otherEscapes set or the ASCII set.
+   * Escapes the codepoint at chars[i] onto out if it needs escaping.
    * @param pos the position past the last character in chars that has been
    *   written to out.
    * @param limit the position past the last character in chars that should
-   *   be written preceding codepoint.
-   * @param codepoint the codepoint to check.
-   * @param nextCodepoint the next codepoint or -1 if none.
-   * @return true iff characters between pos and limit and codepoint itself
-   *   were written to out.  false iff out was not changed by this call.
+   *   be written preceding the escaped codepoint.
+   * @return the index past the codepoint if it was escaped, so all chars
+   *   before that index have been handled.  Otherwise the negation of that
+   *   index, and out was not changed.
    */
-  private boolean escapeOneCodepoint(
-      int pos, int limit, int codepoint, int nextCodepoint)
+  private int escapeAt(
+      CharSequence chars, int pos, int limit, int i, Appendable out)
       throws IOException {
-    if (codepoint < minNonPrecomputed) {
-      String esc = precomputedEscapes.getEscape(codepoint);
-      if (esc != null) {
-        out.append(chars, pos, limit).append(esc);
-        return true;
+    char ch = chars.charAt(i);
+    if (ch < 0x80) {
+      switch (asciiActions[ch]) {
+        case REPLACE:
+          out.append(chars, pos, limit).append(asciiEscapes[ch]);
+          return i + 1;
+        case ENCODE:
+          out.append(chars, pos, limit);
+          encoder.encode(ch, codepointAfter(chars, i + 1), out);
+          return i + 1;
+        default:
+          return -(i + 1);
       }
-    } else if (otherEscapes.contains(codepoint)) {
+    }
+    if (ch < Character.MIN_SURROGATE || ch > Character.MAX_SURROGATE) {
+      if ((nonAsciiAttention[ch >> 6] & (1L << ch)) == 0) { return -(i + 1); }
       out.append(chars, pos, limit);
-      encoder.encode(codepoint, nextCodepoint, out);
-      return true;
+      encoder.encode(ch, codepointAfter(chars, i + 1), out);
+      return i + 1;
     }
-    return false;
+    // Supplementary codepoints and orphaned surrogates are rare enough to
+    // check against otherEscapes directly.
+    int codepoint = Character.codePointAt(chars, i);
+    int next = i + Character.charCount(codepoint);
+    if (!otherEscapes.contains(codepoint)) { return -next; }
+    out.append(chars, pos, limit);
+    encoder.encode(codepoint, codepointAfter(chars, next), out);
+    return next;
+  }
+
+  private static int codepointAfter(CharSequence chars, int i) {
+    return i < chars.length() ? Character.codePointAt(chars, i) : -1;
   }
 }
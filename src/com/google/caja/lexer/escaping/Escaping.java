@@ -45,10 +45,10 @@ public class Escaping {
   public static void escapeJsString(
       CharSequence s, boolean asciiOnly, boolean embeddable, Appendable out)
       throws IOException {
-    new Escaper(
-        s, embeddable ? STRING_EMBEDDABLE_ESCAPES : STRING_MINIMAL_ESCAPES,
-        asciiOnly ? NO_NON_ASCII : ALLOW_NON_ASCII, JS_ENCODER, out)
-        .escape();
+    (embeddable
+     ? (asciiOnly ? JS_STRING_EMBEDDABLE_ASCII : JS_STRING_EMBEDDABLE)
+     : (asciiOnly ? JS_STRING_MINIMAL_ASCII : JS_STRING_MINIMAL))
+        .escape(s, out);
   }
 
   /** @see #escapeJsString(CharSequence, boolean, boolean, Appendable) */
@@ -75,10 +75,7 @@ public class Escaping {
   public static void escapeJsonString(
       CharSequence s, boolean asciiOnly, Appendable out)
       throws IOException {
-    new Escaper(
-        s, JSON_ESCAPES,
-        asciiOnly ? NO_NON_ASCII : ALLOW_NON_ASCII, JS_ENCODER, out)
-        .escape();
+    (asciiOnly ? JSON_ASCII : JSON).escape(s, out);
   }
 
   /** @see #escapeJsonString(CharSequence, boolean, Appendable) */
@@ -105,10 +102,7 @@ public class Escaping {
   public static void escapeJsIdentifier(
       CharSequence s, boolean asciiOnly, Appendable out)
       throws IOException {
-    new Escaper(s, STRING_MINIMAL_ESCAPES,
-                asciiOnly ? NO_NON_ASCII : ALLOW_NON_ASCII, HEX4_ENCODER,
-                out)
-        .escape();
+    (asciiOnly ? JS_IDENTIFIER_ASCII : JS_IDENTIFIER).escape(s, out);
   }
 
   /** @see #escapeJsIdentifier(CharSequence, boolean, Appendable) */
@@ -140,11 +134,10 @@ public class Escaping {
   public static void escapeRegex(
       CharSequence s, boolean asciiOnly, boolean embeddable, Appendable out)
       throws IOException {
-    new Escaper(
-        s,
-        embeddable ? REGEX_LITERAL_EMBEDDABLE_ESCAPES : REGEX_LITERAL_ESCAPES,
-        asciiOnly ? NO_NON_ASCII : ALLOW_NON_ASCII, JS_ENCODER, out)
-        .escape();
+    (embeddable
+     ? (asciiOnly ? REGEX_LITERAL_EMBEDDABLE_ASCII : REGEX_LITERAL_EMBEDDABLE)
+     : (asciiOnly ? REGEX_LITERAL_ASCII : REGEX_LITERAL))
+        .escape(s, out);
   }
 
   /** @see #escapeRegex(CharSequence, boolean, boolean, Appendable) */
@@ -169,9 +162,8 @@ public class Escaping {
    */
   public static void normalizeRegex(CharSequence s, Appendable out)
       throws IOException {
-    new Escaper(requireEndUnescaped(rebalance(s, '[', ']')),
-        REGEX_EMBEDDABLE_ESCAPES, NO_NON_ASCII, JS_ENCODER, out)
-    .normalize();
+    REGEX_NORMALIZER.normalize(
+        requireEndUnescaped(rebalance(s, '[', ']')), out);
   }
 
   /** @see #normalizeRegex(CharSequence, Appendable) */
@@ -217,9 +209,7 @@ public class Escaping {
   public static void escapeXml(
       CharSequence s, boolean asciiOnly, Appendable out)
       throws IOException {
-    new Escaper(s, XML_ESCAPES, asciiOnly ? NO_NON_ASCII : PROBLEMATIC_XML,
-                XML_ENCODER, out)
-        .escape();
+    (asciiOnly ? XML_ASCII : XML).escape(s, out);
   }
 
   /** @see #escapeXml(CharSequence, boolean, Appendable) */
@@ -242,7 +232,7 @@ public class Escaping {
    */
   public static void escapeCssString(CharSequence s, Appendable out)
       throws IOException {
-    new Escaper(s, EMPTY_ESCAPES, CSS_STR_ESCAPES, CSS_ENCODER, out).escape();
+    CSS_STRING.escape(s, out);
   }
 
   /** @see #escapeCssString(CharSequence, Appendable) */
@@ -271,7 +261,7 @@ public class Escaping {
           ch0, s.length() > 1 ? Character.codePointAt(s, 1) : -1, out);
       s = s.subSequence(1, s.length());
     }
-    new Escaper(s, EMPTY_ESCAPES, CSS_IDENT_ESCAPES, CSS_ENCODER, out).escape();
+    CSS_IDENTIFIER.escape(s, out);
   }
 
   /** @see #escapeCssIdent(CharSequence, Appendable) */
@@ -624,6 +614,42 @@ public class Escaping {
       }
     };
 
+  // Escapers compiled once for each scheme above.
+  private static final Escaper JS_STRING_MINIMAL = new Escaper(
+      STRING_MINIMAL_ESCAPES, ALLOW_NON_ASCII, JS_ENCODER);
+  private static final Escaper JS_STRING_MINIMAL_ASCII = new Escaper(
+      STRING_MINIMAL_ESCAPES, NO_NON_ASCII, JS_ENCODER);
+  private static final Escaper JS_STRING_EMBEDDABLE = new Escaper(
+      STRING_EMBEDDABLE_ESCAPES, ALLOW_NON_ASCII, JS_ENCODER);
+  private static final Escaper JS_STRING_EMBEDDABLE_ASCII = new Escaper(
+      STRING_EMBEDDABLE_ESCAPES, NO_NON_ASCII, JS_ENCODER);
+  private static final Escaper JSON = new Escaper(
+      JSON_ESCAPES, ALLOW_NON_ASCII, JS_ENCODER);
+  private static final Escaper JSON_ASCII = new Escaper(
+      JSON_ESCAPES, NO_NON_ASCII, JS_ENCODER);
+  private static final Escaper JS_IDENTIFIER = new Escaper(
+      STRING_MINIMAL_ESCAPES, ALLOW_NON_ASCII, HEX4_ENCODER);
+  private static final Escaper JS_IDENTIFIER_ASCII = new Escaper(
+      STRING_MINIMAL_ESCAPES, NO_NON_ASCII, HEX4_ENCODER);
+  private static final Escaper REGEX_LITERAL = new Escaper(
+      REGEX_LITERAL_ESCAPES, ALLOW_NON_ASCII, JS_ENCODER);
+  private static final Escaper REGEX_LITERAL_ASCII = new Escaper(
+      REGEX_LITERAL_ESCAPES, NO_NON_ASCII, JS_ENCODER);
+  private static final Escaper REGEX_LITERAL_EMBEDDABLE = new Escaper(
+      REGEX_LITERAL_EMBEDDABLE_ESCAPES, ALLOW_NON_ASCII, JS_ENCODER);
+  private static final Escaper REGEX_LITERAL_EMBEDDABLE_ASCII = new Escaper(
+      REGEX_LITERAL_EMBEDDABLE_ESCAPES, NO_NON_ASCII, JS_ENCODER);
+  private static final Escaper REGEX_NORMALIZER = new Escaper(
+      REGEX_EMBEDDABLE_ESCAPES, NO_NON_ASCII, JS_ENCODER);
+  private static final Escaper XML = new Escaper(
+      XML_ESCAPES, PROBLEMATIC_XML, XML_ENCODER);
+  private static final Escaper XML_ASCII = new Escaper(
+      XML_ESCAPES, NO_NON_ASCII, XML_ENCODER);
+  private static final Escaper CSS_STRING = new Escaper(
+      EMPTY_ESCAPES, CSS_STR_ESCAPES, CSS_ENCODER);
+  private static final Escaper CSS_IDENTIFIER = new Escaper(
+      EMPTY_ESCAPES, CSS_IDENT_ESCAPES, CSS_ENCODER);
+
   static void hex2Escape(char ch, Appendable out) throws IOException {
     out.append("\\x").append("0123456789abcdef".charAt((ch >> 4) & 0xf))
         .append("0123456789abcdef".charAt(ch & 0xf));
@@ -15,16 +15,13 @@
 package com.google.caja.lexer.escaping;
 
 import com.google.caja.SomethingWidgyHappenedError;
-import com.google.caja.util.Join;
-import com.google.caja.util.Strings;
-import com.google.common.collect.Lists;
+import com.google.caja.util.Pair;
+import com.google.common.collect.MapMaker;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Utilities for dealing with URIs.
@@ -33,12 +30,46 @@ import java.util.regex.Pattern;
  */
 public class UriUtil {
 
-  /** Matches a URI extracting bits with different escaping conventions. */
-  private static final Pattern RFC_3986 = Pattern.compile(
-      // Derived from RFC 3986 Appendix B
-      //   1                 2          3             4            5
-      "^(?:([^:/?#]+):)?(?://([^/?#]*))?([^?#]*)(?:\\?([^#]*))?(?:#(.*))?$",
-      Pattern.DOTALL);
+  // Bits in ALLOWED for the parts of a URI in which an ASCII character need
+  // not be escaped.
+  private static final byte SCHEME = 1, AUTHORITY = 2, PATH = 4, QUERY = 8,
+      FRAGMENT = 16;
+  /** Indexed by ASCII character. */
+  private static final byte[] ALLOWED = new byte[0x80];
+  static {
+    final byte alnum = AUTHORITY | PATH | QUERY | FRAGMENT;
+    for (char ch = 'A'; ch <= 'Z'; ++ch) {
+      // Upper case letters in schemes are lower cased instead.
+      ALLOWED[ch] = alnum;
+      ALLOWED[ch | 32] = alnum | SCHEME;
+    }
+    for (char ch = '0'; ch <= '9'; ++ch) { ALLOWED[ch] = alnum | SCHEME; }
+    ALLOWED['+'] = ALLOWED['-'] = ALLOWED['.'] = alnum | SCHEME;
+    // Escapes ';' and '=' in paths, and ';', ':' and '@' in queries.
+    ALLOWED[':'] = ALLOWED['/'] = ALLOWED['$'] = PATH;
+    ALLOWED[','] = PATH | QUERY;
+    ALLOWED['='] = ALLOWED['&'] = QUERY;
+  }
+
+  // Indices into the array filled by normalizeUri.
+  /** 1 if there is a scheme, 0 otherwise. */
+  private static final int HAS_SCHEME = 0;
+  /** The index after "//" in the output, or -1 if there is no authority. */
+  private static final int AUTHORITY_START = 1;
+  private static final int PATH_START = 2;
+  /** The index of '?' in the output, or -1 if there is no query. */
+  private static final int QUERY_START = 3;
+  /** The index of '#' in the output, or -1 if there is no fragment. */
+  private static final int FRAGMENT_START = 4;
+  private static final int N_PARTS = 5;
+
+  /**
+   * Caches {@link #resolve} since sanitized pages tend to resolve the same
+   * URIs against the same base many times.  Keyed by the string form of the
+   * base since {@link URI#equals} ignores case in schemes and hosts.
+   */
+  private static final ConcurrentMap<Pair<String, String>, URI> RESOLVED
+      = new MapMaker().maximumSize(1024).makeMap();
 
   /**
    * Convert a URI to a string, %xx escaping some codepoints that are in the
@@ -61,8 +92,28 @@ public class UriUtil {
    * @param uri a non-opaque URI.
    */
   public static String normalizeUri(String uri) throws URISyntaxException {
-    uri = normalizeSpecialCharacters(uri);
+    StringBuilder sb = new StringBuilder(uri.length() + 16);
+    normalizeUri(uri, sb, null);
+    return sb.toString();
+  }
 
+  /**
+   * Appends the normalized form of uri to out.
+   * @see #normalizeUri(String)
+   * @throws URISyntaxException in which case nothing is appended to out.
+   */
+  public static void normalizeUri(CharSequence uri, StringBuilder out)
+      throws URISyntaxException {
+    normalizeUri(uri, out, null);
+  }
+
+  /**
+   * @param parts null or receives the positions in out of the parts of the
+   *     normalized URI, indexed by {@link #HAS_SCHEME} etc.
+   */
+  private static void normalizeUri(
+      CharSequence uri, StringBuilder out, int[] parts)
+      throws URISyntaxException {
     // We don't use java.net.URI to recompose the URI because of problems with
     // encoding in the multi-argument constructor as described at
     // http://blog.limewire.org/?p=261:
@@ -80,47 +131,112 @@ public class UriUtil {
     //     are unusable, unless you restrict your URLs to never use reserved
     //     characters as values. In our use case, we can't do that because we
     //     don't control what URIs are incoming / outgoing.
-    Matcher m = RFC_3986.matcher(uri);
-    // The RFC_2396 matches all strings.
-    m.matches();
-    String scheme = m.group(1);
-    String authority = m.group(2);
-    String path = m.group(3);
-    String query = m.group(4);
-    String fragment = m.group(5);
-
-    // Path must start with / if the path is not empty or there is an authority
-    // or scheme.
-    // Remove unnecessary .. components in path.
-
-    StringBuilder sb = new StringBuilder(uri.length());
-    if (scheme != null) {
-      normalizeScheme(scheme, sb);
-      sb.append(':');
-    }
-    if (authority != null) {
-      if ("".equals(authority) && !Strings.eqIgnoreCase("file", scheme)) {
-        throw new URISyntaxException(uri, "Blank authority");
+
+    // Find the parts as the pattern from RFC 3986 Appendix B does:
+    //   ^(?:([^:/?#]+):)?(?://([^/?#]*))?([^?#]*)(?:\?([^#]*))?(?:#(.*))?$
+    int n = uri.length();
+    int schemeEnd = -1;
+    for (int i = 0; i < n; ++i) {
+      char ch = normalizeSpecialCharacter(uri.charAt(i));
+      if (ch == ':') {
+        if (i != 0) { schemeEnd = i; }
+        break;
       }
-      sb.append("//");
-      normalizeAuthority(authority, sb);
-    } else if (scheme != null
-               && !(Strings.eqIgnoreCase("file", scheme)
-                    || isOpaque(scheme))) {
-      throw new URISyntaxException(uri, "Missing authority");
+      if (ch == '/' || ch == '?' || ch == '#') { break; }
     }
-    if (path.length() != 0 || sb.length() != 0) {
-      normalizePath(path, sb.length() != 0 && !isOpaque(scheme), sb);
+    int pos = schemeEnd + 1;
+    int authorityStart = -1, authorityEnd = -1;
+    if (pos + 1 < n && normalizeSpecialCharacter(uri.charAt(pos)) == '/'
+        && normalizeSpecialCharacter(uri.charAt(pos + 1)) == '/') {
+      authorityStart = pos = pos + 2;
+      while (pos < n) {
+        char ch = normalizeSpecialCharacter(uri.charAt(pos));
+        if (ch == '/' || ch == '?' || ch == '#') { break; }
+        ++pos;
+      }
+      authorityEnd = pos;
+    }
+    int pathStart = pos;
+    int queryStart = -1, fragmentStart = -1;
+    for (; pos < n; ++pos) {
+      char ch = normalizeSpecialCharacter(uri.charAt(pos));
+      if (ch == '#') {
+        fragmentStart = pos;
+        break;
+      } else if (ch == '?' && queryStart < 0) {
+        queryStart = pos;
+      }
     }
-    if (query != null) {
-      sb.append('?');
-      normalizeQuery(query, sb);
+    int pathEnd = queryStart >= 0 ? queryStart
+        : fragmentStart >= 0 ? fragmentStart : n;
+
+    int outStart = out.length();
+    int outAuthorityStart = -1;
+    boolean isFile = false, isOpaque = false;
+    if (schemeEnd >= 0) {
+      isFile = schemeIs(uri, schemeEnd, "file");
+      isOpaque = schemeIs(uri, schemeEnd, "mailto")
+          || schemeIs(uri, schemeEnd, "javascript")
+          || schemeIs(uri, schemeEnd, "content")
+          || schemeIs(uri, schemeEnd, "data")
+          || schemeIs(uri, schemeEnd, "clsid");
+      appendPart(uri, 0, schemeEnd, SCHEME, out);
+      out.append(':');
     }
-    if (fragment != null) {
-      sb.append('#');
-      normalizeFragment(fragment, sb);
+    if (authorityStart >= 0) {
+      if (authorityStart == authorityEnd && !isFile) {
+        out.setLength(outStart);
+        throw new URISyntaxException(
+            normalizeSpecialCharacters(uri.toString()), "Blank authority");
+      }
+      out.append("//");
+      outAuthorityStart = out.length();
+      try {
+        normalizeAuthority(uri, authorityStart, authorityEnd, out);
+      } catch (URISyntaxException ex) {
+        out.setLength(outStart);
+        throw ex;
+      }
+    } else if (schemeEnd >= 0 && !(isFile || isOpaque)) {
+      out.setLength(outStart);
+      throw new URISyntaxException(
+          normalizeSpecialCharacters(uri.toString()), "Missing authority");
+    }
+    int outPathStart = out.length();
+    if (pathEnd != pathStart || outPathStart != outStart) {
+      normalizePath(
+          uri, pathStart, pathEnd, outPathStart != outStart && !isOpaque, out);
+    }
+    int outQueryStart = -1, outFragmentStart = -1;
+    if (queryStart >= 0) {
+      outQueryStart = out.length();
+      out.append('?');
+      int queryEnd = fragmentStart >= 0 ? fragmentStart : n;
+      // 3.4. Query Component
+      // The query component is a string of information to be interpreted by
+      // the resource.
+      // Within a query component, the characters ";", "/", "?", ":", "@",
+      // "&", "=", "+", ",", and "$" are reserved.
+
+      // We preserve '&', '=', and the initial '?' but escape most others that
+      // are CSS or JS special characters including ';', ':', and '@' for
+      // reasons described above.
+      appendPart(uri, queryStart + 1, queryEnd, QUERY, out);
+    }
+    if (fragmentStart >= 0) {
+      outFragmentStart = out.length();
+      out.append('#');
+      // Section 4.1
+      // fragment      = *uric
+      appendPart(uri, fragmentStart + 1, n, FRAGMENT, out);
+    }
+    if (parts != null) {
+      parts[HAS_SCHEME] = schemeEnd >= 0 ? 1 : 0;
+      parts[AUTHORITY_START] = outAuthorityStart;
+      parts[PATH_START] = outPathStart;
+      parts[QUERY_START] = outQueryStart;
+      parts[FRAGMENT_START] = outFragmentStart;
     }
-    return sb.toString();
   }
 
   /**
@@ -132,57 +248,87 @@ public class UriUtil {
     StringBuilder sb = null;
     int pos = 0;
     int n = uri.length();
-    for (int i = n; --i >= 0;) {
-      char subst;
-      // The mapping below was derived by running the below.
-      // We want to use a standard list so that we don't miss code-points on
-      // older Java versions.
-      // Map<String, List<String>> m = Maps.newLinkedHashMap();
-      // m.put(":", new ArrayList<String>());
-      // m.put("/", new ArrayList<String>());
-      // m.put("?", new ArrayList<String>());
-      // m.put("#", new ArrayList<String>());
-      // m.put("=", new ArrayList<String>());
-      // m.put("&", new ArrayList<String>());
-      // m.put(".", new ArrayList<String>());
-      // StringBuilder sb = new StringBuilder();
-      // for (int i = 0; i < Character.MAX_CODE_POINT; ++i) {
-      //   sb.setLength(0);
-      //   sb.appendCodePoint(i);
-      //   String abnormal = sb.toString();
-      //   String normal = Normalizer.normalize(abnormal, Normalizer.Form.NFKD);
-      //   List<String> abnormalForms = m.get(normal);
-      //   if (abnormalForms != null && !abnormal.equals(normal)) {
-      //     abnormalForms.add(abnormal);
-      //   }
-      // }
-      // for (Map.Entry<String, List<String>> e : m.entrySet()) {
-      //   System.out.println(e.getKey());
-      //   for (String s : e.getValue()) {
-      //     System.out.println("\t0x" + Integer.toString(s.codePointAt(0), 16)
-      //                        + " : " + s);
-      //   }
-      // }
-      switch (uri.charAt(i)) {
-        case 0xfe13: case 0xfe55: case 0xff1a:               subst = ':'; break;
-        case 0xff0f:                                         subst = '/'; break;
-        case 0xfe16: case 0xfe56: case 0xff1f:               subst = '?'; break;
-        case 0xfe5f: case 0xff03:                            subst = '#'; break;
-        case 0x207c: case 0x208c: case 0xfe66: case 0xff1d : subst = '='; break;
-        case 0xfe60: case 0xff06:                            subst = '&'; break;
-        case 0x2024: case 0xfe52: case 0xff0e:               subst = '.'; break;
-        default: continue;
+    for (int i = 0; i < n; ++i) {
+      char ch = uri.charAt(i);
+      char subst = normalizeSpecialCharacter(ch);
+      if (subst != ch) {
+        if (sb == null) { sb = new StringBuilder(n); }
+        sb.append(uri, pos, i).append(subst);
+        pos = i + 1;
       }
-      if (sb == null) { sb = new StringBuilder(n); }
-      sb.append(uri, pos, i).append(subst);
-      pos = i + 1;
     }
-    return sb == null ? uri : sb.toString();
+    if (sb == null) { return uri; }
+    return sb.append(uri, pos, n).toString();
+  }
+
+  /** @see #normalizeSpecialCharacters */
+  private static char normalizeSpecialCharacter(char ch) {
+    if (ch < 0x2000) { return ch; }
+    // The mapping below was derived by running the below.
+    // We want to use a standard list so that we don't miss code-points on
+    // older Java versions.
+    // Map<String, List<String>> m = Maps.newLinkedHashMap();
+    // m.put(":", new ArrayList<String>());
+    // m.put("/", new ArrayList<String>());
+    // m.put("?", new ArrayList<String>());
+    // m.put("#", new ArrayList<String>());
+    // m.put("=", new ArrayList<String>());
+    // m.put("&", new ArrayList<String>());
+    // m.put(".", new ArrayList<String>());
+    // StringBuilder sb = new StringBuilder();
+    // for (int i = 0; i < Character.MAX_CODE_POINT; ++i) {
+    //   sb.setLength(0);
+    //   sb.appendCodePoint(i);
+    //   String abnormal = sb.toString();
+    //   String normal = Normalizer.normalize(abnormal, Normalizer.Form.NFKD);
+    //   List<String> abnormalForms = m.get(normal);
+    //   if (abnormalForms != null && !abnormal.equals(normal)) {
+    //     abnormalForms.add(abnormal);
+    //   }
+    // }
+    // for (Map.Entry<String, List<String>> e : m.entrySet()) {
+    //   System.out.println(e.getKey());
+    //   for (String s : e.getValue()) {
+    //     System.out.println("\t0x" + Integer.toString(s.codePointAt(0), 16)
+    //                        + " : " + s);
+    //   }
+    // }
+    switch (ch) {
+      case 0xfe13: case 0xfe55: case 0xff1a:               return ':';
+      case 0xff0f:                                         return '/';
+      case 0xfe16: case 0xfe56: case 0xff1f:               return '?';
+      case 0xfe5f: case 0xff03:                            return '#';
+      case 0x207c: case 0x208c: case 0xfe66: case 0xff1d : return '=';
+      case 0xfe60: case 0xff06:                            return '&';
+      case 0x2024: case 0xfe52: case 0xff0e:               return '.';
+      default: return ch;
+    }
   }
 
+  /**
+   * Resolves relative against base after {@link #normalizeUri normalizing}
+   * it, as {@link URI#resolve(String)} would.
+   *
+   * @return null if the result's path would escape the root as in "/../".
+   */
   public static URI resolve(URI base, String relative)
       throws URISyntaxException {
-    URI abs = base.resolve(normalizeUri(relative));
+    Pair<String, String> key = Pair.pair(base.toString(), relative);
+    URI abs = RESOLVED.get(key);
+    if (abs == null) {
+      abs = resolveUncached(base, relative);
+      if (abs != null) { RESOLVED.put(key, abs); }
+    }
+    return abs;
+  }
+
+  private static URI resolveUncached(URI base, String relative)
+      throws URISyntaxException {
+    StringBuilder sb = new StringBuilder(relative.length() + 16);
+    int[] parts = new int[N_PARTS];
+    normalizeUri(relative, sb, parts);
+    URI abs = resolveNormalized(base, sb, parts);
+    if (abs == null) { abs = base.resolve(sb.toString()); }
     if (!abs.isOpaque()) {
       String path = abs.getPath();
       // Workaround a bug in java.net.URI.
@@ -195,6 +341,182 @@ public class UriUtil {
     return abs;
   }
 
+  /**
+   * Follows {@link URI#resolve(URI)} working on the normalized relative URI
+   * so that it need not be parsed again.
+   *
+   * @return null if the caller should fall back to {@link URI#resolve}.
+   */
+  private static URI resolveNormalized(URI base, StringBuilder rel, int[] parts)
+      throws URISyntaxException {
+    int n = rel.length();
+    if (parts[HAS_SCHEME] != 0 || base.isOpaque()) {
+      return URI.create(rel.toString());
+    }
+    if (parts[AUTHORITY_START] >= 0) {
+      // java.net.URI canonicalizes ports in network-path references, and
+      // those are rare enough not to bother.
+      return null;
+    }
+    int pathStart = parts[PATH_START];
+    int queryStart = parts[QUERY_START];
+    int fragmentStart = parts[FRAGMENT_START];
+    int pathEnd = queryStart >= 0 ? queryStart
+        : fragmentStart >= 0 ? fragmentStart : n;
+    if (pathEnd - pathStart >= 2 && rel.charAt(pathStart) == '/'
+        && rel.charAt(pathStart + 1) == '/') {
+      return null;  // java.net.URI would parse an authority.
+    }
+    // A colon in the first segment of a relative path would be parsed as the
+    // end of a scheme.
+    for (int i = pathStart; i < pathEnd; ++i) {
+      char ch = rel.charAt(i);
+      if (ch == '/') { break; }
+      if (ch == ':') { return null; }
+    }
+
+    String basePath = base.getRawPath();
+    boolean isLoneFragment = pathStart == pathEnd && queryStart < 0
+        && fragmentStart >= 0;
+    if (isLoneFragment) {
+      // A reference to the current document.
+      String fragment = base.getRawFragment();
+      if (fragment != null
+          && fragment.contentEquals(rel.subSequence(fragmentStart + 1, n))) {
+        return base;
+      }
+    }
+
+    StringBuilder sb = new StringBuilder(basePath.length() + n + 32);
+    String scheme = base.getScheme();
+    if (scheme != null) { sb.append(scheme).append(':'); }
+    boolean hasAuthority = appendAuthority(base, sb);
+    int outPathStart = sb.length();
+    if (isLoneFragment) {
+      sb.append(basePath);
+      String query = base.getRawQuery();
+      if (query != null) { sb.append('?').append(query); }
+    } else if (pathStart != pathEnd && rel.charAt(pathStart) == '/') {
+      sb.append(rel, pathStart, pathEnd);
+    } else {
+      int lastSlash = basePath.lastIndexOf('/');
+      if (lastSlash >= 0 || scheme == null || pathStart == pathEnd) {
+        sb.append(basePath, 0, lastSlash + 1);
+      } else {
+        // RFC 3986 section 5.2.3: merging with an empty base path adds a "/".
+        // java.net.URI before JDK 9 instead runs the path into the authority.
+        sb.append('/');
+      }
+      sb.append(rel, pathStart, pathEnd);
+      removeDotSegments(sb, outPathStart);
+    }
+    if (!hasAuthority && sb.length() >= outPathStart + 2
+        && sb.charAt(outPathStart) == '/'
+        && sb.charAt(outPathStart + 1) == '/') {
+      return null;  // Would be reparsed as an authority.
+    }
+    sb.append(rel, pathEnd, n);
+    try {
+      return new URI(sb.toString());
+    } catch (URISyntaxException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Appends the authority of base as {@link URI#toString} would.
+   * @return true if base has an authority.
+   */
+  private static boolean appendAuthority(URI base, StringBuilder sb) {
+    String host = base.getHost();
+    if (host != null) {
+      sb.append("//");
+      String userInfo = base.getRawUserInfo();
+      if (userInfo != null) { sb.append(userInfo).append('@'); }
+      boolean needBrackets = host.indexOf(':') >= 0
+          && !host.startsWith("[") && !host.endsWith("]");
+      if (needBrackets) { sb.append('['); }
+      sb.append(host);
+      if (needBrackets) { sb.append(']'); }
+      int port = base.getPort();
+      if (port != -1) { sb.append(':').append(port); }
+      return true;
+    }
+    String authority = base.getRawAuthority();
+    if (authority == null) { return false; }
+    sb.append("//").append(authority);
+    return true;
+  }
+
+  /**
+   * Normalizes the path in sb starting at pathStart as
+   * {@link URI#normalize} does: empty segments are removed, as are "."
+   * segments, and ".." segments along with the segment before them unless
+   * that is also "..".  A trailing slash is kept.
+   */
+  private static void removeDotSegments(StringBuilder sb, int pathStart) {
+    int end = sb.length();
+    boolean isAbs = pathStart < end && sb.charAt(pathStart) == '/';
+    // The start and end of each kept segment, and whether it was followed
+    // by a slash.
+    int[] segs = new int[16];
+    int nSegs = 0;
+    boolean firstRemoved = false;
+    int pos = pathStart;
+    while (pos < end && sb.charAt(pos) == '/') { ++pos; }
+    while (pos < end) {
+      int segStart = pos;
+      while (pos < end && sb.charAt(pos) != '/') { ++pos; }
+      int segEnd = pos;
+      int slash = pos < end ? 1 : 0;
+      while (pos < end && sb.charAt(pos) == '/') { ++pos; }
+      int len = segEnd - segStart;
+      if (len == 1 && sb.charAt(segStart) == '.') {
+        if (nSegs == 0) { firstRemoved = true; }
+        continue;
+      }
+      if (len == 2 && sb.charAt(segStart) == '.'
+          && sb.charAt(segStart + 1) == '.' && nSegs != 0) {
+        int prevStart = segs[3 * nSegs - 3];
+        int prevLen = segs[3 * nSegs - 2] - prevStart;
+        if (!(prevLen == 2 && sb.charAt(prevStart) == '.'
+              && sb.charAt(prevStart + 1) == '.')) {
+          --nSegs;
+          if (nSegs == 0) { firstRemoved = true; }
+          continue;
+        }
+      }
+      if (3 * nSegs + 3 > segs.length) {
+        int[] newSegs = new int[segs.length * 2];
+        System.arraycopy(segs, 0, newSegs, 0, segs.length);
+        segs = newSegs;
+      }
+      segs[3 * nSegs] = segStart;
+      segs[3 * nSegs + 1] = segEnd;
+      segs[3 * nSegs + 2] = slash;
+      ++nSegs;
+    }
+    StringBuilder path = new StringBuilder(end - pathStart);
+    if (isAbs) {
+      path.append('/');
+    } else if (firstRemoved && nSegs != 0) {
+      // A colon in the first segment of a relative path would be parsed as
+      // the end of a scheme.
+      for (int i = segs[0]; i < segs[1]; ++i) {
+        if (sb.charAt(i) == ':') {
+          path.append("./");
+          break;
+        }
+      }
+    }
+    for (int i = 0; i < nSegs; ++i) {
+      path.append(sb, segs[3 * i], segs[3 * i + 1]);
+      if (segs[3 * i + 2] != 0) { path.append('/'); }
+    }
+    sb.setLength(pathStart);
+    sb.append(path);
+  }
+
   public static String encode(String part) {
     for (int i = 0, n = part.length(); i < n; ++i) {
       char ch = part.charAt(i);
@@ -207,18 +529,34 @@ public class UriUtil {
     return part;
   }
 
-  private static void normalizeScheme(String scheme, StringBuilder out) {
-    // Section 3.1:
-    // scheme        = alpha *( alpha | digit | "+" | "-" | "." )
-    int pos = 0, n = scheme.length();
-    for (int i = 0; i < n; ++i) {
-      char ch = scheme.charAt(i);
-      if (ch == '%') {
-        if (isInvalidEsc(scheme, i)) {
-          out.append(scheme, pos, i).append("%25");
-          pos = i + 1;
-        }
-      } else if ('A' <= ch && ch <= 'Z') {
+  /** True if uri[0:schemeEnd] is the given lower case scheme. */
+  private static boolean schemeIs(
+      CharSequence uri, int schemeEnd, String scheme) {
+    if (schemeEnd != scheme.length()) { return false; }
+    for (int i = 0; i < schemeEnd; ++i) {
+      char ch = normalizeSpecialCharacter(uri.charAt(i));
+      if ('A' <= ch && ch <= 'Z') { ch |= 32; }
+      if (ch != scheme.charAt(i)) { return false; }
+    }
+    return true;
+  }
+
+  /**
+   * Appends uri[start:end] to out, escaping characters that are not allowed
+   * in the given part and '%'s that do not start a valid escape.
+   *
+   * @param part one of SCHEME, AUTHORITY, etc.
+   * @param end also limits escape sequences.
+   */
+  private static void appendPart(
+      CharSequence uri, int start, int end, int part, StringBuilder out) {
+    for (int i = start; i < end; ++i) {
+      char ch = normalizeSpecialCharacter(uri.charAt(i));
+      if (ch < 0x80 && (ALLOWED[ch] & part) != 0) {
+        out.append(ch);
+      } else if (ch == '%') {
+        out.append(isInvalidEsc(uri, i, end) ? "%25" : "%");
+      } else if (part == SCHEME && 'A' <= ch && ch <= 'Z') {
         // From Section 3.1.
         // Although schemes are case-insensitive, the canonical form is
         // lowercase and documents that specify schemes must do so with
@@ -228,28 +566,15 @@ public class UriUtil {
         // lowercase in scheme names (e.g., allow "HTTP" as well as "http") for
         // the sake of robustness but should only produce lowercase scheme names
         // for consistency.
-        out.append(scheme, pos, i).append((char) (ch | 32));
-        pos = i + 1;
-      } else if (!(('a' <= ch && ch <= 'z')
-                 || ('0' <= ch && ch <= '9')
-                 || ch == '+' || ch == '-' || ch == '.')) {
-        out.append(scheme, pos, i);
-        pos = i + 1;
+        out.append((char) (ch | 32));
+      } else {
         pctEncode(ch, out);
       }
     }
-    out.append(scheme, pos, n);
-  }
-
-  private static boolean isOpaque(String scheme) {
-    return Strings.eqIgnoreCase("mailto", scheme)
-        || Strings.eqIgnoreCase("javascript", scheme)
-        || Strings.eqIgnoreCase("content", scheme)
-        || Strings.eqIgnoreCase("data", scheme)
-        || Strings.eqIgnoreCase("clsid", scheme);
   }
 
-  private static void normalizeAuthority(String authority, StringBuilder out)
+  private static void normalizeAuthority(
+      CharSequence uri, int start, int end, StringBuilder out)
       throws URISyntaxException {
     // Section 3.2:
     // The authority component is preceded by a double slash "//" and is
@@ -264,82 +589,35 @@ public class UriUtil {
     // This does not affect web applications in practice, since browsers
     // disallow '@' in authorities in HTTP and HTTPS since only a tiny number of
     // HTTP servers recognized it, but it was widely used by phishers.
-    int pos = 0, n = authority.length();
-    for (int i = 0; i < n; ++i) {
-      char ch = authority.charAt(i);
-      if (ch == '%') {
-        if (isInvalidEsc(authority, i)) {
-          out.append(authority, pos, i).append("%25");
-          pos = i + 1;
-        }
-      } else if (ch == ':') {
-        // We assume a subset of server-based URIs that only recognizes
-        //     host[:port]
-        // intentionally ignoring registry-based authorities and the user
-        // portion of server-based URIs.
-        for (int j = i + 1; j < n; ++j) {
-          ch = authority.charAt(j);
-          if (!('0' <= ch && ch <= '9')) {
-            throw new URISyntaxException(
-                authority, "Bad port " + authority.substring(i + 1), j);
-          }
-        }
+    int colon = end;
+    for (int i = start; i < end; ++i) {
+      if (normalizeSpecialCharacter(uri.charAt(i)) == ':') {
+        colon = i;
         break;
-      } else if (!(('a' <= ch && ch <= 'z')
-                   || ('A' <= ch && ch <= 'Z')
-                   || ('0' <= ch && ch <= '9')
-                   // Escapes ; and @.
-                   || ch == '-' || ch == '+' || ch == '.')) {
-        out.append(authority, pos, i);
-        pos = i + 1;
-        pctEncode(ch, out);
       }
     }
-    out.append(authority, pos, n);
-  }
-
-  private static void normalizePath(
-      String path, boolean requireAbsPath, StringBuilder out) {
-    String normPath = normalizeEscapesInPath(path);
-    boolean isAbs = requireAbsPath;
-    if (normPath.startsWith("/")) {
-      normPath = normPath.substring(1);
-      isAbs = true;
-    }
-    List<String> pathParts = Lists.newArrayList(normPath.split("/"));
-    int i = 0;
-    while (i < pathParts.size()) {
-      String dottedPart = pathParts.get(i).replace("%2e", ".")
-          .replace("%2E", ".");
-      if (".".equals(dottedPart)) {
-        pathParts.remove(i);
-      } else if ("..".equals(dottedPart)) {
-        if (i > 0 && !"..".equals(pathParts.get(i - 1))) {
-          // back up over the previous part which will soon contain the next
-          // part to process.
-          --i;
-          pathParts.subList(i, i + 2).clear();
-        } else if (isAbs) {  // can't get to parent of the root.
-          pathParts.remove(i);
-        } else {
-          // normalize so the "..".equals(pathParts.get(i - 1)) check above
-          // works.
-          pathParts.set(i, "..");
-          ++i;
-        }
-      } else {
-        ++i;
+    appendPart(uri, start, colon, AUTHORITY, out);
+    if (colon == end) { return; }
+    // We assume a subset of server-based URIs that only recognizes
+    //     host[:port]
+    // intentionally ignoring registry-based authorities and the user
+    // portion of server-based URIs.
+    for (int j = colon + 1; j < end; ++j) {
+      char ch = uri.charAt(j);
+      if (!('0' <= ch && ch <= '9')) {
+        String authority = normalizeSpecialCharacters(
+            uri.subSequence(start, end).toString());
+        throw new URISyntaxException(
+            authority, "Bad port " + authority.substring(colon + 1 - start),
+            j - start);
       }
     }
-    if (isAbs) {
-      // All paths for absolute URIs must start with '/'.
-      // The URL http://foo?bar is not strictly legal.
-      out.append('/');
-    }
-    Join.join(out, "/", pathParts);
+    out.append(':').append(uri, colon + 1, end);
   }
 
-  private static String normalizeEscapesInPath(String path) {
+  private static void normalizePath(
+      CharSequence uri, int start, int end, boolean requireAbsPath,
+      StringBuilder out) {
     // Section 3.3
     // The path may consist of a sequence of path segments separated by a
     // single slash "/" character.  Within a path segment, the characters
@@ -352,92 +630,91 @@ public class UriUtil {
     // the grammar in that same section.
     // Parameters to path segments are not widely used, and ';' is a CSS special
     // character and a natural target for a badly written error recovery scheme.
-    StringBuilder sb = new StringBuilder();
-    // escape all but [\w\d.:+-]
-    int pos = 0, n = path.length();
-    for (int i = 0; i < n; ++i) {
-      char ch = path.charAt(i);
-      if (ch == '%') {
-        if (isInvalidEsc(path, i)) {
-          sb.append(path, pos, i).append("%25");
-          pos = i + 1;
-        }
-      } else if (!(('a' <= ch && ch <= 'z')
-                   || ('A' <= ch && ch <= 'Z')
-                   || ('0' <= ch && ch <= '9')
-                   // Escapes ';' and '='
-                   || ch == ':' || ch == '-' || ch == '+'
-                   || ch == '.' || ch == '/' || ch == ',' || ch == '$')) {
-        sb.append(path, pos, i);
-        pos = i + 1;
-        pctEncode(ch, sb);
-      }
+    int pathEnd = end;
+    boolean isAbs = requireAbsPath;
+    if (start < end && normalizeSpecialCharacter(uri.charAt(start)) == '/') {
+      ++start;
+      isAbs = true;
     }
-    sb.append(path, pos, n);
-    return sb.toString();
-  }
-
-  private static void normalizeQuery(String query, StringBuilder out) {
-    // 3.4. Query Component
-    // The query component is a string of information to be interpreted by
-    // the resource.
-    // Within a query component, the characters ";", "/", "?", ":", "@",
-    // "&", "=", "+", ",", and "$" are reserved.
-
-    // We preserve '&', '=', and the initial '?' but escape most others that are
-    // CSS or JS special characters including ';', ':', and '@' for reasons
-    // described above.
-
-    int pos = 0, n = query.length();
-    for (int i = 0; i < n; ++i) {
-      char ch = query.charAt(i);
-      if (ch == '%') {
-        if (isInvalidEsc(query, i)) {
-          out.append(query, pos, i).append("%25");
-          pos = i + 1;
+    // Trailing empty segments are dropped.
+    while (end > start
+           && normalizeSpecialCharacter(uri.charAt(end - 1)) == '/') {
+      --end;
+    }
+    if (isAbs) {
+      // All paths for absolute URIs must start with '/'.
+      // The URL http://foo?bar is not strictly legal.
+      out.append('/');
+    }
+    if (start == end) { return; }
+    // The start in out of each segment kept so far.
+    int[] segStarts = new int[8];
+    int nSegs = 0;
+    for (int segStart = start;;) {
+      int segEnd = segStart;
+      while (segEnd < end
+             && normalizeSpecialCharacter(uri.charAt(segEnd)) != '/') {
+        ++segEnd;
+      }
+      int mark = out.length();
+      if (nSegs != 0) { out.append('/'); }
+      int outSegStart = out.length();
+      appendPart(uri, segStart, segEnd, PATH, out);
+      int dots = countDots(out, outSegStart);
+      if (dots == 1) {
+        out.setLength(mark);
+      } else if (dots == 2 && nSegs != 0
+                 && countDots(out, segStarts[nSegs - 1], mark) != 2) {
+        // Back up over the previous segment.
+        --nSegs;
+        out.setLength(nSegs != 0 ? segStarts[nSegs] - 1 : segStarts[nSegs]);
+      } else if (dots == 2 && isAbs) {  // can't get to parent of the root.
+        out.setLength(mark);
+      } else {
+        if (dots == 2) {
+          out.setLength(outSegStart);
+          out.append("..");
         }
-      } else if (!(('a' <= ch && ch <= 'z')
-                   || ('A' <= ch && ch <= 'Z')
-                   || ('0' <= ch && ch <= '9')
-                   // Escapes ';', ':' and '@'
-                   || ch == '-' || ch == '+' || ch == '.' || ch == '='
-                   || ch == '&' || ch == ',')) {
-        out.append(query, pos, i);
-        pos = i + 1;
-        pctEncode(ch, out);
+        if (nSegs == segStarts.length) {
+          int[] newSegStarts = new int[nSegs * 2];
+          System.arraycopy(segStarts, 0, newSegStarts, 0, nSegs);
+          segStarts = newSegStarts;
+        }
+        segStarts[nSegs++] = outSegStart;
       }
+      if (segEnd == end) { break; }
+      segStart = segEnd + 1;
     }
-    out.append(query, pos, n);
   }
 
-  private static void normalizeFragment(String fragment, StringBuilder out) {
-    // Section 4.1
-    // fragment      = *uric
+  private static int countDots(StringBuilder sb, int start) {
+    return countDots(sb, start, sb.length());
+  }
 
-    int pos = 0, n = fragment.length();
-    for (int i = 0; i < n; ++i) {
-      char ch = fragment.charAt(i);
-      if (ch == '%') {
-        if (isInvalidEsc(fragment, i)) {
-          out.append(fragment, pos, i).append("%25");
-          pos = i + 1;
-        }
-      } else if (!(('a' <= ch && ch <= 'z')
-                   || ('A' <= ch && ch <= 'Z')
-                   || ('0' <= ch && ch <= '9')
-                   || ch == '-' || ch == '+' || ch == '.')) {
-        out.append(fragment, pos, i);
-        pos = i + 1;
-        pctEncode(ch, out);
+  /**
+   * The number of dots if sb[start:end] is "." or "..", possibly with dots
+   * escaped as "%2e", or 0 otherwise.
+   */
+  private static int countDots(StringBuilder sb, int start, int end) {
+    int dots = 0;
+    for (int i = start; i < end; ++dots) {
+      char ch = sb.charAt(i);
+      if (ch == '.') {
+        ++i;
+      } else if (ch == '%' && i + 2 < end && sb.charAt(i + 1) == '2'
+                 && (sb.charAt(i + 2) | 32) == 'e') {
+        i += 3;
+      } else {
+        return 0;
       }
     }
-    out.append(fragment, pos, n);
+    return dots <= 2 ? dots : 0;
   }
 
-  private static boolean isInvalidEsc(String uriPart, int pctIdx) {
-    return pctIdx + 2 >= uriPart.length()
-        || !isHexDigit(uriPart.charAt(pctIdx + 1))
-        || !isHexDigit(uriPart.charAt(pctIdx + 2));
+  private static boolean isInvalidEsc(CharSequence uri, int pctIdx, int end) {
+    return pctIdx + 2 >= end
+        || !isHexDigit(uri.charAt(pctIdx + 1))
+        || !isHexDigit(uri.charAt(pctIdx + 2));
   }
 
   private static boolean isHexDigit(char ch) {
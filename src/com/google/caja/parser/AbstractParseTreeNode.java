@@ -23,6 +23,7 @@ import com.google.caja.util.Join;
 import com.google.caja.util.SyntheticAttributeKey;
 import com.google.caja.util.SyntheticAttributes;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -30,6 +31,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -45,7 +47,17 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
   private List<Token<?>> comments = Collections.<Token<?>>emptyList();
   private SyntheticAttributes attributes;
   private boolean immutable = false;
+  /** The number of times the child list has been changed in place. */
+  private transient int modCount;
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * This also freezes the child list into a compact array, so trees that are
+   * kept around and shared, such as quasi patterns, do not pay for mutation
+   * support.  A frozen tree does not write to any field when read, so it may
+   * be traversed concurrently once safely published.
+   */
   @Override
   public boolean makeImmutable() {
     if (immutable) { return true; }
@@ -118,6 +130,9 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
     }
     return this.attributes;
   }
+  public boolean hasAttributes() {
+    return this.attributes != null && !this.attributes.isEmpty();
+  }
   @SuppressWarnings("unchecked")
   public void setComments(List<? extends Token<?>> comments) {
     if (immutable) {
@@ -145,6 +160,9 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
     createMutation().removeChild(toRemove).execute();
   }
 
+  /** The number of mutations executed on this node. */
+  final int getModCount() { return modCount; }
+
   // Fast appendChild that's only safe to run in constructors.
   protected void ctorAppendChild(ParseTreeNode child) {
     children.getMutableFacet().add(child);
@@ -287,6 +305,23 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
        Visitor v, AncestorChain<?> ancestors, TraversalType traversalType) {
     if (this.children.getImmutableFacet().isEmpty()) { return true; }
 
+    if (immutable) {
+      // Visitors can't mutate a frozen child list, so no need to track it.
+      List<ParseTreeNode> frozen = children.getImmutableFacet();
+      for (int i = 0, n = frozen.size(); i < n; ++i) {
+        ParseTreeNode child = frozen.get(i);
+        switch (traversalType) {
+          case PREORDER:
+            child.acceptPreOrder(v, ancestors);
+            break;
+          case POSTORDER:
+            if (!child.acceptPostOrder(v, ancestors)) { return false; }
+            break;
+        }
+      }
+      return true;
+    }
+
     boolean result = true;
     // This loop is complicated because it needs to survive mutations to the
     // child list.
@@ -351,7 +386,8 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
     // If ancestors is empty, then it can't have been removed from its parent
     // by the Visitor unless the visitor has some handle to the parent through
     // another mechanism.
-    return ancestors == null || ancestors.node.children().contains(this);
+    return ancestors == null || ancestors.node.isImmutable()
+        || ancestors.node.children().contains(this);
   }
 
   public final boolean acceptPreOrder(Visitor v, AncestorChain<?> ancestors) {
@@ -384,8 +420,16 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
 
   public final boolean visitPreOrder(ParseTreeNodeVisitor v) {
     if (!v.visit(this)) { return false; }
-    for (ParseTreeNode child : children.getImmutableFacet()) {
-      child.visitPreOrder(v);
+    if (immutable) {
+      // Avoid allocating an iterator per node.
+      List<ParseTreeNode> frozen = children.getImmutableFacet();
+      for (int i = 0, n = frozen.size(); i < n; ++i) {
+        frozen.get(i).visitPreOrder(v);
+      }
+    } else {
+      for (ParseTreeNode child : children.getImmutableFacet()) {
+        child.visitPreOrder(v);
+      }
     }
     return true;
   }
@@ -398,20 +442,75 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
   @Override
   public final boolean equals(Object o) { return this == o; }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Descendants whose class has a {@link ParseTreeNodes#registerFactory
+   * registered factory} are copied by an explicit stack walk that constructs
+   * them via their factory, so cloning a large tree neither recurses deeply
+   * nor constructs nodes reflectively.  Other descendants are copied by their
+   * own {@code clone()}.
+   */
   @Override
   public ParseTreeNode clone() {
     if (immutable) { return this; }
-    List<ParseTreeNode> clonedChildren
-        = new ArrayList<ParseTreeNode>(children.getImmutableFacet().size());
-    for (ParseTreeNode child : children.getImmutableFacet()) {
-      clonedChildren.add(child.clone());
+    List<CloneFrame> stack = new ArrayList<CloneFrame>();
+    CloneFrame top = new CloneFrame(
+        this, ParseTreeNodes.getFactory(getClass()));
+    while (true) {
+      List<? extends ParseTreeNode> source
+          = top.node.children.getImmutableFacet();
+      if (top.next < source.size()) {
+        ParseTreeNode child = source.get(top.next++);
+        if (child instanceof AbstractParseTreeNode
+            && !((AbstractParseTreeNode) child).immutable) {
+          ParseTreeNodes.Factory<?> factory
+              = ParseTreeNodes.getFactory(child.getClass());
+          if (factory != null) {
+            stack.add(top);
+            top = new CloneFrame((AbstractParseTreeNode) child, factory);
+            continue;
+          }
+        }
+        top.clonedChildren.add(child.clone());
+      } else {
+        AbstractParseTreeNode cloned = top.copy();
+        if (stack.isEmpty()) { return cloned; }
+        top = stack.remove(stack.size() - 1);
+        top.clonedChildren.add(cloned);
+      }
     }
-    AbstractParseTreeNode cloned = ParseTreeNodes.newNodeInstance(
-        getClass(), getFilePosition(), getValue(), clonedChildren);
-    if (attributes != null) {
-      cloned.attributes = new SyntheticAttributes(attributes);
+  }
+
+  /** A node whose children are being cloned. */
+  private static final class CloneFrame {
+    final AbstractParseTreeNode node;
+    /** Null to construct reflectively. */
+    final ParseTreeNodes.Factory<?> factory;
+    final List<ParseTreeNode> clonedChildren;
+    int next;
+
+    CloneFrame(AbstractParseTreeNode node, ParseTreeNodes.Factory<?> factory) {
+      this.node = node;
+      this.factory = factory;
+      this.clonedChildren = new ArrayList<ParseTreeNode>(
+          node.children.getImmutableFacet().size());
+    }
+
+    /** Copies node once all its children have been cloned. */
+    AbstractParseTreeNode copy() {
+      AbstractParseTreeNode cloned = (AbstractParseTreeNode) (
+          factory != null
+          ? factory.newInstance(
+              node.getFilePosition(), node.getValue(), clonedChildren)
+          : ParseTreeNodes.newNodeInstance(
+              node.getClass(), node.getFilePosition(), node.getValue(),
+              clonedChildren));
+      if (node.attributes != null) {
+        cloned.attributes = new SyntheticAttributes(node.attributes);
+      }
+      return cloned;
     }
-    return cloned;
   }
 
   private final class MutationImpl implements MutableParseTreeNode.Mutation {
@@ -444,16 +543,37 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
       return this;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A mutation with several edits that only address children present
+     * before it executes is applied by one pass over the child list, so
+     * passes that edit many children of one node take linear time.
+     */
     @SuppressWarnings("finally")
     public void execute() {
-      boolean copied = false;
-      for (Change change : changes) {
-        copied = change.apply(copied);
+      if (immutable) {
+        throw new UnsupportedOperationException();
+      }
+      ++modCount;
+      ChildNodes<ParseTreeNode> original = children;
+      boolean merged = merge();
+      if (!merged) {
+        boolean copied = false;
+        for (Change change : changes) {
+          copied = change.apply(copied);
+        }
       }
       try {
         childrenChanged();
       } catch (RuntimeException ex) {
-        for (int i = changes.size(); --i >= 0;) { changes.get(i).rollback(); }
+        if (merged) {
+          children = original;
+        } else {
+          for (int i = changes.size(); --i >= 0;) {
+            changes.get(i).rollback();
+          }
+        }
         try {
           childrenChanged();
         } finally {
@@ -461,6 +581,86 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
         }
       }
     }
+
+    /**
+     * Replaces the child list with one built by a single merge of the
+     * original children with the changes.
+     * @return false without changing anything if the changes cannot be
+     *     merged, e.g. because one addresses a node added by an earlier
+     *     change, so must be applied in order.
+     */
+    private boolean merge() {
+      if (changes.size() < 2) { return false; }
+      List<ParseTreeNode> old = children.getImmutableFacet();
+      int n = old.size();
+      Map<ParseTreeNode, Integer> index = Maps.newIdentityHashMap();
+      for (int i = 0; i < n; ++i) {
+        if (index.put(old.get(i), i) != null) { return false; }
+      }
+      // Null for children that are kept, and this for children removed.
+      Object[] fates = new Object[n];
+      List<?>[] insertedBefore = new List<?>[n];
+      List<ParseTreeNode> appended = Lists.newArrayList();
+      Map<ParseTreeNode, Boolean> added = Maps.newIdentityHashMap();
+      boolean inPlace = true;
+      for (Change change : changes) {
+        if (change instanceof Insertion) {
+          Insertion ins = (Insertion) change;
+          if (index.containsKey(ins.toAdd)) { return false; }
+          added.put(ins.toAdd, true);
+          if (ins.before == null) {
+            appended.add(ins.toAdd);
+            continue;
+          }
+          Integer i = index.get(ins.before);
+          if (i == null || fates[i] != null) { return false; }
+          @SuppressWarnings("unchecked")
+          List<ParseTreeNode> before = (List<ParseTreeNode>) insertedBefore[i];
+          if (before == null) {
+            insertedBefore[i] = before = Lists.newArrayListWithCapacity(1);
+          }
+          before.add(ins.toAdd);
+        } else {
+          ParseTreeNode target, fate;
+          if (change instanceof Replacement) {
+            Replacement r = (Replacement) change;
+            target = r.replaced;
+            fate = r.replacement;
+            if (index.containsKey(fate) || added.put(fate, true) != null) {
+              return false;
+            }
+          } else {
+            target = ((Removal) change).toRemove;
+            fate = null;
+          }
+          Integer i = index.get(target);
+          if (i == null || fates[i] != null) { return false; }
+          fates[i] = fate != null ? fate : this;
+        }
+        inPlace = false;
+      }
+      // Appending alone can be done in place by the sequential path.
+      if (inPlace) { return false; }
+      ChildNodes<ParseTreeNode> merged = new ChildNodes<ParseTreeNode>(
+          children.getElementClass());
+      List<ParseTreeNode> out = merged.getMutableFacet();
+      for (int i = 0; i < n; ++i) {
+        if (insertedBefore[i] != null) {
+          for (Object inserted : insertedBefore[i]) {
+            out.add((ParseTreeNode) inserted);
+          }
+        }
+        Object fate = fates[i];
+        if (fate == null) {
+          out.add(old.get(i));
+        } else if (fate != this) {
+          out.add((ParseTreeNode) fate);
+        }
+      }
+      out.addAll(appended);
+      children = merged;
+      return true;
+    }
   }
 
   private abstract class Change {
@@ -19,6 +19,7 @@ import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
 
 /**
  * Encapsulation of the ordered collection of child nodes of a
@@ -32,15 +33,38 @@ final class ChildNodes<T extends ParseTreeNode> implements Serializable {
   private boolean immutable = false;
 
   public boolean makeImmutable() {
+    if (immutable) { return true; }
     boolean wasMadeImmutable = true;
     if (backingList != null) {
       for (ParseTreeNode n : backingList) {
         wasMadeImmutable = wasMadeImmutable && n.makeImmutable();
       }
     }
+    if (wasMadeImmutable) { freeze(); }
     return immutable = wasMadeImmutable;
   }
 
+  /**
+   * Replaces the backing list with a compact array that is shared by both
+   * facets, and drops the mutable facet.
+   * After this, reads never write to any field, so a frozen tree can be read
+   * from multiple threads once it has been safely published.
+   */
+  @SuppressWarnings("unchecked")
+  private void freeze() {
+    FrozenList<T> frozen;
+    if (backingList == null || backingList.isEmpty()) {
+      frozen = (FrozenList<T>) FrozenList.EMPTY;
+    } else if (backingList instanceof FrozenList<?>) {
+      frozen = (FrozenList<T>) backingList;
+    } else {
+      frozen = new FrozenList<T>(backingList.toArray());
+    }
+    backingList = frozen;
+    immutableFacet = frozen;
+    mutableFacet = null;
+  }
+
   /**
    * The actual storage of collection elements. Constructed lazily in case it
    * is never used.
@@ -95,6 +119,40 @@ final class ChildNodes<T extends ParseTreeNode> implements Serializable {
     public T remove(int i) { return getBackingList().remove(i); }
   }
 
+  /**
+   * An array backed list used for the children of immutable nodes.
+   * Unlike an {@code unmodifiableList(new ArrayList(...))} it has no slack
+   * capacity and no wrapper, and it may be shared between copies.
+   */
+  private static final class FrozenList<T> extends AbstractList<T>
+      implements RandomAccess, Serializable {
+    private static final long serialVersionUID = -6210633937370359364L;
+    static final FrozenList<ParseTreeNode> EMPTY
+        = new FrozenList<ParseTreeNode>(new Object[0]);
+
+    private final Object[] items;
+
+    FrozenList(Object[] items) { this.items = items; }
+
+    @Override
+    public int size() { return items.length; }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T get(int i) { return (T) items[i]; }
+
+    @Override
+    public int indexOf(Object o) {
+      for (int i = 0, n = items.length; i < n; ++i) {
+        if (o == null ? items[i] == null : o.equals(items[i])) { return i; }
+      }
+      return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) { return indexOf(o) >= 0; }
+  }
+
   /**
    * Creates a new ChildNodes.
    *
@@ -112,7 +170,7 @@ final class ChildNodes<T extends ParseTreeNode> implements Serializable {
    * @param source a ChildNodes object to copy.
    */
   public ChildNodes(ChildNodes<? extends T> source) {
-    this.backingList = new ArrayList<T>(source.backingList);
+    this.backingList = new ArrayList<T>(source.getBackingList());
     this.elementClass = source.elementClass;
   }
 
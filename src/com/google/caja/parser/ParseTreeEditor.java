@@ -0,0 +1,151 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects edits to a parse tree and applies them without modifying the
+ * original, by rebuilding only the nodes on the paths from edited nodes to
+ * the root.  Untouched subtrees are shared between the original and the
+ * result, so a pass that edits a few nodes of a large program allocates a
+ * few nodes instead of cloning the whole program.
+ * <p>
+ * Edits are addressed by {@link AncestorChain}s which must all be rooted at
+ * the node passed to {@link #apply}.  An edit to a node overrides any edits
+ * to its descendants, so e.g. replacing a statement discards edits within it.
+ * <p>
+ * Since results share nodes with the original, neither should be mutated in
+ * place afterwards.
+ */
+public final class ParseTreeEditor {
+  /** Edits keyed by the node they affect. */
+  private final Map<ParseTreeNode, Edit> edits = Maps.newIdentityHashMap();
+  /** Nodes that have an edited descendant and so need to be rebuilt. */
+  private final Set<ParseTreeNode> dirty = Sets.newSetFromMap(
+      Maps.<ParseTreeNode, Boolean>newIdentityHashMap());
+
+  private static final class Edit {
+    ParseTreeNode replacement;
+    boolean removed;
+    List<ParseTreeNode> insertedBefore;
+  }
+
+  /** Replaces target.node with replacement. */
+  public ParseTreeEditor replace(
+      AncestorChain<?> target, ParseTreeNode replacement) {
+    if (replacement == null) { throw new NullPointerException(); }
+    Edit e = editFor(target);
+    e.replacement = replacement;
+    e.removed = false;
+    return this;
+  }
+
+  /** Removes target.node from its parent. */
+  public ParseTreeEditor remove(AncestorChain<?> target) {
+    if (target.parent == null) { throw new IllegalArgumentException(); }
+    Edit e = editFor(target);
+    e.replacement = null;
+    e.removed = true;
+    return this;
+  }
+
+  /**
+   * Inserts toInsert into target.node's parent immediately before target.node.
+   * Multiple insertions before the same node appear in the order inserted.
+   */
+  public ParseTreeEditor insertBefore(
+      AncestorChain<?> target, ParseTreeNode toInsert) {
+    if (target.parent == null) { throw new IllegalArgumentException(); }
+    Edit e = editFor(target);
+    if (e.insertedBefore == null) {
+      e.insertedBefore = Lists.newArrayListWithCapacity(1);
+    }
+    e.insertedBefore.add(toInsert);
+    return this;
+  }
+
+  /** True if no edits have been made. */
+  public boolean isEmpty() { return edits.isEmpty(); }
+
+  /**
+   * Returns node with all edits to it and its descendants applied.
+   * This may be used on a subtree to see the current state of part of a tree
+   * while edits are still being collected.
+   *
+   * @return node if no edit affects it.  Otherwise a new node that shares all
+   *     unedited descendants with node.  Null if node was removed.
+   */
+  public ParseTreeNode apply(ParseTreeNode node) {
+    Edit e = edits.get(node);
+    if (e != null) {
+      if (e.removed) { return null; }
+      if (e.replacement != null) { return e.replacement; }
+    }
+    return rebuild(node);
+  }
+
+  private Edit editFor(AncestorChain<?> target) {
+    Edit e = edits.get(target.node);
+    if (e == null) {
+      edits.put(target.node, e = new Edit());
+    }
+    for (AncestorChain<?> ac = target.parent; ac != null; ac = ac.parent) {
+      if (!dirty.add(ac.node)) { break; }  // Ancestors are already dirty.
+    }
+    return e;
+  }
+
+  private ParseTreeNode rebuild(ParseTreeNode node) {
+    if (!dirty.contains(node)) { return node; }
+    List<? extends ParseTreeNode> children = node.children();
+    int n = children.size();
+    List<ParseTreeNode> newChildren = Lists.newArrayListWithCapacity(n);
+    boolean changed = false;
+    for (int i = 0; i < n; ++i) {
+      ParseTreeNode child = children.get(i);
+      Edit e = edits.get(child);
+      ParseTreeNode newChild;
+      if (e != null) {
+        if (e.insertedBefore != null) {
+          newChildren.addAll(e.insertedBefore);
+          changed = true;
+        }
+        if (e.removed) {
+          changed = true;
+          continue;
+        }
+        newChild = e.replacement != null ? e.replacement : rebuild(child);
+      } else {
+        newChild = rebuild(child);
+      }
+      changed |= newChild != child;
+      newChildren.add(newChild);
+    }
+    if (!changed) { return node; }
+    ParseTreeNode rebuilt = ParseTreeNodes.newNodeInstance(
+        node.getClass(), node.getFilePosition(), node.getValue(), newChildren);
+    if (node.hasAttributes()) {
+      rebuilt.getAttributes().putAll(node.getAttributes());
+    }
+    return rebuilt;
+  }
+}
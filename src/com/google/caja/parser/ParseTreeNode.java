@@ -62,6 +62,12 @@ public interface ParseTreeNode extends MessagePart, Renderable, Cloneable {
    * it refers to, etc.
    */
   SyntheticAttributes getAttributes();
+  /**
+   * True if {@link #getAttributes} would return a non-empty set.
+   * Unlike {@code getAttributes().isEmpty()}, never allocates attributes, so
+   * it is safe to use when reading a tree that must not be mutated.
+   */
+  boolean hasAttributes();
 
   void formatTree(MessageContext context, int depth, Appendable out)
       throws IOException;
@@ -35,6 +35,18 @@ import java.util.List;
 public class ParseTreeNodeContainer extends AbstractParseTreeNode {
   private static final long serialVersionUID = -1979856467228608958L;
 
+  static {
+    ParseTreeNodes.registerFactory(
+        ParseTreeNodeContainer.class,
+        new ParseTreeNodes.Factory<ParseTreeNodeContainer>() {
+          public ParseTreeNodeContainer newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ParseTreeNodeContainer(pos, (Void) value, children);
+          }
+        });
+  }
+
   /** @param value unused.  This ctor is provided for reflection. */
   @ReflectiveCtor
   public ParseTreeNodeContainer(
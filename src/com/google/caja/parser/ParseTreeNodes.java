@@ -20,10 +20,9 @@ import com.google.caja.lexer.FilePosition;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A utility class for common operations on {@link ParseTreeNode}s.
@@ -32,6 +31,57 @@ import java.util.Map;
  */
 public class ParseTreeNodes {
 
+  /**
+   * Constructs nodes of one concrete class without reflection.
+   * Implementations are equivalent to calling the class's
+   * {@link ParseTreeNode.ReflectiveCtor}.
+   *
+   * @see #registerFactory
+   */
+  public interface Factory<T extends ParseTreeNode> {
+    T newInstance(
+        FilePosition pos, Object value, List<? extends ParseTreeNode> children);
+  }
+
+  /**
+   * The number of times node's child list has been changed in place.
+   * An analysis that read a set of nodes may be reused while none of their
+   * counts change, since trees built by constructors and
+   * {@link ParseTreeEditor edits that share structure} never change a node
+   * that is already part of another tree.
+   *
+   * @return -1 if changes to node are not tracked.
+   */
+  public static int getModificationCount(ParseTreeNode node) {
+    if (!(node instanceof AbstractParseTreeNode)) { return -1; }
+    return ((AbstractParseTreeNode) node).getModCount();
+  }
+
+  /**
+   * Factories keyed by the exact class they construct.  Reads do not lock
+   * since they happen once per node cloned.
+   */
+  private static final ConcurrentMap<Class<?>, Factory<?>> factories
+      = new ConcurrentHashMap<Class<?>, Factory<?>>();
+
+  /**
+   * Registers a factory used by {@link #newNodeInstance} and
+   * {@link ParseTreeNode#clone} for nodes of exactly the given class.
+   * A class with a registered factory must not override {@code clone()} since
+   * deep clones construct its instances directly via the factory.
+   */
+  public static <T extends ParseTreeNode> void registerFactory(
+      Class<T> clazz, Factory<? extends T> factory) {
+    factories.put(clazz, factory);
+  }
+
+  /** The factory registered for exactly clazz, or null if none. */
+  @SuppressWarnings("unchecked")
+  static <T extends ParseTreeNode> Factory<? extends T> getFactory(
+      Class<T> clazz) {
+    return (Factory<? extends T>) factories.get(clazz);
+  }
+
   /**
    * Construct a new {@code ParseTreeNode} via reflection assuming the existence
    * of a constructor having the following signature:
@@ -49,6 +99,16 @@ public class ParseTreeNodes {
   public static <T extends ParseTreeNode> T newNodeInstance(
       Class<T> clazz, FilePosition pos, Object value,
       List<? extends ParseTreeNode> children) {
+    Factory<? extends T> factory = getFactory(clazz);
+    if (factory != null) {
+      try {
+        return factory.newInstance(pos, value, children);
+      } catch (RuntimeException e) {
+        throw new SomethingWidgyHappenedError(
+            "Error constructing " + clazz.getName()
+            + getArgsErrorMessage(value, children), e);
+      }
+    }
     Constructor<T> ctor = findCloneCtor(clazz);
     try {
       return ctor.newInstance(pos, value, children);
@@ -88,9 +148,8 @@ public class ParseTreeNodes {
     return false;
   }
 
-  private static final Map<Class<? extends ParseTreeNode>, Constructor<?>>
-      cloneCtorCache = Collections.synchronizedMap(
-          new HashMap<Class<? extends ParseTreeNode>, Constructor<?>>());
+  private static final ConcurrentMap<Class<?>, Constructor<?>> cloneCtorCache
+      = new ConcurrentHashMap<Class<?>, Constructor<?>>();
   private static <T extends ParseTreeNode>
   Constructor<T> findCloneCtor(Class<T> clazz) {
     {
@@ -140,7 +199,12 @@ public class ParseTreeNodes {
       Constructor<? extends ParseTreeNode> ctor, Object value,
       List<? extends ParseTreeNode> children) {
     return "Error calling ctor " + ctor.toString()
-        +" with value = " + value
+        + getArgsErrorMessage(value, children);
+  }
+
+  private static String getArgsErrorMessage(
+      Object value, List<? extends ParseTreeNode> children) {
+    return " with value = " + value
         +" (" + (value == null ? "" : value.getClass()) + ")"
         +" with children = " + children
         +" (" + (children == null ? "" : children.getClass()) + ")";
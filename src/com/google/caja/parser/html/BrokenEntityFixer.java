@@ -0,0 +1,176 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.html;
+
+import com.google.caja.lexer.HtmlEntities;
+import com.google.caja.lexer.PunctuationTrie;
+
+import java.util.List;
+
+/**
+ * Adds semicolons to HTML entities that lack them and decodes the result in
+ * one left-to-right pass over the HTML.
+ * <p>
+ * An entity lacks a semicolon when it is
+ * <ul>
+ *   <li>a named entity whose {@link HtmlEntities#ENTITY_TRIE} value has the
+ *     {@link HtmlEntities#SEMICOLON_OPTIONAL} bit, or the ASCII upper-case
+ *     form of one, not followed by an ASCII letter, digit, {@code =}, or
+ *     {@code ;}.  An equals sign suggests a URL query parameter.
+ *   <li>{@code &#} and 1 to 7 decimal digits not followed by {@code =} or
+ *     {@code ;}.
+ *   <li>{@code &#x} and 1 to 6 hex digits not followed by an ASCII letter,
+ *     digit, {@code =}, or {@code ;}.
+ * </ul>
+ * The plain text is the same as {@link Nodes#decode} of the fixed HTML.
+ */
+final class BrokenEntityFixer {
+  private BrokenEntityFixer() { /* uninstantiable */ }
+
+  /**
+   * Fixes and decodes the HTML in rawText[start:end].
+   *
+   * @param fixed if not null, receives the HTML with semicolons added.
+   * @param plain if not null, receives the plain text of the fixed HTML.
+   * @param broken if not null, receives the text of each entity that lacked a
+   *     semicolon, like {@code "&amp"}.
+   * @return true if any entity lacked a semicolon.
+   */
+  static boolean fixAndDecode(
+      String rawText, int start, int end,
+      StringBuilder fixed, StringBuilder plain, List<? super String> broken) {
+    boolean anyBroken = false;
+    // The ends of the prefixes of rawText already appended to fixed and plain.
+    int fixedPos = start, plainPos = start;
+    for (int amp = rawText.indexOf('&', start);
+         amp >= 0 && amp < end; amp = rawText.indexOf('&', amp + 1)) {
+      // The end of the entity name or digits.
+      int nameEnd;
+      // The codepoint if decoded, or -1.
+      int codepoint = -1;
+      boolean isBroken = false;
+      char next = amp + 1 < end ? rawText.charAt(amp + 1) : 0;
+      if (next == '#') {
+        char x = amp + 2 < end ? rawText.charAt(amp + 2) : 0;
+        if (x == 'x' || x == 'X') {
+          nameEnd = amp + 3;
+          int cp = 0;
+          for (int d; nameEnd < end
+               && (d = hexDigit(rawText.charAt(nameEnd))) >= 0; ++nameEnd) {
+            cp = (cp << 4) | d;
+          }
+          char after = nameEnd < end ? rawText.charAt(nameEnd) : 0;
+          int nDigits = nameEnd - (amp + 3);
+          if (after == ';') {
+            // Nodes.decode allows "&#x;" as the codepoint zero.
+            if (nDigits <= 6) { codepoint = cp; }
+          } else if (nDigits != 0 && nDigits <= 6
+                     && after != '=' && !isAsciiAlnum(after)) {
+            isBroken = true;
+            codepoint = cp;
+          }
+        } else {
+          nameEnd = amp + 2;
+          int cp = 0;
+          for (char ch; nameEnd < end
+               && (ch = rawText.charAt(nameEnd)) >= '0' && ch <= '9';
+               ++nameEnd) {
+            cp = cp * 10 + (ch - '0');
+          }
+          int nDigits = nameEnd - (amp + 2);
+          if (nDigits != 0 && nDigits <= 7) {
+            char after = nameEnd < end ? rawText.charAt(nameEnd) : 0;
+            if (after == ';') {
+              codepoint = cp;
+            } else if (after != '=') {
+              isBroken = true;
+              codepoint = cp;
+            }
+          }
+        }
+      } else {
+        // Walk the trie as far as the name goes, and if that fails, again
+        // with the name lower-cased as HtmlEntities.decodeEntityAt does.
+        PunctuationTrie<Integer> exact = HtmlEntities.ENTITY_TRIE;
+        nameEnd = amp + 1;
+        boolean hasLower = false;
+        for (char ch; nameEnd < end
+             && isAsciiAlnum(ch = rawText.charAt(nameEnd)); ++nameEnd) {
+          if (exact != null) { exact = exact.lookup(ch); }
+          hasLower |= ch >= 'a' && ch <= 'z';
+        }
+        int nameLen = nameEnd - (amp + 1);
+        char after = nameEnd < end ? rawText.charAt(nameEnd) : 0;
+        if (nameLen >= 2 && (after == ';' ? nameLen <= 8 : after != '=')) {
+          PunctuationTrie<Integer> folded = null;
+          if (exact == null || (!hasLower && after != ';')) {
+            folded = HtmlEntities.ENTITY_TRIE;
+            for (int i = amp + 1; folded != null && i < nameEnd; ++i) {
+              char ch = rawText.charAt(i);
+              if ('Z' >= ch && ch >= 'A') { ch |= 32; }
+              folded = folded.lookup(ch);
+            }
+          }
+          if (after != ';') {
+            isBroken = isSemicolonOptional(exact)
+                || (!hasLower && isSemicolonOptional(folded));
+          }
+          if (after == ';' || isBroken) {
+            PunctuationTrie<Integer> t = exact != null ? exact : folded;
+            if (t != null && t.isTerminal()) {
+              codepoint = t.getValue() & HtmlEntities.CODEPOINT_MASK;
+            }
+          }
+        }
+      }
+
+      if (isBroken) {
+        anyBroken = true;
+        if (fixed != null) {
+          fixed.append(rawText, fixedPos, nameEnd).append(';');
+          fixedPos = nameEnd;
+        }
+        if (broken != null) { broken.add(rawText.substring(amp, nameEnd)); }
+      }
+      if (codepoint >= 0) {
+        if (plain != null) {
+          plain.append(rawText, plainPos, amp).appendCodePoint(codepoint);
+          // Skip over any semicolon.
+          plainPos = isBroken ? nameEnd : nameEnd + 1;
+        }
+        amp = nameEnd - 1;
+      }
+    }
+    if (fixed != null) { fixed.append(rawText, fixedPos, end); }
+    if (plain != null) { plain.append(rawText, plainPos, end); }
+    return anyBroken;
+  }
+
+  private static boolean isSemicolonOptional(PunctuationTrie<Integer> t) {
+    return t != null && t.isTerminal()
+        && (t.getValue().intValue() & HtmlEntities.SEMICOLON_OPTIONAL) != 0;
+  }
+
+  private static boolean isAsciiAlnum(char ch) {
+    return (ch >= '0' && ch <= '9') || ((ch | 32) >= 'a' && (ch | 32) <= 'z');
+  }
+
+  private static int hexDigit(char ch) {
+    if (ch >= '0' && ch <= '9') { return ch - '0'; }
+    int lch = ch | 32;
+    if (lch >= 'a' && lch <= 'f') { return lch - ('a' - 10); }
+    return -1;
+  }
+}
@@ -56,6 +56,8 @@ final class CajaTreeBuilder extends TreeBuilder<Node> {
   private Token<HtmlTokenType> startTok;
   private Token<HtmlTokenType> endTok;
   private Token<HtmlTokenType> pendingText;
+  // The plain text of pendingText if already decoded.
+  private String pendingPlainText;
   // The root html element.  TreeBuilder always creates a valid tree with
   // html, head, and body elements.
   private Element rootElement;
@@ -67,7 +69,7 @@ final class CajaTreeBuilder extends TreeBuilder<Node> {
   // and other scoping elements.
   // @see #closeUnclosedNodes
   private final Set<Element> unpoppedElements = Sets.newHashSet();
-  private final Document doc;
+  private Document doc;
   final boolean needsDebugData;
   private final MessageQueue mq;
 
@@ -81,6 +83,22 @@ final class CajaTreeBuilder extends TreeBuilder<Node> {
     setScriptingEnabled(true);  // Affects behavior of <noscript>
   }
 
+  /**
+   * Prepares this builder to parse another input into the given document,
+   * dropping any state from the last parse.
+   * {@link #startTokenization} must be called before the next parse.
+   */
+  void reset(Document doc) {
+    this.doc = doc;
+    startTok = endTok = pendingText = null;
+    pendingPlainText = null;
+    rootElement = null;
+    fragmentBounds = null;
+    unpoppedElements.clear();
+    // Clears any quirks mode left by a DOCTYPE in the last input.
+    setFragmentContext(null);
+  }
+
   Element getRootElement() {
     return rootElement;
   }
@@ -116,6 +134,7 @@ final class CajaTreeBuilder extends TreeBuilder<Node> {
     }
     startTok = start;
     endTok = end;
+    pendingPlainText = null;
     switch (startTok.type) {
       case TEXT: case UNESCAPED: case CDATA:
         pendingText = startTok;
@@ -125,6 +144,14 @@ final class CajaTreeBuilder extends TreeBuilder<Node> {
     if (fragmentBounds == null) { fragmentBounds = start.pos; }
   }
 
+  /**
+   * Supplies the plain text of the TEXT token most recently passed to
+   * {@link #setTokenContext} so that it need not be decoded again.
+   */
+  void setPendingPlainText(String plainText) {
+    pendingPlainText = plainText;
+  }
+
   void finish(FilePosition pos) {
     if (DEBUG) { System.err.println("Finished at " + pos); }
     // The position of this token is used for any end tags implied by the end
@@ -184,12 +211,15 @@ final class CajaTreeBuilder extends TreeBuilder<Node> {
 
     String tokText;
     Token<HtmlTokenType> tok = pendingText;
+    String decodedText = null;
     pendingText = null;
     if (tok != null && bufferMatches(buf, start, length, tok.text)) {
       tokText = tok.text;
+      decodedText = pendingPlainText;
     } else {
       tokText = String.valueOf(buf, start, length);
     }
+    pendingPlainText = null;
 
     FilePosition pos = startTok.pos;
     String htmlText = null;
@@ -199,7 +229,8 @@ final class CajaTreeBuilder extends TreeBuilder<Node> {
         case TEXT:
           pos = tok.pos;
           htmlText = tokText;
-          plainText = Nodes.decode(htmlText);
+          plainText = decodedText != null
+              ? decodedText : Nodes.decode(htmlText);
           break;
         case UNESCAPED: case CDATA:
           pos = tok.pos;
@@ -65,12 +65,14 @@ import org.w3c.dom.Node;
  * @author mikesamuel@gmail.com
  */
 public class DomParser {
-  private final TokenQueue<HtmlTokenType> tokens;
+  private TokenQueue<HtmlTokenType> tokens;
   private final boolean asXml;
   private final MessageQueue mq;
   private final Namespaces ns;
   private boolean needsDebugData = true;
   private DOMImplementation domImpl = null;
+  /** The HTML element stack from the last parse, reset for the next one. */
+  private Html5ElementStack html5Stack;
 
   public DomParser(
       TokenQueue<HtmlTokenType> tokens, boolean asXml, MessageQueue mq) {
@@ -112,6 +114,22 @@ public class DomParser {
 
   public TokenQueue<HtmlTokenType> getTokenQueue() { return tokens; }
 
+  /**
+   * Points this parser at another input so that it can be parsed reusing the
+   * HTML tree builder and the buffers from earlier parses.
+   * <p>
+   * This makes a parser per thread cheaper than a parser per input when
+   * parsing many small fragments:<pre>
+   * DomParser p = parserForThisThread.get();
+   * p.reset(DomParser.makeTokenQueue(pos, reader, false, false));
+   * DocumentFragment f = p.parseFragment(doc);</pre>
+   *
+   * @param tokens must be lexed as XML iff {@link #asXml}.
+   */
+  public void reset(TokenQueue<HtmlTokenType> tokens) {
+    this.tokens = tokens;
+  }
+
   public boolean asXml() { return asXml; }
   public boolean getNeedsDebugData() { return needsDebugData; }
   public boolean wantsComments() {
@@ -141,11 +159,17 @@ public class DomParser {
       String nsUri = DoctypeMaker.systemIdToNsUri(sysid);
       if (nsUri != null) { ns = new Namespaces(ns, "", nsUri); }
     }
-    return asXml
-        ? OpenElementStack.Factory.createXmlElementStack(
-            doc, needsDebugData, ns, mq)
-        : OpenElementStack.Factory.createHtml5ElementStack(
-            doc, needsDebugData, mq);
+    if (asXml) {
+      return OpenElementStack.Factory.createXmlElementStack(
+          doc, needsDebugData, ns, mq);
+    }
+    if (html5Stack != null
+        && html5Stack.getNeedsDebugData() == needsDebugData) {
+      html5Stack.reset(doc);
+    } else {
+      html5Stack = new Html5ElementStack(doc, needsDebugData, mq);
+    }
+    return html5Stack;
   }
 
   public void setDomImpl(DOMImplementation domImpl) {
@@ -650,24 +674,20 @@ public class DomParser {
       value = Token.instance("", HtmlTokenType.ATTRVALUE, name.pos);
     }
     String rawValue = value.text;
-    if (!asXml) {
-      rawValue = out.fixBrokenEntities(rawValue, value.pos);
-    }
-    String decodedValue;
     int vlen = rawValue.length();
+    int start = 0, end = vlen;
     if (vlen >= 2) {
       char ch0 = rawValue.charAt(0);
       char chn = rawValue.charAt(vlen - 1);
-      int start = 0, end = vlen;
       if (chn == '"' || chn == '\'') {
         --end;
         // Handle unbalanced quotes as in <foo bar=baz">
         if (ch0 == chn) { start = 1; }
       }
-      decodedValue = Nodes.decode(rawValue.substring(start, end));
-    } else {
-      decodedValue = Nodes.decode(rawValue);
     }
+    // Quotes are not part of any entity, so fixing entities in the unquoted
+    // value is the same as fixing them before unquoting.
+    String decodedValue = out.fixAndDecode(rawValue, start, end, value.pos);
     return new AttrStub(name, value, decodedValue);
   }
 
@@ -33,8 +33,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.DOMException;
@@ -67,9 +65,10 @@ public class Html5ElementStack implements OpenElementStack {
   public static final Logger logger = Logger.getLogger(
       Html5ElementStack.class.getName());
   private final CajaTreeBuilder builder;
+  private final Tokenizer tokenizer;
   private final char[] charBuf = new char[1024];
   private final MessageQueue mq;
-  private final Document doc;
+  private Document doc;
   private final boolean needsDebugData;
   private final Map<String, ElementName> elNames = Maps.newHashMap();
   private boolean isFragment;
@@ -87,8 +86,27 @@ public class Html5ElementStack implements OpenElementStack {
     this.needsDebugData = needsDebugData;
     this.mq = queue;
     builder = new CajaTreeBuilder(doc, needsDebugData, mq);
+    // The tree builder only uses the tokenizer to switch content models, so
+    // one instance can be shared by successive parses.
+    tokenizer = new Tokenizer(builder);
   }
 
+  /**
+   * Prepares this stack to parse another input into the given document so
+   * that the tree builder and its buffers can be reused.
+   * {@link #open} must be called before the next parse.
+   */
+  void reset(Document doc) {
+    this.doc = doc;
+    builder.reset(doc);
+    isFragment = false;
+    needsNamespaceFixup = false;
+    topLevelHtmlFromInput = false;
+    processingFirstTag = true;
+  }
+
+  boolean getNeedsDebugData() { return needsDebugData; }
+
   public final Document getDocument() { return doc; }
 
   public boolean needsNamespaceFixup() { return needsNamespaceFixup; }
@@ -101,7 +119,7 @@ public class Html5ElementStack implements OpenElementStack {
     }
     builder.setDoctypeExpectation(DoctypeExpectation.NO_DOCTYPE_ERRORS);
     try {
-      builder.startTokenization(new Tokenizer(builder));
+      builder.startTokenization(tokenizer);
     } catch (SAXException ex) {
       throw new SomethingWidgyHappenedError(ex);
     }
@@ -516,10 +534,26 @@ public class Html5ElementStack implements OpenElementStack {
     }
     // htmlparser doesn't recognize \r as whitespace.
     String text = textToken.text.replaceAll("\r\n?", "\n");
+    String plainText = null;
     if (textToken.type == HtmlTokenType.TEXT) {
-      text = fixBrokenEntities(text, textToken.pos);
+      if (text.indexOf('&') < 0) {
+        plainText = text;
+      } else {
+        // Fix and decode in one pass so that CajaTreeBuilder need not decode.
+        int len = text.length();
+        StringBuilder fixed = new StringBuilder(len + 16);
+        StringBuilder plain = new StringBuilder(len);
+        List<String> broken = needsDebugData
+            ? Lists.<String>newArrayList() : null;
+        if (BrokenEntityFixer.fixAndDecode(
+                text, 0, len, fixed, plain, broken)) {
+          text = fixed.toString();
+          reportBrokenEntities(broken, textToken.pos);
+        }
+        plainText = plain.toString();
+      }
     }
-    if (text.equals(textToken.text)) {
+    if (!text.equals(textToken.text)) {
       textToken = Token.instance(text, textToken.type, textToken.pos);
     }
     char[] chars;
@@ -531,6 +565,7 @@ public class Html5ElementStack implements OpenElementStack {
       chars = text.toCharArray();
     }
     builder.setTokenContext(textToken, textToken);
+    builder.setPendingPlainText(plainText);
     try {
       builder.characters(chars, 0, n);
     } catch (SAXException ex) {
@@ -538,71 +573,38 @@ public class Html5ElementStack implements OpenElementStack {
     }
   }
 
-  /**
-   * The set of named entities that do not need to be followed by a semicolon.
-   * This was derived empirically by testing webkit based browsers.
-   */
-  private static final String FIXABLE_ENTITY_NAMES = (
-      "(?:AACUTE|ACIRC|ACUTE|AELIG|AGRAVE|AMP|ARING|ATILDE|AUML|Aacute|Acirc"
-      + "|Agrave|Aring|Atilde|Auml|BRVBAR|CCEDIL|CEDIL|CENT|COPY|CURREN|Ccedil"
-      + "|DEG|DIVIDE|EACUTE|ECIRC|EGRAVE|ETH|EUML|Eacute|Ecirc|Egrave|Euml"
-      + "|FRAC12|FRAC14|FRAC34|GT|IACUTE|ICIRC|IEXCL|IGRAVE|IQUEST|IUML|Iacute"
-      + "|Icirc|Igrave|Iuml|LAQUO|LT|MACR|MICRO|MIDDOT|NBSP|NOT|NTILDE|Ntilde"
-      + "|OACUTE|OCIRC|OGRAVE|ORDF|ORDM|OSLASH|OTILDE|OUML|Oacute|Ocirc|Ograve"
-      + "|Oslash|Otilde|Ouml|PARA|PLUSMN|POUND|QUOT|RAQUO|REG|SECT|SHY|SUP1"
-      + "|SUP2|SUP3|SZLIG|THORN|TIMES|UACUTE|UCIRC|UGRAVE|UML|UUML|Uacute|Ucirc"
-      + "|Ugrave|Uuml|YACUTE|YEN|YUML|Yacute|aacute|acirc|acute|aelig|agrave"
-      + "|amp|aring|atilde|auml|brvbar|ccedil|cedil|cent|copy|curren|deg|divide"
-      + "|eacute|ecirc|egrave|eth|euml|frac12|frac14|frac34|gt|iacute|icirc"
-      + "|iexcl|igrave|iquest|iuml|laquo|lt|macr|micro|middot|nbsp|not|ntilde"
-      + "|oacute|ocirc|ograve|ordf|ordm|oslash|otilde|ouml|para|plusmn|pound"
-      + "|quot|raquo|reg|sect|shy|sup1|sup2|sup3|szlig|thorn|times|uacute|ucirc"
-      + "|ugrave|uml|uuml|yacute|yen|yuml)");
-
-  /**
-   * Matches possible HTML entities that lack a closing semicolon.
-   */
-  private static final Pattern BROKEN_ENTITY = Pattern.compile(
-      ""
-      + "&(?:"
-        // A named entity.
-        // We require that the entity name not be followed by an ASCII
-        // identifier character or an equals sign.
-        // If it were followed by an equals sign, then it is likely part of a
-        // URL query parameter.
-        + FIXABLE_ENTITY_NAMES + "(?![=;0-9A-Za-z])"
-        // A numeric entity.
-        + "|#(?:"
-          // A decimal entity.
-          + "[0-9]{1,7}(?![=;0-9])"
-          // A hexadecimal entity.
-          + "|[Xx][0-9A-Fa-f]{1,6}(?![=;0-9A-Za-z])"
-        + ")"
-      + ")"
-      );
   public String fixBrokenEntities(String rawText, FilePosition fp) {
-    int amp = rawText.indexOf('&');
-    if (amp >= 0) {
-      Matcher m = BROKEN_ENTITY.matcher(rawText);
-      if (m.find(amp)) {
-        StringBuilder sb = new StringBuilder(rawText.length() + 16);
-        int pos = 0;
-        do {
-          sb.append(rawText, pos, m.end()).append(';');
-          pos = m.end();
-          if (needsDebugData) {
-            mq.addMessage(
-                MessageType.MALFORMED_HTML_ENTITY, fp,
-                MessagePart.Factory.valueOf(m.group()));
-          }
-        } while (m.find());
-        if (pos != 0) {
-          sb.append(rawText, pos, rawText.length());
-          return sb.toString();
-        }
-      }
+    if (rawText.indexOf('&') < 0) { return rawText; }
+    StringBuilder fixed = new StringBuilder(rawText.length() + 16);
+    List<String> broken = needsDebugData ? Lists.<String>newArrayList() : null;
+    if (!BrokenEntityFixer.fixAndDecode(
+            rawText, 0, rawText.length(), fixed, null, broken)) {
+      return rawText;
+    }
+    reportBrokenEntities(broken, fp);
+    return fixed.toString();
+  }
+
+  public String fixAndDecode(
+      String rawText, int start, int end, FilePosition fp) {
+    int amp = rawText.indexOf('&', start);
+    if (amp < 0 || amp >= end) { return rawText.substring(start, end); }
+    StringBuilder plain = new StringBuilder(end - start);
+    List<String> broken = needsDebugData ? Lists.<String>newArrayList() : null;
+    if (BrokenEntityFixer.fixAndDecode(
+            rawText, start, end, null, plain, broken)) {
+      reportBrokenEntities(broken, fp);
+    }
+    return plain.toString();
+  }
+
+  private void reportBrokenEntities(List<String> broken, FilePosition fp) {
+    if (broken == null) { return; }
+    for (String entity : broken) {
+      mq.addMessage(
+          MessageType.MALFORMED_HTML_ENTITY, fp,
+          MessagePart.Factory.valueOf(entity));
     }
-    return rawText;
   }
 
   /**
@@ -29,7 +29,8 @@ import org.w3c.dom.DocumentFragment;
  * {@link DomParser} to build a DomTree.
  *
  * <p>
- * Instances of this class are not reusable over multiple parses.
+ * Instances of this class are not reusable over multiple parses, though
+ * {@link DomParser} resets and reuses its HTML stack across parses.
  *
  * <p>
  * The {@link OpenElementStack.Factory Factory} class has implementations of
@@ -108,6 +109,14 @@ public interface OpenElementStack {
    */
   String fixBrokenEntities(String rawText, FilePosition textPos);
 
+  /**
+   * Returns the plain text of rawText[start:end] after fixing entities as
+   * {@link #fixBrokenEntities} does, in one pass, and emits the same messages.
+   * @param textPos the position of rawText in the input.
+   */
+  String fixAndDecode(
+      String rawText, int start, int end, FilePosition textPos);
+
   /**
    * Constructors.
    */
@@ -220,4 +220,9 @@ class XmlElementStack extends AbstractElementStack {
   public String fixBrokenEntities(String rawText, FilePosition textPos) {
     return rawText;
   }
+
+  public String fixAndDecode(
+      String rawText, int start, int end, FilePosition textPos) {
+    return Nodes.decode(rawText.substring(start, end));
+  }
 }
@@ -34,6 +34,10 @@ public abstract class AbstractExpression
     extends AbstractParseTreeNode implements Expression {
   private static final long serialVersionUID = 6796876031318912717L;
 
+  static {
+    JsNodeFactories.init();
+  }
+
   @ReflectiveCtor
   public AbstractExpression(
       FilePosition pos, Class<? extends ParseTreeNode> childClass) {
@@ -36,6 +36,10 @@ public abstract class AbstractStatement
     extends AbstractParseTreeNode implements Statement {
   private static final long serialVersionUID = -3327463812140885737L;
 
+  static {
+    JsNodeFactories.init();
+  }
+
   @ReflectiveCtor
   public AbstractStatement(
       FilePosition pos, Class<? extends ParseTreeNode> childClass) {
@@ -0,0 +1,490 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.js;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsTokenType;
+import com.google.caja.lexer.SourceBreaks;
+import com.google.caja.lexer.Token;
+import com.google.caja.parser.AbstractParseTreeNode;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.ParseTreeNodes;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, versioned binary encoding of JavaScript parse trees that is much
+ * cheaper to read than re-lexing and re-parsing the source.
+ *
+ * <p>The encoding is<pre>
+ *   magic "CJST", varint {@link #FORMAT_VERSION}
+ *   string table:  varint count, then each string as a varint length followed
+ *                  by one varint per UTF-16 code unit
+ *   source:        varint string index of the source URI (0 if none),
+ *                  varint line number zero, varint line break count,
+ *                  then line starts as varint deltas
+ *   root node
+ * </pre>
+ * where each node is<pre>
+ *   varint string index of the node class name
+ *   value:         a tag byte followed by a tag specific payload
+ *   position:      varint 0 for unknown, or 1 followed by a zig-zag varint delta
+ *                  from the previous start and a varint length
+ *   comments:      varint count, then for each a varint token type index,
+ *                  a varint text index and a position
+ *   children:      varint count followed by the children
+ * </pre>
+ *
+ * <p>Positions are only preserved for the source of the first node with a known
+ * position.  Positions in any other source are written as unknown, which is
+ * never the case for the output of a single {@link Parser#parse}.
+ */
+public final class BinaryJsTrees {
+  /** Changes whenever the format changes incompatibly. */
+  public static final int FORMAT_VERSION = 1;
+
+  private static final byte[] MAGIC = { 'C', 'J', 'S', 'T' };
+
+  private static final int VALUE_NONE = 0;
+  private static final int VALUE_STRING = 1;
+  private static final int VALUE_TRUE = 2;
+  private static final int VALUE_FALSE = 3;
+  private static final int VALUE_LONG = 4;
+  private static final int VALUE_DOUBLE = 5;
+  private static final int VALUE_OPERATOR = 6;
+  private static final int VALUE_REGEXP = 7;
+  private static final int VALUE_NULL_PLACEHOLDER = 8;
+
+  private static final String PACKAGE_PREFIX
+      = BinaryJsTrees.class.getPackage().getName() + ".";
+
+  /** The value of every {@link NullLiteral}. */
+  private static final Object NULL_PLACEHOLDER
+      = new NullLiteral(FilePosition.UNKNOWN).getValue();
+
+  private BinaryJsTrees() { /* uninstantiable */ }
+
+  /**
+   * Writes the tree rooted at root to out.
+   * Synthetic attributes are not written.
+   *
+   * @throws IllegalArgumentException if the tree contains a node outside
+   *     {@code com.google.caja.parser.js} or a value that can't be encoded.
+   */
+  public static void write(ParseTreeNode root, OutputStream out)
+      throws IOException {
+    new Writer().write(root, out);
+  }
+
+  /**
+   * Reads a tree written by {@link #write}.
+   *
+   * @param source if not null, overrides the source recorded in the input.
+   * @throws IOException if the input is truncated, malformed, or was written
+   *     by an incompatible version.
+   */
+  public static ParseTreeNode read(InputStream in, InputSource source)
+      throws IOException {
+    return new Reader(in).read(source);
+  }
+
+  private static final class Writer {
+    private final Map<String, Integer> strings = Maps.newLinkedHashMap();
+    private SourceBreaks breaks;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private int lastStart;
+
+    Writer() {
+      strings.put("", 0);
+    }
+
+    void write(ParseTreeNode root, OutputStream out) throws IOException {
+      findBreaks(root);
+      if (breaks != null) { intern(breaks.source().getUri().toString()); }
+      writeNode(root);
+
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      header.write(MAGIC);
+      writeVarint(FORMAT_VERSION, header);
+      writeVarint(strings.size(), header);
+      for (String s : strings.keySet()) {
+        int n = s.length();
+        writeVarint(n, header);
+        for (int i = 0; i < n; ++i) { writeVarint(s.charAt(i), header); }
+      }
+      if (breaks != null) {
+        writeVarint(intern(breaks.source().getUri().toString()), header);
+        writeVarint(breaks.getLineNumberZero(), header);
+        int n = breaks.getLineBreakCount();
+        writeVarint(n, header);
+        int last = 0;
+        for (int i = 0; i < n; ++i) {
+          int lineStart = breaks.getLineStart(i);
+          writeVarint(zigzag(lineStart - last), header);
+          last = lineStart;
+        }
+      } else {
+        writeVarint(0, header);
+      }
+      header.writeTo(out);
+      body.writeTo(out);
+      out.flush();
+    }
+
+    private void findBreaks(ParseTreeNode root) {
+      // Iterative so that deeply nested expressions don't blow the stack.
+      List<ParseTreeNode> stack = Lists.newArrayList(root);
+      while (!stack.isEmpty()) {
+        ParseTreeNode n = stack.remove(stack.size() - 1);
+        FilePosition pos = n.getFilePosition();
+        if (!InputSource.UNKNOWN.equals(pos.source())) {
+          breaks = pos.getBreaks();
+          return;
+        }
+        List<? extends ParseTreeNode> children = n.children();
+        for (int i = children.size(); --i >= 0;) { stack.add(children.get(i)); }
+      }
+    }
+
+    private void writeNode(ParseTreeNode root) throws IOException {
+      // Iterative so that deeply nested expressions don't blow the stack.
+      // Nodes are written in the same pre-order a recursive walk would use.
+      List<ParseTreeNode> stack = Lists.newArrayList(root);
+      while (!stack.isEmpty()) {
+        ParseTreeNode node = stack.remove(stack.size() - 1);
+        Class<?> cl = node.getClass();
+        if (!cl.getName().startsWith(PACKAGE_PREFIX)
+            || !(node instanceof AbstractParseTreeNode)) {
+          throw new IllegalArgumentException(cl.getName());
+        }
+        writeVarint(intern(cl.getName()), body);
+        writeValue(node.getValue());
+        writePosition(node.getFilePosition());
+        List<Token<?>> comments = node.getComments();
+        writeVarint(comments.size(), body);
+        for (Token<?> comment : comments) {
+          if (!(comment.type instanceof JsTokenType)) {
+            throw new IllegalArgumentException(comment.type.toString());
+          }
+          writeVarint(intern(((JsTokenType) comment.type).name()), body);
+          writeVarint(intern(comment.text), body);
+          writePosition(comment.pos);
+        }
+        List<? extends ParseTreeNode> children = node.children();
+        writeVarint(children.size(), body);
+        for (int i = children.size(); --i >= 0;) { stack.add(children.get(i)); }
+      }
+    }
+
+    private void writeValue(Object value) throws IOException {
+      if (value == null) {
+        body.write(VALUE_NONE);
+      } else if (value instanceof String) {
+        body.write(VALUE_STRING);
+        writeVarint(intern((String) value), body);
+      } else if (value instanceof Boolean) {
+        body.write(((Boolean) value).booleanValue() ? VALUE_TRUE : VALUE_FALSE);
+      } else if (value instanceof Long) {
+        body.write(VALUE_LONG);
+        writeVarLong(zigzag(((Long) value).longValue()), body);
+      } else if (value instanceof Double) {
+        body.write(VALUE_DOUBLE);
+        long bits = Double.doubleToRawLongBits(((Double) value).doubleValue());
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          body.write((int) (bits >>> shift));
+        }
+      } else if (value instanceof Operator) {
+        body.write(VALUE_OPERATOR);
+        writeVarint(intern(((Operator) value).name()), body);
+      } else if (value instanceof RegexpLiteral.RegexpWrapper) {
+        body.write(VALUE_REGEXP);
+        writeVarint(intern(value.toString()), body);
+      } else if (value == NULL_PLACEHOLDER) {
+        body.write(VALUE_NULL_PLACEHOLDER);
+      } else {
+        throw new IllegalArgumentException(value.getClass().getName());
+      }
+    }
+
+    private void writePosition(FilePosition pos) throws IOException {
+      if (breaks == null || pos.getBreaks() != breaks) {
+        writeVarint(0, body);
+      } else {
+        writeVarint(1, body);
+        int start = pos.startCharInFile();
+        writeVarint(zigzag(start - lastStart), body);
+        writeVarint(pos.length(), body);
+        lastStart = start;
+      }
+    }
+
+    private int intern(String s) {
+      Integer index = strings.get(s);
+      if (index == null) {
+        index = strings.size();
+        strings.put(s, index);
+      }
+      return index;
+    }
+  }
+
+  private static final class Reader {
+    private final InputStream in;
+    private String[] strings;
+    private SourceBreaks breaks;
+    private int lastStart;
+    private final Map<String, Class<? extends ParseTreeNode>> classes
+        = Maps.newHashMap();
+
+    Reader(InputStream in) {
+      this.in = in;
+    }
+
+    ParseTreeNode read(InputSource source) throws IOException {
+      for (byte b : MAGIC) {
+        if (readByte() != b) { throw new IOException("Not a binary JS tree"); }
+      }
+      int version = readVarint();
+      if (version != FORMAT_VERSION) {
+        throw new IOException("Unsupported version " + version);
+      }
+      int nStrings = readVarint();
+      strings = new String[nStrings];
+      char[] buf = new char[64];
+      for (int i = 0; i < nStrings; ++i) {
+        int n = readVarint();
+        if (n > buf.length) { buf = new char[Math.max(n, buf.length * 2)]; }
+        for (int j = 0; j < n; ++j) { buf[j] = (char) readVarint(); }
+        strings[i] = new String(buf, 0, n);
+      }
+      int uriIndex = readVarint();
+      if (uriIndex != 0) {
+        if (source == null) {
+          try {
+            source = new InputSource(new URI(string(uriIndex)));
+          } catch (URISyntaxException ex) {
+            throw new IOException(ex.getMessage());
+          }
+        }
+        breaks = new SourceBreaks(source, readVarint());
+        int last = 0;
+        for (int n = readVarint(); --n >= 0;) {
+          last += unzigzag(readVarint());
+          breaks.lineStartsAt(last);
+        }
+      }
+      return readNode();
+    }
+
+    /** A node whose children are still being read. */
+    private static final class PendingNode {
+      final Class<? extends ParseTreeNode> cl;
+      final Object value;
+      final FilePosition pos;
+      final List<Token<?>> comments;
+      final List<ParseTreeNode> children;
+      final int nChildren;
+
+      PendingNode(
+          Class<? extends ParseTreeNode> cl, Object value, FilePosition pos,
+          List<Token<?>> comments, int nChildren) {
+        this.cl = cl;
+        this.value = value;
+        this.pos = pos;
+        this.comments = comments;
+        this.nChildren = nChildren;
+        this.children = new ArrayList<ParseTreeNode>(nChildren);
+      }
+
+      ParseTreeNode build() {
+        ParseTreeNode node = ParseTreeNodes.newNodeInstance(
+            cl, pos, value, children);
+        if (!comments.isEmpty()) {
+          ((AbstractParseTreeNode) node).setComments(comments);
+        }
+        return node;
+      }
+    }
+
+    private ParseTreeNode readNode() throws IOException {
+      // Iterative so that deeply nested expressions don't blow the stack.
+      List<PendingNode> stack = Lists.newArrayList();
+      while (true) {
+        PendingNode pending = readNodeHeader();
+        if (pending.nChildren != 0) {
+          stack.add(pending);
+          continue;
+        }
+        ParseTreeNode node = pending.build();
+        // Attach node to its parent, building each parent that is complete.
+        while (true) {
+          if (stack.isEmpty()) { return node; }
+          PendingNode parent = stack.get(stack.size() - 1);
+          parent.children.add(node);
+          if (parent.children.size() < parent.nChildren) { break; }
+          stack.remove(stack.size() - 1);
+          node = parent.build();
+        }
+      }
+    }
+
+    private PendingNode readNodeHeader() throws IOException {
+      Class<? extends ParseTreeNode> cl = nodeClass(string(readVarint()));
+      Object value = readValue();
+      FilePosition pos = readPosition();
+      List<Token<?>> comments = Collections.emptyList();
+      int nComments = readVarint();
+      if (nComments != 0) {
+        comments = new ArrayList<Token<?>>(nComments);
+        for (int i = 0; i < nComments; ++i) {
+          JsTokenType type;
+          try {
+            type = JsTokenType.valueOf(string(readVarint()));
+          } catch (IllegalArgumentException ex) {
+            throw new IOException(ex.getMessage());
+          }
+          String text = string(readVarint());
+          comments.add(Token.instance(text, type, readPosition()));
+        }
+      }
+      return new PendingNode(cl, value, pos, comments, readVarint());
+    }
+
+    private Object readValue() throws IOException {
+      int tag = readByte();
+      switch (tag) {
+        case VALUE_NONE: return null;
+        case VALUE_STRING: return string(readVarint());
+        case VALUE_TRUE: return Boolean.TRUE;
+        case VALUE_FALSE: return Boolean.FALSE;
+        case VALUE_LONG: return Long.valueOf(unzigzag(readVarLong()));
+        case VALUE_DOUBLE:
+          long bits = 0;
+          for (int i = 8; --i >= 0;) { bits = (bits << 8) | readByte(); }
+          return Double.valueOf(Double.longBitsToDouble(bits));
+        case VALUE_OPERATOR:
+          try {
+            return Operator.valueOf(string(readVarint()));
+          } catch (IllegalArgumentException ex) {
+            throw new IOException(ex.getMessage());
+          }
+        case VALUE_REGEXP:
+          return new RegexpLiteral.RegexpWrapper(string(readVarint()));
+        case VALUE_NULL_PLACEHOLDER: return NULL_PLACEHOLDER;
+        default: throw new IOException("Bad value tag " + tag);
+      }
+    }
+
+    private FilePosition readPosition() throws IOException {
+      int kind = readVarint();
+      if (kind == 0) { return FilePosition.UNKNOWN; }
+      if (kind != 1 || breaks == null) {
+        throw new IOException("Bad position");
+      }
+      int start = lastStart + unzigzag(readVarint());
+      int length = readVarint();
+      lastStart = start;
+      return breaks.toFilePosition(start, start + length);
+    }
+
+    private Class<? extends ParseTreeNode> nodeClass(String name)
+        throws IOException {
+      Class<? extends ParseTreeNode> cl = classes.get(name);
+      if (cl == null) {
+        // Don't let a corrupt input load arbitrary classes.
+        if (!name.startsWith(PACKAGE_PREFIX)) {
+          throw new IOException("Bad node class " + name);
+        }
+        try {
+          cl = Class.forName(name).asSubclass(ParseTreeNode.class);
+        } catch (ClassNotFoundException ex) {
+          throw new IOException("Bad node class " + name);
+        } catch (ClassCastException ex) {
+          throw new IOException("Bad node class " + name);
+        }
+        classes.put(name, cl);
+      }
+      return cl;
+    }
+
+    private String string(int index) throws IOException {
+      if (index < 0 || index >= strings.length) {
+        throw new IOException("Bad string index " + index);
+      }
+      return strings[index];
+    }
+
+    private int readByte() throws IOException {
+      int b = in.read();
+      if (b < 0) { throw new EOFException(); }
+      return b;
+    }
+
+    private int readVarint() throws IOException {
+      int result = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = readByte();
+        result |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) { return result; }
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    private long readVarLong() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 70; shift += 7) {
+        int b = readByte();
+        result |= ((long) (b & 0x7f)) << shift;
+        if ((b & 0x80) == 0) { return result; }
+      }
+      throw new IOException("Malformed varint");
+    }
+  }
+
+  private static void writeVarint(int n, OutputStream out) throws IOException {
+    while ((n & ~0x7f) != 0) {
+      out.write((n & 0x7f) | 0x80);
+      n >>>= 7;
+    }
+    out.write(n);
+  }
+
+  private static void writeVarLong(long n, OutputStream out)
+      throws IOException {
+    while ((n & ~0x7fL) != 0) {
+      out.write((int) ((n & 0x7f) | 0x80));
+      n >>>= 7;
+    }
+    out.write((int) n);
+  }
+
+  private static int zigzag(int n) { return (n << 1) ^ (n >> 31); }
+  private static int unzigzag(int n) { return (n >>> 1) ^ -(n & 1); }
+  private static long zigzag(long n) { return (n << 1) ^ (n >> 63); }
+  private static long unzigzag(long n) { return (n >>> 1) ^ -(n & 1); }
+}
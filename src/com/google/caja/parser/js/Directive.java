@@ -34,6 +34,10 @@ import java.util.List;
 public final class Directive extends AbstractParseTreeNode {
   private static final long serialVersionUID = 946831596035589021L;
 
+  static {
+    JsNodeFactories.init();
+  }
+
   /**
    * The directive strings recognized by Caja.
    */
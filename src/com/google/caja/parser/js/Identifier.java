@@ -36,6 +36,11 @@ import java.util.regex.Pattern;
  */
 public final class Identifier extends AbstractParseTreeNode {
   private static final long serialVersionUID = 4119434470934007127L;
+
+  static {
+    JsNodeFactories.init();
+  }
+
   private final String name;
 
   @ReflectiveCtor
@@ -108,7 +113,23 @@ public final class Identifier extends AbstractParseTreeNode {
   }
 
   private static boolean isValid(String name) {
-    return isValidJs(name) || isValidQuasiliteral(name) || isValidGWT(name);
+    return isAsciiJs(name) || isValidJs(name) || isValidQuasiliteral(name)
+        || isValidGWT(name);
+  }
+
+  /**
+   * A fast path for the common case which avoids the regular expression and
+   * normalization checks since ASCII strings are always normalized.
+   */
+  private static boolean isAsciiJs(String name) {
+    for (int i = 0, n = name.length(); i < n; ++i) {
+      char ch = name.charAt(i);
+      if (!((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')
+            || ch == '_' || ch == '$' || (i != 0 && ch >= '0' && ch <= '9'))) {
+        return false;
+      }
+    }
+    return true;
   }
 
   private static boolean isValidJs(String name) {
@@ -0,0 +1,496 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.js;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.ParseTreeNodes;
+import com.google.caja.parser.ParseTreeNodes.Factory;
+
+import java.util.List;
+
+/**
+ * {@link Factory Factories} for the JavaScript parse tree nodes so that
+ * cloning and rebuilding trees does not construct each node reflectively.
+ * <p>
+ * Each factory calls its class's {@link ParseTreeNode.ReflectiveCtor}, so a
+ * change to that constructor's signature needs a matching change here.
+ * The factories are registered when the first JavaScript node class is
+ * initialized.
+ */
+final class JsNodeFactories {
+  static {
+    ParseTreeNodes.registerFactory(
+        ArrayConstructor.class, new Factory<ArrayConstructor>() {
+          public ArrayConstructor newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ArrayConstructor(
+                pos, (Void) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        AssignOperation.class, new Factory<AssignOperation>() {
+          public AssignOperation newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new AssignOperation(
+                pos, (Operator) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        Block.class, new Factory<Block>() {
+          public Block newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new Block(pos, (Void) value, statements(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        BooleanLiteral.class, new Factory<BooleanLiteral>() {
+          public BooleanLiteral newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new BooleanLiteral(pos, (Boolean) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        BreakStmt.class, new Factory<BreakStmt>() {
+          public BreakStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new BreakStmt(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        CaseStmt.class, new Factory<CaseStmt>() {
+          public CaseStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new CaseStmt(pos, (Void) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        CatchStmt.class, new Factory<CatchStmt>() {
+          public CatchStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new CatchStmt(pos, (Void) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        Conditional.class, new Factory<Conditional>() {
+          public Conditional newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new Conditional(pos, (Void) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        ContinueStmt.class, new Factory<ContinueStmt>() {
+          public ContinueStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ContinueStmt(pos, (String) value, statements(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        ControlOperation.class, new Factory<ControlOperation>() {
+          public ControlOperation newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ControlOperation(
+                pos, (Operator) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        DebuggerStmt.class, new Factory<DebuggerStmt>() {
+          public DebuggerStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new DebuggerStmt(pos, (Void) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        Declaration.class, new Factory<Declaration>() {
+          public Declaration newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new Declaration(pos, (Void) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        DefaultCaseStmt.class, new Factory<DefaultCaseStmt>() {
+          public DefaultCaseStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new DefaultCaseStmt(pos, (Void) value, blocks(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        Directive.class, new Factory<Directive>() {
+          public Directive newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new Directive(pos, (String) value, noChildren(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        DirectivePrologue.class, new Factory<DirectivePrologue>() {
+          public DirectivePrologue newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new DirectivePrologue(
+                pos, (Void) value, directives(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        DoWhileLoop.class, new Factory<DoWhileLoop>() {
+          public DoWhileLoop newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new DoWhileLoop(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        Elision.class, new Factory<Elision>() {
+          public Elision newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new Elision(pos, (Operator) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        ExpressionStmt.class, new Factory<ExpressionStmt>() {
+          public ExpressionStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ExpressionStmt(pos, (Void) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        FinallyStmt.class, new Factory<FinallyStmt>() {
+          public FinallyStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new FinallyStmt(pos, (Void) value, blocks(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        ForEachLoop.class, new Factory<ForEachLoop>() {
+          public ForEachLoop newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ForEachLoop(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        ForLoop.class, new Factory<ForLoop>() {
+          public ForLoop newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ForLoop(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        FormalParam.class, new Factory<FormalParam>() {
+          public FormalParam newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new FormalParam(pos, (Void) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        FunctionConstructor.class, new Factory<FunctionConstructor>() {
+          public FunctionConstructor newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new FunctionConstructor(pos, (Void) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        FunctionDeclaration.class, new Factory<FunctionDeclaration>() {
+          public FunctionDeclaration newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new FunctionDeclaration(pos, (Void) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        GetterProperty.class, new Factory<GetterProperty>() {
+          public GetterProperty newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new GetterProperty(pos, (Void) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        Identifier.class, new Factory<Identifier>() {
+          public Identifier newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new Identifier(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        IntegerLiteral.class, new Factory<IntegerLiteral>() {
+          public IntegerLiteral newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new IntegerLiteral(pos, (Number) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        LabeledStmtWrapper.class, new Factory<LabeledStmtWrapper>() {
+          public LabeledStmtWrapper newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new LabeledStmtWrapper(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        MultiDeclaration.class, new Factory<MultiDeclaration>() {
+          public MultiDeclaration newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new MultiDeclaration(
+                pos, (Void) value, declarations(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        Noop.class, new Factory<Noop>() {
+          public Noop newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new Noop(pos, (Void) value, statements(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        NullLiteral.class, new Factory<NullLiteral>() {
+          public NullLiteral newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            // The value is NullLiteral's private placeholder.
+            return new NullLiteral(pos);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        ObjectConstructor.class, new Factory<ObjectConstructor>() {
+          public ObjectConstructor newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ObjectConstructor(
+                pos, (Void) value, properties(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        PlainModule.class, new Factory<PlainModule>() {
+          public PlainModule newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new PlainModule(pos, (Void) value, blocks(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        RealLiteral.class, new Factory<RealLiteral>() {
+          public RealLiteral newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new RealLiteral(pos, (Number) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        Reference.class, new Factory<Reference>() {
+          public Reference newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new Reference(pos, (Void) value, nodes(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        RegexpLiteral.class, new Factory<RegexpLiteral>() {
+          public RegexpLiteral newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new RegexpLiteral(
+                pos, (RegexpLiteral.RegexpWrapper) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        RenderedExpression.class, new Factory<RenderedExpression>() {
+          public RenderedExpression newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new RenderedExpression(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        ReturnStmt.class, new Factory<ReturnStmt>() {
+          public ReturnStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ReturnStmt(pos, (Void) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        SetterProperty.class, new Factory<SetterProperty>() {
+          public SetterProperty newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new SetterProperty(pos, (Void) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        SimpleOperation.class, new Factory<SimpleOperation>() {
+          public SimpleOperation newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new SimpleOperation(
+                pos, (Operator) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        SpecialOperation.class, new Factory<SpecialOperation>() {
+          public SpecialOperation newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new SpecialOperation(
+                pos, (Operator) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        StringLiteral.class, new Factory<StringLiteral>() {
+          public StringLiteral newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new StringLiteral(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        SwitchStmt.class, new Factory<SwitchStmt>() {
+          public SwitchStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new SwitchStmt(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        ThrowStmt.class, new Factory<ThrowStmt>() {
+          public ThrowStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ThrowStmt(pos, (Void) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        TranslatedCode.class, new Factory<TranslatedCode>() {
+          public TranslatedCode newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new TranslatedCode(pos, (Void) value, statements(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        TryStmt.class, new Factory<TryStmt>() {
+          public TryStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new TryStmt(pos, (Void) value, statements(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        UncajoledModule.class, new Factory<UncajoledModule>() {
+          public UncajoledModule newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new UncajoledModule(pos, (Void) value, blocks(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        ValueProperty.class, new Factory<ValueProperty>() {
+          public ValueProperty newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new ValueProperty(pos, (Void) value, expressions(children));
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        WhileLoop.class, new Factory<WhileLoop>() {
+          public WhileLoop newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new WhileLoop(pos, (String) value, children);
+          }
+        });
+    ParseTreeNodes.registerFactory(
+        WithStmt.class, new Factory<WithStmt>() {
+          public WithStmt newInstance(
+              FilePosition pos, Object value,
+              List<? extends ParseTreeNode> children) {
+            return new WithStmt(pos, (Void) value, statements(children));
+          }
+        });
+  }
+
+  /** Registers the factories if they have not been already. */
+  static void init() {
+    // The static initializer does the work.
+  }
+
+  // The reflective constructors do not check the element types of their
+  // children lists, so these unchecked casts are no less safe.
+
+  @SuppressWarnings("unchecked")
+  private static List<Expression> expressions(List<?> children) {
+    return (List<Expression>) children;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Statement> statements(List<?> children) {
+    return (List<Statement>) children;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Block> blocks(List<?> children) {
+    return (List<Block>) children;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Declaration> declarations(List<?> children) {
+    return (List<Declaration>) children;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Directive> directives(List<?> children) {
+    return (List<Directive>) children;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<ObjProperty> properties(List<?> children) {
+    return (List<ObjProperty>) children;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<NoChildren> noChildren(List<?> children) {
+    return (List<NoChildren>) children;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<ParseTreeNode> nodes(List<?> children) {
+    return (List<ParseTreeNode>) children;
+  }
+
+  private JsNodeFactories() { /* not instantiable */ }
+}
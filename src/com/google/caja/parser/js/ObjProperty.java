@@ -38,6 +38,10 @@ import java.util.List;
 public abstract class ObjProperty extends AbstractParseTreeNode {
   private static final long serialVersionUID = 3384973990326624609L;
 
+  static {
+    JsNodeFactories.init();
+  }
+
   public ObjProperty(StringLiteral name, Expression value) {
     this(FilePosition.span(name.getFilePosition(), value.getFilePosition()),
          name, value);
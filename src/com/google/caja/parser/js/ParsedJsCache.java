@@ -0,0 +1,161 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.js;
+
+import com.google.caja.SomethingWidgyHappenedError;
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.util.Charsets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An on-disk cache of parsed JavaScript programs stored in the
+ * {@link BinaryJsTrees} format.
+ *
+ * <p>Entries are keyed by a hash of the source text, the encoding's
+ * {@link BinaryJsTrees#FORMAT_VERSION format version} and a version that
+ * identifies the parser, so a rebuilt parser never sees trees produced by an
+ * older one.
+ *
+ * <p>Only parses that report no messages are cached, so that a cache hit is
+ * indistinguishable from a reparse.
+ */
+public final class ParsedJsCache {
+  private final File dir;
+  private final String version;
+  private int hits, misses;
+
+  /**
+   * @param dir the directory in which to store entries.  Created lazily.
+   * @param parserVersion changes whenever the parser changes, e.g. a
+   *     {@link com.google.caja.util.CodeFingerprint} of the parser's classes.
+   */
+  public ParsedJsCache(File dir, String parserVersion) {
+    this.dir = dir;
+    this.version = BinaryJsTrees.FORMAT_VERSION + "-" + parserVersion;
+  }
+
+  /**
+   * Parses the program in cp, or reads it from the cache if the same source
+   * text was parsed before.
+   *
+   * @param cp the program text.  Consumed.
+   * @param is the source to attribute positions to.
+   */
+  public Block parse(CharProducer cp, InputSource is, MessageQueue mq)
+      throws ParseException {
+    File entry = new File(dir, key(cp) + ".jsast");
+    if (entry.isFile()) {
+      try {
+        InputStream in = new BufferedInputStream(new FileInputStream(entry));
+        try {
+          ParseTreeNode node = BinaryJsTrees.read(in, is);
+          if (node instanceof Block) {
+            ++hits;
+            cp.consume(cp.getLength());
+            return (Block) node;
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException ex) {
+        // Fall through to reparse a truncated or stale entry.
+      }
+    }
+    ++misses;
+    int nMessages = mq.getMessages().size();
+    JsLexer lexer = new JsLexer(cp);
+    JsTokenQueue tq = new JsTokenQueue(lexer, is);
+    Parser p = new Parser(tq, mq);
+    Block program = p.parse();
+    tq.expectEmpty();
+    if (mq.getMessages().size() == nMessages) { store(program, entry); }
+    return program;
+  }
+
+  /** The number of calls to {@link #parse} that were served from disk. */
+  public int getHitCount() { return hits; }
+
+  /** The number of calls to {@link #parse} that had to parse. */
+  public int getMissCount() { return misses; }
+
+  private void store(Block program, File entry) {
+    // Write to a temporary file and rename so that concurrent builds never
+    // see a partial entry.
+    if (!dir.mkdirs() && !dir.isDirectory()) { return; }
+    File tmp = null;
+    try {
+      tmp = File.createTempFile("tmp", ".jsast", dir);
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+      try {
+        BinaryJsTrees.write(program, out);
+      } finally {
+        out.close();
+      }
+      if (tmp.renameTo(entry)) { tmp = null; }
+    } catch (IOException ex) {
+      // Caching is best effort.
+    } catch (IllegalArgumentException ex) {
+      // Not encodable.
+    } finally {
+      if (tmp != null) { tmp.delete(); }
+    }
+  }
+
+  private String key(CharProducer cp) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new SomethingWidgyHappenedError(ex);
+    }
+    char[] buf = cp.getBuffer();
+    byte[] bytes = new byte[4096];
+    int k = 0;
+    for (int i = cp.getOffset(), n = cp.getLimit(); i < n; ++i) {
+      char ch = buf[i];
+      bytes[k++] = (byte) (ch >> 8);
+      bytes[k++] = (byte) ch;
+      if (k == bytes.length) {
+        md.update(bytes, 0, k);
+        k = 0;
+      }
+    }
+    md.update(bytes, 0, k);
+    md.update(version.getBytes(Charsets.UTF_8));
+    byte[] digest = md.digest();
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      sb.append("0123456789abcdef".charAt((b >> 4) & 0xf))
+          .append("0123456789abcdef".charAt(b & 0xf));
+    }
+    return sb.toString();
+  }
+}
@@ -32,6 +32,7 @@ import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessageType;
 import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.Criterion;
 import com.google.caja.util.Pair;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -241,6 +242,15 @@ import java.util.Set;
  */
 public final class Parser extends ParserBase {
   private boolean recoverFromFailure;
+  private boolean needsDebugData = true;
+
+  /** The filtered tokens that {@link #semicolonInserted} looks for. */
+  private static final Criterion<Token<JsTokenType>> LINE_CONTINUATIONS =
+    new Criterion<Token<JsTokenType>>() {
+      public boolean accept(Token<JsTokenType> t) {
+        return JsTokenType.LINE_CONTINUATION == t.type;
+      }
+    };
 
   public Parser(JsTokenQueue tq, MessageQueue mq) {
     this(tq, mq, false);
@@ -266,6 +276,32 @@ public final class Parser extends ParserBase {
     this.recoverFromFailure = shouldRecover;
   }
 
+  /**
+   * True iff the parser computes a file position spanning each node's tokens
+   * and attaches filtered tokens, such as comments, to the nodes they precede.
+   */
+  public boolean getNeedsDebugData() {
+    return needsDebugData;
+  }
+
+  /**
+   * Setter corresponding to {@link #getNeedsDebugData}.
+   * When false, nodes built from more than one token get
+   * {@link FilePosition#UNKNOWN} and no comments, though literals keep their
+   * token's position, as do messages about unexpected tokens.
+   * The token queue stops retaining filtered tokens other than the line
+   * continuations that semicolon insertion looks for.
+   * This is meant for bulk work, like minifying already vetted code, that
+   * never reports positions or renders comments.
+   */
+  public void setNeedsDebugData(boolean needsDebugData) {
+    this.needsDebugData = needsDebugData;
+    tq.setRetainedFilteredTokens(
+        needsDebugData
+        ? Criterion.Factory.<Token<JsTokenType>>optimist()
+        : LINE_CONTINUATIONS);
+  }
+
   /** Parses a top level block. */
   public Block parse() throws ParseException {
     Block program = parseProgram();
@@ -1407,7 +1443,7 @@ public final class Parser extends ParserBase {
       isDeclaration = true;
     } else if (tq.checkToken(Keyword.CONST)) {
       isDeclaration = true;
-      mq.addMessage(MessageType.NOT_IE, posFrom(m));
+      mq.addMessage(MessageType.NOT_IE, tq.lastPosition());
     } else {
       isDeclaration = false;
     }
@@ -1489,6 +1525,7 @@ public final class Parser extends ParserBase {
 
   /** The file position that spans from startMark to the current position. */
   private FilePosition posFrom(Mark startMark) throws ParseException {
+    if (!needsDebugData) { return FilePosition.UNKNOWN; }
     return posFrom(startMark.getFilePosition());
   }
 
@@ -1498,6 +1535,7 @@ public final class Parser extends ParserBase {
   }
 
   private FilePosition posFrom(FilePosition start) throws ParseException {
+    if (!needsDebugData) { return FilePosition.UNKNOWN; }
     return (tq.isEmpty() || tq.currentPosition() != start)
         ? FilePosition.span(start, tq.lastPosition())
         : FilePosition.startOf(start);
@@ -1509,6 +1547,7 @@ public final class Parser extends ParserBase {
    */
   private void finish(AbstractParseTreeNode n, Mark startMark)
       throws ParseException {
+    if (!needsDebugData) { return; }
     Mark endMark = tq.mark();
     tq.rewind(startMark);
     try {
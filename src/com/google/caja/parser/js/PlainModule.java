@@ -31,6 +31,11 @@ import java.util.List;
  * @author ihab.awad@gmail.com
  */
 public final class PlainModule extends AbstractParseTreeNode {
+
+  static {
+    JsNodeFactories.init();
+  }
+
   /** @param value unused.  This ctor is provided for reflection. */
   @ReflectiveCtor
   public PlainModule(
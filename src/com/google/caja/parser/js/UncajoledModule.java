@@ -41,6 +41,10 @@ import java.util.List;
 public final class UncajoledModule extends AbstractParseTreeNode {
   private static final long serialVersionUID = 4647984501924442035L;
 
+  static {
+    JsNodeFactories.init();
+  }
+
   /** @param value unused.  This ctor is provided for reflection. */
   @ReflectiveCtor
   public UncajoledModule(FilePosition pos,
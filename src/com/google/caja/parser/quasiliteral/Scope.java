@@ -20,6 +20,7 @@ import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.Keyword;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.ParseTreeNodeContainer;
+import com.google.caja.parser.ParseTreeNodes;
 import com.google.caja.parser.js.Block;
 import com.google.caja.parser.js.CatchStmt;
 import com.google.caja.parser.js.Declaration;
@@ -50,6 +51,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * A scope analysis of a {@link com.google.caja.parser.ParseTreeNode}.
@@ -119,6 +121,8 @@ public class Scope {
 
   private final Scope parent;
   private final MessageQueue mq;
+  /** Null to walk every block afresh. */
+  private final HarvestCache cache;
   private final ScopeType type;
   private boolean hasFreeThis = false;
   private boolean containsArguments = false;
@@ -132,7 +136,17 @@ public class Scope {
   private final Set<String> importedVariables = Sets.<String>newTreeSet();
 
   public static Scope fromProgram(Block root, MessageQueue mq) {
-    Scope s = new Scope(ScopeType.PROGRAM, mq);
+    return fromProgram(root, null, mq);
+  }
+
+  /**
+   * @param cache shared by this scope and the scopes nested in it, so scopes
+   *     built with the same cache reuse analyses of unchanged bodies.
+   *     May be null.
+   */
+  public static Scope fromProgram(
+      Block root, HarvestCache cache, MessageQueue mq) {
+    Scope s = new Scope(ScopeType.PROGRAM, cache, mq);
     walkBlock(s, root);
     return s;
   }
@@ -176,16 +190,18 @@ public class Scope {
     return s;
   }
 
-  private Scope(ScopeType type, MessageQueue mq) {
+  private Scope(ScopeType type, HarvestCache cache, MessageQueue mq) {
     this.type = type;
     this.parent = null;
     this.mq = mq;
+    this.cache = cache;
   }
 
   private Scope(ScopeType type, Scope parent) {
     this.type = type;
     this.parent = parent;
     this.mq = parent.mq;
+    this.cache = parent.cache;
   }
 
   /**
@@ -515,19 +531,18 @@ public class Scope {
   }
 
   private static void walkBlock(final Scope s, ParseTreeNode root) {
-    SymbolHarvestVisitor v = new SymbolHarvestVisitor();
-    v.visit(root);
+    Harvest h = harvest(s.cache, root);
 
     // Record in this scope all the declarations that have been harvested
     // by the visitor.
-    for (Declaration decl : v.getDeclarations()) {
+    for (Declaration decl : h.declarations) {
       declare(s, decl.getIdentifier(), computeDeclarationType(decl));
     }
 
     // Now resolve all the references harvested by the visitor. If they have
     // not been defined in the scope chain (including the declarations we just
     // harvested), then they must be free variables, so record them as such.
-    for (Reference ref : v.getReferences()) {
+    for (Reference ref : h.references) {
       String name = ref.getIdentifierName();
       if ("arguments".equals(name)) {  // JS magic identifier
         s.containsArguments = true;
@@ -539,6 +554,116 @@ public class Scope {
     }
   }
 
+  /**
+   * The declarations and references in a scope's body.  These depend only on
+   * the body and not on any containing scope, so passes that build scopes for
+   * successive versions of a program that share unchanged function bodies
+   * need only walk the changed ones.
+   */
+  private static final class Harvest {
+    final List<Declaration> declarations;
+    final List<Reference> references;
+    /** The modification count of the root before the walk. */
+    final int rootModCount;
+    /**
+     * The nodes walked below the root, or null if the body is immutable.
+     * The root is left out so that a {@link HarvestCache} entry does not
+     * hold its own key.
+     */
+    final ParseTreeNode[] walked;
+    /** The modification count of each walked node before the walk. */
+    final int[] modCounts;
+
+    Harvest(ParseTreeNode root, SymbolHarvestVisitor v) {
+      this.declarations = v.getDeclarations();
+      this.references = v.getReferences();
+      this.rootModCount = ParseTreeNodes.getModificationCount(root);
+      List<ParseTreeNode> visited = v.getVisited();
+      if (visited != null) {
+        // The visitor visits the root first.
+        int n = visited.size() - 1;
+        this.walked = visited.subList(1, n + 1).toArray(new ParseTreeNode[n]);
+        this.modCounts = new int[n];
+        for (int i = 0; i < n; ++i) {
+          modCounts[i] = ParseTreeNodes.getModificationCount(walked[i]);
+        }
+      } else {
+        this.walked = null;
+        this.modCounts = null;
+      }
+    }
+
+    /**
+     * True if no walked node has been changed in place since the walk, so
+     * walking again would harvest the same symbols.
+     * @param root the root that was walked.
+     */
+    boolean isCurrent(ParseTreeNode root) {
+      if (walked == null) { return true; }
+      int rootCount = ParseTreeNodes.getModificationCount(root);
+      if (rootCount < 0 || rootCount != rootModCount) { return false; }
+      for (int i = 0, n = walked.length; i < n; ++i) {
+        int modCount = ParseTreeNodes.getModificationCount(walked[i]);
+        // Changes to untracked nodes are assumed.
+        if (modCount < 0 || modCount != modCounts[i]) { return false; }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Lets scopes built during one compilation reuse the symbols harvested from
+   * program and function bodies that have been analyzed before, e.g. by an
+   * earlier iteration of an optimizer that rebuilds scopes after each pass.
+   * A harvest is reused only while none of the nodes it walked have been
+   * changed in place, so edits to one tree do not invalidate analyses of
+   * others.  So a lookup still compares one count per node in the body,
+   * though that is much cheaper than walking the body again.
+   */
+  public static final class HarvestCache {
+    /**
+     * Keyed by identity since nodes do not override equals.  Entries go away
+     * when their block is collected, since a harvest refers only to nodes
+     * under the block and nodes do not point to their parents.
+     */
+    private final Map<ParseTreeNode, Harvest> harvests
+        = new WeakHashMap<ParseTreeNode, Harvest>();
+
+    synchronized Harvest get(ParseTreeNode root) {
+      Harvest h = harvests.get(root);
+      return h != null && h.isCurrent(root) ? h : null;
+    }
+
+    synchronized void put(ParseTreeNode root, Harvest h) {
+      harvests.put(root, h);
+    }
+
+    /** Visible for testing. */
+    boolean isCached(Block root) { return get(root) != null; }
+
+    /** Visible for testing. */
+    synchronized int size() { return harvests.size(); }
+  }
+
+  private static Harvest harvest(HarvestCache cache, ParseTreeNode root) {
+    // Only cache blocks, i.e. program and function bodies, since they are
+    // what is expensive to walk.
+    if (cache == null || !(root instanceof Block)) {
+      SymbolHarvestVisitor v = new SymbolHarvestVisitor(false);
+      v.visit(root);
+      return new Harvest(root, v);
+    }
+    Harvest h = cache.get(root);
+    if (h == null) {
+      // An immutable body cannot change so there is nothing to check later.
+      SymbolHarvestVisitor v = new SymbolHarvestVisitor(!root.isImmutable());
+      v.visit(root);
+      h = new Harvest(root, v);
+      cache.put(root, h);
+    }
+    return h;
+  }
+
   // A SymbolHarvestVisitor traverses a parse tree node tree and harvests
   // declarations and references for scope analysis. It stops the traversal
   // at the right places according to JavaScript scoping rules.
@@ -550,12 +675,25 @@ public class Scope {
     private final List<Reference> references = Lists.newArrayList();
     private final List<Declaration> declarations = Lists.newArrayList();
     private final List<String> exceptionVariables = Lists.newArrayList();
+    private final List<ParseTreeNode> visited;
+
+    /**
+     * @param recordVisited true to record every node visited so that a cached
+     *     harvest can check whether any of them have changed.
+     */
+    SymbolHarvestVisitor(boolean recordVisited) {
+      visited = recordVisited ? Lists.<ParseTreeNode>newArrayList() : null;
+    }
 
     public List<Reference> getReferences() { return references; }
 
     public List<Declaration> getDeclarations() { return declarations; }
 
+    /** Null unless constructed to record visited nodes. */
+    public List<ParseTreeNode> getVisited() { return visited; }
+
     public void visit(ParseTreeNode node) {
+      if (visited != null) { visited.add(node); }
       // Dispatch to methods for specific node types of interest
       if (node instanceof FunctionConstructor) {
         visitFunctionConstructor((FunctionConstructor)node);
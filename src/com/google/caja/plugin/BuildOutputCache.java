@@ -0,0 +1,206 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.SomethingWidgyHappenedError;
+import com.google.caja.util.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A content addressed store of build outputs, so that a build whose inputs
+ * and options match an earlier build can copy its output instead of
+ * recomputing it.
+ * <p>
+ * Entries are keyed by a hash of the contents and names of the inputs and
+ * dependees, the output options, the output file name and a version that
+ * identifies the compiler, like the one from
+ * {@link BuildServiceImplementation#compilerVersion}.  Since keys do not
+ * depend on file paths or modification times, a cache directory can be shared
+ * between checkouts.
+ * <p>
+ * Instances are safe to use from multiple threads, and multiple processes may
+ * share a directory since entries are written atomically.
+ */
+final class BuildOutputCache {
+  /** Options that affect where work is cached but not its result. */
+  static final String PARSE_CACHE_OPTION = "parseCache";
+  static final String OUTPUT_CACHE_OPTION = "outputCache";
+
+  private final File dir;
+  private final String version;
+  private int hits, misses;
+
+  BuildOutputCache(File dir, String buildVersion) {
+    this.dir = dir;
+    this.version = buildVersion;
+  }
+
+  /**
+   * Computes the key under which the output of a build is stored.
+   *
+   * @param options as passed to
+   *     {@link com.google.caja.tools.BuildService#cajole}.
+   */
+  String key(List<File> dependees, List<File> inputs, File output,
+             Map<String, Object> options)
+      throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new SomethingWidgyHappenedError(ex);
+    }
+    updateString(md, "caja-build-output/1");
+    updateString(md, version);
+    updateString(md, output.getName());
+    List<String> optionNames = Lists.newArrayList(options.keySet());
+    Collections.sort(optionNames);
+    for (String name : optionNames) {
+      if (PARSE_CACHE_OPTION.equals(name) || OUTPUT_CACHE_OPTION.equals(name)) {
+        continue;
+      }
+      updateString(md, name);
+      Object value = options.get(name);
+      if (value instanceof Collection<?>) {
+        // Sets of message names and URLs have no meaningful order.
+        List<String> parts = Lists.newArrayList();
+        for (Object part : (Collection<?>) value) { parts.add("" + part); }
+        Collections.sort(parts);
+        updateInt(md, parts.size());
+        for (String part : parts) { updateString(md, part); }
+      } else {
+        updateString(md, "" + value);
+      }
+    }
+    updateFiles(md, inputs);
+    updateFiles(md, dependees);
+    byte[] digest = md.digest();
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      sb.append("0123456789abcdef".charAt((b >> 4) & 0xf))
+          .append("0123456789abcdef".charAt(b & 0xf));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Copies a previously stored output to output.
+   * @return true iff there was an entry for key.
+   */
+  boolean fetch(String key, File output) {
+    File entry = entryFile(key);
+    if (entry.isFile()) {
+      try {
+        copy(entry, output);
+        synchronized (this) { ++hits; }
+        return true;
+      } catch (IOException ex) {
+        // Rebuild over a partial copy.
+      }
+    }
+    synchronized (this) { ++misses; }
+    return false;
+  }
+
+  /** Stores a successfully built output under key.  Best effort. */
+  void store(String key, File output) {
+    if (!dir.mkdirs() && !dir.isDirectory()) { return; }
+    // Write to a temporary file and rename so that concurrent builds never
+    // see a partial entry.
+    File tmp = null;
+    try {
+      tmp = File.createTempFile("tmp", ".out", dir);
+      copy(output, tmp);
+      if (tmp.renameTo(entryFile(key))) { tmp = null; }
+    } catch (IOException ex) {
+      // Caching is best effort.
+    } finally {
+      if (tmp != null) { tmp.delete(); }
+    }
+  }
+
+  synchronized int getHitCount() { return hits; }
+
+  synchronized int getMissCount() { return misses; }
+
+  /** A summary of the hit rate suitable for a build log. */
+  synchronized String describeHitRate() {
+    int total = hits + misses;
+    return "output cache: " + hits + " hits, " + misses + " misses ("
+        + (total != 0 ? (100 * hits / total) : 0) + "%)";
+  }
+
+  private File entryFile(String key) {
+    return new File(dir, key + ".out");
+  }
+
+  private static void updateFiles(MessageDigest md, List<File> files)
+      throws IOException {
+    updateInt(md, files.size());
+    byte[] buf = new byte[8192];
+    for (File f : files) {
+      // The name decides how an input is treated, e.g. *.env.json.
+      updateString(md, f.getName());
+      updateInt(md, (int) f.length());
+      InputStream in = new FileInputStream(f);
+      try {
+        for (int n; (n = in.read(buf)) > 0;) { md.update(buf, 0, n); }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private static void updateString(MessageDigest md, String s) {
+    byte[] bytes = s.getBytes(Charsets.UTF_8);
+    updateInt(md, bytes.length);
+    md.update(bytes);
+  }
+
+  private static void updateInt(MessageDigest md, int n) {
+    md.update((byte) (n >>> 24));
+    md.update((byte) (n >>> 16));
+    md.update((byte) (n >>> 8));
+    md.update((byte) n);
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    InputStream in = new FileInputStream(from);
+    try {
+      OutputStream out = new FileOutputStream(to);
+      try {
+        byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) > 0;) { out.write(buf, 0, n); }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
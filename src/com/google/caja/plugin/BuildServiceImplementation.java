@@ -32,10 +32,13 @@ import com.google.caja.parser.html.Nodes;
 import com.google.caja.parser.js.Expression;
 import com.google.caja.parser.js.Minify;
 import com.google.caja.parser.js.ObjectConstructor;
+import com.google.caja.parser.js.ParsedJsCache;
 import com.google.caja.parser.js.Parser;
 import com.google.caja.parser.js.Statement;
 import com.google.caja.render.JsMinimalPrinter;
 import com.google.caja.render.JsPrettyPrinter;
+import com.google.caja.reporting.BuildInfo;
+import com.google.caja.reporting.ConcurrentMessageQueue;
 import com.google.caja.reporting.MarkupRenderMode;
 import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageContext;
@@ -44,10 +47,10 @@ import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessageType;
 import com.google.caja.reporting.RenderContext;
-import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.reporting.SnippetProducer;
 import com.google.caja.tools.BuildService;
 import com.google.caja.util.Charsets;
+import com.google.caja.util.CodeFingerprint;
 import com.google.caja.util.FileIO;
 import com.google.caja.util.Pair;
 import com.google.common.collect.Lists;
@@ -80,6 +83,13 @@ import org.w3c.dom.Element;
  */
 public class BuildServiceImplementation implements BuildService {
   private final Map<InputSource, String> originalSources = Maps.newHashMap();
+  private final Map<File, ParsedJsCache> parseCaches = Maps.newHashMap();
+  /**
+   * Shared by all tasks in a build so that hit rates are reported across the
+   * whole build.
+   */
+  private static final Map<File, BuildOutputCache> outputCaches
+      = Maps.newHashMap();
 
   /**
    * Cajoles inputs to output writing any messages to logger, returning true
@@ -96,7 +106,7 @@ public class BuildServiceImplementation implements BuildService {
       logger.println(ex.toString());
       return false;
     }
-    final MessageQueue mq = new SimpleMessageQueue();
+    final MessageQueue mq = new ConcurrentMessageQueue();
 
     UriFetcher fetcher = new UriFetcher() {
         public FetchedData fetch(ExternalReference ref, String mimeType)
@@ -167,6 +177,24 @@ public class BuildServiceImplementation implements BuildService {
       return concat(inputs, output, logger);
     }
 
+    BuildOutputCache outputCache = getOutputCache(
+        (File) options.get(BuildOutputCache.OUTPUT_CACHE_OPTION));
+    String cacheKey = null;
+    if (outputCache != null) {
+      try {
+        cacheKey = outputCache.key(dependees, inputs, output, options);
+      } catch (IOException ex) {
+        logger.println("Not caching " + output + ": " + ex);
+      }
+      if (cacheKey != null && outputCache.fetch(cacheKey, output)) {
+        logger.println("output (" + language + "," + rendererType + ") "
+            + output.length() + " bytes to " + output.getName()
+            + " from cache");
+        logger.println(outputCache.describeHitRate());
+        return true;
+      }
+    }
+
     boolean passed = true;
     ParseTreeNode outputJs;
     if ("caja".equals(language)) {
@@ -175,10 +203,17 @@ public class BuildServiceImplementation implements BuildService {
       PluginMeta meta = new PluginMeta(fetcher, policy);
       passed = true;
       JsOptimizer optimizer = new JsOptimizer(mq);
+      ParsedJsCache parseCache = getParseCache(
+          (File) options.get(BuildOutputCache.PARSE_CACHE_OPTION));
       for (File f : inputs) {
         try {
           if (f.getName().endsWith(".env.json")) {
             loadEnvJsonFile(f, optimizer, mq);
+          } else if (parseCache != null && f.getName().endsWith(".js")) {
+            InputSource is = new InputSource(f.getCanonicalFile().toURI());
+            String content = getSourceContent(is);
+            optimizer.addInput(parseCache.parse(
+                CharProducer.Factory.fromString(content, is), is, mq));
           } else {
             ParseTreeNode parsedInput = new ParserContext(mq)
             .withInput(new InputSource(f.getCanonicalFile().toURI()))
@@ -201,6 +236,10 @@ public class BuildServiceImplementation implements BuildService {
         }
       }
       outputJs = optimizer.optimize();
+      if (parseCache != null) {
+        logger.println("parse cache: " + parseCache.getHitCount() + " hits, "
+            + parseCache.getMissCount() + " misses");
+      }
     } else {
       throw new RuntimeException("Unrecognized language: " + language);
     }
@@ -262,15 +301,59 @@ public class BuildServiceImplementation implements BuildService {
         translatedCode = jsOut.toString();
       }
 
-      report("output (" + language + "," + rendererType + ") " +
+      logger.println("output (" + language + "," + rendererType + ") " +
           translatedCode.length() + " chars to " +
           output.getName());
 
       passed = FileIO.write(translatedCode, output, logger);
+      if (passed && cacheKey != null) {
+        outputCache.store(cacheKey, output);
+        logger.println(outputCache.describeHitRate());
+      }
     }
     return passed;
   }
 
+  /**
+   * Identifies the compiler so that caches never serve the output of a
+   * different compiler, even in development builds whose
+   * {@link BuildInfo#getBuildVersion build version} never changes.
+   *
+   * @return null if the compiler's classes can't be read, in which case
+   *     nothing is cached.
+   */
+  static String compilerVersion() {
+    String classes = CodeFingerprint.of(BuildServiceImplementation.class);
+    if (classes == null) { return null; }
+    return BuildInfo.getInstance().getBuildVersion() + "-" + classes;
+  }
+
+  private ParsedJsCache getParseCache(File dir) {
+    if (dir == null) { return null; }
+    ParsedJsCache cache = parseCaches.get(dir);
+    if (cache == null) {
+      String version = compilerVersion();
+      if (version == null) { return null; }
+      cache = new ParsedJsCache(dir, version);
+      parseCaches.put(dir, cache);
+    }
+    return cache;
+  }
+
+  private static BuildOutputCache getOutputCache(File dir) {
+    if (dir == null) { return null; }
+    synchronized (outputCaches) {
+      BuildOutputCache cache = outputCaches.get(dir);
+      if (cache == null) {
+        String version = compilerVersion();
+        if (version == null) { return null; }
+        cache = new BuildOutputCache(dir, version);
+        outputCaches.put(dir, cache);
+      }
+      return cache;
+    }
+  }
+
   private static boolean concat(
       List<File> inputs, File output, PrintWriter logger) {
     StringBuilder result = new StringBuilder();
@@ -302,17 +385,13 @@ public class BuildServiceImplementation implements BuildService {
       ok = false;
     }
     if (ok) {
-      report("output (concat) " + result.length() + " chars to "
+      logger.println("output (concat) " + result.length() + " chars to "
           + output.getName());
       ok = FileIO.write(result.toString(), output, logger);
     }
     return ok;
   }
 
-  private static void report(String s) {
-    System.out.println(s);
-  }
-
   // Loosely matches top-level strict declarations.
   //    False negative:  /* {} */ "use strict"
   //    False positive:  /* "use strict" */
@@ -416,11 +495,6 @@ public class BuildServiceImplementation implements BuildService {
   }
 
   private static boolean hasErrors(MessageQueue mq) {
-    for (Message msg : mq.getMessages()) {
-      if (MessageLevel.ERROR.compareTo(msg.getMessageLevel()) <= 0) {
-        return true;
-      }
-    }
-    return false;
+    return mq.hasMessageAtLevel(MessageLevel.ERROR);
   }
 }
@@ -149,6 +149,86 @@ var sanitizeMediaQuery = undefined;
     // Used as map value to avoid hasOwnProperty checks.
     var ALLOWED_LITERAL = {};
 
+    // Token classes that start the alphabet of a cssDfa.
+    // Note: info is duplicated in CssPropertyDfa.java
+    var DFA_QUANTITY = 0, DFA_HASH = 1, DFA_STRING = 2, DFA_URL = 3,
+        DFA_IDENT = 4, DFA_TOKEN_CLASS_COUNT = 6;
+    // Offset added to each char code in a packed cssDfa.
+    var DFA_BIAS = 0x20;
+
+    /**
+     * The symbol in a property's cssDfa for a sanitized token, or -1.
+     * Literals are numbered in the order cssLitGroup lists them and are
+     * followed by the property's cssFns.
+     */
+    function dfaSymbol(propertySchema, token) {
+      var litSymbols = propertySchema['cssLitSymbols'];
+      if (!litSymbols) {
+        litSymbols = propertySchema['cssLitSymbols'] = {};
+        var symbol = DFA_TOKEN_CLASS_COUNT;
+        var litGroup = propertySchema['cssLitGroup'] || [];
+        for (var i = 0, n = litGroup.length; i < n; ++i) {
+          var arr = litGroup[i];
+          for (var j = 0, m = arr.length; j < m; ++j) {
+            litSymbols[arr[j]] = symbol++;
+          }
+        }
+        propertySchema['cssFnSymbolBase'] = symbol;
+      }
+      var litSymbol = litSymbols[withoutVendorPrefix(token)];
+      if (typeof litSymbol === 'number') { return litSymbol; }
+      var cc = token.charCodeAt(0);
+      if (cc === '"'.charCodeAt(0)) { return DFA_STRING; }
+      if (cc === '#'.charCodeAt(0)) { return DFA_HASH; }
+      if (/^-?\.?[0-9]/.test(token)) { return DFA_QUANTITY; }
+      if ('url("' === token.substring(0, 5)) { return DFA_URL; }
+      var paren = token.indexOf('(');
+      if (paren > 0) {
+        // Find the function that sanitizeFunctionCall applied.
+        var fnName = withoutVendorPrefix(
+            token.substring(0, paren + 1).toLowerCase());
+        var fns = propertySchema['cssFns'];
+        for (var k = 0, nFns = fns.length; k < nFns; ++k) {
+          if (fns[k].substring(0, fnName.length) == fnName) {
+            return propertySchema['cssFnSymbolBase'] + k;
+          }
+        }
+        return -1;
+      }
+      return /^-?[a-z_][\w\-]*$/i.test(token) ? DFA_IDENT : -1;
+    }
+
+    /**
+     * True iff the packed automaton, as described in CssPropertyDfa.java,
+     * accepts the classes of the given tokens.
+     */
+    function dfaAccepts(dfa, propertySchema, tokens) {
+      var state = 0;
+      for (var i = 0, n = tokens.length; i < n; ++i) {
+        var symbol = dfaSymbol(propertySchema, tokens[i]);
+        var record = dfa.charCodeAt(state) - DFA_BIAS;
+        // Binary search the record's edges which are sorted by symbol.
+        var lo = 0, hi = (dfa.charCodeAt(record) - DFA_BIAS) >> 1;
+        state = -1;
+        while (lo < hi) {
+          var mid = (lo + hi) >> 1;
+          var edge = record + 1 + 2 * mid;
+          var edgeSymbol = dfa.charCodeAt(edge) - DFA_BIAS;
+          if (edgeSymbol < symbol) {
+            lo = mid + 1;
+          } else if (edgeSymbol > symbol) {
+            hi = mid;
+          } else {
+            state = dfa.charCodeAt(edge + 1) - DFA_BIAS;
+            break;
+          }
+        }
+        if (state < 0) { return false; }
+      }
+      return !!((dfa.charCodeAt(dfa.charCodeAt(state) - DFA_BIAS) - DFA_BIAS)
+                & 1);
+    }
+
     return function sanitize(
         property, tokens, opt_naiveUriRewriter, opt_baseUri, opt_idSuffix) {
 
@@ -359,6 +439,13 @@ var sanitizeMediaQuery = undefined;
       // then just drop it.
       if (k === 1 && tokens[0] === NOEFFECT_URL) { k = 0; }
       tokens.length = k;
+      // If the schema was generated with automata, drop values whose tokens
+      // are not in an order that the property's signature allows.
+      var dfa = propertySchema['cssDfa'];
+      if (dfa && k && !(k === 1 && tokens[0] === 'inherit')
+          && !dfaAccepts(dfa, propertySchema, tokens)) {
+        tokens.length = 0;
+      }
     };
   })();
 
@@ -0,0 +1,248 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.reporting;
+
+import com.google.caja.lexer.FilePosition;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A message queue that many threads may append to without locking, and that
+ * counts messages by level so {@link #hasMessageAtLevel} does not scan.
+ * <p>
+ * Appends may come from any thread.  Removals via {@link #getMessages} must
+ * not race with other removals, and the message list does not support
+ * {@link List#set} or insertion before the end.
+ * <p>
+ * The message list is linked, so {@link List#get} and {@link List#remove(int)}
+ * take time linear in the index.  Iterate instead, and remove a tail with
+ * {@code subList(from, size()).clear()}, which takes one pass.
+ * <p>
+ * Parallel tasks that need their messages in a deterministic order should
+ * each report to their own queue and then be {@link #merge merged}.
+ */
+public final class ConcurrentMessageQueue extends AbstractMessageQueue {
+  private static final MessageLevel[] LEVELS = MessageLevel.values();
+
+  private final ConcurrentLinkedQueue<Message> messages
+      = new ConcurrentLinkedQueue<Message>();
+  /** Number of messages at each level, indexed by ordinal. */
+  private final AtomicIntegerArray countsByLevel
+      = new AtomicIntegerArray(LEVELS.length);
+  private final AtomicInteger size = new AtomicInteger();
+  private final List<Message> messageList = new MessageList();
+
+  /**
+   * A live view of the messages in the order they were added.  Iteration is
+   * weakly consistent so never throws ConcurrentModificationException.
+   */
+  @Override
+  public List<Message> getMessages() { return messageList; }
+
+  @Override
+  public void addMessage(Message msg) { append(msg); }
+
+  @Override
+  public void addMessage(MessageTypeInt type, MessagePart... parts) {
+    append(new Message(type, parts));
+  }
+
+  @Override
+  public void addMessage(
+      MessageTypeInt type, MessageLevel lvl, MessagePart... parts) {
+    append(new Message(type, lvl, parts));
+  }
+
+  /** Takes time proportional to the number of levels, not messages. */
+  @Override
+  public boolean hasMessageAtLevel(MessageLevel lvl) {
+    for (int i = lvl.ordinal(); i < LEVELS.length; ++i) {
+      if (countsByLevel.get(i) != 0) { return true; }
+    }
+    return false;
+  }
+
+  /** The number of messages at exactly lvl. */
+  public int getMessageCount(MessageLevel lvl) {
+    return countsByLevel.get(lvl.ordinal());
+  }
+
+  /**
+   * Appends the messages from children ordered by the first
+   * {@link FilePosition} among their parts: by source, then start, then end.
+   * Messages without a position go last.  Ties keep the order of children
+   * and the order within each child, so the result does not depend on which
+   * threads filled which children when.
+   *
+   * @param children queues that are no longer being appended to.
+   */
+  public void merge(List<? extends MessageQueue> children) {
+    int n = 0;
+    for (MessageQueue child : children) { n += child.getMessages().size(); }
+    PositionKey[] keys = new PositionKey[n];
+    int k = 0;
+    for (MessageQueue child : children) {
+      for (Message msg : child.getMessages()) {
+        if (k == n) { break; }  // Ignore late appends.
+        keys[k] = new PositionKey(msg, k);
+        ++k;
+      }
+    }
+    if (k != n) { keys = Arrays.copyOf(keys, k); }
+    Arrays.sort(keys);
+    for (PositionKey key : keys) { append(key.msg); }
+  }
+
+  private void append(Message msg) {
+    if (msg == null) { throw new NullPointerException(); }
+    messages.add(msg);
+    countsByLevel.incrementAndGet(msg.getMessageLevel().ordinal());
+    size.incrementAndGet();
+  }
+
+  private void removed(Message msg) {
+    countsByLevel.decrementAndGet(msg.getMessageLevel().ordinal());
+    size.decrementAndGet();
+  }
+
+  private static final class PositionKey implements Comparable<PositionKey> {
+    final Message msg;
+    final String source;
+    final int start, end;
+    final int index;
+
+    PositionKey(Message msg, int index) {
+      this.msg = msg;
+      this.index = index;
+      FilePosition pos = null;
+      for (MessagePart part : msg.getMessageParts()) {
+        if (part instanceof FilePosition) {
+          pos = (FilePosition) part;
+          break;
+        }
+      }
+      if (pos != null) {
+        this.source = pos.source().getUri().toString();
+        this.start = pos.startCharInFile();
+        this.end = pos.endCharInFile();
+      } else {
+        this.source = null;
+        this.start = this.end = 0;
+      }
+    }
+
+    public int compareTo(PositionKey o) {
+      if (source == null || o.source == null) {
+        if (source != null) { return -1; }
+        if (o.source != null) { return 1; }
+      } else {
+        int delta = source.compareTo(o.source);
+        if (delta != 0) { return delta; }
+        if (start != o.start) { return start < o.start ? -1 : 1; }
+        if (end != o.end) { return end < o.end ? -1 : 1; }
+      }
+      return index < o.index ? -1 : index == o.index ? 0 : 1;
+    }
+  }
+
+  private final class MessageList extends AbstractList<Message> {
+    @Override
+    public int size() { return size.get(); }
+
+    @Override
+    public boolean isEmpty() { return messages.isEmpty(); }
+
+    @Override
+    public Message get(int index) {
+      if (index >= 0) {
+        int i = 0;
+        for (Message msg : messages) {
+          if (i++ == index) { return msg; }
+        }
+      }
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+
+    @Override
+    public boolean add(Message msg) {
+      append(msg);
+      return true;
+    }
+
+    @Override
+    public void add(int index, Message msg) {
+      if (index != size()) { throw new UnsupportedOperationException(); }
+      append(msg);
+    }
+
+    @Override
+    public Message remove(int index) {
+      if (index >= 0) {
+        int i = 0;
+        for (Iterator<Message> it = iterator(); it.hasNext();) {
+          Message msg = it.next();
+          if (i++ == index) {
+            it.remove();
+            return msg;
+          }
+        }
+      }
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+
+    @Override
+    public void clear() {
+      for (Message msg; (msg = messages.poll()) != null;) { removed(msg); }
+    }
+
+    /**
+     * Used by {@code subList(...).clear()}.  Overridden since the default
+     * removes each element by index, which takes quadratic time here.
+     */
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+      Iterator<Message> it = iterator();
+      for (int i = 0; i < toIndex && it.hasNext(); ++i) {
+        it.next();
+        if (i >= fromIndex) { it.remove(); }
+      }
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+      final Iterator<Message> it = messages.iterator();
+      return new Iterator<Message>() {
+        private Message last;
+
+        public boolean hasNext() { return it.hasNext(); }
+
+        public Message next() { return last = it.next(); }
+
+        public void remove() {
+          if (last == null) { throw new IllegalStateException(); }
+          it.remove();
+          removed(last);
+          last = null;
+        }
+      };
+    }
+  }
+}
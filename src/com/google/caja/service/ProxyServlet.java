@@ -38,6 +38,7 @@ import com.google.caja.util.Charsets;
 import com.google.caja.util.ContentType;
 import com.google.caja.util.Json;
 import com.google.caja.util.Pair;
+import com.google.caja.util.Strings;
 import com.google.common.collect.Maps;
 
 import javax.servlet.ServletException;
@@ -57,7 +58,12 @@ import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Proxy service used to allow Caja to load cross-origin content.
@@ -86,8 +92,15 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
+  /** Bodies shorter than this are sent uncompressed. */
+  private static final int MIN_GZIP_LENGTH = 256;
+  /** The total size of the gzipped bodies kept for repeat requests. */
+  private static final int GZIP_CACHE_BYTES = 4 << 20;
+
   private final ContentTypeCheck typeCheck = new LooseContentTypeCheck();
   private final UriFetcher uriFetcher;
+  private final GzipCache gzipCache = new GzipCache(GZIP_CACHE_BYTES);
+  private int gzipCacheHits;
 
   /**
    * Use default UriFetcher.
@@ -187,8 +200,6 @@ public class ProxyServlet extends HttpServlet {
       return;
     }
 
-    resp.setStatus(HttpServletResponse.SC_OK);
-
     String responseContentType = result.getContentType();
     if (result.getCharSet() != null) {
       responseContentType += ";charset=" + result.getCharSet();
@@ -199,9 +210,27 @@ public class ProxyServlet extends HttpServlet {
 
     try {
       byte[] content = result.getByteContent();
+      String hash = sha1Hex(content);
+      boolean gzip = content.length >= MIN_GZIP_LENGTH
+          && acceptsGzip(req.getHeader("Accept-Encoding"));
+      // The gzipped body is a different representation, so it needs its own
+      // strong entity tag.
+      String etag = "\"" + hash + (gzip ? "-gz" : "") + "\"";
+      resp.setHeader(UMP.a, UMP.b);
+      resp.setHeader("ETag", etag);
+      resp.setHeader("Vary", "Accept-Encoding");
+      if (matchesEntityTag(req.getHeader("If-None-Match"), etag)) {
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+
+      resp.setStatus(HttpServletResponse.SC_OK);
+      if (gzip) {
+        content = gzipped(hash, content);
+        resp.setHeader("Content-Encoding", "gzip");
+      }
       resp.setContentType(responseContentType);
       resp.setContentLength(content.length);
-      resp.setHeader(UMP.a, UMP.b);
       resp.setHeader("X-Content-Type-Options", "nosniff");
       resp.setHeader("Content-Disposition", "attachment; filename=f.txt");
 
@@ -212,6 +241,126 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
+  /**
+   * True if an If-None-Match header lists etag.  If-None-Match uses the weak
+   * comparison, so a weak tag matches its strong counterpart.
+   */
+  /* visible for testing */ static boolean matchesEntityTag(
+      String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) { return false; }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) { tag = tag.substring(2); }
+      if ("*".equals(tag) || etag.equals(tag)) { return true; }
+    }
+    return false;
+  }
+
+  /**
+   * True if an Accept-Encoding header allows a gzipped response.
+   * An explicit {@code gzip;q=0} overrides a {@code *} wildcard.
+   */
+  /* visible for testing */ static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) { return false; }
+    double gzipQ = -1, wildcardQ = -1;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = Strings.lower(parts[0].trim());
+      double q = 1;
+      for (int i = 1; i < parts.length; ++i) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2).trim());
+          } catch (NumberFormatException ex) {
+            q = 0;
+          }
+        }
+      }
+      if ("gzip".equals(name) || "x-gzip".equals(name)) {
+        gzipQ = Math.max(gzipQ, q);
+      } else if ("*".equals(name)) {
+        wildcardQ = Math.max(wildcardQ, q);
+      }
+    }
+    return gzipQ >= 0 ? gzipQ > 0 : wildcardQ > 0;
+  }
+
+  /**
+   * The gzipped form of content, which is compressed once for as long as it
+   * stays in {@link #gzipCache}.
+   *
+   * @param hash the SHA-1 of content.
+   */
+  private byte[] gzipped(String hash, byte[] content) throws IOException {
+    byte[] compressed = gzipCache.get(hash);
+    if (compressed != null) {
+      synchronized (this) { ++gzipCacheHits; }
+      return compressed;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(content);
+    out.close();
+    compressed = bytes.toByteArray();
+    gzipCache.put(hash, compressed);
+    return compressed;
+  }
+
+  /** The number of responses whose gzipped body was reused. */
+  /* visible for testing */ synchronized int getGzipCacheHitCount() {
+    return gzipCacheHits;
+  }
+
+  private static String sha1Hex(byte[] content) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new SomethingWidgyHappenedError(ex);
+    }
+    byte[] digest = md.digest(content);
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      sb.append("0123456789abcdef".charAt((b >> 4) & 0xf))
+          .append("0123456789abcdef".charAt(b & 0xf));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Most recently used gzipped bodies keyed by SHA-1 of the plain body, up to
+   * a total size in bytes.
+   */
+  /* visible for testing */ static final class GzipCache {
+    private final Map<String, byte[]> bodies
+        = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final int maxBytes;
+    private int totalBytes;
+
+    GzipCache(int maxBytes) { this.maxBytes = maxBytes; }
+
+    synchronized byte[] get(String hash) { return bodies.get(hash); }
+
+    /**
+     * Caches compressed, evicting the least recently used bodies to stay
+     * within the size limit.  Bodies larger than a quarter of the limit are
+     * not cached, so one large response cannot flush the cache.
+     */
+    synchronized void put(String hash, byte[] compressed) {
+      if (compressed.length > maxBytes / 4) { return; }
+      byte[] old = bodies.put(hash, compressed);
+      totalBytes += compressed.length - (old != null ? old.length : 0);
+      for (Iterator<byte[]> it = bodies.values().iterator();
+           totalBytes > maxBytes;) {
+        totalBytes -= it.next().length;
+        it.remove();
+      }
+    }
+
+    synchronized int getTotalBytes() { return totalBytes; }
+  }
+
   // Used to protect against header splitting attacks.
   private static boolean containsNewline(String s) {
     return s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0;
@@ -21,11 +21,18 @@ import com.google.common.collect.Sets;
 
 import java.io.File;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
@@ -40,6 +47,12 @@ import org.apache.tools.ant.types.FileSet;
  *     Task Tutorial</a>
  * @see <a href="http://ant.apache.org/manual/CoreTasks/typedef.html">Deploying
  *     Tasks</a>
+ * <p>
+ * The optional {@code threadCount} attribute allows up to that many outputs to
+ * be built at once.  0 means one per available processor, and the default, 1,
+ * builds outputs one after another.  When outputs are built in parallel, each
+ * gets its own {@link BuildService} and its log messages are buffered and
+ * replayed in the order the outputs were declared.
  *
  * @author mikesamuel@gmail.com
  */
@@ -50,6 +63,8 @@ public abstract class AbstractCajaAntTask extends Task {
   private final List<FileGroup> depends = Lists.newArrayList();
   /** Outputs to generate. */
   private final List<Output> outputs = Lists.newArrayList();
+  /** The maximum number of outputs to build at once, or 0 for one per CPU. */
+  private int threadCount = 1;
 
   /** Called to actually execute a job by invoking the BuildService. */
   protected abstract boolean run(BuildService buildService, PrintWriter logger,
@@ -83,12 +98,23 @@ public abstract class AbstractCajaAntTask extends Task {
       for (File file : dependees) {
         youngest = Math.max(youngest, file.lastModified());
       }
+      // Outputs built in parallel share these.
+      inputFiles = Collections.unmodifiableList(inputFiles);
+      dependees = Collections.unmodifiableList(dependees);
 
-      BuildService buildService = getBuildService();
+      int nThreads = Math.min(
+          threadCount > 0
+          ? threadCount : Runtime.getRuntime().availableProcessors(),
+          outputs.size());
       PrintWriter logger = getLogger();
       try {
-        for (Output output : outputs) {
-          output.build(inputFiles, dependees, youngest, buildService, logger);
+        if (nThreads <= 1) {
+          BuildService buildService = getBuildService();
+          for (Output output : outputs) {
+            output.build(inputFiles, dependees, youngest, buildService, logger);
+          }
+        } else {
+          buildInParallel(inputFiles, dependees, youngest, nThreads, logger);
         }
       } finally {
         logger.close();
@@ -99,6 +125,59 @@ public abstract class AbstractCajaAntTask extends Task {
     }
   }
 
+  /**
+   * Builds outputs on up to nThreads threads, replaying each output's log
+   * in declaration order, and failing with the first declared output that
+   * failed.
+   */
+  private void buildInParallel(
+      final List<File> inputFiles, final List<File> dependees,
+      final long youngest, int nThreads, PrintWriter logger)
+      throws BuildException {
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Future<Void>> results = Lists.newArrayList();
+      List<StringWriter> logs = Lists.newArrayList();
+      for (final Output output : outputs) {
+        final StringWriter log = new StringWriter();
+        logs.add(log);
+        results.add(executor.submit(new Callable<Void>() {
+          public Void call() throws BuildException {
+            PrintWriter outputLogger = new PrintWriter(log);
+            try {
+              output.build(
+                  inputFiles, dependees, youngest, getBuildService(),
+                  outputLogger);
+            } finally {
+              outputLogger.close();
+            }
+            return null;
+          }
+        }));
+      }
+      BuildException failure = null;
+      for (int i = 0, n = outputs.size(); i < n; ++i) {
+        try {
+          results.get(i).get();
+        } catch (ExecutionException ex) {
+          if (failure == null) {
+            Throwable cause = ex.getCause();
+            failure = cause instanceof BuildException
+                ? (BuildException) cause : new BuildException(cause);
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new BuildException(ex);
+        }
+        logger.print(logs.get(i).toString());
+        logger.flush();
+      }
+      if (failure != null) { throw failure; }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   protected List<File> jsLintInputs() {
     List<File> inputFiles = Lists.newArrayList();
     for (FileGroup input : inputs) {
@@ -138,6 +217,14 @@ public abstract class AbstractCajaAntTask extends Task {
     return new BuildServiceImplementation();
   }
 
+  /** Invoked reflectively by ANT. */
+  public void setThreadCount(int threadCount) {
+    if (threadCount < 0) {
+      throw new BuildException("threadCount must be non-negative");
+    }
+    this.threadCount = threadCount;
+  }
+
   /** Invoked reflectively whenever {@code <input>} is seen. */
   public FileGroup createInput() {
     FileGroup input = new FileGroup("<input>");
@@ -58,6 +58,15 @@ import org.apache.tools.ant.BuildException;
  * "concat" does no parsing and just copies inputs to the output,
  *   with ";" inserted between the inputs.
  * <p>
+ * The optional {@code parseCache} attribute names a directory in which to
+ * cache parsed javascript inputs, so that unchanged inputs need not be
+ * reparsed by later builds.
+ * <p>
+ * The optional {@code outputCache} attribute names a directory in which to
+ * store javascript outputs keyed by a hash of the inputs and options, so that
+ * a rebuild whose inputs are unchanged, e.g. after switching branches, copies
+ * the earlier output instead of recompiling.
+ * <p>
  * The optional {@code canLink} attribute specifies a set of urls that cajoled
  * code is allowed to link to.
  * The default is none.
@@ -83,12 +92,14 @@ public class TransformAntTask extends AbstractCajaAntTask {
                         Map<String, Object> options)
        throws BuildException {
 
-    if (!reportedInputSizes) {
-      for (File input : inputs) {
-        report("input " + input.length() + " bytes from " +
-            input.getName());
+    synchronized (this) {
+      if (!reportedInputSizes) {
+        for (File input : inputs) {
+          logger.println("input " + input.length() + " bytes from " +
+              input.getName());
+        }
+        reportedInputSizes = true;
       }
-      reportedInputSizes = true;
     }
 
     if ("jslint".equals(options.get("language"))) {
@@ -106,30 +117,33 @@ public class TransformAntTask extends AbstractCajaAntTask {
   }
 
   // Closure compiler is kind of slow, so we cache the result in case
-  // we have multiple closure output targets.
+  // we have multiple closure output targets.  Outputs may be built in
+  // parallel, so the compile happens under closureLock, and a second closure
+  // output waits for the first instead of compiling the same inputs again.
 
-  private List<File> closureInputs = null;
-  private String closureOutput = null;
+  private final Object closureLock = new Object();
+  private List<File> closureInputs = null;  // guarded by closureLock
+  private String closureOutput = null;  // guarded by closureLock
 
   private boolean buildClosure(
       List<File> inputs, File output, PrintWriter logger) {
-    if (closureOutput == null || closureInputs != inputs) {
-      closureInputs = inputs;
-      closureOutput = ClosureCompiler.build(this, inputs);
+    String compiled;
+    synchronized (closureLock) {
+      if (closureOutput == null || closureInputs != inputs) {
+        closureInputs = inputs;
+        closureOutput = ClosureCompiler.build(this, inputs);
+      }
+      compiled = closureOutput;
     }
-    if (closureOutput == null) {
+    if (compiled == null) {
       return false;
     }
-    report("output (closure) " + closureOutput.length() +
+    logger.println("output (closure) " + compiled.length() +
         " chars to " + output.getName());
-    FileIO.write(closureOutput, output, logger);
+    FileIO.write(compiled, output, logger);
     return true;
   }
 
-  private static void report(String s) {
-    System.out.println(s);
-  }
-
   @Override
   Output makeOutput() {
     return new TranslateTaskOutput();
@@ -141,6 +155,8 @@ public class TransformAntTask extends AbstractCajaAntTask {
     private String renderer = "pretty";
     private Set<String> messagesToIgnore = Sets.newHashSet();
     private Set<String> allowedToLink = Sets.newHashSet();
+    private File parseCache;
+    private File outputCache;
 
     @Override
     public Map<String, Object> getOptions() {
@@ -152,6 +168,8 @@ public class TransformAntTask extends AbstractCajaAntTask {
       options.put("rename", rename);
       options.put("onlyJsEmitted", onlyJsEmitted);
       options.put("canLink", allowedToLink);
+      options.put("parseCache", parseCache);
+      options.put("outputCache", outputCache);
       return options;
     }
 
@@ -169,6 +187,12 @@ public class TransformAntTask extends AbstractCajaAntTask {
     public void setCanlink(String links) {
       this.allowedToLink = split(links);
     }
+    public void setParseCache(File parseCache) {
+      this.parseCache = parseCache;
+    }
+    public void setOutputCache(File outputCache) {
+      this.outputCache = outputCache;
+    }
     private Set<String> split(String spaceSeparated) {
       Set<String> result = Sets.newHashSet();
       spaceSeparated = spaceSeparated.trim();
@@ -0,0 +1,124 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.util;
+
+import com.google.caja.SomethingWidgyHappenedError;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Identifies the compiled code that a class was loaded from, so that caches of
+ * compiler output can be keyed on the compiler itself.  Unlike the
+ * {@link com.google.caja.reporting.BuildInfo#getBuildVersion build version},
+ * which is constant in development checkouts, the fingerprint changes
+ * whenever any class is recompiled differently.
+ */
+public final class CodeFingerprint {
+  private static final Map<String, String> fingerprints = Maps.newHashMap();
+
+  private CodeFingerprint() { /* uninstantiable */ }
+
+  /**
+   * A hash of the class files in the jar or class directory that cl was
+   * loaded from.  Other files, like generated JavaScript that the build puts
+   * beside the classes, are ignored.
+   *
+   * @return null if the code source is unknown or can't be read.
+   */
+  public static String of(Class<?> cl) {
+    CodeSource src = cl.getProtectionDomain().getCodeSource();
+    URL location = src != null ? src.getLocation() : null;
+    if (location == null || !"file".equals(location.getProtocol())) {
+      return null;
+    }
+    String key = location.toString();
+    synchronized (fingerprints) {
+      if (fingerprints.containsKey(key)) { return fingerprints.get(key); }
+      String fingerprint;
+      try {
+        fingerprint = hash(new File(location.toURI()));
+      } catch (IOException ex) {
+        fingerprint = null;
+      } catch (URISyntaxException ex) {
+        fingerprint = null;
+      }
+      fingerprints.put(key, fingerprint);
+      return fingerprint;
+    }
+  }
+
+  private static String hash(File root) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new SomethingWidgyHappenedError(ex);
+    }
+    byte[] buf = new byte[8192];
+    if (root.isFile()) {
+      hashFile(root, md, buf);
+    } else if (root.isDirectory()) {
+      hashClassFiles(root, "", md, buf);
+    } else {
+      throw new IOException("Missing " + root);
+    }
+    byte[] digest = md.digest();
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      sb.append("0123456789abcdef".charAt((b >> 4) & 0xf))
+          .append("0123456789abcdef".charAt(b & 0xf));
+    }
+    return sb.toString();
+  }
+
+  private static void hashClassFiles(
+      File dir, String path, MessageDigest md, byte[] buf)
+      throws IOException {
+    String[] names = dir.list();
+    if (names == null) { throw new IOException("Can't list " + dir); }
+    // Sort so that the hash doesn't depend on file system order.
+    Arrays.sort(names);
+    for (String name : names) {
+      File f = new File(dir, name);
+      if (f.isDirectory()) {
+        hashClassFiles(f, path + name + "/", md, buf);
+      } else if (name.endsWith(".class")) {
+        md.update((path + name + "\0").getBytes(Charsets.UTF_8.name()));
+        hashFile(f, md, buf);
+      }
+    }
+  }
+
+  private static void hashFile(File f, MessageDigest md, byte[] buf)
+      throws IOException {
+    InputStream in = new FileInputStream(f);
+    try {
+      for (int n; (n = in.read(buf)) > 0;) { md.update(buf, 0, n); }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.util;
+
+import java.util.Map;
+
+/**
+ * An immutable case-insensitive map from names to values that can be queried
+ * with a slice of a character buffer or any {@link CharSequence} without
+ * allocating, so that schema lookups can be done per token.
+ * <p>
+ * Names are compared after {@link Strings#lower lower casing}.  Names that
+ * only contain ASCII characters are folded in place, and others are lower
+ * cased via a String.
+ * <p>
+ * The table is open addressed and at most half full, so a lookup that misses
+ * usually examines one empty slot.  Instances may be shared across threads.
+ *
+ * @param <V> the type of values.
+ */
+public final class NameTable<V> {
+  /** Lower cased names, or null for empty slots. */
+  private final String[] names;
+  private final int[] hashes;
+  private final Object[] values;
+  private final int mask;
+  private final int size;
+
+  /**
+   * @param entries maps names to non-null values.  Names are lower cased, so
+   *     must not differ only by case.
+   */
+  public NameTable(Map<String, ? extends V> entries) {
+    int capacity = 4;
+    while (capacity < 2 * entries.size()) { capacity <<= 1; }
+    this.names = new String[capacity];
+    this.hashes = new int[capacity];
+    this.values = new Object[capacity];
+    this.mask = capacity - 1;
+    this.size = entries.size();
+    for (Map.Entry<String, ? extends V> e : entries.entrySet()) {
+      if (e.getValue() == null) { throw new NullPointerException(); }
+      String name = Strings.lower(e.getKey());
+      // Lower casing the name makes its hash the folded hash used by get.
+      int hash = name.hashCode();
+      int slot = spread(hash) & mask;
+      while (names[slot] != null) {
+        if (names[slot].equals(name)) {
+          throw new IllegalArgumentException("Duplicate name " + name);
+        }
+        slot = (slot + 1) & mask;
+      }
+      names[slot] = name;
+      hashes[slot] = hash;
+      values[slot] = e.getValue();
+    }
+  }
+
+  public int size() { return size; }
+
+  /** The value for name or null if none. */
+  public V get(CharSequence name) {
+    int len = name.length();
+    int hash = 0;
+    for (int i = 0; i < len; ++i) {
+      char ch = name.charAt(i);
+      if (ch >= 0x80) { return getLowerCased(name.toString()); }
+      hash = 31 * hash + fold(ch);
+    }
+    for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+      String candidate = names[slot];
+      if (candidate == null) { return null; }
+      if (hashes[slot] == hash && candidate.length() == len) {
+        int i = 0;
+        while (i < len && candidate.charAt(i) == fold(name.charAt(i))) {
+          ++i;
+        }
+        if (i == len) { return valueAt(slot); }
+      }
+    }
+  }
+
+  /** The value for the name in chars[off:off+len] or null if none. */
+  public V get(char[] chars, int off, int len) {
+    int end = off + len;
+    int hash = 0;
+    for (int i = off; i < end; ++i) {
+      char ch = chars[i];
+      if (ch >= 0x80) { return getLowerCased(new String(chars, off, len)); }
+      hash = 31 * hash + fold(ch);
+    }
+    for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+      String candidate = names[slot];
+      if (candidate == null) { return null; }
+      if (hashes[slot] == hash && candidate.length() == len) {
+        int i = 0;
+        while (i < len && candidate.charAt(i) == fold(chars[off + i])) { ++i; }
+        if (i == len) { return valueAt(slot); }
+      }
+    }
+  }
+
+  public boolean containsKey(CharSequence name) { return get(name) != null; }
+
+  public boolean containsKey(char[] chars, int off, int len) {
+    return get(chars, off, len) != null;
+  }
+
+  /** Handles names with non-ASCII characters that lower case specially. */
+  private V getLowerCased(String name) {
+    String lname = Strings.lower(name);
+    int hash = lname.hashCode();
+    for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+      String candidate = names[slot];
+      if (candidate == null) { return null; }
+      if (hashes[slot] == hash && candidate.equals(lname)) {
+        return valueAt(slot);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private V valueAt(int slot) { return (V) values[slot]; }
+
+  private static char fold(char ch) {
+    return ch >= 'A' && ch <= 'Z' ? (char) (ch | 0x20) : ch;
+  }
+
+  private static int spread(int hash) { return hash ^ (hash >>> 16); }
+}
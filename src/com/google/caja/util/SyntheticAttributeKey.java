@@ -15,6 +15,8 @@
 package com.google.caja.util;
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A key into {@link SyntheticAttributes} which asserts the type of the
@@ -27,11 +29,48 @@ public final class SyntheticAttributeKey<T>
   private static final long serialVersionUID = -419622209228551075L;
   private final Class<T> type;
   private final String name;
+  /**
+   * A small integer shared by all equal keys so that
+   * {@link SyntheticAttributes} can compare keys without calling
+   * {@link #equals}.
+   * Not serialized since ids are only meaningful within one class loader.
+   */
+  private final transient int id;
 
   public SyntheticAttributeKey(Class<T> type, String name) {
     if (null == type || null == name) { throw new NullPointerException(); }
     this.type = type;
     this.name = name;
+    this.id = idFor(type, name);
+  }
+
+  /** Maps (type, name) pairs to dense ids. */
+  private static final Map<Pair<Class<?>, String>, Integer> ids
+      = new HashMap<Pair<Class<?>, String>, Integer>();
+
+  private static int idFor(Class<?> type, String name) {
+    Pair<Class<?>, String> k = Pair.<Class<?>, String>pair(type, name);
+    synchronized (ids) {
+      Integer id = ids.get(k);
+      if (id == null) {
+        id = ids.size();
+        ids.put(k, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * A dense id that is the same for two keys iff they are
+   * {@link #equals equal}.
+   */
+  int getId() {
+    return this.id;
+  }
+
+  /** Reallocates the transient id on deserialization. */
+  private Object readResolve() {
+    return new SyntheticAttributeKey<T>(type, name);
   }
 
   public String getName() {
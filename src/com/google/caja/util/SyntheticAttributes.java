@@ -16,27 +16,47 @@ package com.google.caja.util;
 
 import java.io.Serializable;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * A set of attributes attached to a parse tree node that have been inferred by
  * the parser.
  *
+ * <p>Most nodes that have any attributes at all have only a few, so up to
+ * {@link #SMALL_MAP_CAPACITY} entries are stored inline in parallel arrays
+ * that are searched linearly by {@link SyntheticAttributeKey#getId key id}.
+ * Only past that size do we switch to a {@link HashMap}.
+ *
  * @author mikesamuel@gmail.com
  */
 public final class SyntheticAttributes
     extends AbstractMap<SyntheticAttributeKey<?>, Object>
     implements Serializable {
-  private static final long serialVersionUID = 1124793823020078634L;
+  private static final long serialVersionUID = 8167211528591234587L;
+  /** The maximum number of entries stored in {@link #keys}. */
+  static final int SMALL_MAP_CAPACITY = 4;
   /**
    * True iff this has its own copy without clobbering another maps attributes.
-   * The copy constructor below does copy-on-write of the underlying map.
+   * The copy constructor below does copy-on-write of the underlying storage.
    */
   private boolean hasOwnCopy;
-  private Map<SyntheticAttributeKey<?>, Object> attributes;
+  /**
+   * Keys of the inline small map.  Only the first {@link #size} are
+   * meaningful.  Null if empty or if {@link #bigMap} is in use.
+   */
+  private SyntheticAttributeKey<?>[] keys;
+  /** Values corresponding to {@link #keys}. */
+  private Object[] values;
+  /** The number of entries in {@link #keys}. */
+  private int size;
+  /** Non-null once this has grown past {@link #SMALL_MAP_CAPACITY}. */
+  private Map<SyntheticAttributeKey<?>, Object> bigMap;
   private boolean immutable = false;
 
   public SyntheticAttributes() {
@@ -44,14 +64,18 @@ public final class SyntheticAttributes
   }
 
   public SyntheticAttributes(SyntheticAttributes sa) {
-    attributes = sa.attributes;
+    keys = sa.keys;
+    values = sa.values;
+    size = sa.size;
+    bigMap = sa.bigMap;
     immutable = sa.immutable;
     sa.hasOwnCopy = false;
   }
 
   public void makeImmutable() {
     if (immutable) { return; }
-    requireOwnCopy();
+    // Most nodes have no attributes, and an empty map has no storage to copy.
+    if (size() != 0) { requireOwnCopy(); }
     immutable = true;
   }
 
@@ -64,18 +88,23 @@ public final class SyntheticAttributes
     if (immutable) {
       throw new UnsupportedOperationException();
     }
-    attributes = Collections.emptyMap();
+    keys = null;
+    values = null;
+    size = 0;
+    bigMap = null;
     hasOwnCopy = false;
   }
 
   @SuppressWarnings("unchecked")
   public <T> T get(SyntheticAttributeKey<T> k) {
-    return (T) attributes.get(k);
+    return (T) get((Object) k);
   }
 
   @Override
   public Object get(Object k) {
-    return attributes.get(k);
+    if (bigMap != null) { return bigMap.get(k); }
+    int i = indexOf(k);
+    return i >= 0 ? values[i] : null;
   }
 
   /**
@@ -92,8 +121,7 @@ public final class SyntheticAttributes
     if (!(null == v || k.getType().isInstance(v))) {
       throw new ClassCastException(v + " to " + k.getType());
     }
-    requireOwnCopy();
-    return (T) attributes.put(k, v);
+    return (T) putUnchecked(k, v);
   }
 
   @Deprecated
@@ -105,8 +133,33 @@ public final class SyntheticAttributes
     if (!(null == v || k.getType().isInstance(v))) {
       throw new ClassCastException(v + " to " + k.getType());
     }
+    return putUnchecked(k, v);
+  }
+
+  private Object putUnchecked(SyntheticAttributeKey<?> k, Object v) {
     requireOwnCopy();
-    return attributes.put(k, v);
+    if (bigMap != null) { return bigMap.put(k, v); }
+    int i = indexOf(k);
+    if (i >= 0) {
+      Object old = values[i];
+      values[i] = v;
+      return old;
+    }
+    if (size < SMALL_MAP_CAPACITY) {
+      keys[size] = k;
+      values[size] = v;
+      ++size;
+    } else {
+      Map<SyntheticAttributeKey<?>, Object> m
+          = new HashMap<SyntheticAttributeKey<?>, Object>();
+      for (int j = 0; j < size; ++j) { m.put(keys[j], values[j]); }
+      m.put(k, v);
+      bigMap = m;
+      keys = null;
+      values = null;
+      size = 0;
+    }
+    return null;
   }
 
   /**
@@ -114,7 +167,7 @@ public final class SyntheticAttributes
    * {@link Boolean#TRUE}.
    */
   public boolean is(SyntheticAttributeKey<Boolean> k) {
-    return Boolean.TRUE.equals(attributes.get(k));
+    return Boolean.TRUE.equals(get((Object) k));
   }
 
   /**
@@ -133,28 +186,68 @@ public final class SyntheticAttributes
     if (immutable) {
       throw new UnsupportedOperationException();
     }
-    if (!hasOwnCopy) {
-      if (attributes.isEmpty()) { return null; }
+    if (bigMap != null) {
+      if (!bigMap.containsKey(k)) { return null; }
       requireOwnCopy();
+      return bigMap.remove(k);
     }
-    return attributes.remove(k);
+    int i = indexOf(k);
+    if (i < 0) { return null; }
+    requireOwnCopy();
+    Object old = values[i];
+    --size;
+    System.arraycopy(keys, i + 1, keys, i, size - i);
+    System.arraycopy(values, i + 1, values, i, size - i);
+    keys[size] = null;
+    values[size] = null;
+    return old;
+  }
+
+  /** The index of k in {@link #keys} or -1 if not present. */
+  private int indexOf(Object k) {
+    if (!(k instanceof SyntheticAttributeKey<?>)) { return -1; }
+    int id = ((SyntheticAttributeKey<?>) k).getId();
+    SyntheticAttributeKey<?>[] keys = this.keys;
+    for (int i = 0, n = size; i < n; ++i) {
+      if (keys[i].getId() == id) { return i; }
+    }
+    return -1;
   }
 
   private void requireOwnCopy() {
     if (!hasOwnCopy) {
-      attributes = new HashMap<SyntheticAttributeKey<?>, Object>(attributes);
+      if (bigMap != null) {
+        bigMap = new HashMap<SyntheticAttributeKey<?>, Object>(bigMap);
+      } else if (keys == null) {
+        keys = new SyntheticAttributeKey<?>[SMALL_MAP_CAPACITY];
+        values = new Object[SMALL_MAP_CAPACITY];
+      } else {
+        keys = keys.clone();
+        values = values.clone();
+      }
       hasOwnCopy = true;
     }
   }
 
   @Override
-  public int size() { return attributes.size(); }
+  public int size() { return bigMap != null ? bigMap.size() : size; }
 
   @Override
-  public boolean containsKey(Object k) { return attributes.containsKey(k); }
+  public boolean isEmpty() { return size() == 0; }
 
   @Override
-  public boolean containsValue(Object v) { return attributes.containsValue(v); }
+  public boolean containsKey(Object k) {
+    return bigMap != null ? bigMap.containsKey(k) : indexOf(k) >= 0;
+  }
+
+  @Override
+  public boolean containsValue(Object v) {
+    if (bigMap != null) { return bigMap.containsValue(v); }
+    for (int i = 0; i < size; ++i) {
+      if (v == null ? values[i] == null : v.equals(values[i])) { return true; }
+    }
+    return false;
+  }
 
   /**
    * @return an immutable entry set to force proper type checking of keys
@@ -163,6 +256,66 @@ public final class SyntheticAttributes
    */
   @Override
   public Set<Map.Entry<SyntheticAttributeKey<?>, Object>> entrySet() {
-    return Collections.unmodifiableMap(attributes).entrySet();
+    if (bigMap != null) {
+      return Collections.unmodifiableMap(bigMap).entrySet();
+    }
+    return new AbstractSet<Map.Entry<SyntheticAttributeKey<?>, Object>>() {
+      @Override
+      public int size() { return size; }
+
+      @Override
+      public Iterator<Map.Entry<SyntheticAttributeKey<?>, Object>> iterator() {
+        return new Iterator<Map.Entry<SyntheticAttributeKey<?>, Object>>() {
+          int i = 0;
+
+          public boolean hasNext() { return i < size; }
+
+          public Map.Entry<SyntheticAttributeKey<?>, Object> next() {
+            if (i >= size) { throw new NoSuchElementException(); }
+            Map.Entry<SyntheticAttributeKey<?>, Object> e
+                = new SmallMapEntry(keys[i], values[i]);
+            ++i;
+            return e;
+          }
+
+          public void remove() { throw new UnsupportedOperationException(); }
+        };
+      }
+    };
+  }
+
+  private static final class SmallMapEntry
+      implements Map.Entry<SyntheticAttributeKey<?>, Object> {
+    private final SyntheticAttributeKey<?> k;
+    private final Object v;
+
+    SmallMapEntry(SyntheticAttributeKey<?> k, Object v) {
+      this.k = k;
+      this.v = v;
+    }
+
+    public SyntheticAttributeKey<?> getKey() { return k; }
+
+    public Object getValue() { return v; }
+
+    public Object setValue(Object newValue) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) { return false; }
+      Map.Entry<?, ?> that = (Map.Entry<?, ?>) o;
+      return k.equals(that.getKey())
+          && (v == null ? that.getValue() == null : v.equals(that.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+      return k.hashCode() ^ (v == null ? 0 : v.hashCode());
+    }
+
+    @Override
+    public String toString() { return k + "=" + v; }
   }
 }
@@ -368,4 +368,23 @@ public class ConstLocalOptimizationTest extends CajaTestCase {
             + "  return x + y + z;"
             + "}")))));
   }
+
+  public final void testInputNotModified() throws Exception {
+    Block program = js(fromString(
+        ""
+        + "function f() { var n = 4; return n; }"
+        + "function g(a, b) { return a + b; }"));
+    String before = render(program);
+    Block optimized = ConstLocalOptimization.optimize(program);
+    assertEquals(before, render(program));
+    assertEquals(
+        render(js(fromString(
+            ""
+            + "function f() { return 4; }"
+            + "function g(a, b) { return a + b; }"))),
+        render(optimized));
+    // Only the path to the edited function is rebuilt.
+    assertNotSame(program.children().get(0), optimized.children().get(0));
+    assertSame(program.children().get(1), optimized.children().get(1));
+  }
 }
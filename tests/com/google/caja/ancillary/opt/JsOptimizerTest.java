@@ -126,6 +126,39 @@ public class JsOptimizerTest extends CajaTestCase {
         js(fromString(input)));
   }
 
+  public final void testParallelMatchesSequential() throws Exception {
+    String src = Join.join(
+        "\n",
+        "var pool = 'a long string literal that is worth pooling';",
+        "function f(a, b) {",
+        "  var n = 4, s = 'a long string literal that is worth pooling';",
+        "  outer: for (var i = 0; i < n; ++i) {",
+        "    for (var j = 0; j < n; ++j) { if (a[j]) { continue outer; } }",
+        "    try { b(s, s, s); } catch (ex) { return ex; }",
+        "  }",
+        "  return function g() { var m = n; return m + i; };",
+        "}",
+        "var h = function (x) { if (x) { return x; } else { return 1; } };",
+        "(function () {",
+        "  var undefinedLocal;",
+        "  lbl: { if (h(undefinedLocal)) { break lbl; } f(pool, h); }",
+        "  break missing;",
+        "})();");
+    opt.addInput(js(fromString(src)));
+    String sequential = renderProgram(opt.optimize());
+    String messages = mq.getMessages().toString();
+    assertFalse(mq.getMessages().isEmpty());
+
+    mq.getMessages().clear();
+    opt = new JsOptimizer(mq);
+    opt.setRename(true);
+    opt.setEnvJson(new ObjectConstructor(FilePosition.UNKNOWN));
+    opt.setThreadCount(4);
+    opt.addInput(js(fromString(src)));
+    assertEquals(sequential, renderProgram(opt.optimize()));
+    assertEquals(messages, mq.getMessages().toString());
+  }
+
   private void assertOptimized(Statement golden, Block... inputs) {
     for (Block input : inputs) { opt.addInput(input); }
     Statement optimized = opt.optimize();
@@ -18,15 +18,21 @@ import com.google.caja.lexer.ParseException;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.js.Block;
 import com.google.caja.parser.js.Statement;
+import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessageType;
 import com.google.caja.reporting.RenderContext;
+import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.CajaTestCase;
 import com.google.caja.util.Join;
+import com.google.common.collect.Lists;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class StatementSimplifierTest extends CajaTestCase {
   public final void testExtraneousBlocks() throws ParseException {
@@ -384,6 +390,35 @@ public class StatementSimplifierTest extends CajaTestCase {
     assertNoErrors();
   }
 
+  public final void testParallelMessagesInSourceOrder() throws Exception {
+    String code = (
+        "break a;"
+        + "function f() { break b; }"
+        + "break c;"
+        + "(function () { break d; })();"
+        + "break e;");
+    StatementSimplifier.optimize(js(fromString(code)), mq);
+    List<Message> serial = Lists.newArrayList(mq.getMessages());
+    assertEquals(5, serial.size());
+    MessageQueue parallelMq = new SimpleMessageQueue();
+    ExecutorService exec = Executors.newFixedThreadPool(2);
+    try {
+      StatementSimplifier.optimize(js(fromString(code)), parallelMq, exec);
+    } finally {
+      exec.shutdown();
+    }
+    assertEquals(
+        messageParts(serial), messageParts(parallelMq.getMessages()));
+  }
+
+  private static List<String> messageParts(List<Message> messages) {
+    List<String> parts = Lists.newArrayList();
+    for (Message msg : messages) {
+      parts.add(msg.getMessageType() + " " + msg.getMessageParts());
+    }
+    return parts;
+  }
+
   public final void testUselessLabel1() throws ParseException {
     assertSimplified(
         Arrays.asList("foo()"),
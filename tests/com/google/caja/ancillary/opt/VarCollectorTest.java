@@ -118,6 +118,22 @@ public class VarCollectorTest extends CajaTestCase {
         + "}");
   }
 
+  public final void testManyVars() throws ParseException {
+    // Large generated bodies used to take time quadratic in the number of
+    // declarations.
+    int n = 5000;
+    StringBuilder golden = new StringBuilder("var ");
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < n; ++i) {
+      if (i != 0) { golden.append(", "); }
+      golden.append("v").append(i).append(" = ").append(i);
+      input.append("var v").append(i).append(" = ").append(i).append(";\n");
+    }
+    golden.append(", u; f(v0, u); ;");
+    input.append("f(v0, u); var u;");
+    assertOptimized(golden.toString(), input.toString());
+  }
+
   private void assertOptimized(String golden, String input)
       throws ParseException {
     Block program = js(fromString(input));
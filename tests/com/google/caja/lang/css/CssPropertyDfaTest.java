@@ -0,0 +1,255 @@
+// Copyright (C) 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lang.css;
+
+import com.google.caja.parser.css.CssPropertySignature;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Executor;
+import com.google.caja.util.RhinoTestBed;
+import com.google.caja.util.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class CssPropertyDfaTest extends CajaTestCase {
+  private CssSchema schema;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    schema = CssSchema.getDefaultCss21Schema(mq);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    schema = null;
+    super.tearDown();
+  }
+
+  public final void testSeries() {
+    assertAccepts("foo bar", "foo bar");
+    assertRejects("foo bar", "bar foo", "foo", "foo bar bar", "");
+  }
+
+  public final void testUnion() {
+    assertAccepts("[ foo | bar ] baz", "foo baz", "bar baz");
+    assertRejects("[ foo | bar ] baz", "foo bar baz", "baz");
+  }
+
+  public final void testExclusiveUnion() {
+    assertAccepts("[ a || b || c ]", "a", "b c", "c a b");
+    assertRejects("[ a || b || c ]", "");
+  }
+
+  public final void testRepetition() {
+    assertAccepts("<length>{1,4}", "1px", "1px 2px 3px 4px");
+    assertRejects("<length>{1,4}", "", "1px 2px 3px 4px 5px");
+    assertAccepts("foo*", "", "foo", "foo foo foo");
+    assertAccepts("foo+", "foo", "foo foo foo");
+    assertRejects("foo+", "");
+    assertAccepts("foo? bar", "bar", "foo bar");
+    assertRejects("foo? bar", "foo foo bar");
+  }
+
+  public final void testBuiltinsAcceptLookalikeLiterals() {
+    // 0 is a literal of the property, so the client classifies it as one.
+    assertAccepts("<length> | 0 auto", "0", "1px", "0 auto");
+    assertAccepts("<unreserved-word>+ | serif", "\"x\" serif", "serif");
+  }
+
+  public final void testFunctions() {
+    assertAccepts("<hex-color> | rgb(<number>, <number>, <number>)",
+                  "#fff", "rgb(");
+    assertRejects("<hex-color> | rgb(<number>, <number>, <number>)",
+                  "#fff rgb(", "1");
+  }
+
+  public final void testDefaultSchemaCompiles() {
+    CssPropertyPatterns pp = new CssPropertyPatterns(schema);
+    for (CssSchema.CssPropertyInfo p : schema.getCssProperties()) {
+      String key = p.name.getCanonicalForm();
+      if (!schema.isPropertyAllowed(p.name)
+          || CssPropertyPatterns.hasVendorPrefix(key)) {
+        continue;
+      }
+      CssPropertyPatterns.CssPropertyData data
+          = pp.cssPropertyToData(key, p.sig);
+      assertNotNull(key, CssPropertyDfa.compile(
+          schema, p.sig, Lists.newArrayList(data.literals),
+          fnNames(data)));
+    }
+  }
+
+  public final void testSanitizerRejectsMisorderedValues() throws Exception {
+    String js = "sanitizeAll(["
+        + "'font', 'bold 12px/1.5 Arial, sans-serif',"
+        + "'font', '12px 12px bold',"
+        + "'margin', '1px 2px 3px 4px 5px',"
+        + "'color', 'red blue',"
+        + "'color', 'inherit',"
+        + "'background', 'no-repeat red'"
+        + "]).join('|')";
+    assertEquals(
+        "bold 12px / 1.5 \"arial\" , sans-serif"
+        + "|12px 12px bold"
+        + "|1px 2px 3px 4px 5px"
+        + "|red blue"
+        + "|inherit"
+        + "|no-repeat red",
+        runSanitizer(generateSchema(false), js));
+    assertEquals(
+        "bold 12px / 1.5 \"arial\" , sans-serif"
+        + "|"
+        + "|"
+        + "|"
+        + "|inherit"
+        + "|no-repeat red",
+        runSanitizer(generateSchema(true), js));
+  }
+
+  public final void testSanitizerSizeAndSpeed() throws Exception {
+    String litGroups = generateSchema(false);
+    String dfas = generateSchema(true);
+    String js = "benchmark(" + 200 + ")";
+    runSanitizer(litGroups, js);  // prime the JIT
+    runSanitizer(dfas, js);
+    int litGroupMicros = Integer.parseInt(runSanitizer(litGroups, js));
+    int dfaMicros = Integer.parseInt(runSanitizer(dfas, js));
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".litGroupSchemaBytes="
+        + litGroups.length());
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".dfaSchemaBytes=" + dfas.length());
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".litGroupSchemaGzipBytes="
+        + gzippedLength(litGroups));
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".dfaSchemaGzipBytes="
+        + gzippedLength(dfas));
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".litGroupMicrosPerValue="
+        + litGroupMicros);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".dfaMicrosPerValue=" + dfaMicros);
+  }
+
+  private String generateSchema(boolean withDfas) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (CssPropBit b : CssPropBit.values()) {
+      sb.append("var CSS_PROP_BIT_").append(Strings.upper(b.name()))
+          .append(" = ").append(b.jsValue).append(";\n");
+    }
+    CssPropertyPatterns.generatePatterns(schema, sb, withDfas);
+    return sb.toString();
+  }
+
+  private static String runSanitizer(String cssDefs, String js)
+      throws IOException {
+    return (String) RhinoTestBed.runJs(
+        new Executor.Input(cssDefs, "css-defs.js"),
+        new Executor.Input(
+            CssPropertyDfaTest.class, "/com/google/caja/plugin/csslexer.js"),
+        new Executor.Input(
+            CssPropertyDfaTest.class, "/com/google/caja/plugin/sanitizecss.js"),
+        new Executor.Input(CssPropertyDfaTest.class, "cssdfa_benchmark.js"),
+        new Executor.Input(js, "benchmark"));
+  }
+
+  private static int gzippedLength(String s) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(s.getBytes("UTF-8"));
+    out.close();
+    return bytes.size();
+  }
+
+  private void assertAccepts(String sig, String... values) {
+    assertDfa(true, sig, values);
+  }
+
+  private void assertRejects(String sig, String... values) {
+    assertDfa(false, sig, values);
+  }
+
+  /**
+   * Compiles sig and runs it over values classified the way
+   * "sanitizecss.js" classifies sanitized tokens.
+   */
+  private void assertDfa(boolean accepts, String sig, String... values) {
+    CssPropertySignature parsed
+        = CssPropertySignature.Parser.parseSignature(sig);
+    CssPropertyPatterns.CssPropertyData data
+        = new CssPropertyPatterns(schema).cssPropertyToData("test", parsed);
+    List<String> literals = Lists.newArrayList(Sets.newTreeSet(data.literals));
+    List<String> fns = fnNames(data);
+    String dfa = CssPropertyDfa.compile(schema, parsed, literals, fns);
+    assertNotNull(sig, dfa);
+    for (String value : values) {
+      List<String> tokens = "".equals(value)
+          ? Collections.<String>emptyList() : Arrays.asList(value.split(" "));
+      int state = 0;
+      for (String token : tokens) {
+        state = step(dfa, state, symbolOf(token, literals, fns));
+        if (state < 0) { break; }
+      }
+      boolean accepted = state >= 0 && (at(dfa, at(dfa, state)) & 1) != 0;
+      assertEquals(sig + " : " + value, accepts, accepted);
+    }
+  }
+
+  private static List<String> fnNames(
+      CssPropertyPatterns.CssPropertyData data) {
+    List<String> fns = Lists.newArrayList();
+    for (CssPropertySignature.CallSignature fn : data.fns) {
+      fns.add(fn.getName() + "()");
+    }
+    return fns;
+  }
+
+  private static int symbolOf(
+      String token, List<String> literals, List<String> fns) {
+    int lit = literals.indexOf(token);
+    if (lit >= 0) { return CssPropertyDfa.TOKEN_CLASS_COUNT + lit; }
+    if (token.startsWith("\"")) { return CssPropertyDfa.STRING; }
+    if (token.startsWith("#")) { return CssPropertyDfa.HASH; }
+    if (token.matches("^-?\\.?[0-9].*")) { return CssPropertyDfa.QUANTITY; }
+    if (token.endsWith("(")) {
+      return CssPropertyDfa.TOKEN_CLASS_COUNT + literals.size()
+          + fns.indexOf(token + ")");
+    }
+    return CssPropertyDfa.IDENT;
+  }
+
+  private static int step(String dfa, int state, int symbol) {
+    int record = at(dfa, state);
+    for (int i = 0, n = at(dfa, record) >> 1; i < n; ++i) {
+      if (at(dfa, record + 1 + 2 * i) == symbol) {
+        return at(dfa, record + 2 + 2 * i);
+      }
+    }
+    return -1;
+  }
+
+  private static int at(String dfa, int index) {
+    return dfa.charAt(index) - CssPropertyDfa.BIAS;
+  }
+}
@@ -14,12 +14,30 @@
 
 package com.google.caja.lang.css;
 
+import com.google.caja.config.ConfigMessageType;
+import com.google.caja.config.ConfigUtil;
+import com.google.caja.config.WhiteList;
+import com.google.caja.config.WhiteListSnapshot;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
 import com.google.caja.parser.css.CssPropertySignature;
 import com.google.caja.reporting.EchoingMessageQueue;
+import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.Name;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
 
 import junit.framework.TestCase;
 
@@ -108,4 +126,183 @@ public class CssSchemaTest extends TestCase {
         = cssSchema.getCssProperty(Name.css("margin-bottom"));
     assertEquals("0", marginBottomInfo.defaultValue);
   }
+
+  public final void testGetDefaultWithoutMessageQueue() {
+    assertSame(cssSchema, CssSchema.getDefaultCss21Schema());
+  }
+
+  public final void testSnapshotRoundTrip() throws Exception {
+    byte[] snapshot = snapshotFromJson();
+    CssSchema fromJson = loadFromJson();
+    CssSchema fromSnapshot = CssSchema.readSnapshot(
+        new DataInputStream(new ByteArrayInputStream(snapshot)),
+        new SimpleMessageQueue());
+    assertEquals(
+        fromJson.getCssProperties().size(),
+        fromSnapshot.getCssProperties().size());
+    for (CssSchema.CssPropertyInfo expected : fromJson.getCssProperties()) {
+      CssSchema.CssPropertyInfo actual
+          = fromSnapshot.getCssProperty(expected.name);
+      assertNotNull(expected.name.getCanonicalForm(), actual);
+      assertEquals(expected.sig.toString(), actual.sig.toString());
+      assertEquals(expected.defaultValue, actual.defaultValue);
+      assertEquals(expected.inherited, actual.inherited);
+      assertEquals(
+          fromJson.isPropertyAllowed(expected.name),
+          fromSnapshot.isPropertyAllowed(expected.name));
+      for (String el : new String[] { "div", "table", "td", "img" }) {
+        assertEquals(
+            expected.appliesTo.accept(el), actual.appliesTo.accept(el));
+      }
+    }
+    for (String sym : new String[] { "color", "shadow", "bg-image", "box" }) {
+      assertEquals(
+          fromJson.getSymbol(Name.css(sym)).sig.toString(),
+          fromSnapshot.getSymbol(Name.css(sym)).sig.toString());
+    }
+    for (String kw : new String[] { "bold", "inherit", "rgb", "bogus" }) {
+      assertEquals(
+          fromJson.isKeyword(Name.css(kw)),
+          fromSnapshot.isKeyword(Name.css(kw)));
+    }
+    for (String fn : new String[] { "rgb", "url", "expression" }) {
+      assertEquals(
+          fromJson.isFunctionAllowed(Name.css(fn)),
+          fromSnapshot.isFunctionAllowed(Name.css(fn)));
+    }
+  }
+
+  public final void testTruncatedSnapshot() throws Exception {
+    byte[] snapshot = snapshotFromJson();
+    byte[] truncated = Arrays.copyOf(snapshot, snapshot.length / 2);
+    try {
+      CssSchema.readSnapshot(
+          new DataInputStream(new ByteArrayInputStream(truncated)),
+          new SimpleMessageQueue());
+      fail("Read truncated snapshot");
+    } catch (IOException ex) {
+      // pass
+    }
+  }
+
+  public final void testLoadSnapshotFallsBackOnBadInput() throws Exception {
+    MessageQueue mq = new SimpleMessageQueue();
+    byte[] snapshot = snapshotFromJson();
+    assertNull(CssSchema.loadSnapshot(null, mq));
+    assertNull(CssSchema.loadSnapshot(
+        new ByteArrayInputStream(
+            Arrays.copyOf(snapshot, snapshot.length / 2)),
+        mq));
+    assertNotNull(
+        CssSchema.loadSnapshot(new ByteArrayInputStream(snapshot), mq));
+    assertTrue(mq.getMessages().isEmpty());
+  }
+
+  public final void testLoadSnapshotFallsBackOnBadSchema() throws Exception {
+    // Well formed, but the schema constructor rejects it.
+    WhiteList badProps = ConfigUtil.loadWhiteListFromJson(
+        new StringReader(
+            "{ \"types\": [ { \"key\": \"bad!\","
+            + " \"signature\": \"<number>\" } ],"
+            + "  \"allowed\": [ \"bad!\" ] }"),
+        FilePosition.UNKNOWN, ConfigUtil.RESOURCE_RESOLVER,
+        new SimpleMessageQueue());
+    // writeSnapshot checks its input, so write a bad snapshot by hand.
+    String header = new DataInputStream(
+        new ByteArrayInputStream(snapshotFromJson())).readUTF();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(header);
+    WhiteListSnapshot.write(badProps, out);
+    WhiteListSnapshot.write(fnWhitelist(), out);
+    WhiteListSnapshot.writeMessages(Collections.<Message>emptyList(), out);
+    out.writeInt(0);
+    out.close();
+    MessageQueue mq = new SimpleMessageQueue();
+    assertNull(CssSchema.loadSnapshot(
+        new ByteArrayInputStream(bytes.toByteArray()), mq));
+    assertTrue(mq.getMessages().isEmpty());
+  }
+
+  public final void testSnapshotReplaysLoadMessages() throws Exception {
+    InputSource src = new InputSource(CssSchema.defaultPropWhitelistURL);
+    Message msg = new Message(
+        ConfigMessageType.UNRECOGNIZED_KEY,
+        FilePosition.instance(src, 3, 42, 5, 7),
+        MessagePart.Factory.valueOf("bogus"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    CssSchema.writeSnapshot(
+        propWhitelist(), fnWhitelist(), Collections.singletonList(msg), out);
+    out.close();
+    MessageQueue mq = new SimpleMessageQueue();
+    CssSchema.readSnapshot(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+        mq);
+    assertEquals(1, mq.getMessages().size());
+    Message actual = mq.getMessages().get(0);
+    assertEquals(msg.getMessageType(), actual.getMessageType());
+    assertEquals(msg.getMessageLevel(), actual.getMessageLevel());
+    MessageContext mc = new MessageContext();
+    assertEquals(msg.format(mc), actual.format(mc));
+    FilePosition pos = (FilePosition) actual.getMessageParts().get(0);
+    assertEquals(src, pos.source());
+    assertEquals(3, pos.startLineNo());
+    assertEquals(42, pos.startCharInFile());
+    assertEquals(5, pos.startCharInLine());
+    assertEquals(7, pos.length());
+  }
+
+  public final void testSnapshotLoadSpeed() throws Exception {
+    byte[] snapshot = snapshotFromJson();
+    for (int i = 3; --i >= 0;) {  // prime the JIT
+      loadFromJson();
+      CssSchema.readSnapshot(
+          new DataInputStream(new ByteArrayInputStream(snapshot)),
+          new SimpleMessageQueue());
+    }
+    int nRuns = 10;
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) { loadFromJson(); }
+    long t1 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      CssSchema.readSnapshot(
+          new DataInputStream(new ByteArrayInputStream(snapshot)),
+          new SimpleMessageQueue());
+    }
+    long t2 = System.nanoTime();
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".jsonLoadMs="
+        + (int) ((t1 - t0) / (nRuns * 1e6)));
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".snapshotLoadMs="
+        + (int) ((t2 - t1) / (nRuns * 1e6)));
+  }
+
+  private static CssSchema loadFromJson() throws Exception {
+    return new CssSchema(propWhitelist(), fnWhitelist());
+  }
+
+  private static byte[] snapshotFromJson() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    CssSchema.writeSnapshot(
+        propWhitelist(), fnWhitelist(), Collections.<Message>emptyList(),
+        out);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static WhiteList propWhitelist() throws Exception {
+    return ConfigUtil.loadWhiteListFromJson(
+        CssSchema.defaultPropWhitelistURL, ConfigUtil.RESOURCE_RESOLVER,
+        new SimpleMessageQueue());
+  }
+
+  private static WhiteList fnWhitelist() throws Exception {
+    return ConfigUtil.loadWhiteListFromJson(
+        CssSchema.defaultFnWhitelistURL, ConfigUtil.RESOURCE_RESOLVER,
+        new SimpleMessageQueue());
+  }
 }
@@ -0,0 +1,61 @@
+// Copyright (C) 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * @fileoverview
+ * Runs sanitizeCssProperty over property values for CssPropertyDfaTest which
+ * loads it after css-defs.js, csslexer.js, and sanitizecss.js.
+ */
+
+/**
+ * @param {Array.<string>} propsAndValues alternating property names and
+ *     values.
+ * @return {Array.<string>} the sanitized values.
+ */
+function sanitizeAll(propsAndValues) {
+  var sanitized = [];
+  for (var i = 0, n = propsAndValues.length; i < n; i += 2) {
+    var tokens = lexCss(propsAndValues[i + 1]);
+    sanitizeCssProperty(propsAndValues[i], tokens);
+    sanitized.push(tokens.join(' '));
+  }
+  return sanitized;
+}
+
+/** Values that are long or that have signatures with many alternatives. */
+var BENCHMARK_VALUES = [
+  'font', 'italic small-caps bold 12px/1.5 "Helvetica Neue", Arial, serif',
+  'font', '12px 12px 12px 12px 12px 12px 12px 12px 12px 12px 12px bold',
+  'background', 'no-repeat left top, repeat-x right bottom, fixed red',
+  'border', '1px solid #ccc',
+  'margin', '1px 2px 3px 4px',
+  'color', 'rgb(10, 20, 30)',
+  'box-shadow', '1px 1px 2px red, inset 0 0 3px 1px blue, 2px 2px #fff',
+  'text-shadow', '1px 1px 2px red, 0 0 1em blue, 0 0 .2em yellow',
+  'font-family', 'Lucida Grande, Lucida Sans Unicode, sans-serif',
+  'transition', 'opacity 1s ease-in, color 2s linear 1s'
+];
+
+/**
+ * @return {number} microseconds to sanitize one value averaged over nRuns
+ *     passes over BENCHMARK_VALUES.
+ */
+function benchmark(nRuns) {
+  var t0 = Date.now();
+  for (var i = 0; i < nRuns; ++i) {
+    sanitizeAll(BENCHMARK_VALUES);
+  }
+  var nValues = nRuns * BENCHMARK_VALUES.length / 2;
+  return String(Math.round((Date.now() - t0) * 1000 / nValues));
+}
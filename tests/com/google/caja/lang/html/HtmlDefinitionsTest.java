@@ -0,0 +1,142 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lang.html;
+
+import com.google.caja.parser.js.StringLiteral;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Executor;
+import com.google.caja.util.RhinoTestBed;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class HtmlDefinitionsTest extends CajaTestCase {
+  private static final String TABLE_NAMES = "["
+      + "'atype', 'ATTRIBS', 'eflags', 'ELEMENTS', 'ELEMENT_DOM_INTERFACES',"
+      + "'ueffects', 'URIEFFECTS', 'ltypes', 'LOADERTYPES']";
+
+  /**
+   * Dumps every table in html4 as sorted lines so that tables built from
+   * object literals and from packed strings can be compared.
+   */
+  private static final String DUMP_TABLES = (
+      ""
+      + "(function () {"
+      + "  var lines = [];"
+      + "  var names = " + TABLE_NAMES + ";"
+      + "  for (var i = 0; i < names.length; ++i) {"
+      + "    var table = html4[names[i]];"
+      + "    for (var k in table) {"
+      + "      if (Object.prototype.hasOwnProperty.call(table, k)) {"
+      + "        lines.push(names[i] + '[' + k + ']=' + (typeof table[k])"
+      + "                   + ':' + table[k]);"
+      + "      }"
+      + "    }"
+      + "  }"
+      + "  return lines.sort().join('\\n');"
+      + "})()");
+
+  private HtmlSchema schema;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    schema = HtmlSchema.getDefault(mq);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    schema = null;
+    super.tearDown();
+  }
+
+  public final void testPackedTablesMatchLiteralTables() throws Exception {
+    String golden = run(generate(false), DUMP_TABLES);
+    assertTrue(golden, golden.contains("ELEMENTS[script]=number:"));
+    assertTrue(
+        golden,
+        golden.contains("ELEMENT_DOM_INTERFACES[a]=string:HTMLAnchorElement"));
+    assertTrue(golden, golden.contains("ATTRIBS[a::href]=number:1"));
+    assertEquals(golden, run(generate(true), DUMP_TABLES));
+  }
+
+  public final void testPackedTablesAreDecodedLazily() throws Exception {
+    assertEquals(
+        "function|true|true",
+        run(generate(true),
+            "var d = Object.getOwnPropertyDescriptor(html4, 'ELEMENTS');"
+            + "[typeof d.get,"
+            + " html4.ELEMENTS === html4.ELEMENTS,"
+            + " html4.ATTRIBS['*::style'] === html4.atype.STYLE].join('|')"));
+  }
+
+  public final void testPackedTablesWithoutAccessors() throws Exception {
+    // IE8 only allows Object.defineProperty on DOM nodes.
+    String noAccessors = (
+        "Object.defineProperty = function () { throw new TypeError(); };");
+    assertEquals(
+        run(generate(false), DUMP_TABLES),
+        run(noAccessors + generate(true), DUMP_TABLES));
+  }
+
+  public final void testPackedSizeAndLoadTime() throws Exception {
+    String literal = generate(false);
+    String packed = generate(true);
+    String bench = (
+        "(function () {"
+        + "  function time(src, touch) {"
+        + "    var n = 200;"
+        + "    var t0 = Date.now();"
+        + "    for (var i = 0; i < n; ++i) {"
+        + "      (0, eval)(src);"
+        + "      if (touch) { html4.ELEMENTS; html4.ATTRIBS; }"
+        + "    }"
+        + "    return Math.round((Date.now() - t0) * 1000 / n);"
+        + "  }"
+        + "  var literal = " + StringLiteral.toQuotedValue(literal) + ";"
+        + "  var packed = " + StringLiteral.toQuotedValue(packed) + ";"
+        + "  time(literal, false); time(packed, false);"  // prime the JIT
+        + "  return [time(literal, false), time(packed, false),"
+        + "          time(packed, true)].join(',');"
+        + "})()");
+    String[] micros = run(bench).split(",");
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".literalBytes=" + literal.length());
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".packedBytes=" + packed.length());
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".literalLoadMicros=" + micros[0]);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".packedLoadMicros=" + micros[1]);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".packedLoadAndDecodeMicros="
+        + micros[2]);
+  }
+
+  private String generate(boolean packed) throws IOException {
+    StringWriter out = new StringWriter();
+    HtmlDefinitions.generateSourceText(schema, out, packed);
+    return out.toString();
+  }
+
+  private static String run(String... js) {
+    Executor.Input[] inputs = new Executor.Input[js.length];
+    for (int i = 0; i < js.length; ++i) {
+      inputs[i] = new Executor.Input(js[i], "input" + i + ".js");
+    }
+    return (String) RhinoTestBed.runJs(inputs);
+  }
+}
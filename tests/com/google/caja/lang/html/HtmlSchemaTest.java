@@ -14,15 +14,32 @@
 
 package com.google.caja.lang.html;
 
+import com.google.caja.config.ConfigUtil;
 import com.google.caja.parser.html.AttribKey;
 import com.google.caja.parser.html.ElKey;
 import com.google.caja.parser.html.Namespaces;
 import com.google.caja.plugin.LoaderType;
 import com.google.caja.plugin.UriEffect;
+import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 
@@ -157,6 +174,158 @@ public class HtmlSchemaTest extends TestCase {
     assertEquals(lookupAttribute("B", "ID"), withName(b, "ID"));
   }
 
+  public final void testLookupHtmlAttribute() {
+    Set<String> attrNames = Sets.newTreeSet();
+    for (AttribKey k : schema.getAttributeNames()) {
+      attrNames.add(k.localName);
+    }
+    attrNames.add("bogus");
+    List<ElKey> els = Lists.newArrayList(schema.getElementNames());
+    els.add(el("bogus"));
+    els.add(el("caja-v-bogus"));
+    els.add(ElKey.HTML_WILDCARD);
+    HTML.Attribute[] onUnknown = attributesByName(
+        schema.lookupElement(el("bogus")), attrNames);
+    for (ElKey el : els) {
+      if (!el.isHtml()) { continue; }
+      // Attributes of virtualized elements are looked up on a different
+      // element.
+      HTML.Attribute[] expected = schema.isElementVirtualized(el)
+          ? onUnknown : attributesByName(schema.lookupElement(el), attrNames);
+      int i = 0;
+      for (String name : attrNames) {
+        assertSame(
+            el + "::" + name, expected[i],
+            schema.lookupAttribute(AttribKey.forHtmlAttrib(el, name)));
+        ++i;
+      }
+    }
+  }
+
+  private static HTML.Attribute[] attributesByName(
+      HTML.Element el, Set<String> names) {
+    HTML.Attribute[] byName = new HTML.Attribute[names.size()];
+    int i = 0;
+    for (String name : names) {
+      for (HTML.Attribute a : el.getAttributes()) {
+        if (a.getKey().localName.equals(name)) { byName[i] = a; }
+      }
+      ++i;
+    }
+    return byName;
+  }
+
+  public final void testGetDefaultWithoutMessageQueue() {
+    assertSame(schema, HtmlSchema.getDefault());
+  }
+
+  public final void testConcurrentGetDefault() throws Exception {
+    final int nThreads = 16;
+    final int nCalls = 200000;
+    ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Callable<Long>> tasks = Lists.newArrayList();
+      for (int i = 0; i < nThreads; ++i) {
+        tasks.add(new Callable<Long>() {
+          public Long call() {
+            long t0 = System.nanoTime();
+            for (int j = nCalls; --j >= 0;) {
+              if (HtmlSchema.getDefault() != schema) {
+                throw new AssertionError();
+              }
+            }
+            return System.nanoTime() - t0;
+          }
+        });
+      }
+      long totalNanos = 0;
+      for (Future<Long> f : exec.invokeAll(tasks)) { totalNanos += f.get(); }
+      // See extractVarZ in "tools/dashboard/dashboard.pl".
+      System.out.println(
+          " VarZ:" + getClass().getName() + ".concurrentGetDefaultNs="
+          + (totalNanos / ((long) nThreads * nCalls)));
+    } finally {
+      exec.shutdown();
+    }
+    assertTrue(mq.getMessages().isEmpty());
+  }
+
+  public final void testSnapshotRoundTrip() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    HtmlSchema.writeSnapshot(
+        ConfigUtil.loadWhiteListFromJson(
+            HtmlSchema.defaultElementWhitelistURL,
+            ConfigUtil.RESOURCE_RESOLVER, mq),
+        ConfigUtil.loadWhiteListFromJson(
+            HtmlSchema.defaultAttributeWhitelistURL,
+            ConfigUtil.RESOURCE_RESOLVER, mq),
+        Collections.<Message>emptyList(), out);
+    out.close();
+    HtmlSchema fromSnapshot = HtmlSchema.readSnapshot(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+        mq);
+    assertEquals(schema.getElementNames(), fromSnapshot.getElementNames());
+    assertEquals(schema.getAttributeNames(), fromSnapshot.getAttributeNames());
+    for (ElKey el : schema.getElementNames()) {
+      assertEquals(
+          el.toString(),
+          schema.isElementAllowed(el), fromSnapshot.isElementAllowed(el));
+      assertEquals(
+          schema.lookupElement(el).getAttributes(),
+          fromSnapshot.lookupElement(el).getAttributes());
+    }
+    for (AttribKey k : schema.getAttributeNames()) {
+      HTML.Attribute expected = schema.lookupAttribute(k);
+      HTML.Attribute actual = fromSnapshot.lookupAttribute(k);
+      if (expected == null) {
+        assertNull(k.toString(), actual);
+        continue;
+      }
+      assertEquals(k.toString(), expected.getType(), actual.getType());
+      assertEquals(expected.getUriEffect(), actual.getUriEffect());
+      assertEquals(expected.getLoaderType(), actual.getLoaderType());
+      assertEquals(expected.getDefaultValue(), actual.getDefaultValue());
+      assertEquals(
+          schema.isAttributeAllowed(k), fromSnapshot.isAttributeAllowed(k));
+    }
+  }
+
+  public final void testSnapshotBuilderUsesClasspathUris() throws Exception {
+    File dir = new File(
+        HtmlSchema.class.getResource("htmlall-elements.json").toURI())
+        .getParentFile();
+    List<File> deps = Lists.newArrayList();
+    for (File f : dir.listFiles()) {
+      if (f.getName().endsWith(".json")) { deps.add(f); }
+    }
+    File output = File.createTempFile(getName(), ".bin");
+    try {
+      assertTrue(new HtmlSchema.SnapshotBuilder().build(
+          Arrays.asList(
+              new File(dir, "htmlall-elements.json"),
+              new File(dir, "htmlall-attributes.json")),
+          deps, Collections.<String, Object>emptyMap(), output));
+      byte[] bytes = new byte[(int) output.length()];
+      DataInputStream in = new DataInputStream(new FileInputStream(output));
+      try {
+        in.readFully(bytes);
+      } finally {
+        in.close();
+      }
+      String text = new String(bytes, "ISO-8859-1");
+      assertTrue(text.contains(
+          "resource:///com/google/caja/lang/html/htmlall-elements.json"));
+      assertFalse(text.contains(dir.toURI().getPath()));
+      HtmlSchema fromSnapshot = HtmlSchema.loadSnapshot(
+          new ByteArrayInputStream(bytes), mq);
+      assertNotNull(fromSnapshot);
+      assertEquals(schema.getElementNames(), fromSnapshot.getElementNames());
+    } finally {
+      output.delete();
+    }
+  }
+
   private HTML.Attribute lookupAttribute(
       String qualifiedEl, String qualifiedAttr) {
     AttribKey attr = AttribKey.forAttribute(
@@ -14,11 +14,14 @@
 
 package com.google.caja.lexer;
 
+import com.google.caja.reporting.DevNullMessageQueue;
 import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessageType;
 import com.google.caja.util.CajaTestCase;
 import com.google.caja.util.TestUtil;
 
+import java.io.IOException;
+
 /**
  * @author mikesamuel@gmail.com (Mike Samuel)
  */
@@ -79,6 +82,63 @@ public class CssLexerTest extends CajaTestCase {
     assertEquals("foo", CssLexer.decodeCssIdentifier("\\66 \\6f \\6f "));
   }
 
+  public final void testImportantAfterManyComments() throws Exception {
+    StringBuilder css = new StringBuilder("!");
+    for (int i = 0; i < 12; ++i) { css.append(" /*").append(i).append("*/"); }
+    css.append(" ImPorTant !");
+    for (int i = 0; i < 12; ++i) { css.append("/**/"); }
+    css.append("x");
+    CssLexer lexer = new CssLexer(fromString(css.toString()));
+    Token<CssTokenType> t = lexer.next();
+    assertEquals(CssTokenType.DIRECTIVE, t.type);
+    assertEquals(css.substring(0, css.indexOf("t !") + 1), t.text);
+    lexer.next();  // Space
+    assertEquals("!", lexer.next().text);
+    for (int i = 0; i < 12; ++i) {
+      assertEquals(CssTokenType.COMMENT, lexer.next().type);
+    }
+    assertEquals(CssTokenType.IDENT, lexer.next().type);
+    assertFalse(lexer.hasNext());
+  }
+
+  public final void testLexerSpeed() throws Exception {
+    CharProducer fixture = fromResource("csslexerinput1.css");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      sb.append("#id").append(i).append(" .cls-").append(i % 37)
+          .append(" > a:hover, div.x").append(i)
+          .append(" { color: #").append(Integer.toHexString(0x100000 + i))
+          .append("; margin: ").append(i % 17).append("px 0 -")
+          .append(i % 5).append(".5em auto;\n  font: bold 12px/1.5 'Foo Sans',")
+          .append(" sans-serif !important;")
+          .append(" background: url(/img/").append(i).append(".png) no-repeat")
+          .append(" } /* rule ").append(i).append(" */\n");
+    }
+    CharProducer synthetic = fromString(sb.toString());
+    benchmark(fixture, 1000);  // prime the JIT
+    benchmark(synthetic, 20);
+    int fixtureMicros = benchmark(fixture, 2000);
+    int syntheticMicros = benchmark(synthetic, 50);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".fixtureMicrosPerRun="
+        + fixtureMicros);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".syntheticMicrosPerRun="
+        + syntheticMicros);
+  }
+
+  private static int benchmark(CharProducer input, int nRuns)
+      throws IOException, ParseException {
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      CssLexer lexer = new CssLexer(
+          input.clone(), DevNullMessageQueue.singleton(), false);
+      while (lexer.hasNext()) { lexer.next(); }
+    }
+    return (int) ((((double) (System.nanoTime() - t0)) / nRuns) / 1e3);
+  }
+
   private void assertFails(String input, String golden) {
     try {
       runTest(input, "expected failure: " + golden);
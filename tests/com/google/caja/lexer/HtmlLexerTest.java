@@ -160,6 +160,30 @@ public class HtmlLexerTest extends CajaTestCase {
         "TAGEND: >");
   }
 
+  public final void testUnquotedAttributeValueRuns() throws Exception {
+    assertTokens(
+        "<a title=one two three four five six seven eight nine ten>", false,
+        "TAGBEGIN: <a",
+        "ATTRNAME: title",
+        "ATTRVALUE: one two three four five six seven eight nine ten",
+        "TAGEND: >");
+    assertTokens(
+        "<input value=a b c d e f g h i j k Checked onclick = f()>", false,
+        "TAGBEGIN: <input",
+        "ATTRNAME: value",
+        "ATTRVALUE: a b c d e f g h i j k",
+        "ATTRNAME: Checked",
+        "ATTRNAME: onclick",
+        "ATTRVALUE: f()",
+        "TAGEND: >");
+    assertTokens(
+        "<input checked=>", false,
+        "TAGBEGIN: <input",
+        "ATTRNAME: checked",
+        "ATTRVALUE: ",
+        "TAGEND: >");
+  }
+
   private static void lex(HtmlLexer lexer, Appendable out) throws Exception {
     int maxTypeLength = 0;
     for (HtmlTokenType t : HtmlTokenType.values()) {
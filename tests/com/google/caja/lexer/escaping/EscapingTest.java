@@ -14,6 +14,10 @@
 
 package com.google.caja.lexer.escaping;
 
+import com.google.caja.util.SparseBitSet;
+
+import java.io.IOException;
+import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -501,6 +505,113 @@ public class EscapingTest extends TestCase {
         sb.toString());
   }
 
+  public final void testEscaperMatchesReference() throws IOException {
+    EscapeMap map = new EscapeMap(
+        new Escape('\0', "\\0"), new Escape('\n', "\\n"),
+        new Escape('"', "\\\""), new Escape('\\', "\\\\"),
+        new Escape('<', "\\x3c"), new Escape((char) 0x7f, "\\x7f"));
+    SparseBitSet[] sets = {
+      SparseBitSet.EMPTY,
+      SparseBitSet.withRanges(0x7f, Character.MAX_CODE_POINT + 1),
+      SparseBitSet.withRanges(0xad, 0xae, 0x2028, 0x202a, 0xd800, 0xe000,
+                              0xfeff, 0xff00, 0x1d173, 0x1d17b),
+      // Overlaps the precomputed escapes, so they are ignored.
+      SparseBitSet.withRanges(0, 0x30, 0x3c, 0x3d, 0x7b, 0x10ffff),
+    };
+    Encoder[] encoders = {
+      Escaping.JS_ENCODER, Escaping.XML_ENCODER, Escaping.CSS_ENCODER
+    };
+    char[] alphabet = {
+      'a', 'b', '0', 'f', ' ', '\t', '\0', '\n', '"', '\\', '<', '\u007f',
+      '\u0080', '\u00ad', '\u00e9', '\u2028', '\u2029', '\ufeff', '\uffff',
+      '\ud834', '\udd20', '\udd77',  // Surrogates, paired or not.
+    };
+    Random rnd = new Random(0x41c3);
+    for (int trial = 0; trial < 2000; ++trial) {
+      StringBuilder sb = new StringBuilder();
+      for (int n = rnd.nextInt(24); --n >= 0;) {
+        sb.append(alphabet[rnd.nextInt(alphabet.length)]);
+      }
+      String s = sb.toString();
+      for (SparseBitSet set : sets) {
+        Encoder encoder = encoders[trial % encoders.length];
+        Escaper escaper = new Escaper(map, set, encoder);
+        StringBuilder actual = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        escaper.escape(s, actual);
+        referenceEscape(s, map, set, encoder, false, expected);
+        assertStringsEqual(expected.toString(), actual.toString());
+        actual.setLength(0);
+        expected.setLength(0);
+        escaper.normalize(s, actual);
+        referenceEscape(s, map, set, encoder, true, expected);
+        assertStringsEqual(expected.toString(), actual.toString());
+      }
+    }
+  }
+
+  public final void testEscapeSpeed() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      sb.append("The quick brown fox jumps over the lazy dog. ");
+      if (i % 10 == 0) { sb.append("<b>\"cafe\"</b>\n"); }
+    }
+    String text = sb.toString();
+    StringBuilder out = new StringBuilder(text.length() * 2);
+    for (int i = 200; --i >= 0;) {  // prime the JIT
+      out.setLength(0);
+      Escaping.escapeXml(text, false, out);
+      Escaping.escapeJsString(text, true, true, out);
+    }
+    int nRuns = 200;
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      out.setLength(0);
+      Escaping.escapeXml(text, false, out);
+      Escaping.escapeJsString(text, true, true, out);
+    }
+    long nanos = System.nanoTime() - t0;
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".psPerChar="
+        + (nanos * 1000 / (2L * nRuns * text.length())));
+  }
+
+  /** Escapes a codepoint at a time. */
+  private static void referenceEscape(
+      String s, EscapeMap map, SparseBitSet otherEscapes, Encoder encoder,
+      boolean normalize, StringBuilder out)
+      throws IOException {
+    int minNonPrecomputed
+        = otherEscapes.isEmpty() ? 127 : otherEscapes.minSetBit();
+    int pos = 0;
+    boolean escaped = false;
+    for (int i = 0, n = s.length(); i < n;) {
+      int cp = s.codePointAt(i);
+      int next = i + Character.charCount(cp);
+      int limit = escaped ? i - 1 : i;
+      if (normalize && !escaped && cp == '\\') {
+        escaped = true;
+        i = next;
+        continue;
+      }
+      escaped = false;
+      if (cp < minNonPrecomputed) {
+        String esc = map.getEscape(cp);
+        if (esc != null) {
+          out.append(s, pos, limit).append(esc);
+          pos = next;
+        }
+      } else if (otherEscapes.contains(cp)) {
+        out.append(s, pos, limit);
+        encoder.encode(cp, next < n ? s.codePointAt(next) : -1, out);
+        pos = next;
+      }
+      i = next;
+    }
+    out.append(s, pos, s.length());
+  }
+
   private static void assertStringsEqual(String a, String b) {
     if (a.equals(b)) { return; }
     int m = a.length(), n = b.length();
@@ -0,0 +1,124 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.IntegerLiteral;
+import com.google.caja.parser.js.Noop;
+import com.google.caja.parser.js.StringLiteral;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.SyntheticAttributeKey;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+public class ParseTreeEditorTest extends CajaTestCase {
+  public final void testNoEdits() throws Exception {
+    Block program = js(fromString("f(1); g(2);"));
+    ParseTreeEditor edits = new ParseTreeEditor();
+    assertTrue(edits.isEmpty());
+    assertSame(program, edits.apply(program));
+  }
+
+  public final void testReplaceSharesUnchangedSubtrees() throws Exception {
+    Block program = js(fromString("f(1); g(2); h(3);"));
+    String before = render(program);
+    AncestorChain<Block> root = AncestorChain.instance(program);
+    // Block > ExpressionStmt > Operation > IntegerLiteral
+    AncestorChain<?> stmt = root.child(program.children().get(1));
+    AncestorChain<?> call = stmt.child(stmt.node.children().get(0));
+    AncestorChain<?> two = call.child(call.node.children().get(1));
+
+    ParseTreeEditor edits = new ParseTreeEditor();
+    edits.replace(two, new IntegerLiteral(FilePosition.UNKNOWN, 4));
+    Block edited = (Block) edits.apply(program);
+
+    assertEquals(before, render(program));
+    assertEquals(
+        render(js(fromString("f(1); g(4); h(3);"))), render(edited));
+    List<? extends ParseTreeNode> a = program.children();
+    List<? extends ParseTreeNode> b = edited.children();
+    assertSame(a.get(0), b.get(0));
+    assertNotSame(a.get(1), b.get(1));
+    assertSame(a.get(2), b.get(2));
+    // The callee is shared within the rebuilt call.
+    assertSame(
+        call.node.children().get(0),
+        b.get(1).children().get(0).children().get(0));
+  }
+
+  public final void testRemoveAndInsert() throws Exception {
+    Block program = js(fromString("a(); b(); c();"));
+    AncestorChain<Block> root = AncestorChain.instance(program);
+    ParseTreeEditor edits = new ParseTreeEditor();
+    edits.remove(root.child(program.children().get(1)));
+    edits.insertBefore(
+        root.child(program.children().get(0)),
+        new Noop(FilePosition.UNKNOWN));
+    edits.insertBefore(
+        root.child(program.children().get(2)),
+        js(fromString("d();")).children().get(0));
+    assertEquals(
+        render(js(fromString("; a(); d(); c();"))),
+        render(edits.apply(program)));
+    assertEquals(render(js(fromString("a(); b(); c();"))), render(program));
+  }
+
+  public final void testOuterEditsOverrideInner() throws Exception {
+    Block program = js(fromString("f('x');"));
+    AncestorChain<Block> root = AncestorChain.instance(program);
+    AncestorChain<?> stmt = root.child(program.children().get(0));
+    AncestorChain<?> call = stmt.child(stmt.node.children().get(0));
+    ParseTreeEditor edits = new ParseTreeEditor();
+    edits.replace(
+        call.child(call.node.children().get(1)),
+        StringLiteral.valueOf(FilePosition.UNKNOWN, "y"));
+    // Looking at a subtree shows the edits within it.
+    assertEquals("f('y')", render(edits.apply(call.node)));
+    edits.remove(stmt);
+    assertEquals("{}", render(edits.apply(program)));
+    assertNull(edits.apply(stmt.node));
+  }
+
+  public final void testAttributesCopied() throws Exception {
+    SyntheticAttributeKey<String> key = new SyntheticAttributeKey<String>(
+        String.class, "testAttributesCopied");
+    Block program = js(fromString("f(); g();"));
+    program.getAttributes().set(key, "program");
+    AncestorChain<Block> root = AncestorChain.instance(program);
+    ParseTreeEditor edits = new ParseTreeEditor();
+    edits.remove(root.child(program.children().get(0)));
+    ParseTreeNode edited = edits.apply(program);
+    assertNotSame(program, edited);
+    assertEquals("program", edited.getAttributes().get(key));
+  }
+
+  public final void testRebuildDoesNotAllocateAttributes() throws Exception {
+    Block program = js(fromString("f(); g();"));
+    AncestorChain<Block> root = AncestorChain.instance(program);
+    ParseTreeEditor edits = new ParseTreeEditor();
+    edits.remove(root.child(program.children().get(0)));
+    edits.apply(program);
+    assertFalse(program.hasAttributes());
+    assertNull(attributesField(program));
+  }
+
+  private static Object attributesField(ParseTreeNode node) throws Exception {
+    Field f = AbstractParseTreeNode.class.getDeclaredField("attributes");
+    f.setAccessible(true);
+    return f.get(node);
+  }
+}
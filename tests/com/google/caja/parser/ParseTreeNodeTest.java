@@ -20,11 +20,14 @@ import com.google.caja.lexer.Token;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.js.AbstractExpression;
 import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.Directive;
+import com.google.caja.parser.js.DirectivePrologue;
 import com.google.caja.parser.js.ExpressionStmt;
 import com.google.caja.parser.js.IntegerLiteral;
 import com.google.caja.parser.js.LabeledStatement;
 import com.google.caja.parser.js.LabeledStmtWrapper;
 import com.google.caja.parser.js.Noop;
+import com.google.caja.parser.js.Statement;
 import com.google.caja.parser.js.StringLiteral;
 import com.google.caja.render.JsPrettyPrinter;
 import com.google.caja.reporting.MessageContext;
@@ -33,8 +36,10 @@ import com.google.caja.util.CajaTestCase;
 import com.google.common.collect.Lists;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
@@ -747,6 +752,112 @@ public class ParseTreeNodeTest extends CajaTestCase {
     } catch (UnsupportedOperationException e) { /* OK */ }
   }
 
+  public final void testMutationMergesEdits() {
+    Block b = numberedBlock(6);
+    List<? extends ParseTreeNode> before = b.children();
+    b.createMutation()
+        .replaceChild(stmt(10), before.get(1))
+        .removeChild(before.get(3))
+        .insertBefore(stmt(11), before.get(4))
+        .appendChild(stmt(12))
+        .insertBefore(stmt(13), before.get(4))
+        .removeChild(before.get(4))
+        .execute();
+    assertEquals("[0, 10, 2, 11, 13, 5, 12]", values(b));
+    // Visitors iterating over the old list are not disturbed.
+    assertEquals("[0, 1, 2, 3, 4, 5]", values(before));
+  }
+
+  public final void testMutationEditingAddedNodes() {
+    Block b = numberedBlock(3);
+    ExpressionStmt added = stmt(10);
+    b.createMutation()
+        .insertBefore(added, b.children().get(1))
+        .replaceChild(stmt(11), added)
+        .removeChild(b.children().get(2))
+        .execute();
+    assertEquals("[0, 11, 1]", values(b));
+  }
+
+  public final void testMutationOfMissingChild() {
+    Block b = numberedBlock(3);
+    ParseTreeNode first = b.children().get(0);
+    try {
+      b.createMutation()
+          .removeChild(first)
+          .removeChild(first)
+          .execute();
+      fail();
+    } catch (NoSuchElementException ex) {
+      // OK
+    }
+  }
+
+  public final void testMergedMutationRollsBack() {
+    Block b = numberedBlock(3);
+    try {
+      b.createMutation()
+          .removeChild(b.children().get(0))
+          .insertBefore(
+              new DirectivePrologue(FilePosition.UNKNOWN,
+                  Collections.singletonList(
+                      new Directive(FilePosition.UNKNOWN, "use strict"))),
+              b.children().get(2))
+          .execute();
+      fail();
+    } catch (IllegalArgumentException ex) {
+      // Directive prologues must be first.
+    }
+    assertEquals("[0, 1, 2]", values(b));
+  }
+
+  public final void testManyEditsInOneMutation() {
+    int n = 100000;
+    Block b = numberedBlock(n);
+    MutableParseTreeNode.Mutation mut = b.createMutation();
+    List<? extends ParseTreeNode> before = b.children();
+    for (int i = 0; i < n; i += 2) { mut.removeChild(before.get(i)); }
+    mut.execute();
+    assertEquals(n / 2, b.children().size());
+    assertEquals(
+        1L, ((IntegerLiteral) b.children().get(0).children().get(0))
+        .getValue().longValue());
+  }
+
+  public final void testMutationCountedOnce() {
+    Block b = numberedBlock(5);
+    List<? extends ParseTreeNode> before = b.children();
+    int modCount = ParseTreeNodes.getModificationCount(b);
+    b.createMutation()
+        .removeChild(before.get(0))
+        .replaceChild(stmt(10), before.get(2))
+        .insertBefore(stmt(11), before.get(4))
+        .removeChild(before.get(3))
+        .execute();
+    assertEquals(modCount + 1, ParseTreeNodes.getModificationCount(b));
+    assertEquals("[1, 10, 11, 4]", values(b));
+  }
+
+  private static ExpressionStmt stmt(int n) {
+    return new ExpressionStmt(new IntegerLiteral(FilePosition.UNKNOWN, n));
+  }
+
+  private static Block numberedBlock(int n) {
+    List<Statement> stmts = Lists.newArrayList();
+    for (int i = 0; i < n; ++i) { stmts.add(stmt(i)); }
+    return new Block(FilePosition.UNKNOWN, stmts);
+  }
+
+  private static String values(Block b) { return values(b.children()); }
+
+  private static String values(List<? extends ParseTreeNode> stmts) {
+    List<Object> values = Lists.newArrayList();
+    for (ParseTreeNode stmt : stmts) {
+      values.add(stmt.children().get(0).getValue());
+    }
+    return values.toString();
+  }
+
   private final class AlwaysMutable extends AbstractExpression {
     public AlwaysMutable() { super(FilePosition.UNKNOWN, StringLiteral.class); }
     @Override public Object getValue() { return null; }
@@ -770,6 +881,74 @@ public class ParseTreeNodeTest extends CajaTestCase {
     assertFalse(n.children().get(1).children().get(0).isImmutable());
   }
 
+  public final void testFrozenTreesRejectMutations() throws Exception {
+    Block n = new Block(
+        FilePosition.UNKNOWN,
+        Arrays.asList(
+            new ExpressionStmt(new IntegerLiteral(FilePosition.UNKNOWN, 42)),
+            new ExpressionStmt(new IntegerLiteral(FilePosition.UNKNOWN, 13))));
+    ParseTreeNode first = n.children().get(0);
+    assertTrue(n.makeImmutable());
+    try {
+      n.removeChild(first);
+      fail();
+    } catch (UnsupportedOperationException e) { /* OK */ }
+    try {
+      n.createMutation().insertBefore(new Noop(FilePosition.UNKNOWN), first)
+          .execute();
+      fail();
+    } catch (UnsupportedOperationException e) { /* OK */ }
+    assertEquals(2, n.children().size());
+    assertSame(first, n.children().get(0));
+    assertEquals(1, n.children().indexOf(n.children().get(1)));
+    // Leaves share the empty child list.
+    assertSame(
+        first.children().get(0).children(),
+        n.children().get(1).children().get(0).children());
+    assertSame(n, n.clone());
+  }
+
+  public final void testFrozenTreeTraversal() throws Exception {
+    List<String> mutableOrder = Lists.newArrayList();
+    root.acceptPreOrder(new NodeNameRecorder(mutableOrder), null);
+    List<String> mutableVisitOrder = Lists.newArrayList();
+    root.visitPreOrder(new NodeNameVisitor(mutableVisitOrder));
+    List<String> mutablePostOrder = Lists.newArrayList();
+    root.acceptPostOrder(new NodeNameRecorder(mutablePostOrder), null);
+
+    assertTrue(root.makeImmutable());
+
+    List<String> frozenOrder = Lists.newArrayList();
+    root.acceptPreOrder(new NodeNameRecorder(frozenOrder), null);
+    List<String> frozenVisitOrder = Lists.newArrayList();
+    root.visitPreOrder(new NodeNameVisitor(frozenVisitOrder));
+    List<String> frozenPostOrder = Lists.newArrayList();
+    root.acceptPostOrder(new NodeNameRecorder(frozenPostOrder), null);
+
+    assertEquals(mutableOrder, frozenOrder);
+    assertEquals(mutableVisitOrder, frozenVisitOrder);
+    assertEquals(mutablePostOrder, frozenPostOrder);
+    assertEquals(mutableOrder, frozenVisitOrder);
+  }
+
+  private static final class NodeNameRecorder implements Visitor {
+    private final List<String> out;
+    NodeNameRecorder(List<String> out) { this.out = out; }
+    public boolean visit(AncestorChain<?> ancestors) {
+      out.add(ancestors.node.toString());
+      return true;
+    }
+  }
+
+  private static final class NodeNameVisitor implements ParseTreeNodeVisitor {
+    private final List<String> out;
+    NodeNameVisitor(List<String> out) { this.out = out; }
+    public boolean visit(ParseTreeNode node) {
+      out.add(node.toString());
+      return true;
+    }
+  }
+
   static class IntEnqueuer implements Visitor {
     private final List<Number> nums = new ArrayList<Number>();
 
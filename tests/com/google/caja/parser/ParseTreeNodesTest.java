@@ -0,0 +1,163 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.Expression;
+import com.google.caja.parser.js.IntegerLiteral;
+import com.google.caja.parser.js.Operation;
+import com.google.caja.parser.js.Operator;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.SyntheticAttributeKey;
+import com.google.common.collect.Sets;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+public class ParseTreeNodesTest extends CajaTestCase {
+  private static final String KITCHEN_SINK = (
+      "'use strict';\n"
+      + "var x = 1, y = 'foo', z = /a+b/gi, n = null, r = 1.5, t = true;\n"
+      + "function f(a, b) {\n"
+      + "  if (a === n || b !== void 0) { return -r; } else { debugger; }\n"
+      + "  for (var k in a) { try { b[k] = a[k]++; } catch (e) {} }\n"
+      + "  for (var i = 0; i < 10; ++i) { continue; }\n"
+      + "  label: do { break label; } while (!b);\n"
+      + "  while (false) ;\n"
+      + "  try { throw a; } catch (e) { x += 1; } finally { y = x, z; }\n"
+      + "  switch (a) { case 1: break; default: z = [1,,3]; }\n"
+      + "  return { 'p': t, q: f, get r() { return 1; }, set r(v) {} };\n"
+      + "}\n"
+      + "x = typeof f === 'function' ? new f(0) : (function () {})();\n"
+      + "with (x) { y; }\n");
+
+  public final void testJsNodesHaveFactories() throws Exception {
+    Block program = js(fromString(KITCHEN_SINK));
+    final Set<Class<?>> classes = Sets.newLinkedHashSet();
+    program.acceptPreOrder(new Visitor() {
+      public boolean visit(AncestorChain<?> chain) {
+        classes.add(chain.node.getClass());
+        return true;
+      }
+    }, null);
+    assertTrue(classes.size() > 30);
+    for (Class<?> clazz : classes) {
+      assertNotNull(
+          clazz.getName(),
+          ParseTreeNodes.getFactory(clazz.asSubclass(ParseTreeNode.class)));
+    }
+  }
+
+  public final void testFactoriesMatchReflectiveCtors() throws Exception {
+    Block program = js(fromString(KITCHEN_SINK));
+    Block viaFactories = (Block) program.clone();
+    Block viaReflection = (Block) reflectiveClone(program);
+    assertDeepEquals(program, viaFactories);
+    assertDeepEquals(viaReflection, viaFactories);
+    assertEquals(render(program), render(viaFactories));
+  }
+
+  public final void testCloneCopiesAttributes() throws Exception {
+    SyntheticAttributeKey<String> key = new SyntheticAttributeKey<String>(
+        String.class, "testCloneCopiesAttributes");
+    Block program = js(fromString("var x = y + 1;"));
+    // Block > Declaration > SimpleOperation > Reference
+    ParseTreeNode y = program.children().get(0).children().get(1)
+        .children().get(0);
+    y.getAttributes().set(key, "y");
+    Block clone = (Block) program.clone();
+    ParseTreeNode yClone = clone.children().get(0).children().get(1)
+        .children().get(0);
+    assertNotSame(y, yClone);
+    assertEquals("y", yClone.getAttributes().get(key));
+  }
+
+  public final void testCloneSharesImmutableSubtrees() throws Exception {
+    Block program = js(fromString("var x = [1, 2]; f(x);"));
+    ParseTreeNode frozen = program.children().get(1);
+    frozen.makeImmutable();
+    Block clone = (Block) program.clone();
+    assertNotSame(program.children().get(0), clone.children().get(0));
+    assertSame(frozen, clone.children().get(1));
+  }
+
+  public final void testDeepTreesCloneWithoutRecursion() {
+    // Deep enough that a recursive clone would overflow the stack.
+    Expression e = new IntegerLiteral(FilePosition.UNKNOWN, 0);
+    int depth = 100000;
+    for (int i = 1; i < depth; ++i) {
+      e = Operation.createInfix(
+          Operator.ADDITION, e, new IntegerLiteral(FilePosition.UNKNOWN, i));
+    }
+    ParseTreeNode clone = e.clone();
+    ParseTreeNode a = e, b = clone;
+    for (int i = depth; --i > 0;) {
+      assertNotSame(a, b);
+      assertEquals(a.getClass(), b.getClass());
+      assertEquals(
+          a.children().get(1).getValue(), b.children().get(1).getValue());
+      a = a.children().get(0);
+      b = b.children().get(0);
+    }
+    assertEquals(0L, ((Number) b.getValue()).longValue());
+  }
+
+  public final void testCloneSpeed() throws Exception {
+    Block program = js(fromResource("/com/google/caja/plugin/domado.js"));
+    benchmark(program, 5, false);  // prime the JIT
+    benchmark(program, 5, true);
+    Thread.sleep(250);  // Let the JIT kick-in.
+    int msPerRun = benchmark(program, 20, false);
+    int reflectiveMsPerRun = benchmark(program, 20, true);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".msPerRun=" + msPerRun);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".reflectiveMsPerRun="
+        + reflectiveMsPerRun);
+  }
+
+  private static int benchmark(Block program, int nRuns, boolean reflective)
+      throws Exception {
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      if (reflective) {
+        reflectiveClone(program);
+      } else {
+        program.clone();
+      }
+    }
+    return (int) ((((double) (System.nanoTime() - t0)) / nRuns) / 1e6);
+  }
+
+  /** Clones the way trees were cloned before factories. */
+  private static ParseTreeNode reflectiveClone(ParseTreeNode node)
+      throws Exception {
+    List<ParseTreeNode> children = new ArrayList<ParseTreeNode>();
+    for (ParseTreeNode child : node.children()) {
+      children.add(reflectiveClone(child));
+    }
+    for (Constructor<?> ctor : node.getClass().getDeclaredConstructors()) {
+      if (ctor.isAnnotationPresent(ParseTreeNode.ReflectiveCtor.class)) {
+        return (ParseTreeNode) ctor.newInstance(
+            node.getFilePosition(), node.getValue(), children);
+      }
+    }
+    throw new AssertionError(node.getClass().getName());
+  }
+}
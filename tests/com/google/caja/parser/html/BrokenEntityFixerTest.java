@@ -0,0 +1,206 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.html;
+
+import com.google.caja.lexer.ParseException;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageType;
+import com.google.caja.util.CajaTestCase;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.DocumentFragment;
+
+public class BrokenEntityFixerTest extends CajaTestCase {
+  /** The regular expression that BrokenEntityFixer replaced. */
+  private static final Pattern REFERENCE_BROKEN_ENTITY = Pattern.compile(
+      "&(?:"
+      + "(?:AACUTE|ACIRC|ACUTE|AELIG|AGRAVE|AMP|ARING|ATILDE|AUML|Aacute|Acirc"
+      + "|Agrave|Aring|Atilde|Auml|BRVBAR|CCEDIL|CEDIL|CENT|COPY|CURREN|Ccedil"
+      + "|DEG|DIVIDE|EACUTE|ECIRC|EGRAVE|ETH|EUML|Eacute|Ecirc|Egrave|Euml"
+      + "|FRAC12|FRAC14|FRAC34|GT|IACUTE|ICIRC|IEXCL|IGRAVE|IQUEST|IUML|Iacute"
+      + "|Icirc|Igrave|Iuml|LAQUO|LT|MACR|MICRO|MIDDOT|NBSP|NOT|NTILDE|Ntilde"
+      + "|OACUTE|OCIRC|OGRAVE|ORDF|ORDM|OSLASH|OTILDE|OUML|Oacute|Ocirc|Ograve"
+      + "|Oslash|Otilde|Ouml|PARA|PLUSMN|POUND|QUOT|RAQUO|REG|SECT|SHY|SUP1"
+      + "|SUP2|SUP3|SZLIG|THORN|TIMES|UACUTE|UCIRC|UGRAVE|UML|UUML|Uacute|Ucirc"
+      + "|Ugrave|Uuml|YACUTE|YEN|YUML|Yacute|aacute|acirc|acute|aelig|agrave"
+      + "|amp|aring|atilde|auml|brvbar|ccedil|cedil|cent|copy|curren|deg|divide"
+      + "|eacute|ecirc|egrave|eth|euml|frac12|frac14|frac34|gt|iacute|icirc"
+      + "|iexcl|igrave|iquest|iuml|laquo|lt|macr|micro|middot|nbsp|not|ntilde"
+      + "|oacute|ocirc|ograve|ordf|ordm|oslash|otilde|ouml|para|plusmn|pound"
+      + "|quot|raquo|reg|sect|shy|sup1|sup2|sup3|szlig|thorn|times|uacute|ucirc"
+      + "|ugrave|uml|uuml|yacute|yen|yuml)(?![=;0-9A-Za-z])"
+      + "|#(?:[0-9]{1,7}(?![=;0-9])|[Xx][0-9A-Fa-f]{1,6}(?![=;0-9A-Za-z]))"
+      + ")");
+
+  private static final String[] NAMES = {
+    "amp", "AMP", "Amp", "nbsp", "NBSP", "ETH", "eth", "Eth", "THORN",
+    "AElig", "AELIG", "aelig", "Aacute", "AACUTE", "aAcute", "frac12",
+    "FRAC12", "sup1", "SUP1", "thetasym", "THETASYM", "hellip", "apos",
+    "lt", "gt", "l", "ampx", "amp1", "notin", "not", "NOT", "x", "",
+  };
+  private static final String[] NUMBERS = {
+    "#", "#1", "#65", "#1114111", "#12345678", "#x", "#X", "#x4", "#x41",
+    "#X41", "#xfffff", "#x1fffff", "#xg", "#x41g",
+  };
+  private static final String[] AFTERS = {
+    "", ";", "=", " ", "a", "Z", "0", "&", "#", "x", "<", "\"", "\u00e9",
+  };
+
+  public final void testFixAndDecode() {
+    assertFixed("a&nbsp; b", "a&nbsp b", "a\u00a0 b");
+    assertFixed("&amp;&lt;&gt;", "&amp&lt&gt", "&<>");
+    assertFixed("?a=1&b=2", "?a=1&b=2", "?a=1&b=2");
+    assertFixed("?a=1&amp=2", "?a=1&amp=2", "?a=1&amp=2");
+    assertFixed("&#65;B", "&#65B", "AB");
+    assertFixed("&#x41;", "&#x41", "A");
+    assertFixed("&#x41g", "&#x41g", "&#x41g");
+    assertFixed("&ETH; &eth;", "&ETH &eth", "\u00d0 \u00f0");
+    assertFixed("&NBSP;", "&NBSP", "\u00a0");
+    assertFixed("&Nbsp", "&Nbsp", "&Nbsp");
+    assertFixed("&hellip", "&hellip", "&hellip");
+    assertFixed("&hellip;", "&hellip;", "\u2026");
+  }
+
+  public final void testRegionAndMessages() {
+    List<String> broken = Lists.newArrayList();
+    StringBuilder plain = new StringBuilder();
+    assertTrue(BrokenEntityFixer.fixAndDecode(
+        "\"&amp&lt\"", 1, 8, null, plain, broken));
+    assertEquals("&<", plain.toString());
+    assertEquals(Lists.newArrayList("&amp", "&lt"), broken);
+  }
+
+  public final void testMatchesReference() {
+    // Every name, number, and following character.
+    for (String name : NAMES) {
+      for (String after : AFTERS) {
+        assertMatchesReference("&" + name + after);
+        assertMatchesReference("x&" + name + after + "&" + name);
+      }
+    }
+    for (String number : NUMBERS) {
+      for (String after : AFTERS) {
+        assertMatchesReference("&" + number + after);
+      }
+    }
+
+    Random rnd = new Random(Long.getLong("junit.seed", 0L));
+    String[] parts = {
+      "&", "#", "x", "X", ";", "=", "a", "A", "1", "f", "g", " ", "\u00a0",
+      "amp", "AMP", "nbsp", "ETH", "copy", "hellip", "frac14",
+    };
+    for (int run = 0; run < 5000; ++run) {
+      StringBuilder sb = new StringBuilder();
+      for (int n = rnd.nextInt(12); --n >= 0;) {
+        sb.append(parts[rnd.nextInt(parts.length)]);
+      }
+      assertMatchesReference(sb.toString());
+    }
+  }
+
+  public final void testParserReportsBrokenEntities() throws Exception {
+    DocumentFragment f = htmlFragment(fromString(
+        "<p title=\"a&ampb &amp\">&copy 2014 &lt;&gt &#169</p>"));
+    assertEquals(
+        "<p title=\"a&amp;ampb &amp;\">&#169; 2014 &lt;&gt; &#169;</p>",
+        Nodes.render(f));
+    List<String> reported = Lists.newArrayList();
+    for (Message msg : mq.getMessages()) {
+      if (msg.getMessageType() == MessageType.MALFORMED_HTML_ENTITY) {
+        reported.add(msg.getMessageParts().get(1).toString());
+      }
+    }
+    assertEquals(
+        Lists.newArrayList("&amp", "&copy", "&gt", "&#169"), reported);
+  }
+
+  public final void testEntityHeavyParseSpeed() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200; ++i) {
+      sb.append("<tr><td>&nbsp;&nbsp;Re: post ").append(i)
+          .append("&nbsp;&raquo;&nbsp;</td><td title=\"a &amp b\">")
+          .append("&nbsp&nbsp;&copy;&nbsp;user&nbsp;</td></tr>\n");
+    }
+    String html = "<table>" + sb + "</table>";
+    benchmarkParse(50, html);  // prime the JIT
+    long t0 = System.nanoTime();
+    int nRuns = 100;
+    benchmarkParse(nRuns, html);
+    long usPerRun = (System.nanoTime() - t0) / (1000L * nRuns);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".usPerParse=" + usPerRun);
+    mq.getMessages().clear();
+  }
+
+  private void benchmarkParse(int nRuns, String html) throws ParseException {
+    for (int i = nRuns; --i >= 0;) {
+      mq.getMessages().clear();
+      htmlFragment(fromString(html));
+    }
+  }
+
+  private static void assertFixed(String fixed, String raw, String plain) {
+    StringBuilder fixedOut = new StringBuilder();
+    StringBuilder plainOut = new StringBuilder();
+    BrokenEntityFixer.fixAndDecode(
+        raw, 0, raw.length(), fixedOut, plainOut, null);
+    assertEquals(raw, fixed, fixedOut.toString());
+    assertEquals(raw, plain, plainOut.toString());
+  }
+
+  private static void assertMatchesReference(String raw) {
+    List<String> wantBroken = Lists.newArrayList();
+    String wantFixed = referenceFix(raw, wantBroken);
+    String wantPlain;
+    try {
+      wantPlain = Nodes.decode(wantFixed);
+    } catch (IllegalArgumentException ex) {
+      wantPlain = null;  // Not a codepoint as in "&#xffffff;"
+    }
+
+    List<String> broken = Lists.newArrayList();
+    StringBuilder fixed = new StringBuilder();
+    StringBuilder plain = new StringBuilder();
+    boolean anyBroken;
+    try {
+      anyBroken = BrokenEntityFixer.fixAndDecode(
+          raw, 0, raw.length(), fixed, plain, broken);
+    } catch (IllegalArgumentException ex) {
+      assertNull(raw, wantPlain);
+      return;
+    }
+    assertEquals(raw, wantFixed, fixed.toString());
+    assertEquals(raw, wantPlain, plain.toString());
+    assertEquals(raw, wantBroken, broken);
+    assertEquals(raw, !wantBroken.isEmpty(), anyBroken);
+  }
+
+  private static String referenceFix(String raw, List<String> broken) {
+    Matcher m = REFERENCE_BROKEN_ENTITY.matcher(raw);
+    StringBuffer sb = new StringBuffer();
+    while (m.find()) {
+      broken.add(m.group());
+      m.appendReplacement(sb, "$0;");
+    }
+    m.appendTail(sb);
+    return sb.toString();
+  }
+}
@@ -29,6 +29,7 @@ import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessageType;
+import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.CajaTestCase;
 import com.google.caja.util.Function;
 import com.google.caja.util.Join;
@@ -2873,6 +2874,104 @@ public class DomParserTest extends CajaTestCase {
         " VarZ:" + getClass().getName() + ".msPerRun=" + microsPerRun);
   }
 
+  private static final String[] REUSE_INPUTS = {
+    "<b>Hello, world</b>",
+    "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 3.2 Final//EN\">"
+    + "<table><tr><td>a<td>b</table><p>quirky",
+    "<html lang=en><body bgcolor=white>x &amp y &lt;",
+    "<table><tr><td><b>unclosed",
+    "<frameset><frame src=a></frameset>",
+    "<p>Tom &amp Jerry<script>if (a < b) c()</script>",
+    "",
+  };
+
+  public final void testReusedParser() throws Exception {
+    MessageQueue reusedMq = new SimpleMessageQueue();
+    DomParser reused = null;
+    for (boolean asDoc : new boolean[] { false, true, false }) {
+      for (String input : REUSE_INPUTS) {
+        if (asDoc && "".equals(input)) { continue; }
+        MessageQueue freshMq = new SimpleMessageQueue();
+        DomParser fresh = new DomParser(
+            tokenQueueFor(input), false, freshMq);
+        String want = renderWithPositions(asDoc
+            ? fresh.parseDocument()
+            : fresh.parseFragment(DomParser.makeDocument(null, null)));
+
+        reusedMq.getMessages().clear();
+        if (reused == null) {
+          reused = new DomParser(tokenQueueFor(input), false, reusedMq);
+        } else {
+          reused.reset(tokenQueueFor(input));
+        }
+        String got = renderWithPositions(asDoc
+            ? reused.parseDocument()
+            : reused.parseFragment(DomParser.makeDocument(null, null)));
+        assertEquals(input, want, got);
+        assertEquals(
+            input, freshMq.getMessages().toString(),
+            reusedMq.getMessages().toString());
+      }
+    }
+  }
+
+  public final void testReusedParserSpeed() throws Exception {
+    benchmarkFragments(false, 200);  // prime the JIT
+    benchmarkFragments(true, 200);
+    Thread.sleep(250);  // Let the JIT kick-in.
+    int oneShot = benchmarkFragments(false, 2000);
+    int reused = benchmarkFragments(true, 2000);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".oneShotFragmentsPerSec="
+        + oneShot);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".reusedFragmentsPerSec=" + reused);
+  }
+
+  private static int benchmarkFragments(boolean reuse, int nRuns)
+      throws ParseException {
+    MessageQueue mq = DevNullMessageQueue.singleton();
+    Document doc = DomParser.makeDocument(null, null);
+    DomParser reused = null;
+    long t0 = System.nanoTime();
+    for (int i = 0; i < nRuns; ++i) {
+      TokenQueue<HtmlTokenType> tq = tokenQueueFor(
+          REUSE_INPUTS[i % REUSE_INPUTS.length]);
+      DomParser p;
+      if (!reuse) {
+        p = new DomParser(tq, false, mq);
+      } else if (reused == null) {
+        p = reused = new DomParser(tq, false, mq);
+      } else {
+        (p = reused).reset(tq);
+      }
+      p.setNeedsDebugData(false);
+      p.parseFragment(doc);
+    }
+    return (int) (nRuns * 1e9 / (System.nanoTime() - t0));
+  }
+
+  private static TokenQueue<HtmlTokenType> tokenQueueFor(String html) {
+    InputSource is = new InputSource(URI.create("test:///reuse.html"));
+    HtmlLexer lexer = new HtmlLexer(CharProducer.Factory.fromString(html, is));
+    return new TokenQueue<HtmlTokenType>(lexer, is, DomParser.SKIP_COMMENTS);
+  }
+
+  private static String renderWithPositions(Node node) {
+    StringBuilder sb = new StringBuilder(Nodes.render(node));
+    appendPositions(node, sb);
+    return sb.toString();
+  }
+
+  private static void appendPositions(Node node, StringBuilder sb) {
+    sb.append('\n').append(node.getNodeName()).append(' ')
+        .append(Nodes.getFilePositionFor(node));
+    for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+      appendPositions(c, sb);
+    }
+  }
+
   private int benchmark(int nRuns) throws IOException, ParseException {
     CharProducer testInput = fromResource("amazon.com.html");
     InputSource is = testInput.getSourceBreaks(0).source();
@@ -0,0 +1,213 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.js;
+
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.lexer.Token;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.reporting.DevNullMessageQueue;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.util.CajaTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+public class BinaryJsTreesTest extends CajaTestCase {
+  public final void testRoundTrip() throws Exception {
+    assertRoundTrips(
+        "var x = 1, y = 'foo\\u1234', z = /a+b/gi;\n"
+        + "/** doc */\n"
+        + "function f(a, b) {\n"
+        + "  if (a === null || b !== void 0) { return -1.5e300; }\n"
+        + "  for (var k in a) { try { b[k] = a[k]++; } catch (e) {} }\n"
+        + "  label: do { continue label; } while (!b);\n"
+        + "  return { 'p': true, q: false, get r() { return this; } };\n"
+        + "}\n"
+        + "x = typeof f === 'function' ? new f(0x7fffffffffff) : [,,3];\n");
+  }
+
+  public final void testRoundTripResources() throws Exception {
+    for (String resource : new String[] {
+             "parsertest1.js", "parsertest2.js", "parsertest3.js",
+             "parsertest5.js", "parsertest7.js", "parsertest8.js" }) {
+      Block program = js(fromResource(resource));
+      assertDeepEquals(program, roundTrip(program, null));
+    }
+  }
+
+  public final void testCommentsPreserved() throws Exception {
+    Block program = js(fromString(
+        "/** A constructor. */ function Foo() {}\n"
+        + "/** @type {number} */ var x = 0;"));
+    Block copy = roundTrip(program, null);
+    assertDeepEquals(program, copy);
+    assertEquals(commentsOf(program), commentsOf(copy));
+    assertFalse(commentsOf(copy).isEmpty());
+  }
+
+  public final void testOverrideSource() throws Exception {
+    Block program = js(fromString("var x = 1;\nvar y = 2;"));
+    InputSource other = new InputSource(URI.create("test:///other.js"));
+    Block copy = roundTrip(program, other);
+    FilePosition pos = copy.children().get(1).getFilePosition();
+    assertEquals(other, pos.source());
+    assertEquals(2, pos.startLineNo());
+    assertEquals(
+        program.children().get(1).getFilePosition().startCharInFile(),
+        pos.startCharInFile());
+  }
+
+  public final void testDeepTreesRoundTripWithoutRecursion()
+      throws Exception {
+    // Deep enough that a recursive reader or writer would overflow the stack.
+    Expression e = new IntegerLiteral(FilePosition.UNKNOWN, 0);
+    int depth = 100000;
+    for (int i = 1; i < depth; ++i) {
+      e = Operation.createInfix(
+          Operator.ADDITION, e, new IntegerLiteral(FilePosition.UNKNOWN, i));
+    }
+    Block program = new Block(
+        FilePosition.UNKNOWN,
+        Collections.singletonList(new ExpressionStmt(e)));
+    ParseTreeNode copy = roundTrip(program, null).children().get(0)
+        .children().get(0);
+    ParseTreeNode a = e;
+    for (int i = depth; --i > 0;) {
+      assertEquals(a.getClass(), copy.getClass());
+      assertEquals(
+          a.children().get(1).getValue(), copy.children().get(1).getValue());
+      a = a.children().get(0);
+      copy = copy.children().get(0);
+    }
+    assertEquals(0L, ((Number) copy.getValue()).longValue());
+  }
+
+  public final void testRejectsGarbage() throws Exception {
+    try {
+      BinaryJsTrees.read(
+          new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5 }), null);
+      fail();
+    } catch (IOException ex) {
+      // pass
+    }
+  }
+
+  public final void testParsedJsCache() throws Exception {
+    File dir = File.createTempFile(getName(), "cache");
+    assertTrue(dir.delete());
+    try {
+      ParsedJsCache cache = new ParsedJsCache(dir, "test");
+      String src = "function f(x) { return x * 2; } f(3);";
+      Block a = cache.parse(fromString(src, is), is, mq);
+      assertEquals(0, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+      Block b = cache.parse(fromString(src, is), is, mq);
+      assertEquals(1, cache.getHitCount());
+      assertDeepEquals(a, b);
+      cache.parse(fromString(src + " f(4);", is), is, mq);
+      assertEquals(1, cache.getHitCount());
+      assertEquals(2, cache.getMissCount());
+
+      // A different version does not see the entries of another.
+      ParsedJsCache other = new ParsedJsCache(dir, "other");
+      other.parse(fromString(src, is), is, mq);
+      assertEquals(0, other.getHitCount());
+    } finally {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File f : files) { f.delete(); }
+      }
+      dir.delete();
+    }
+  }
+
+  public final void testReadSpeed() throws Exception {
+    Block program = js(fromResource("parsertest1.js"));
+    String src = plain(fromResource("parsertest1.js"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryJsTrees.write(program, out);
+    byte[] bytes = out.toByteArray();
+    benchmarkRead(bytes, 100);  // prime the JIT
+    benchmarkParse(src, 100);
+    Thread.sleep(250);  // Let the JIT kick-in.
+    int readMicros = benchmarkRead(bytes, 250);
+    int parseMicros = benchmarkParse(src, 250);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".readMicrosPerRun=" + readMicros);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".parseMicrosPerRun=" + parseMicros);
+  }
+
+  private int benchmarkRead(byte[] bytes, int nRuns) throws IOException {
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      BinaryJsTrees.read(new ByteArrayInputStream(bytes), is);
+    }
+    return (int) ((((double) (System.nanoTime() - t0)) / nRuns) / 1e3);
+  }
+
+  private int benchmarkParse(String src, int nRuns) throws ParseException {
+    MessageQueue mq = DevNullMessageQueue.singleton();
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      CharProducer cp = CharProducer.Factory.fromString(src, is);
+      JsTokenQueue tq = new JsTokenQueue(new JsLexer(cp), is);
+      new Parser(tq, mq).parse();
+    }
+    return (int) ((((double) (System.nanoTime() - t0)) / nRuns) / 1e3);
+  }
+
+  private void assertRoundTrips(String src) throws Exception {
+    Block program = js(fromString(src));
+    Block copy = roundTrip(program, null);
+    assertDeepEquals(program, copy);
+    assertEquals(render(program), render(copy));
+  }
+
+  private static Block roundTrip(Block program, InputSource source)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryJsTrees.write(program, out);
+    ParseTreeNode copy = BinaryJsTrees.read(
+        new ByteArrayInputStream(out.toByteArray()), source);
+    return (Block) copy;
+  }
+
+  private static String commentsOf(ParseTreeNode node) {
+    StringBuilder sb = new StringBuilder();
+    appendComments(node, sb);
+    return sb.toString();
+  }
+
+  private static void appendComments(ParseTreeNode node, StringBuilder sb) {
+    List<Token<?>> comments = node.getComments();
+    for (Token<?> comment : comments) {
+      sb.append(comment.type).append(' ').append(comment.text).append(' ')
+          .append(comment.pos).append('\n');
+    }
+    for (ParseTreeNode child : node.children()) { appendComments(child, sb); }
+  }
+}
@@ -15,10 +15,16 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.SomethingWidgyHappenedError;
+import com.google.caja.lexer.CharProducer;
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.Keyword;
 import com.google.caja.lexer.ParseException;
+import com.google.caja.lexer.Token;
 import com.google.caja.lexer.TokenConsumer;
+import com.google.caja.lexer.TokenStream;
 import com.google.caja.lexer.escaping.Escaping;
 import com.google.caja.parser.AncestorChain;
 import com.google.caja.parser.MutableParseTreeNode;
@@ -26,12 +32,16 @@ import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.Visitor;
 import com.google.caja.render.JsMinimalPrinter;
 import com.google.caja.render.JsPrettyPrinter;
+import com.google.caja.reporting.DevNullMessageQueue;
 import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessageType;
+import com.google.caja.reporting.MessageTypeInt;
 import com.google.caja.reporting.RenderContext;
+import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.CajaTestCase;
 import com.google.caja.util.FailureIsAnOption;
 import com.google.caja.util.MoreAsserts;
@@ -326,6 +336,112 @@ public class ParserTest extends CajaTestCase {
     assertEquals("'\\x00'", render(jsExpr(fromString("'\0'"))));
   }
 
+  public final void testNoDebugData() throws Exception {
+    for (String resource : new String[] {
+           "parsertest1.js", "parsertest2.js", "parsertest3.js",
+           "parsertest10.js", "parsertest11.js" }) {
+      MessageQueue slowMq = new SimpleMessageQueue();
+      Block slow = parseResource(resource, true, slowMq);
+      MessageQueue fastMq = new SimpleMessageQueue();
+      Block fast = parseResource(resource, false, fastMq);
+      assertEquals(resource, minify(slow), minify(fast));
+      assertEquals(
+          resource, messageTypes(slowMq.getMessages()),
+          messageTypes(fastMq.getMessages()));
+
+      assertEquals(FilePosition.UNKNOWN, fast.getFilePosition());
+      assertFalse(FilePosition.UNKNOWN.equals(slow.getFilePosition()));
+      assertNoComments(fast);
+    }
+    // Literals keep their token's position.
+    Parser p = new Parser(
+        new JsTokenQueue(new JsLexer(fromString("a + 1")), is), mq);
+    p.setNeedsDebugData(false);
+    Operation op = (Operation) p.parseExpression(true);
+    assertEquals(FilePosition.UNKNOWN, op.getFilePosition());
+    assertEquals(FilePosition.UNKNOWN,
+                 op.children().get(0).getFilePosition());
+    assertEquals("testNoDebugData:1+5@5 - 6@6",
+                 op.children().get(1).getFilePosition().toString());
+  }
+
+  public final void testNoDebugDataKeepsLineContinuations() throws Exception {
+    // The lexer does not produce line continuations, so turn the comment into
+    // one.  Without it, a semicolon would be inserted after the return.
+    String src = "function f() { return /* \\ */\n 1; }";
+    for (boolean needsDebugData : new boolean[] { true, false }) {
+      final JsLexer lexer = new JsLexer(fromString(src));
+      TokenStream<JsTokenType> withContinuation
+          = new TokenStream<JsTokenType>() {
+        public boolean hasNext() throws ParseException {
+          return lexer.hasNext();
+        }
+        public Token<JsTokenType> next() throws ParseException {
+          Token<JsTokenType> t = lexer.next();
+          return t.type == JsTokenType.COMMENT
+              ? Token.instance(t.text, JsTokenType.LINE_CONTINUATION, t.pos)
+              : t;
+        }
+      };
+      Parser p = new Parser(new JsTokenQueue(withContinuation, is), mq);
+      p.setNeedsDebugData(needsDebugData);
+      assertEquals(
+          String.valueOf(needsDebugData),
+          "{function f(){return 1}}", minify(p.parse()));
+    }
+  }
+
+  public final void testNoDebugDataSpeed() throws Exception {
+    String src = plain(fromResource("parsertest1.js"));
+    benchmarkParse(src, true, 100);  // prime the JIT
+    benchmarkParse(src, false, 100);
+    Thread.sleep(250);  // Let the JIT kick-in.
+    int debugMicros = benchmarkParse(src, true, 250);
+    int noDebugMicros = benchmarkParse(src, false, 250);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".debugDataMicrosPerRun="
+        + debugMicros);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".noDebugDataMicrosPerRun="
+        + noDebugMicros);
+  }
+
+  private int benchmarkParse(String src, boolean needsDebugData, int nRuns)
+      throws ParseException {
+    MessageQueue mq = DevNullMessageQueue.singleton();
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      CharProducer cp = CharProducer.Factory.fromString(src, is);
+      JsTokenQueue tq = new JsTokenQueue(new JsLexer(cp), is);
+      Parser p = new Parser(tq, mq);
+      p.setNeedsDebugData(needsDebugData);
+      p.parse();
+    }
+    return (int) ((((double) (System.nanoTime() - t0)) / nRuns) / 1e3);
+  }
+
+  private Block parseResource(
+      String resource, boolean needsDebugData, MessageQueue mq)
+      throws Exception {
+    JsTokenQueue tq = new JsTokenQueue(
+        new JsLexer(fromResource(resource)), is, JsTokenQueue.NO_COMMENT);
+    Parser p = new Parser(tq, mq);
+    p.setNeedsDebugData(needsDebugData);
+    return p.parse();
+  }
+
+  private static List<MessageTypeInt> messageTypes(List<Message> msgs) {
+    List<MessageTypeInt> types = new ArrayList<MessageTypeInt>();
+    for (Message msg : msgs) { types.add(msg.getMessageType()); }
+    return types;
+  }
+
+  private static void assertNoComments(ParseTreeNode node) {
+    assertTrue(node.getComments().isEmpty());
+    for (ParseTreeNode child : node.children()) { assertNoComments(child); }
+  }
+
   private static String expand(String template, String value) {
     // Use string replace rather than quasis to avoid invoking the parser when
     // creating tests for the parser
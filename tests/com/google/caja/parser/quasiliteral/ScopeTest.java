@@ -14,6 +14,7 @@
 
 package com.google.caja.parser.quasiliteral;
 
+import com.google.caja.lexer.FilePosition;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.ParseTreeNodeContainer;
 import com.google.caja.parser.ParseTreeNodeVisitor;
@@ -30,6 +31,7 @@ import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageType;
 import com.google.caja.util.CajaTestCase;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
 /**
@@ -42,6 +44,83 @@ public class ScopeTest extends CajaTestCase {
     return Scope.fromProgram(n, mq);
   }
 
+  public final void testAnalysisReusedUntilMutation() throws Exception {
+    Block n = js(fromString(
+        "var x = 3;"
+        + "function foo() { var y = 3; if (y) { return z; } }"));
+    FunctionConstructor fc = findFunctionConstructor(n, "foo");
+    Scope.HarvestCache cache = new Scope.HarvestCache();
+    Scope s1 = Scope.fromFunctionConstructor(
+        Scope.fromProgram(n, cache, mq), fc);
+    assertTrue(cache.isCached(fc.getBody()));
+    assertFalse(s1.isDefined("z"));
+
+    // An in-place mutation of a node within the body invalidates the cached
+    // analysis.
+    Block inner = (Block) fc.getBody().children().get(1).children().get(1);
+    inner.insertBefore(
+        new Declaration(
+            FilePosition.UNKNOWN, new Identifier(FilePosition.UNKNOWN, "z"),
+            null),
+        inner.children().get(0));
+    assertFalse(cache.isCached(fc.getBody()));
+    s1 = Scope.fromFunctionConstructor(Scope.fromProgram(n, cache, mq), fc);
+    assertTrue(s1.isDefined("z"));
+    assertTrue(cache.isCached(fc.getBody()));
+  }
+
+  public final void testAnalysisSurvivesMutationOfOtherTrees()
+      throws Exception {
+    Block n = js(fromString("var x = 3; function foo() { return x; }"));
+    Scope.HarvestCache cache = new Scope.HarvestCache();
+    Scope.fromProgram(n, cache, mq);
+    assertTrue(cache.isCached(n));
+    Block other = js(fromString("var y;"));
+    other.removeChild(other.children().get(0));
+    assertTrue(cache.isCached(n));
+  }
+
+  public final void testMutationOfRootInvalidatesAnalysis()
+      throws Exception {
+    Block n = js(fromString("var x = 3;"));
+    Scope.HarvestCache cache = new Scope.HarvestCache();
+    Scope.fromProgram(n, cache, mq);
+    assertTrue(cache.isCached(n));
+    n.appendChild(js(fromString("var y;")).children().get(0).clone());
+    assertFalse(cache.isCached(n));
+    assertTrue(Scope.fromProgram(n, cache, mq).isDefined("y"));
+  }
+
+  public final void testAnalysisDoesNotKeepBlockAlive() throws Exception {
+    Scope.HarvestCache cache = new Scope.HarvestCache();
+    WeakReference<Block> program = analyzeAndDrop(cache);
+    // The function body's entry can only go once the program's is gone.
+    for (int i = 0; i < 100 && cache.size() != 0; ++i) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(program.get());
+    assertEquals(0, cache.size());
+  }
+
+  private WeakReference<Block> analyzeAndDrop(Scope.HarvestCache cache)
+      throws Exception {
+    Block n = js(fromString(
+        "var x = 3; function foo() { var y = 4; return x + y; }"));
+    Scope.fromFunctionConstructor(
+        Scope.fromProgram(n, cache, mq), findFunctionConstructor(n, "foo"));
+    assertEquals(2, cache.size());
+    return new WeakReference<Block>(n);
+  }
+
+  public final void testImmutableAnalysisCached() throws Exception {
+    Block n = js(fromString("var x = 3; function foo() { return x; }"));
+    n.makeImmutable();
+    Scope.HarvestCache cache = new Scope.HarvestCache();
+    Scope.fromProgram(n, cache, mq);
+    assertTrue(cache.isCached(n));
+  }
+
   public final void testSimpleDeclaredFunction() throws Exception {
     Block n = js(fromString(
         "var x = 3;" +
@@ -0,0 +1,228 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+import com.google.caja.util.CodeFingerprint;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class BuildOutputCacheTest extends CajaTestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tmpDir = File.createTempFile(getName(), "dir");
+    assertTrue(tmpDir.delete());
+    assertTrue(tmpDir.mkdirs());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(tmpDir);
+    super.tearDown();
+  }
+
+  public final void testKeyDependsOnContentsAndOptions() throws Exception {
+    BuildOutputCache cache = new BuildOutputCache(
+        new File(tmpDir, "cache"), "test");
+    File a = write("a/foo.js", "var x = 1;");
+    File b = write("b/foo.js", "var x = 1;");
+    File c = write("c/foo.js", "var x = 2;");
+    File out = new File(tmpDir, "out.js");
+    Map<String, Object> options = options("minify");
+
+    String key = cache.key(noFiles(), Arrays.asList(a), out, options);
+    // Paths don't matter, only names and contents.
+    assertEquals(key, cache.key(noFiles(), Arrays.asList(b), out, options));
+    assertFalse(key.equals(
+        cache.key(noFiles(), Arrays.asList(c), out, options)));
+    assertFalse(key.equals(
+        cache.key(noFiles(), Arrays.asList(a), out, options("pretty"))));
+    assertFalse(key.equals(
+        cache.key(Arrays.asList(c), Arrays.asList(a), out, options)));
+    assertFalse(key.equals(cache.key(
+        noFiles(), Arrays.asList(a), new File(tmpDir, "out.html"), options)));
+    assertFalse(key.equals(new BuildOutputCache(new File(tmpDir, "cache"), "2")
+        .key(noFiles(), Arrays.asList(a), out, options)));
+
+    // Caches are not part of the key.
+    options.put("parseCache", new File(tmpDir, "elsewhere"));
+    options.put("outputCache", new File(tmpDir, "elsewhere"));
+    assertEquals(key, cache.key(noFiles(), Arrays.asList(a), out, options));
+  }
+
+  public final void testFetchAndStore() throws Exception {
+    BuildOutputCache cache = new BuildOutputCache(
+        new File(tmpDir, "cache"), "test");
+    File out = write("out.js", "var y=2");
+    File copy = new File(tmpDir, "copy.js");
+    assertFalse(cache.fetch("0123", copy));
+    cache.store("0123", out);
+    assertTrue(cache.fetch("0123", copy));
+    assertEquals("var y=2", read(copy));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals("output cache: 1 hits, 1 misses (50%)",
+                 cache.describeHitRate());
+  }
+
+  public final void testCajoleUsesCache() throws Exception {
+    File cacheDir = new File(tmpDir, "cache");
+    File input = write("in/foo.js", "var x = 1 + 1; function f() {}");
+    File out1 = new File(new File(tmpDir, "out1"), "foo.opt.js");
+    File out2 = new File(new File(tmpDir, "out2"), "foo.opt.js");
+    assertTrue(out1.getParentFile().mkdirs());
+    assertTrue(out2.getParentFile().mkdirs());
+    Map<String, Object> options = options("minify");
+    options.put("outputCache", cacheDir);
+
+    StringWriter log = new StringWriter();
+    PrintWriter logger = new PrintWriter(log);
+    assertTrue(new BuildServiceImplementation().cajole(
+        logger, noFiles(), Arrays.asList(input), out1, options));
+    String[] entries = cacheDir.list();
+    assertEquals(1, entries.length);
+
+    // Make the cached entry distinguishable from a recompile.
+    OutputStream entry = new FileOutputStream(new File(cacheDir, entries[0]));
+    try {
+      entry.write("cached".getBytes(Charsets.UTF_8.name()));
+    } finally {
+      entry.close();
+    }
+    assertTrue(new BuildServiceImplementation().cajole(
+        logger, noFiles(), Arrays.asList(input), out2, options));
+    assertEquals("cached", read(out2));
+    logger.flush();
+    // Progress goes to the logger so that parallel builds can buffer it.
+    String logged = log.toString();
+    assertTrue(logged, logged.contains(" to foo.opt.js from cache"));
+    assertFalse(logged, logged.contains("ERROR"));
+  }
+
+  public final void testCompilerVersionTracksClassFiles() throws Exception {
+    assertNotNull(BuildServiceImplementation.compilerVersion());
+    String className = CodeFingerprint.class.getName();
+    byte[] classBytes = readResource(
+        "/" + className.replace('.', '/') + ".class");
+    String path = className.replace('.', '/') + ".class";
+
+    write("a/" + path, classBytes);
+    write("b/" + path, classBytes);
+    // Generated JavaScript beside the classes doesn't change the compiler.
+    write("b/com/google/caja/plugin/html4-defs.js", "var html4 = {};");
+    write("c/" + path, classBytes);
+    write("c/com/google/caja/Other.class", new byte[] { 1, 2, 3 });
+
+    String a = fingerprintOf(className, new File(tmpDir, "a"));
+    assertNotNull(a);
+    assertEquals(a, fingerprintOf(className, new File(tmpDir, "b")));
+    assertFalse(a.equals(fingerprintOf(className, new File(tmpDir, "c"))));
+  }
+
+  private static Map<String, Object> options(String renderer) {
+    Map<String, Object> options = Maps.newHashMap();
+    options.put("language", "javascript");
+    options.put("renderer", renderer);
+    options.put("debug", false);
+    options.put("toIgnore", Sets.newHashSet("B", "A"));
+    options.put("canLink", Collections.emptySet());
+    return options;
+  }
+
+  private static List<File> noFiles() {
+    return Collections.<File>emptyList();
+  }
+
+  private static String fingerprintOf(String className, File classDir)
+      throws Exception {
+    // No parent so that the class is loaded from classDir.
+    URLClassLoader loader = new URLClassLoader(
+        new URL[] { classDir.toURI().toURL() }, null);
+    return CodeFingerprint.of(loader.loadClass(className));
+  }
+
+  private byte[] readResource(String path) throws IOException {
+    InputStream in = getClass().getResourceAsStream(path);
+    assertNotNull(path, in);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      for (int n; (n = in.read(buf)) > 0;) { out.write(buf, 0, n); }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private File write(String path, String content) throws IOException {
+    return write(path, content.getBytes(Charsets.UTF_8.name()));
+  }
+
+  private File write(String path, byte[] content) throws IOException {
+    File f = new File(tmpDir, path);
+    f.getParentFile().mkdirs();
+    OutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  private static String read(File f) throws IOException {
+    InputStream in = new FileInputStream(f);
+    try {
+      byte[] bytes = new byte[(int) f.length()];
+      int n = 0;
+      while (n < bytes.length) {
+        int k = in.read(bytes, n, bytes.length - n);
+        if (k < 0) { break; }
+        n += k;
+      }
+      return new String(bytes, 0, n, Charsets.UTF_8.name());
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) { delete(child); }
+    }
+    f.delete();
+  }
+}
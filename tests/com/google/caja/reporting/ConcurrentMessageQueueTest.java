@@ -0,0 +1,170 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.reporting;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.common.collect.Lists;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+public class ConcurrentMessageQueueTest extends TestCase {
+  private static final InputSource A = new InputSource(URI.create("test:///a"));
+  private static final InputSource B = new InputSource(URI.create("test:///b"));
+
+  public final void testLevels() {
+    ConcurrentMessageQueue mq = new ConcurrentMessageQueue();
+    assertFalse(mq.hasMessageAtLevel(MessageLevel.LOG));
+    mq.addMessage(MessageType.PARSE_ERROR, MessageLevel.LINT, pos(A, 0));
+    assertTrue(mq.hasMessageAtLevel(MessageLevel.LOG));
+    assertTrue(mq.hasMessageAtLevel(MessageLevel.LINT));
+    assertFalse(mq.hasMessageAtLevel(MessageLevel.WARNING));
+    mq.addMessage(MessageType.PARSE_ERROR, pos(A, 1));
+    assertTrue(mq.hasMessageAtLevel(MessageLevel.ERROR));
+    assertFalse(mq.hasMessageAtLevel(MessageLevel.FATAL_ERROR));
+    assertEquals(1, mq.getMessageCount(MessageLevel.ERROR));
+    assertEquals(2, mq.getMessages().size());
+
+    for (Iterator<Message> it = mq.getMessages().iterator(); it.hasNext();) {
+      if (it.next().getMessageLevel() == MessageLevel.ERROR) { it.remove(); }
+    }
+    assertFalse(mq.hasMessageAtLevel(MessageLevel.ERROR));
+    assertTrue(mq.hasMessageAtLevel(MessageLevel.LINT));
+    assertEquals(0, mq.getMessageCount(MessageLevel.ERROR));
+
+    mq.getMessages().clear();
+    assertFalse(mq.hasMessageAtLevel(MessageLevel.LOG));
+    assertTrue(mq.getMessages().isEmpty());
+  }
+
+  public final void testListView() {
+    ConcurrentMessageQueue mq = new ConcurrentMessageQueue();
+    Message m0 = new Message(MessageType.PARSE_ERROR, pos(A, 0));
+    Message m1 = new Message(
+        MessageType.PARSE_ERROR, MessageLevel.WARNING, pos(A, 1));
+    Message m2 = new Message(MessageType.PARSE_ERROR, pos(A, 2));
+    mq.getMessages().addAll(Lists.newArrayList(m0, m1, m2));
+    assertEquals(Lists.newArrayList(m0, m1, m2), mq.getMessages());
+    assertSame(m1, mq.getMessages().get(1));
+    assertSame(m1, mq.getMessages().remove(1));
+    assertEquals(0, mq.getMessageCount(MessageLevel.WARNING));
+    assertTrue(mq.getMessages().remove(m0));
+    assertEquals(Lists.newArrayList(m2), mq.getMessages());
+    assertEquals(1, mq.getMessageCount(MessageLevel.ERROR));
+    try {
+      mq.getMessages().get(1);
+      fail();
+    } catch (IndexOutOfBoundsException ex) {
+      // pass
+    }
+  }
+
+  public final void testSubListClear() {
+    ConcurrentMessageQueue mq = new ConcurrentMessageQueue();
+    List<Message> msgs = Lists.newArrayList();
+    for (int i = 0; i < 6; ++i) {
+      msgs.add(new Message(
+          MessageType.PARSE_ERROR,
+          i % 2 == 0 ? MessageLevel.ERROR : MessageLevel.WARNING, pos(A, i)));
+    }
+    mq.getMessages().addAll(msgs);
+    // As done by the Parser when it backtracks.
+    mq.getMessages().subList(4, 6).clear();
+    assertEquals(msgs.subList(0, 4), mq.getMessages());
+    mq.getMessages().subList(1, 3).clear();
+    assertEquals(
+        Lists.newArrayList(msgs.get(0), msgs.get(3)), mq.getMessages());
+    assertEquals(1, mq.getMessageCount(MessageLevel.ERROR));
+    assertEquals(1, mq.getMessageCount(MessageLevel.WARNING));
+    assertEquals(2, mq.getMessages().size());
+  }
+
+  public final void testConcurrentAppends() throws Exception {
+    final ConcurrentMessageQueue mq = new ConcurrentMessageQueue();
+    final int nThreads = 8, nPerThread = 10000;
+    ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Callable<Void>> tasks = Lists.newArrayList();
+      for (int i = 0; i < nThreads; ++i) {
+        final MessageLevel lvl = (i & 1) == 0
+            ? MessageLevel.WARNING : MessageLevel.LINT;
+        tasks.add(new Callable<Void>() {
+          public Void call() {
+            for (int j = 0; j < nPerThread; ++j) {
+              mq.addMessage(MessageType.PARSE_ERROR, lvl, pos(A, j));
+            }
+            return null;
+          }
+        });
+      }
+      for (Future<Void> f : exec.invokeAll(tasks)) { f.get(); }
+    } finally {
+      exec.shutdown();
+    }
+    assertEquals(nThreads * nPerThread, mq.getMessages().size());
+    int n = 0;
+    for (Iterator<Message> it = mq.getMessages().iterator(); it.hasNext();) {
+      it.next();
+      ++n;
+    }
+    assertEquals(nThreads * nPerThread, n);
+    assertEquals(
+        nThreads * nPerThread / 2, mq.getMessageCount(MessageLevel.WARNING));
+    assertEquals(
+        nThreads * nPerThread / 2, mq.getMessageCount(MessageLevel.LINT));
+    assertFalse(mq.hasMessageAtLevel(MessageLevel.ERROR));
+  }
+
+  public final void testMerge() {
+    ConcurrentMessageQueue child0 = new ConcurrentMessageQueue();
+    MessageQueue child1 = new SimpleMessageQueue();
+    Message b5 = new Message(MessageType.PARSE_ERROR, pos(B, 5));
+    Message a9 = new Message(MessageType.PARSE_ERROR, pos(A, 9));
+    Message noPos0 = new Message(
+        MessageType.INTERNAL_ERROR, MessagePart.Factory.valueOf("x"));
+    Message a2 = new Message(MessageType.PARSE_ERROR, pos(A, 2));
+    Message a9Again = new Message(MessageType.PARSE_ERROR, pos(A, 9));
+    Message noPos1 = new Message(
+        MessageType.INTERNAL_ERROR, MessagePart.Factory.valueOf("y"));
+    child0.addMessage(b5);
+    child0.addMessage(a9);
+    child0.addMessage(noPos0);
+    child1.addMessage(noPos1);
+    child1.addMessage(a9Again);
+    child1.addMessage(a2);
+
+    ConcurrentMessageQueue mq = new ConcurrentMessageQueue();
+    Message existing = new Message(MessageType.PARSE_ERROR, pos(B, 0));
+    mq.addMessage(existing);
+    mq.merge(Lists.newArrayList(child0, child1));
+    assertEquals(
+        Lists.newArrayList(existing, a2, a9, a9Again, b5, noPos0, noPos1),
+        mq.getMessages());
+    assertEquals(5, mq.getMessageCount(MessageLevel.ERROR));
+    assertEquals(2, mq.getMessageCount(MessageLevel.FATAL_ERROR));
+  }
+
+  private static FilePosition pos(InputSource src, int charInFile) {
+    return FilePosition.instance(src, 1, charInFile + 1, charInFile + 1, 1);
+  }
+}
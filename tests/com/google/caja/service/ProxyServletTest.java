@@ -14,9 +14,16 @@
 
 package com.google.caja.service;
 
+import com.google.caja.util.Charsets;
+
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
 /**
  * Tests the fetching proxy servlet
  *
@@ -128,4 +135,122 @@ public final class ProxyServletTest extends ServiceTestCase {
         "application/json");
     // TODO(kpreid): assertions about content, not just mime type
   }
+
+  public final void testNotModified() throws Exception {
+    registerUri("http://foo/bar", "body {}", "text/css");
+    String query = "?url=http://foo/bar&input-mime-type=text/css";
+    TestHttpServletResponse first = requestGet(
+        new TestHttpServletRequest(query));
+    assertEquals(200, first.getStatus());
+    String etag = first.getHeaders().get("etag");
+    assertTrue(etag, etag.matches("\"[0-9a-f]{40}\""));
+
+    TestHttpServletRequest revalidate = new TestHttpServletRequest(query);
+    revalidate.setHeader("If-None-Match", "\"other\", " + etag);
+    TestHttpServletResponse second = requestGet(revalidate);
+    assertEquals(304, second.getStatus());
+    assertEquals(etag, second.getHeaders().get("etag"));
+    assertNull(second.getOutputObject());
+
+    registerUri("http://foo/bar", "body { color: red }", "text/css");
+    TestHttpServletResponse changed = requestGet(revalidate);
+    assertEquals(200, changed.getStatus());
+    assertFalse(etag.equals(changed.getHeaders().get("etag")));
+    assertSubstringsInJson(
+        (String) changed.getOutputObject(), "html", "body { color: red }");
+  }
+
+  public final void testGzip() throws Exception {
+    StringBuilder css = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      css.append(".c").append(i).append(" { color: red }\n");
+    }
+    registerUri("http://foo/bar", css.toString(), "text/css");
+    String query = "?url=http://foo/bar&input-mime-type=text/css";
+    String plainEtag = requestGet(new TestHttpServletRequest(query))
+        .getHeaders().get("etag");
+
+    TestHttpServletRequest req = new TestHttpServletRequest(query);
+    req.setHeader("Accept-Encoding", "deflate, gzip");
+    TestHttpServletResponse resp = requestGet(req);
+    assertEquals(200, resp.getStatus());
+    assertEquals("gzip", resp.getHeaders().get("content-encoding"));
+    assertEquals("Accept-Encoding", resp.getHeaders().get("vary"));
+    String gzipEtag = resp.getHeaders().get("etag");
+    assertFalse(plainEtag.equals(gzipEtag));
+    byte[] body = resp.getOutputBytes();
+    assertEquals("" + body.length, resp.getHeaders().get("content-length"));
+    assertSubstringsInJson(gunzip(body), "html", ".c99 { color: red }");
+
+    assertEquals(0, getServlet().getGzipCacheHitCount());
+    TestHttpServletResponse again = requestGet(req);
+    assertEquals(1, getServlet().getGzipCacheHitCount());
+    assertEquals(gzipEtag, again.getHeaders().get("etag"));
+    assertEquals(gunzip(body), gunzip(again.getOutputBytes()));
+
+    req.setHeader("If-None-Match", gzipEtag);
+    assertEquals(304, requestGet(req).getStatus());
+  }
+
+  public final void testGzipCacheIsBoundedByBytes() {
+    ProxyServlet.GzipCache cache = new ProxyServlet.GzipCache(1000);
+    for (String hash : new String[] { "a", "b", "c", "d", "e" }) {
+      cache.put(hash, new byte[200]);
+    }
+    assertEquals(1000, cache.getTotalBytes());
+    assertNotNull(cache.get("a"));  // Now more recently used than b.
+    cache.put("f", new byte[200]);
+    assertEquals(1000, cache.getTotalBytes());
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("f"));
+
+    cache.put("f", new byte[100]);
+    assertEquals(900, cache.getTotalBytes());
+
+    // Too big to cache, so the other bodies stay.
+    cache.put("big", new byte[251]);
+    assertNull(cache.get("big"));
+    assertEquals(900, cache.getTotalBytes());
+    assertNotNull(cache.get("c"));
+  }
+
+  public final void testSmallBodiesAreNotGzipped() throws Exception {
+    registerUri("http://foo/bar", "body {}", "text/css");
+    TestHttpServletRequest req = new TestHttpServletRequest(
+        "?url=http://foo/bar&input-mime-type=text/css");
+    req.setHeader("Accept-Encoding", "gzip");
+    TestHttpServletResponse resp = requestGet(req);
+    assertNull(resp.getHeaders().get("content-encoding"));
+    assertSubstringsInJson((String) resp.getOutputObject(), "html", "body {}");
+  }
+
+  public final void testAcceptsGzip() {
+    assertFalse(ProxyServlet.acceptsGzip(null));
+    assertFalse(ProxyServlet.acceptsGzip(""));
+    assertFalse(ProxyServlet.acceptsGzip("deflate"));
+    assertTrue(ProxyServlet.acceptsGzip("gzip"));
+    assertTrue(ProxyServlet.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertTrue(ProxyServlet.acceptsGzip("x-gzip"));
+    assertTrue(ProxyServlet.acceptsGzip("*"));
+    assertFalse(ProxyServlet.acceptsGzip("gzip;q=0"));
+    assertFalse(ProxyServlet.acceptsGzip("gzip;q=0, *"));
+    assertFalse(ProxyServlet.acceptsGzip("gzip;q=bogus"));
+  }
+
+  public final void testMatchesEntityTag() {
+    assertFalse(ProxyServlet.matchesEntityTag(null, "\"a\""));
+    assertTrue(ProxyServlet.matchesEntityTag("\"a\"", "\"a\""));
+    assertTrue(ProxyServlet.matchesEntityTag("\"b\", W/\"a\"", "\"a\""));
+    assertTrue(ProxyServlet.matchesEntityTag("*", "\"a\""));
+    assertFalse(ProxyServlet.matchesEntityTag("\"b\"", "\"a\""));
+  }
+
+  private static String gunzip(byte[] bytes) throws Exception {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1024];
+    for (int n; (n = in.read(buf)) > 0;) { out.write(buf, 0, n); }
+    return new String(out.toByteArray(), Charsets.UTF_8.name());
+  }
 }
@@ -111,6 +111,15 @@ public abstract class ServiceTestCase extends CajaTestCase {
     return resp.getOutputObject();
   }
 
+  protected TestHttpServletResponse requestGet(TestHttpServletRequest req)
+      throws Exception {
+    TestHttpServletResponse resp = new TestHttpServletResponse();
+    servlet.doGet(req, resp);
+    return resp;
+  }
+
+  protected ProxyServlet getServlet() { return servlet; }
+
   // TODO(ihab.awad): Change tests to use structural equality (via quasi
   // matches) rather than golden text to avoid this.
   protected static void assertEqualsIgnoreSpace(
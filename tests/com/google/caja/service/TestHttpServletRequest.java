@@ -91,6 +91,9 @@ public final class TestHttpServletRequest implements HttpServletRequest {
   public String getHeader(String a) {
     return headers.get(a);
   }
+  void setHeader(String name, String value) {
+    headers.put(name, value);
+  }
   public Enumeration<String> getHeaderNames() {
     return enumeration(headers.keySet().iterator());
   }
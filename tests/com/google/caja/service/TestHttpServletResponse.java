@@ -139,6 +139,11 @@ public final class TestHttpServletResponse implements HttpServletResponse {
     }
     return ((StringWriter) output).toString();
   }
+  /** The raw body, for responses that are not text like gzipped ones. */
+  public byte[] getOutputBytes() {
+    if (output == null) { return null; }
+    return ((ByteArrayOutputStream) output).toByteArray();
+  }
   public void addDateHeader(String arg0, long arg1) {
     addHeader(arg0, "" + new Date(arg1));
   }
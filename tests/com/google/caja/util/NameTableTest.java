@@ -0,0 +1,92 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.util;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("static-method")
+public class NameTableTest extends TestCase {
+  public final void testEmpty() {
+    NameTable<String> t = new NameTable<String>(
+        ImmutableMap.<String, String>of());
+    assertEquals(0, t.size());
+    assertNull(t.get(""));
+    assertNull(t.get("foo"));
+  }
+
+  public final void testCaseInsensitive() {
+    NameTable<Integer> t = new NameTable<Integer>(
+        ImmutableMap.of("color", 1, "Font-Style", 2, "", 3));
+    assertEquals(3, t.size());
+    assertEquals(Integer.valueOf(1), t.get("color"));
+    assertEquals(Integer.valueOf(1), t.get("COLOR"));
+    assertEquals(Integer.valueOf(2), t.get("font-style"));
+    assertEquals(Integer.valueOf(2), t.get(new StringBuilder("fONT-stYLE")));
+    assertEquals(Integer.valueOf(3), t.get(""));
+    assertNull(t.get("colo"));
+    assertNull(t.get("colors"));
+    assertTrue(t.containsKey("Color"));
+    assertFalse(t.containsKey("font"));
+  }
+
+  public final void testSlices() {
+    NameTable<Integer> t = new NameTable<Integer>(
+        ImmutableMap.of("a", 1, "href", 2));
+    char[] buf = "<A HREF=foo>".toCharArray();
+    assertEquals(Integer.valueOf(1), t.get(buf, 1, 1));
+    assertEquals(Integer.valueOf(2), t.get(buf, 3, 4));
+    assertNull(t.get(buf, 3, 3));
+    assertNull(t.get(buf, 0, 2));
+    assertTrue(t.containsKey(buf, 3, 4));
+  }
+
+  public final void testNonAscii() {
+    NameTable<Integer> t = new NameTable<Integer>(
+        ImmutableMap.of("keygen", 1, "\u00e9t\u00e9", 2));
+    assertEquals(Integer.valueOf(1), t.get("Keygen"));
+    // U+212A KELVIN SIGN lower cases to an ASCII k.
+    assertEquals(Integer.valueOf(1), t.get("\u212Aeygen"));
+    assertEquals(Integer.valueOf(2), t.get("\u00c9T\u00c9"));
+    char[] buf = "x\u00c9t\u00e9".toCharArray();
+    assertEquals(Integer.valueOf(2), t.get(buf, 1, 3));
+    // Dotless i is not an i.
+    assertNull(t.get("k\u0131ygen"));
+  }
+
+  public final void testManyNames() {
+    Map<String, Integer> m = Maps.newLinkedHashMap();
+    for (int i = 0; i < 1000; ++i) { m.put("n" + i, i); }
+    NameTable<Integer> t = new NameTable<Integer>(m);
+    assertEquals(1000, t.size());
+    for (int i = 0; i < 1000; ++i) {
+      assertEquals(Integer.valueOf(i), t.get("N" + i));
+    }
+    assertNull(t.get("n1000"));
+  }
+
+  public final void testDuplicates() {
+    try {
+      new NameTable<Integer>(ImmutableMap.of("foo", 1, "FOO", 2));
+      fail();
+    } catch (IllegalArgumentException ex) {
+      // OK
+    }
+  }
+}
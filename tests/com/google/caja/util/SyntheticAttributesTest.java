@@ -0,0 +1,174 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.util;
+
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("static-method")
+public class SyntheticAttributesTest extends TestCase {
+  private static final List<SyntheticAttributeKey<Integer>> KEYS
+      = Lists.newArrayList();
+  static {
+    for (int i = 0; i < 10; ++i) {
+      KEYS.add(new SyntheticAttributeKey<Integer>(Integer.class, "k" + i));
+    }
+  }
+
+  public final void testEqualKeysShareIds() {
+    SyntheticAttributeKey<String> a
+        = new SyntheticAttributeKey<String>(String.class, "foo");
+    SyntheticAttributeKey<String> b
+        = new SyntheticAttributeKey<String>(String.class, "foo");
+    SyntheticAttributeKey<Integer> c
+        = new SyntheticAttributeKey<Integer>(Integer.class, "foo");
+    assertEquals(a, b);
+    assertEquals(a.getId(), b.getId());
+    assertFalse(a.getId() == c.getId());
+
+    SyntheticAttributes sa = new SyntheticAttributes();
+    sa.set(a, "bar");
+    assertEquals("bar", sa.get(b));
+    assertNull(sa.get(c));
+  }
+
+  public final void testGrowAndShrink() {
+    SyntheticAttributes sa = new SyntheticAttributes();
+    for (int i = 0; i < KEYS.size(); ++i) {
+      assertNull(sa.set(KEYS.get(i), i));
+      assertEquals(i + 1, sa.size());
+      for (int j = 0; j <= i; ++j) {
+        assertEquals(Integer.valueOf(j), sa.get(KEYS.get(j)));
+      }
+    }
+    assertEquals(Integer.valueOf(3), sa.set(KEYS.get(3), 33));
+    for (int i = KEYS.size(); --i >= 0;) {
+      assertTrue(sa.containsKey(KEYS.get(i)));
+      sa.remove(KEYS.get(i));
+      assertFalse(sa.containsKey(KEYS.get(i)));
+    }
+    assertTrue(sa.isEmpty());
+  }
+
+  public final void testNullValues() {
+    SyntheticAttributes sa = new SyntheticAttributes();
+    sa.set(KEYS.get(0), null);
+    assertTrue(sa.containsKey(KEYS.get(0)));
+    assertTrue(sa.containsValue(null));
+    assertEquals(1, sa.size());
+    assertNull(sa.get(KEYS.get(0)));
+  }
+
+  public final void testCopyOnWrite() {
+    for (int n : new int[] { 0, 2, SyntheticAttributes.SMALL_MAP_CAPACITY,
+                             KEYS.size() - 1 }) {
+      SyntheticAttributes orig = new SyntheticAttributes();
+      for (int i = 0; i < n; ++i) { orig.set(KEYS.get(i), i); }
+      SyntheticAttributes copy = new SyntheticAttributes(orig);
+      copy.set(KEYS.get(KEYS.size() - 1), -1);
+      if (n != 0) { copy.remove(KEYS.get(0)); }
+      orig.set(KEYS.get(1), 11);
+      assertEquals(n >= 2 ? n : n + 1, orig.size());
+      assertNull(orig.get(KEYS.get(KEYS.size() - 1)));
+      assertEquals(n != 0 ? Integer.valueOf(0) : null, orig.get(KEYS.get(0)));
+      assertEquals(Integer.valueOf(-1), copy.get(KEYS.get(KEYS.size() - 1)));
+      assertNull(copy.get(KEYS.get(0)));
+      if (n >= 2) {
+        assertEquals(Integer.valueOf(1), copy.get(KEYS.get(1)));
+      }
+    }
+  }
+
+  public final void testImmutable() {
+    SyntheticAttributes sa = new SyntheticAttributes();
+    sa.set(KEYS.get(0), 0);
+    sa.makeImmutable();
+    try {
+      sa.set(KEYS.get(1), 1);
+      fail();
+    } catch (UnsupportedOperationException ex) {
+      // pass
+    }
+    try {
+      sa.remove(KEYS.get(0));
+      fail();
+    } catch (UnsupportedOperationException ex) {
+      // pass
+    }
+    assertEquals(Integer.valueOf(0), sa.get(KEYS.get(0)));
+  }
+
+  public final void testMakeImmutableWhenEmptyDoesNotAllocate()
+      throws Exception {
+    SyntheticAttributes sa = new SyntheticAttributes();
+    sa.makeImmutable();
+    assertTrue(sa.isImmutable());
+    assertTrue(sa.isEmpty());
+    Field keys = SyntheticAttributes.class.getDeclaredField("keys");
+    keys.setAccessible(true);
+    assertNull(keys.get(sa));
+    try {
+      sa.set(KEYS.get(0), 0);
+      fail();
+    } catch (UnsupportedOperationException ex) {
+      // pass
+    }
+  }
+
+  public final void testAgainstHashMap() {
+    Random rnd = new Random(CajaTestCase.SEED);
+    for (int run = 100; --run >= 0;) {
+      SyntheticAttributes sa = new SyntheticAttributes();
+      Map<SyntheticAttributeKey<?>, Object> m
+          = new HashMap<SyntheticAttributeKey<?>, Object>();
+      for (int op = 50; --op >= 0;) {
+        SyntheticAttributeKey<Integer> k = KEYS.get(rnd.nextInt(KEYS.size()));
+        if (rnd.nextInt(3) == 0) {
+          assertEquals(m.remove(k), sa.remove(k));
+        } else {
+          Integer v = rnd.nextInt(100);
+          assertEquals(m.put(k, v), sa.set(k, v));
+        }
+        assertEquals(m, sa);
+        assertEquals(m.hashCode(), sa.hashCode());
+      }
+    }
+  }
+
+  public final void testSerialization() throws Exception {
+    SyntheticAttributes sa = new SyntheticAttributes();
+    sa.set(KEYS.get(0), 0);
+    sa.set(KEYS.get(1), 1);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(sa);
+    out.close();
+    SyntheticAttributes copy = (SyntheticAttributes) new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    assertEquals(sa, copy);
+    assertEquals(Integer.valueOf(1), copy.get(KEYS.get(1)));
+  }
+}